@@ -0,0 +1,108 @@
+package zac.org.disruptivelights;
+
+import java.util.UUID;
+
+/**
+ * Cheap test run on every advertisement straight from the scan callback.
+ *
+ * Criteria left unset are ignored, the ones that are set must all match. The name
+ * prefix is checked against the local name inside the scan record, so matching never
+ * needs the binder call behind BluetoothDevice.getName(). Nothing is allocated while
+ * matching. Configure it before handing it to BtLeScanService, it is not thread safe
+ * to change afterwards.
+ */
+public class AdvertisementFilter {
+    private long[] mAddresses = new long[0];
+    private UUID mServiceUuid;
+    private byte[] mNamePrefix;
+    private int mManufacturerId = -1;
+    private byte[] mManufacturerData;
+
+    /**
+     * Match any of the added addresses.
+     */
+    public AdvertisementFilter addAddress(String address) {
+        final long key = DeviceRegistry.parseAddress(address);
+        if(key == DeviceRegistry.NO_ADDRESS) {
+            throw new IllegalArgumentException("Not a MAC address: " + address);
+        }
+        final long[] grown = new long[mAddresses.length + 1];
+        System.arraycopy(mAddresses, 0, grown, 0, mAddresses.length);
+        grown[mAddresses.length] = key;
+        mAddresses = grown;
+        return this;
+    }
+
+    public AdvertisementFilter setServiceUuid16(int uuid16) {
+        mServiceUuid = BleUuids.fromShort(uuid16 & 0xFFFF);
+        return this;
+    }
+
+    /**
+     * Match a service UUID in any of the advertised lists, 16, 32 or 128 bit.
+     */
+    public AdvertisementFilter setServiceUuid(UUID uuid) {
+        mServiceUuid = uuid;
+        return this;
+    }
+
+    /**
+     * ASCII name prefix, compared byte for byte with the advertised local name.
+     */
+    public AdvertisementFilter setNamePrefix(String prefix) {
+        mNamePrefix = new byte[prefix.length()];
+        for(int i = 0; i < prefix.length(); i++) {
+            mNamePrefix[i] = (byte)prefix.charAt(i);
+        }
+        return this;
+    }
+
+    /**
+     * Match manufacturer specific data from companyId that starts with dataPrefix (may be null).
+     */
+    public AdvertisementFilter setManufacturerData(int companyId, byte[] dataPrefix) {
+        mManufacturerId = companyId & 0xFFFF;
+        mManufacturerData = dataPrefix;
+        return this;
+    }
+
+    /**
+     * record must already be reset() to the advertisement's scan record.
+     */
+    public boolean matches(long address, ScanRecordParser record) {
+        if(mAddresses.length > 0 && !containsAddress(address)) {
+            return false;
+        }
+        if(mServiceUuid != null && !record.hasServiceUuid(mServiceUuid)) {
+            return false;
+        }
+        if(mNamePrefix != null && !record.localNameStartsWith(mNamePrefix)) {
+            return false;
+        }
+        if(mManufacturerId >= 0 && !hasManufacturerData(record)) {
+            return false;
+        }
+        return true;
+    }
+
+    private boolean hasManufacturerData(ScanRecordParser record) {
+        record.rewind();
+        while(record.next()) {
+            if(record.type() == ScanRecordParser.AD_MANUFACTURER_DATA && record.dataLength() >= 2
+                    && record.dataUint16(0) == mManufacturerId
+                    && (mManufacturerData == null || record.dataStartsWith(2, mManufacturerData))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean containsAddress(long address) {
+        for(int i = 0; i < mAddresses.length; i++) {
+            if(mAddresses[i] == address) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,69 @@
+package zac.org.disruptivelights;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * BleScanner on top of BluetoothAdapter.startLeScan(). One scan at a time.
+ */
+public class AndroidBleScanner implements BleScanner {
+    private volatile BluetoothAdapter mAdapter;
+    private volatile Callback mCallback;
+
+    private final BluetoothAdapter.LeScanCallback mLeScanCallback = new BluetoothAdapter.LeScanCallback() {
+        @Override
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            final Callback callback = mCallback;
+            if(callback != null && device != null) {
+                callback.onAdvertisement(device.getAddress(), rssi, scanRecord);
+            }
+        }
+    };
+
+    /**
+     * The adapter may come and go with Bluetooth being switched on and off, null for none.
+     */
+    public void setAdapter(BluetoothAdapter adapter) {
+        mAdapter = adapter;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return mAdapter != null;
+    }
+
+    @Override
+    public boolean startScan(Callback callback) {
+        final BluetoothAdapter adapter = mAdapter;
+        if(adapter == null) {
+            return false;
+        }
+        mCallback = callback;
+        if(!adapter.startLeScan(mLeScanCallback)) {
+            mCallback = null;
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void stopScan(Callback callback) {
+        final BluetoothAdapter adapter = mAdapter;
+        if(adapter != null) {
+            adapter.stopLeScan(mLeScanCallback);
+        }
+        if(mCallback == callback) {
+            mCallback = null;
+        }
+    }
+
+    @Override
+    public String getName(String address) {
+        final BluetoothAdapter adapter = mAdapter;
+        if(adapter == null) {
+            return null;
+        }
+        final BluetoothDevice device = adapter.getRemoteDevice(address);
+        return device == null ? null : device.getName();
+    }
+}
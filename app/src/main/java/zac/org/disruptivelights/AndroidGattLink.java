@@ -0,0 +1,884 @@
+package zac.org.disruptivelights;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.UUID;
+import java.util.concurrent.Future;
+
+/**
+ * GattLink over a real BluetoothGatt connection. BtLeGattService uses one of these for its
+ * own connection and GattConnectionPool keeps as many as it is allowed to.
+ *
+ * Every BluetoothGatt call is made on the BleWorker thread; the public methods only post
+ * to it, so they are safe to call from anywhere, scan callbacks included.
+ *
+ * The BluetoothGatt is kept across drops. A drop nobody asked for is retried following
+ * the ReconnectPolicy. BluetoothGatt.connect() on the kept BluetoothGatt never times out
+ * by itself, so each direct attempt gets the policy's connect timeout, after which it is
+ * cancelled and the next one is scheduled. When the kept BluetoothGatt comes back with
+ * UUID_SERVICE still known, discovery is skipped and the cached service is used straight away.
+ *
+ * Android runs one GATT operation per connection at a time, so the write queue never has
+ * more than one write in flight here: the next frame goes out once onCharacteristicWrite()
+ * reported the previous one. Writes are pipelined across links, see GattConnectionPool,
+ * not within one. The client configuration write that turns notifications on or off takes
+ * its turn the same way, ahead of the next frame, and a link that wants notifications is
+ * only ready once onDescriptorWrite() reported it.
+ */
+public class AndroidGattLink implements GattLink {
+    private static final String TAG = "AndroidGattLink";
+
+    private static final int STATE_DISCONNECTED = 0;
+    private static final int STATE_CONNECTING = 1;
+    private static final int STATE_CONNECTED = 2;
+
+    private static final long NOT_TIMING = -1;
+
+    private static final int NOTIFY_UNCHANGED = 0;
+    private static final int NOTIFY_ON = 1;
+    private static final int NOTIFY_OFF = 2;
+
+    private final Context mContext;
+    private final BluetoothAdapter mBluetoothAdapter;
+    private final String mAddress;
+    private final long mAddressKey; //for TraceRecorder
+    private final Callback mCallback;
+
+    private final BleWorker mWorker = BleWorker.getInstance();
+    private final MonotonicClock mClock = ElapsedRealtimeClock.INSTANCE;
+    private BluetoothGatt mBluetoothGatt; //only touched on mWorker
+
+    //Reconnect state, only touched on mWorker apart from mDisconnectRequested
+    private volatile boolean mDisconnectRequested;
+    private volatile ReconnectPolicy mReconnectPolicy = new ReconnectPolicy();
+    private final ReconnectStats mReconnectStats = new ReconnectStats();
+    private int mReconnectAttempt;
+    private Future<?> mReconnectFuture;
+    private Future<?> mConnectTimeoutFuture;
+    private boolean mDiscovered; //services of mBluetoothGatt were discovered at least once
+    private volatile boolean mServiceFromCache;
+    private volatile BluetoothGattService mBluetoothGattService;
+    //UUID_SEND of mBluetoothGattService, looked up once per connection instead of on every write
+    private volatile BluetoothGattCharacteristic mSendCharacteristic;
+    private volatile boolean mFramed; //the node has UUID_FRAMING, see PacketFramer
+    private volatile boolean mClockSync; //the node has UUID_CLOCK_SYNC, see TimeSync
+    private volatile int mConnectionState = STATE_DISCONNECTED;
+    private volatile boolean mReady;
+    private volatile int mMtu = PacketFramer.DEFAULT_MTU;
+    private final PacketReassembler mReassembler = new PacketReassembler();
+    private volatile NotificationRing mNotificationRing;
+    private volatile DeviceCache mDeviceCache;
+
+    //When the current connect and discovery started, NOT_TIMING when there is none to time
+    private volatile long mConnectStartedUs = NOT_TIMING;
+    private volatile long mDiscoveryStartedUs = NOT_TIMING;
+    private final Metrics.Histogram mConnectTime = Metrics.getInstance().histogram(Metrics.GATT_CONNECT_MS);
+    private final Metrics.Histogram mDiscoveryTime = Metrics.getInstance().histogram(Metrics.GATT_DISCOVERY_MS);
+    private final Metrics.Counter mReconnectCounter = Metrics.getInstance().counter(Metrics.GATT_RECONNECTS);
+    private final Metrics.Counter mNotificationCounter = Metrics.getInstance().counter(Metrics.GATT_NOTIFICATIONS);
+
+    //Writes a queued frame to UUID_SEND on mWorker, completion comes back through onCharacteristicWrite().
+    //A write that cannot be started there completes as failed straight away.
+    private final GattWriteTransport mSendTransport = new GattWriteTransport() {
+        @Override
+        public boolean write(final byte[] frame, final long token) {
+            if(mBluetoothGattService == null) {
+                Log.e(TAG, "mSendTransport.write() - mBluetoothGattService is null");
+                return false;
+            }
+
+            final GattWriteQueue queue = mWriteQueue;
+            mWorker.post(BleWorker.OP_WRITE, new Runnable() {
+                @Override
+                public void run() {
+                    if(mDescriptorInFlight || startPendingDescriptor()) {
+                        //The client configuration write goes first, onDescriptorWrite() runs this again
+                        mDeferredWrite = this;
+                        return;
+                    }
+                    if(!writeSend(frame, token)) {
+                        queue.onWriteComplete(token, false);
+                    }
+                }
+            });
+            return true;
+        }
+    };
+
+    private volatile GattWriteQueue mWriteQueue = new GattWriteQueue(mSendTransport);
+    //Token of the write onCharacteristicWrite() will report, the queue allows only one
+    private volatile long mWriteToken = GattWriteQueue.NO_TOKEN;
+
+    //Client configuration writes, only touched on mWorker apart from mPendingNotify
+    private volatile int mPendingNotify = NOTIFY_UNCHANGED;
+    private boolean mDescriptorInFlight;
+    private boolean mReadyAfterDescriptor; //onReady() is waiting for the descriptor write
+    private Runnable mDeferredWrite; //frame write held back while the descriptor write runs
+
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            Log.d(TAG, mAddress + " onConnectionStateChange(" + status + ", " + newState + ")");
+            final TraceRecorder trace = TraceRecorder.getActive();
+
+            if(newState == BluetoothProfile.STATE_CONNECTED) {
+                mConnectionState = STATE_CONNECTED;
+                if(trace != null) {
+                    trace.connected(mAddressKey, status);
+                }
+                recordSince(mConnectTime, mConnectStartedUs);
+                mConnectStartedUs = NOT_TIMING;
+                mCallback.onLinkConnected(AndroidGattLink.this);
+                mWorker.post(BleWorker.OP_DISCOVER, mDiscoverRunnable);
+            } else if(newState == BluetoothProfile.STATE_DISCONNECTED) {
+                mConnectionState = STATE_DISCONNECTED;
+                if(trace != null) {
+                    trace.disconnected(mAddressKey, status);
+                }
+                mReady = false;
+                mBluetoothGattService = null;
+                mSendCharacteristic = null;
+                mWriteQueue.clear();
+                mMtu = PacketFramer.DEFAULT_MTU;
+                mReassembler.reset();
+                mWorker.post(BleWorker.OP_CONNECT, mResetOperationsRunnable);
+                mCallback.onLinkDisconnected(AndroidGattLink.this);
+
+                if(!mDisconnectRequested) {
+                    mReconnectStats.onDrop(mClock.now());
+                    mWorker.post(BleWorker.OP_CONNECT, mScheduleReconnectRunnable);
+                }
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            Log.d(TAG, mAddress + " onServicesDiscovered(" + status + ")");
+
+            if(status == BluetoothGatt.GATT_SUCCESS) {
+                final BluetoothGattService service = gatt.getService(BtLeGattService.UUID_SERVICE);
+                if(service == null) {
+                    Log.e(TAG, "mGattCallback.onServicesDiscovered() - Failed to hook UUID_SERVICE!");
+                    return;
+                }
+
+                mReconnectStats.onServices(false);
+                recordSince(mDiscoveryTime, mDiscoveryStartedUs);
+                mDiscoveryStartedUs = NOT_TIMING;
+                onServiceFound(service, false);
+            } else {
+                Log.w(TAG, "onServicesDiscovered(" + status + ") - Unhandled");
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            Log.d(TAG, mAddress + " onMtuChanged(" + mtu + ", " + status + ")");
+
+            if(status == BluetoothGatt.GATT_SUCCESS) {
+                mMtu = mtu;
+            } else {
+                Log.w(TAG, "MTU request failed, staying at " + mMtu);
+            }
+            onReady();
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            Log.d(TAG, mAddress + " onCharacteristicRead(" + status + ")");
+
+            if(status == BluetoothGatt.GATT_SUCCESS) {
+                mCallback.onLinkData(AndroidGattLink.this, characteristic.getValue());
+            } else {
+                Log.e(TAG, "onCharacteristicRead() failed to read!");
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            if(status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, mAddress + " onCharacteristicWrite(" + status + ")");
+
+                //The node may have changed since the handles were cached, look again
+                if(mServiceFromCache) {
+                    Log.w(TAG, "Write failed on cached handles, rediscovering " + mAddress);
+                    mServiceFromCache = false;
+                    mWorker.post(BleWorker.OP_DISCOVER, mRediscoverRunnable);
+                }
+            }
+
+            if(characteristic == mSendCharacteristic || BtLeGattService.UUID_SEND.equals(characteristic.getUuid())) {
+                final TraceRecorder trace = TraceRecorder.getActive();
+                if(trace != null) {
+                    trace.writeDone(mAddressKey, status);
+                }
+                final long token = mWriteToken;
+                mWriteToken = GattWriteQueue.NO_TOKEN;
+                mWriteQueue.onWriteComplete(token, status == BluetoothGatt.GATT_SUCCESS);
+                if(mPendingNotify != NOTIFY_UNCHANGED) {
+                    mWorker.post(BleWorker.OP_DISCOVER, mStartDescriptorRunnable);
+                }
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            Log.d(TAG, mAddress + " onDescriptorWrite(" + status + ")");
+
+            if(status != BluetoothGatt.GATT_SUCCESS) {
+                Log.e(TAG, "Failed to write " + descriptor.getUuid() + " on " + mAddress);
+            }
+            mWorker.post(BleWorker.OP_DISCOVER, mDescriptorDoneRunnable);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            //Can come hundreds of times a second, so counted instead of logged
+            mNotificationCounter.increment();
+            final TraceRecorder trace = TraceRecorder.getActive();
+            if(trace != null) {
+                trace.notification(mAddressKey, characteristic.getValue());
+            }
+
+            if(BtLeGattService.UUID_RECEIVE.equals(characteristic.getUuid())) {
+                //Streaming: straight into the ring, no reassembly and no allocation
+                final NotificationRing ring = mNotificationRing;
+                if(ring != null) {
+                    ring.offer(characteristic.getValue());
+                    return;
+                }
+
+                if(!mFramed) {
+                    mCallback.onLinkData(AndroidGattLink.this, characteristic.getValue());
+                    return;
+                }
+
+                final byte[] message = mReassembler.onPacket(characteristic.getValue());
+                if(message != null) {
+                    mCallback.onLinkData(AndroidGattLink.this, message);
+                }
+            } else {
+                mCallback.onLinkData(AndroidGattLink.this, characteristic.getValue());
+            }
+        }
+    };
+
+    //Use what the kept BluetoothGatt already knows if it discovered before and it still
+    //matches the device cache, else discover
+    private final Runnable mDiscoverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if(mBluetoothGatt == null) {
+                return;
+            }
+
+            //Connected again, a later drop starts over with the shortest delay
+            mReconnectAttempt = 0;
+            cancelConnectTimeout();
+
+            if(mDiscovered) {
+                final BluetoothGattService service = mBluetoothGatt.getService(BtLeGattService.UUID_SERVICE);
+                if(service != null && cachedHandlesValid(service)) {
+                    Log.d(TAG, mAddress + " using cached UUID_SERVICE");
+                    mReconnectStats.onServices(true);
+                    onServiceFound(service, true);
+                    return;
+                }
+            }
+
+            mRediscoverRunnable.run();
+        }
+    };
+
+    private final Runnable mRediscoverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if(mBluetoothGatt == null) {
+                return;
+            }
+
+            mDiscoveryStartedUs = Metrics.nowUs();
+            if(!mBluetoothGatt.discoverServices()) {
+                Log.e(TAG, mAddress + " discoverServices() failed");
+                mDiscoveryStartedUs = NOT_TIMING;
+            }
+        }
+    };
+
+    private final Runnable mStartDescriptorRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startPendingDescriptor();
+        }
+    };
+
+    //The descriptor write is over, let whatever waited for it go
+    private final Runnable mDescriptorDoneRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if(!mDescriptorInFlight) {
+                return;
+            }
+            mDescriptorInFlight = false;
+            if(mReadyAfterDescriptor) {
+                mReadyAfterDescriptor = false;
+                finishReady();
+            }
+            if(startPendingDescriptor()) {
+                return;
+            }
+
+            final Runnable deferred = mDeferredWrite;
+            mDeferredWrite = null;
+            if(deferred != null) {
+                deferred.run();
+            }
+        }
+    };
+
+    //The connection is gone and any GATT operation with it
+    private final Runnable mResetOperationsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mWriteToken = GattWriteQueue.NO_TOKEN;
+            mPendingNotify = NOTIFY_UNCHANGED;
+            mDescriptorInFlight = false;
+            mReadyAfterDescriptor = false;
+            mDeferredWrite = null;
+        }
+    };
+
+    private final Runnable mScheduleReconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            scheduleReconnect();
+        }
+    };
+
+    private final Runnable mReconnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mReconnectFuture = null;
+            if(mDisconnectRequested) {
+                return;
+            }
+
+            Log.d(TAG, "Reconnect attempt " + mReconnectAttempt + " to " + mAddress);
+            mReconnectStats.onAttempt();
+            if(!doConnect()) {
+                scheduleReconnect();
+            }
+        }
+    };
+
+    //A direct attempt that has not connected in time is cancelled and counts as failed
+    private final Runnable mConnectTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mConnectTimeoutFuture = null;
+            if(mDisconnectRequested || mConnectionState != STATE_CONNECTING || mBluetoothGatt == null) {
+                return;
+            }
+
+            Log.w(TAG, "Connect attempt " + mReconnectAttempt + " to " + mAddress + " timed out");
+            mConnectStartedUs = NOT_TIMING;
+            mConnectionState = STATE_DISCONNECTED;
+            mBluetoothGatt.disconnect();
+            mReconnectStats.onDrop(mClock.now());
+            scheduleReconnect();
+        }
+    };
+
+    private final Runnable mRequestMtuRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if(mBluetoothGatt != null && mBluetoothGatt.requestMtu(PacketFramer.MAX_MTU)) {
+                Log.d(TAG, "Requested MTU " + PacketFramer.MAX_MTU);
+            } else {
+                onReady();
+            }
+        }
+    };
+
+    public AndroidGattLink(Context context, BluetoothAdapter adapter, String address, Callback callback) {
+        mContext = context;
+        mBluetoothAdapter = adapter;
+        mAddress = address;
+        mAddressKey = DeviceRegistry.parseAddress(address);
+        mCallback = callback;
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * Returns false only for an address the adapter would not take, the connection itself
+     * is started on the BLE worker.
+     */
+    @Override
+    public boolean connect() {
+        Log.d(TAG, "connect(" + mAddress + ")");
+
+        if(!BluetoothAdapter.checkBluetoothAddress(mAddress)) {
+            Log.e(TAG, "connect() - bad address " + mAddress);
+            return false;
+        }
+
+        mDisconnectRequested = false;
+        mConnectionState = STATE_CONNECTING;
+        mWorker.post(BleWorker.OP_CONNECT, new Runnable() {
+            @Override
+            public void run() {
+                cancelReconnect();
+                doConnect();
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        Log.d(TAG, "disconnect(" + mAddress + ")");
+
+        mDisconnectRequested = true;
+        mWorker.post(BleWorker.OP_CONNECT, new Runnable() {
+            @Override
+            public void run() {
+                cancelReconnect();
+                if(mBluetoothGatt == null) {
+                    Log.e(TAG, "disconnect() - mBluetoothGatt is null");
+                    return;
+                }
+
+                mBluetoothGatt.disconnect();
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        Log.d(TAG, "close(" + mAddress + ")");
+
+        mDisconnectRequested = true;
+        mReady = false;
+        mWriteQueue.clear();
+        mBluetoothGattService = null;
+        mSendCharacteristic = null;
+        mConnectionState = STATE_DISCONNECTED;
+        mWorker.post(BleWorker.OP_CONNECT, new Runnable() {
+            @Override
+            public void run() {
+                cancelReconnect();
+                mResetOperationsRunnable.run();
+                if(mBluetoothGatt == null) {
+                    return;
+                }
+
+                mBluetoothGatt.close();
+                mBluetoothGatt = null;
+                mDiscovered = false;
+            }
+        });
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnectionState == STATE_CONNECTED;
+    }
+
+    @Override
+    public boolean isReady() {
+        return mReady;
+    }
+
+    @Override
+    public boolean hasClockSync() {
+        return mClockSync;
+    }
+
+    @Override
+    public boolean send(byte[] data, int coalesceKey) {
+        return send(data, coalesceKey, null);
+    }
+
+    @Override
+    public boolean send(byte[] data, int coalesceKey, GattWriteQueue.FrameListener listener) {
+        if(!mReady) {
+            Log.e(TAG, "send() - " + mAddress + " is not ready");
+            return false;
+        }
+
+        final boolean queued = mFramed ? PacketFramer.offer(mWriteQueue, data, mMtu, coalesceKey, listener)
+                : PacketFramer.offerUnframed(mWriteQueue, data, mMtu, coalesceKey, listener);
+        if(!queued) {
+            Log.w(TAG, "send() - write queue refused " + mAddress + " data");
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean subscribe(NotificationRing ring) {
+        Log.d(TAG, "subscribe(" + mAddress + ")");
+
+        if(ring == null) {
+            throw new IllegalArgumentException("ring is null");
+        }
+        mNotificationRing = ring;
+        if(mReady) {
+            postNotify(true);
+        }
+        //Else onReady() turns them on
+        return true;
+    }
+
+    @Override
+    public void unsubscribe() {
+        Log.d(TAG, "unsubscribe(" + mAddress + ")");
+
+        if(mNotificationRing == null) {
+            return;
+        }
+        mNotificationRing = null;
+        //Probe replies still need them
+        if(mReady && !mClockSync) {
+            postNotify(false);
+        }
+    }
+
+    @Override
+    public int getMtu() {
+        return mMtu;
+    }
+
+    @Override
+    public GattWriteQueue getWriteQueue() {
+        return mWriteQueue;
+    }
+
+    /**
+     * Applies from the next drop.
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+    }
+
+    public ReconnectStats getReconnectStats() {
+        return mReconnectStats;
+    }
+
+    /**
+     * Remember the MTU and characteristic handles in cache every time the link becomes ready.
+     */
+    public void setDeviceCache(DeviceCache cache) {
+        mDeviceCache = cache;
+    }
+
+    /**
+     * Replace the write queue. Anything still pending in the old queue is dropped.
+     * overflowPolicy is one of GattWriteQueue.OVERFLOW_*. maxInFlight is held to 1, the
+     * connection takes one write at a time.
+     */
+    public void configureWriteQueue(int capacity, int maxInFlight, int overflowPolicy) {
+        Log.d(TAG, "configureWriteQueue(" + capacity + ", " + maxInFlight + ", " + overflowPolicy + ")");
+        if(maxInFlight > 1) {
+            Log.w(TAG, "Only one write in flight per connection, not " + maxInFlight);
+            maxInFlight = 1;
+        }
+
+        final GattWriteQueue oldQueue = mWriteQueue;
+        mWriteQueue = new GattWriteQueue(mSendTransport, capacity, maxInFlight, overflowPolicy);
+        oldQueue.close();
+    }
+
+    //On mWorker, a direct attempt:
+    private boolean doConnect() {
+        mConnectStartedUs = Metrics.nowUs();
+        cancelConnectTimeout();
+
+        //Try to reconnect if possible, keeping what the BluetoothGatt knows about the services:
+        if(mBluetoothGatt != null) {
+            if(!mBluetoothGatt.connect()) {
+                Log.e(TAG, "Failed to reconnect " + mAddress);
+                mConnectionState = STATE_DISCONNECTED;
+                return false;
+            }
+            mConnectionState = STATE_CONNECTING;
+        } else if(!connectGatt(false)) { //New device
+            return false;
+        }
+
+        mConnectTimeoutFuture = mWorker.postDelayed(BleWorker.OP_CONNECT, mConnectTimeoutRunnable,
+                mReconnectPolicy.getConnectTimeoutMs());
+        return true;
+    }
+
+    //On mWorker:
+    private boolean connectGatt(boolean autoConnect) {
+        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(mAddress);
+        if(device == null) {
+            Log.e(TAG, "Device " + mAddress + "not found!");
+            mConnectionState = STATE_DISCONNECTED;
+            return false;
+        }
+
+        mBluetoothGatt = device.connectGatt(mContext, autoConnect, mGattCallback);
+        mDiscovered = false;
+        mConnectionState = STATE_CONNECTING;
+        Log.d(TAG, "Trying to connect to " + mAddress + (autoConnect ? " in the background" : ""));
+        return mBluetoothGatt != null;
+    }
+
+    //On mWorker:
+    private void scheduleReconnect() {
+        if(mDisconnectRequested || mReconnectFuture != null) {
+            return;
+        }
+
+        final long delayMs = mReconnectPolicy.delayForAttempt(mReconnectAttempt++);
+        if(delayMs != ReconnectPolicy.AUTO_CONNECT) {
+            Log.d(TAG, "Reconnecting " + mAddress + " in " + delayMs + " ms");
+            mReconnectFuture = mWorker.postDelayed(BleWorker.OP_CONNECT, mReconnectRunnable, delayMs);
+            return;
+        }
+
+        //Direct attempts used up, let the stack wait for the node however long it takes:
+        Log.d(TAG, "Giving " + mAddress + " to background autoConnect");
+        mConnectStartedUs = NOT_TIMING; //how long the node stays away is no connect time
+        mReconnectStats.onAttempt();
+        if(mBluetoothGatt != null) {
+            mBluetoothGatt.close();
+            mBluetoothGatt = null;
+        }
+        connectGatt(true);
+    }
+
+    //On mWorker:
+    private void cancelConnectTimeout() {
+        if(mConnectTimeoutFuture != null) {
+            mConnectTimeoutFuture.cancel(false);
+            mConnectTimeoutFuture = null;
+        }
+    }
+
+    //On mWorker:
+    private void cancelReconnect() {
+        cancelConnectTimeout();
+        if(mReconnectFuture != null) {
+            mReconnectFuture.cancel(false);
+            mReconnectFuture = null;
+        }
+        mReconnectAttempt = 0;
+        if(mDisconnectRequested) {
+            mReconnectStats.cancel();
+        }
+    }
+
+    //On mWorker or the callback thread:
+    private void onServiceFound(BluetoothGattService service, boolean fromCache) {
+        mSendCharacteristic = service.getCharacteristic(BtLeGattService.UUID_SEND);
+        mFramed = service.getCharacteristic(BtLeGattService.UUID_FRAMING) != null;
+        mClockSync = service.getCharacteristic(BtLeGattService.UUID_CLOCK_SYNC) != null;
+        mBluetoothGattService = service;
+        mServiceFromCache = fromCache;
+        mWorker.post(BleWorker.OP_DISCOVER, new Runnable() {
+            @Override
+            public void run() {
+                mDiscovered = true;
+
+                //Ask for the biggest MTU first, the link is ready once onMtuChanged() comes back:
+                if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                    mRequestMtuRunnable.run();
+                } else {
+                    onReady();
+                }
+            }
+        });
+    }
+
+    //On mWorker:
+    private boolean writeSend(byte[] frame, long token) {
+        final BluetoothGatt gatt = mBluetoothGatt;
+        if(gatt == null || mBluetoothGattService == null) {
+            Log.e(TAG, "writeSend() - mBluetoothGatt or mBluetoothGattService is null");
+            return false;
+        }
+
+        final BluetoothGattCharacteristic characteristic = mSendCharacteristic;
+        if(characteristic == null) {
+            Log.e(TAG, "Failed to get UUID_SEND characteristic");
+            return false;
+        }
+
+        final TraceRecorder trace = TraceRecorder.getActive();
+        if(trace != null) {
+            trace.write(mAddressKey, frame);
+        }
+
+        mWriteToken = token;
+        characteristic.setValue(frame);
+        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        if(!gatt.writeCharacteristic(characteristic)) {
+            mWriteToken = GattWriteQueue.NO_TOKEN;
+            return false;
+        }
+        return true;
+    }
+
+    private void postNotify(final boolean enable) {
+        mWorker.post(BleWorker.OP_DISCOVER, new Runnable() {
+            @Override
+            public void run() {
+                mPendingNotify = enable ? NOTIFY_ON : NOTIFY_OFF;
+                startPendingDescriptor();
+            }
+        });
+    }
+
+    //On mWorker. Starts the descriptor write asked for unless a GATT operation is running,
+    //true if it started. One that cannot be started is given up, and a wait for ready with it
+    private boolean startPendingDescriptor() {
+        if(mPendingNotify == NOTIFY_UNCHANGED || mDescriptorInFlight || mWriteToken != GattWriteQueue.NO_TOKEN) {
+            return false;
+        }
+
+        final boolean enable = mPendingNotify == NOTIFY_ON;
+        mPendingNotify = NOTIFY_UNCHANGED;
+        if(setNotifications(enable)) {
+            mDescriptorInFlight = true;
+            return true;
+        }
+
+        if(mReadyAfterDescriptor) {
+            Log.w(TAG, mAddress + " ready without notifications");
+            mReadyAfterDescriptor = false;
+            finishReady();
+        }
+        return false;
+    }
+
+    //On mWorker:
+    private boolean setNotifications(boolean enable) {
+        final BluetoothGatt gatt = mBluetoothGatt;
+        final BluetoothGattService service = mBluetoothGattService;
+        if(gatt == null || service == null) {
+            Log.e(TAG, "setNotifications() - mBluetoothGatt or mBluetoothGattService is null");
+            return false;
+        }
+
+        final BluetoothGattCharacteristic characteristic = service.getCharacteristic(BtLeGattService.UUID_RECEIVE);
+        if(characteristic == null) {
+            Log.e(TAG, "Failed to get UUID_RECEIVE characteristic");
+            return false;
+        }
+        if(!gatt.setCharacteristicNotification(characteristic, enable)) {
+            Log.e(TAG, "setCharacteristicNotification(" + enable + ") failed on " + mAddress);
+            return false;
+        }
+
+        //The node only starts notifying once its client configuration says so:
+        final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(BtLeGattService.UUID_CLIENT_CONFIGURATION);
+        if(descriptor == null) {
+            Log.e(TAG, "Failed to get UUID_CLIENT_CONFIGURATION descriptor");
+            return false;
+        }
+        descriptor.setValue(enable ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        return gatt.writeDescriptor(descriptor);
+    }
+
+    private void onReady() {
+        if(mNotificationRing == null && !mClockSync) {
+            finishReady();
+            return;
+        }
+
+        //Nothing may be written before notifications are on, so ready comes with onDescriptorWrite()
+        mWorker.post(BleWorker.OP_DISCOVER, new Runnable() {
+            @Override
+            public void run() {
+                mReadyAfterDescriptor = true;
+                mPendingNotify = NOTIFY_ON;
+                startPendingDescriptor();
+            }
+        });
+    }
+
+    private void finishReady() {
+        if(mReconnectStats.isReconnecting()) {
+            mReconnectCounter.increment();
+        }
+        mReconnectStats.onReady(mClock.now());
+        final DeviceCache cache = mDeviceCache;
+        if(cache != null) {
+            rememberGatt(cache);
+        }
+        final TraceRecorder trace = TraceRecorder.getActive();
+        if(trace != null) {
+            trace.ready(mAddressKey, mMtu, mFramed);
+        }
+        mReady = true;
+        mCallback.onLinkReady(this);
+    }
+
+    private void rememberGatt(DeviceCache cache) {
+        final BluetoothGattService service = mBluetoothGattService;
+        if(service == null) {
+            return;
+        }
+
+        final int sendHandle = instanceIdOf(service, BtLeGattService.UUID_SEND);
+        final int receiveHandle = instanceIdOf(service, BtLeGattService.UUID_RECEIVE);
+        final DeviceCache.Entry known = cache.get(mAddress);
+        if(known != null && known.getSendHandle() != DeviceCache.NO_HANDLE
+                && (known.getSendHandle() != sendHandle || known.getReceiveHandle() != receiveHandle)) {
+            Log.w(TAG, mAddress + " characteristic handles changed since last time, new firmware?");
+        }
+        cache.putGatt(mAddress, mMtu, sendHandle, receiveHandle);
+    }
+
+    //Whether the service the kept BluetoothGatt remembers has both characteristics, with the
+    //handles the device cache saw last time. Anything else and the node may have new firmware
+    private boolean cachedHandlesValid(BluetoothGattService service) {
+        final int sendHandle = instanceIdOf(service, BtLeGattService.UUID_SEND);
+        final int receiveHandle = instanceIdOf(service, BtLeGattService.UUID_RECEIVE);
+        if(sendHandle == DeviceCache.NO_HANDLE || receiveHandle == DeviceCache.NO_HANDLE) {
+            Log.w(TAG, mAddress + " cached UUID_SERVICE is missing characteristics, discovering again");
+            return false;
+        }
+
+        final DeviceCache cache = mDeviceCache;
+        if(cache == null) {
+            return true;
+        }
+        final DeviceCache.Entry known = cache.get(mAddress);
+        if(known == null || known.getSendHandle() != sendHandle || known.getReceiveHandle() != receiveHandle) {
+            Log.w(TAG, mAddress + " cached UUID_SERVICE does not match the device cache, discovering again");
+            return false;
+        }
+        return true;
+    }
+
+    private static void recordSince(Metrics.Histogram histogram, long startedUs) {
+        if(startedUs != NOT_TIMING) {
+            histogram.record((Metrics.nowUs() - startedUs) / 1000);
+        }
+    }
+
+    private static int instanceIdOf(BluetoothGattService service, UUID uuid) {
+        final BluetoothGattCharacteristic characteristic = service.getCharacteristic(uuid);
+        return characteristic == null ? DeviceCache.NO_HANDLE : characteristic.getInstanceId();
+    }
+}
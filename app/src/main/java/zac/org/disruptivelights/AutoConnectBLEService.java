@@ -1,13 +1,11 @@
 package zac.org.disruptivelights;
 
 import android.app.Service;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
 
@@ -18,12 +16,25 @@ public class AutoConnectBLEService extends Service {
     public final static String TAG = "AutoConnectBLEService";
 
     private final static String TARGET_BLE_ADDRESS = "D2:86:6A:06:04:83";   //Test RFduino Device. Has to be uppercase dumbass
-
-    private BtLeScanService mBtLeScanService;
-    private BtLeGattService mBtLeGattService;
+    private final static long PICK_WINDOW_MS = 500; //with several targets, how long to listen before picking the closest
+
+    private String[] mTargetAddresses = new String[] {TARGET_BLE_ADDRESS};
+    private volatile String mTargetAddress; //the one that actually showed up, or the one we knew
+    private volatile boolean mConnectedDirectly;
+    private volatile String mFirstMatch; //first target the scan found, set once per scan
+    private final MonotonicClock mClock = ElapsedRealtimeClock.INSTANCE;
+    private long mStartedAt;
+    private long mScanStartedAt;
+
+    private volatile BtLeScanService mBtLeScanService;
+    private volatile BtLeGattService mBtLeGattService;
     private boolean mIsConnectedAndDiscovered;
 
-    private boolean mWantToSendCommand;
+    private volatile boolean mWantToSendCommand;
+
+    private final BleEventBus mEventBus = BleEventBus.getInstance();
+    private final Handler mHandler = new Handler();
+    private final BleWorker mWorker = BleWorker.getInstance();
 
 
     //For BtLeScanService
@@ -36,7 +47,8 @@ public class AutoConnectBLEService extends Service {
                 Log.e(TAG, "Failed to initialize BtLeScanService");
                 stopSelf(); //TODO!
             } else {
-                if(mBtLeScanService.startScan()) {
+                mScanStartedAt = mClock.now();
+                if(mBtLeScanService.startFilteredScan(buildTargetFilter(), mTargetMatchListener)) {
                     Log.d(TAG, "mBtLeScanService Started scan");
                 } else {
                     Log.e(TAG, "Failed to start scan");
@@ -52,27 +64,49 @@ public class AutoConnectBLEService extends Service {
         }
     };
 
-    //For BtLeScanService
-    private final BroadcastReceiver mBtLeScanUpdateReceiver = new BroadcastReceiver() {
+    //For BtLeScanService. Called on the scan callback thread, hop to the BLE worker so neither
+    //the scan callback nor a busy main thread holds up the connect.
+    private final ScanEngine.FilterMatchListener mTargetMatchListener = new ScanEngine.FilterMatchListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            Log.d(TAG, "mBtLeScanUpdateReceiver.onReceive(): " + action);
-
-            if(BtLeScanService.ACTION_DEVICE_NEW.equals(action)) {
-                final String address = intent.getStringExtra(BtLeScanService.EXTRA_DEVICE_ADDRESS);
-                Log.d(TAG, "New device: " + address);
+        public void onFilterMatch(final String address, int rssi, byte[] scanRecord) {
+            Log.d(TAG, "Found target " + address + " after " + (mClock.now() - mScanStartedAt) + " ms");
+
+            if(mTargetAddresses.length == 1) {
+                mWorker.post(BleWorker.OP_CONNECT, new Runnable() {
+                    @Override
+                    public void run() {
+                        connectToScannedTarget(address);
+                    }
+                });
+                return;
+            }
 
-                if(address.equals(TARGET_BLE_ADDRESS)) {
-                    //Found the target, stop the device scan:
-                    Log.d(TAG, "Found target device, stopping scanning");
-                    mBtLeScanService.stopScanning();
+            //Several targets: give the others a moment to show up, then take the closest
+            if(mFirstMatch == null) {
+                mFirstMatch = address;
+                mWorker.postDelayed(BleWorker.OP_CONNECT, mPickClosestTargetRunnable, PICK_WINDOW_MS);
+            }
+        }
+    };
 
-                    connectToTargetDevice();
-                } else {
-                    Log.d(TAG, "Address " + address + " isn't " + TARGET_BLE_ADDRESS);
+    //On mWorker. The proximity index ranks by smoothed RSSI, so one lucky packet does not win
+    private final Runnable mPickClosestTargetRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final BtLeScanService scanService = mBtLeScanService;
+            String closest = mFirstMatch;
+            if(scanService != null) {
+                int bestRank = Integer.MAX_VALUE;
+                for(String address : mTargetAddresses) {
+                    final int rank = scanService.getProximityRank(address);
+                    if(rank != ProximityIndex.NOT_RANKED && rank < bestRank) {
+                        bestRank = rank;
+                        closest = address;
+                    }
                 }
+                Log.d(TAG, "Closest target " + closest + " RSSI: " + scanService.getSmoothedRssi(closest));
             }
+            connectToScannedTarget(closest);
         }
     };
 
@@ -86,6 +120,8 @@ public class AutoConnectBLEService extends Service {
             if(!mBtLeGattService.initialize()) {
                 Log.e(TAG, "Failed to initialize BtLeGattService");
                 stopSelf(); //TODO!
+            } else {
+                mWorker.post(BleWorker.OP_CONNECT, mConnectKnownTargetRunnable);
             }
         }
 
@@ -96,32 +132,77 @@ public class AutoConnectBLEService extends Service {
         }
     };
 
-    //For BtLeScanService
-    private final BroadcastReceiver mBtLeGattUpdateReceiver = new BroadcastReceiver() {
+    //Connect straight to the target we saw most recently before, the scan keeps going in case
+    //it is not around. Reading the cache may touch the disk, so this runs on mWorker.
+    private final Runnable mConnectKnownTargetRunnable = new Runnable() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            Log.d(TAG, "mBtLeGattUpdateReceiver.onReceive(): " + action);
+        public void run() {
+            final BtLeGattService gattService = mBtLeGattService;
+            if(gattService == null || gattService.getDeviceCache() == null || mTargetAddress != null) {
+                return;
+            }
 
-            if(BtLeGattService.ACTION_GATT_CONNECTED.equals(action)) {
-                Log.d(TAG, "Gatt connected");
-                mIsConnectedAndDiscovered = false; //not discovered
+            DeviceCache.Entry known = null;
+            for(String address : mTargetAddresses) {
+                final DeviceCache.Entry entry = gattService.getDeviceCache().get(address);
+                if(entry != null && (known == null || entry.getLastSeenMs() > known.getLastSeenMs())) {
+                    known = entry;
+                }
             }
-            else if(BtLeGattService.ACTION_GATT_DISCONNECTED.equals(action)) {
-                Log.d(TAG, "Gatt disconnected");
-                mIsConnectedAndDiscovered = false;
+            if(known == null) {
+                Log.d(TAG, "No known target, waiting for the scan");
+                return;
             }
-            else if(BtLeGattService.ACTION_GATT_SERVICES_DISCOVERED.equals(action)) {
-                Log.d(TAG, "Gatt services discovered");
 
-                mIsConnectedAndDiscovered = true;
-                if(mWantToSendCommand) {
-                    Log.d(TAG, "Sending message");
-                    mBtLeGattService.send(new byte[] {'H', 'I'});
-                } else {
-                    Log.d(TAG, "Can't send message, not connected & discovered");
+            Log.d(TAG, "Connecting to known target " + known.getAddress() + " without scanning, last seen "
+                    + (System.currentTimeMillis() - known.getLastSeenMs()) / 1000 + " s ago");
+            mTargetAddress = known.getAddress();
+            mConnectedDirectly = true;
+            connectToTargetDevice();
+        }
+    };
+
+    //For BtLeGattService. Called on the GATT callback thread.
+    private final BleEventBus.GattListener mBtLeGattListener = new BleEventBus.SimpleGattListener() {
+        @Override
+        public void onGattConnected() {
+            Log.d(TAG, "Gatt connected");
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mIsConnectedAndDiscovered = false; //not discovered
                 }
-            }
+            });
+        }
+
+        @Override
+        public void onGattDisconnected() {
+            Log.d(TAG, "Gatt disconnected");
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mIsConnectedAndDiscovered = false;
+                }
+            });
+        }
+
+        @Override
+        public void onGattServicesDiscovered() {
+            Log.d(TAG, "Gatt services discovered");
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mIsConnectedAndDiscovered = true;
+                    if(mWantToSendCommand) {
+                        Log.d(TAG, "Sending message");
+                        mBtLeGattService.send(new byte[] {'H', 'I'});
+                        Log.d(TAG, "First frame queued " + (mClock.now() - mStartedAt) + " ms after start ("
+                                + (mConnectedDirectly ? "known device" : "found by scan") + ")");
+                    } else {
+                        Log.d(TAG, "Can't send message, not connected & discovered");
+                    }
+                }
+            });
         }
     };
 
@@ -151,27 +232,24 @@ public class AutoConnectBLEService extends Service {
     public void onDestroy() {
         Log.d(TAG, "onDestroy()");
 
+        if(mBtLeScanService != null) {
+            mBtLeScanService.cancelFilteredScan();
+        }
         unbindService(mBtLeScanServiceConnection);
         mBtLeScanService = null;
-        unregisterReceiver(mBtLeScanUpdateReceiver);
 
         unbindService(mBtLeGattServiceConnection);
         mBtLeGattService = null;
-        unregisterReceiver(mBtLeGattUpdateReceiver);
+        mEventBus.unregister(mBtLeGattListener);
 
+        Log.d(TAG, mWorker.toString());
+        Log.d(TAG, Metrics.getInstance().dump());
     }
 
     public boolean start() {
         Log.d(TAG, "start()");
 
-        //Register intents we want to receive from the Scan service:
-        final IntentFilter scanIntentFilter = new IntentFilter();
-        scanIntentFilter.addAction(BtLeScanService.ACTION_SCAN_STARTED);
-        scanIntentFilter.addAction(BtLeScanService.ACTION_SCAN_STOPPED);
-        scanIntentFilter.addAction(BtLeScanService.ACTION_DEVICE_NEW);
-        scanIntentFilter.addAction(BtLeScanService.ACTION_DEVICE_UPDATE);
-        scanIntentFilter.addAction(BtLeScanService.ACTION_DEVICE_GONE);
-        registerReceiver(mBtLeScanUpdateReceiver, scanIntentFilter);
+        mStartedAt = mClock.now();
 
         //Bind the Scan service:
         final Intent scanIntent = new Intent(getApplicationContext(), BtLeScanService.class);
@@ -180,13 +258,8 @@ public class AutoConnectBLEService extends Service {
             return false;
         }
 
-        //Register intents from the Gatt service we want:
-        final IntentFilter gattIntentFilter = new IntentFilter();
-        gattIntentFilter.addAction(BtLeGattService.ACTION_GATT_CONNECTED);
-        gattIntentFilter.addAction(BtLeGattService.ACTION_GATT_DISCONNECTED);
-        gattIntentFilter.addAction(BtLeGattService.ACTION_GATT_SERVICES_DISCOVERED);
-        //gattIntentFilter.addAction(BtLeGattService.ACTION_DATA_AVAILABLE);
-        registerReceiver(mBtLeGattUpdateReceiver, gattIntentFilter);
+        //Register for events from the Gatt service:
+        mEventBus.register(mBtLeGattListener);
 
         //Bind the Gatt service:
         final Intent gattIntent = new Intent(getApplicationContext(), BtLeGattService.class);
@@ -204,17 +277,62 @@ public class AutoConnectBLEService extends Service {
         stopSelf();
     }
 
+    /**
+     * Connect to whichever of these shows up first instead of the test device.
+     * Call before start(). Addresses have to be uppercase.
+     */
+    public void setTargetAddresses(String... addresses) {
+        Log.d(TAG, "setTargetAddresses(" + addresses.length + ")");
+
+        if(addresses.length == 0) {
+            throw new IllegalArgumentException("Need at least one target address");
+        }
+        mTargetAddresses = addresses.clone();
+    }
+
+    private AdvertisementFilter buildTargetFilter() {
+        final AdvertisementFilter filter = new AdvertisementFilter();
+        for(String address : mTargetAddresses) {
+            filter.addAddress(address);
+        }
+        return filter;
+    }
+
+
+    //On mWorker
+    private void connectToScannedTarget(String address) {
+        //Found the target, stop the device scan:
+        Log.d(TAG, "Found target device, stopping scanning");
+        final BtLeScanService scanService = mBtLeScanService;
+        if(scanService != null) {
+            scanService.stopScanning();
+        }
 
-    //TODO: Reading on forums the BLE device is less likely to screw up if we don't use it in the same thread as the OnLeScan() callback.
+        if(address.equals(mTargetAddress)) {
+            Log.d(TAG, "Already connecting to " + address);
+            return;
+        }
+        mTargetAddress = address;
+        mConnectedDirectly = false;
+        connectToTargetDevice();
+    }
+
+    //On mWorker, never on the onLeScan() callback thread: the BLE stack is less likely to screw up that way.
     private void connectToTargetDevice() {
         Log.d(TAG, "conncetToTargetDevice()");
 
-        if(!mBtLeGattService.connect(TARGET_BLE_ADDRESS)) {
+        final BtLeGattService gattService = mBtLeGattService;
+        if(gattService == null) {
+            Log.e(TAG, "connectToTargetDevice() - mBtLeGattService is null");
+            return;
+        }
+
+        if(!gattService.connect(mTargetAddress)) {
             Log.e(TAG, "Failed to start connecting to target device");
             return;
         }
 
         mWantToSendCommand = true;
-        //Now we wait for broadcasted intents from the Gatt service
+        //Now we wait for events from the Gatt service
     }
 }
@@ -0,0 +1,208 @@
+package zac.org.disruptivelights;
+
+/**
+ * In-process replacement for the Intent broadcasts BtLeScanService and BtLeGattService
+ * used to send. Listeners register for the kind of events they want and are called
+ * directly, with plain arguments, on whatever thread published the event. Anyone
+ * touching the UI has to hop over to the main thread themselves.
+ *
+ * Listener lists are copy-on-write arrays, so registering is the slow part and
+ * publishing allocates nothing.
+ */
+public class BleEventBus {
+    public interface ScanListener {
+        void onScanStarted();
+        void onScanStopped();
+        void onDeviceNew(String address, String name, int rssi);
+        /**
+         * Known devices whose RSSI changed noticeably, a few times a second at most. See
+         * UpdateCoalescer.
+         */
+        void onDeviceUpdates(UpdateCoalescer.Batch updates);
+        void onDeviceGone(String address);
+    }
+
+    public interface GattListener {
+        void onGattConnected();
+        void onGattDisconnected();
+        void onGattServicesDiscovered();
+        void onDataAvailable(byte[] data);
+    }
+
+    /**
+     * The nearest devices by smoothed RSSI, see ProximityIndex. Only called when a device
+     * enters, leaves (rank NOT_RANKED) or moves within the top, or its RSSI changed noticeably.
+     */
+    public interface ProximityListener {
+        void onProximityChanged(String address, int rank, int rssi);
+    }
+
+    /**
+     * Empty ScanListener to extend when only some of the events are interesting.
+     */
+    public static class SimpleScanListener implements ScanListener {
+        @Override public void onScanStarted() {}
+        @Override public void onScanStopped() {}
+        @Override public void onDeviceNew(String address, String name, int rssi) {}
+        @Override public void onDeviceUpdates(UpdateCoalescer.Batch updates) {}
+        @Override public void onDeviceGone(String address) {}
+    }
+
+    /**
+     * Empty GattListener to extend when only some of the events are interesting.
+     */
+    public static class SimpleGattListener implements GattListener {
+        @Override public void onGattConnected() {}
+        @Override public void onGattDisconnected() {}
+        @Override public void onGattServicesDiscovered() {}
+        @Override public void onDataAvailable(byte[] data) {}
+    }
+
+    private static final BleEventBus sInstance = new BleEventBus();
+
+    public static BleEventBus getInstance() {
+        return sInstance;
+    }
+
+    private volatile ScanListener[] mScanListeners = new ScanListener[0];
+    private volatile GattListener[] mGattListeners = new GattListener[0];
+    private volatile ProximityListener[] mProximityListeners = new ProximityListener[0];
+
+    public synchronized void register(ScanListener listener) {
+        mScanListeners = add(mScanListeners, listener, new ScanListener[mScanListeners.length + 1]);
+    }
+
+    public synchronized void unregister(ScanListener listener) {
+        final int index = indexOf(mScanListeners, listener);
+        if(index >= 0) {
+            mScanListeners = remove(mScanListeners, index, new ScanListener[mScanListeners.length - 1]);
+        }
+    }
+
+    public synchronized void register(GattListener listener) {
+        mGattListeners = add(mGattListeners, listener, new GattListener[mGattListeners.length + 1]);
+    }
+
+    public synchronized void unregister(GattListener listener) {
+        final int index = indexOf(mGattListeners, listener);
+        if(index >= 0) {
+            mGattListeners = remove(mGattListeners, index, new GattListener[mGattListeners.length - 1]);
+        }
+    }
+
+    public synchronized void register(ProximityListener listener) {
+        mProximityListeners = add(mProximityListeners, listener, new ProximityListener[mProximityListeners.length + 1]);
+    }
+
+    public synchronized void unregister(ProximityListener listener) {
+        final int index = indexOf(mProximityListeners, listener);
+        if(index >= 0) {
+            mProximityListeners = remove(mProximityListeners, index, new ProximityListener[mProximityListeners.length - 1]);
+        }
+    }
+
+    public void postScanStarted() {
+        final ScanListener[] listeners = mScanListeners;
+        for(int i = 0; i < listeners.length; i++) {
+            listeners[i].onScanStarted();
+        }
+    }
+
+    public void postScanStopped() {
+        final ScanListener[] listeners = mScanListeners;
+        for(int i = 0; i < listeners.length; i++) {
+            listeners[i].onScanStopped();
+        }
+    }
+
+    public void postDeviceNew(String address, String name, int rssi) {
+        final ScanListener[] listeners = mScanListeners;
+        for(int i = 0; i < listeners.length; i++) {
+            listeners[i].onDeviceNew(address, name, rssi);
+        }
+    }
+
+    public void postDeviceUpdates(UpdateCoalescer.Batch updates) {
+        final ScanListener[] listeners = mScanListeners;
+        for(int i = 0; i < listeners.length; i++) {
+            listeners[i].onDeviceUpdates(updates);
+        }
+    }
+
+    public void postDeviceGone(String address) {
+        final ScanListener[] listeners = mScanListeners;
+        for(int i = 0; i < listeners.length; i++) {
+            listeners[i].onDeviceGone(address);
+        }
+    }
+
+    /**
+     * Every change in changes, in order.
+     */
+    public void postProximityChanges(ProximityIndex.Changes changes) {
+        final ProximityListener[] listeners = mProximityListeners;
+        for(int c = 0; c < changes.size(); c++) {
+            for(int i = 0; i < listeners.length; i++) {
+                listeners[i].onProximityChanged(changes.addressAt(c), changes.rankAt(c), changes.rssiAt(c));
+            }
+        }
+    }
+
+    public void postGattConnected() {
+        final GattListener[] listeners = mGattListeners;
+        for(int i = 0; i < listeners.length; i++) {
+            listeners[i].onGattConnected();
+        }
+    }
+
+    public void postGattDisconnected() {
+        final GattListener[] listeners = mGattListeners;
+        for(int i = 0; i < listeners.length; i++) {
+            listeners[i].onGattDisconnected();
+        }
+    }
+
+    public void postGattServicesDiscovered() {
+        final GattListener[] listeners = mGattListeners;
+        for(int i = 0; i < listeners.length; i++) {
+            listeners[i].onGattServicesDiscovered();
+        }
+    }
+
+    /**
+     * data is handed to every listener as is, listeners must not modify it.
+     */
+    public void postDataAvailable(byte[] data) {
+        final GattListener[] listeners = mGattListeners;
+        for(int i = 0; i < listeners.length; i++) {
+            listeners[i].onDataAvailable(data);
+        }
+    }
+
+    private static <T> T[] add(T[] listeners, T listener, T[] grown) {
+        if(listener == null) {
+            throw new IllegalArgumentException("listener is null");
+        }
+        if(indexOf(listeners, listener) >= 0) {
+            return listeners;
+        }
+        System.arraycopy(listeners, 0, grown, 0, listeners.length);
+        grown[listeners.length] = listener;
+        return grown;
+    }
+
+    private static <T> T[] remove(T[] listeners, int index, T[] shrunk) {
+        System.arraycopy(listeners, 0, shrunk, 0, index);
+        System.arraycopy(listeners, index + 1, shrunk, index, listeners.length - index - 1);
+        return shrunk;
+    }
+
+    private static <T> int indexOf(T[] listeners, T listener) {
+        for(int i = 0; i < listeners.length; i++) {
+            if(listeners[i] == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
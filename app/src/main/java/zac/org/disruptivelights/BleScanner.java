@@ -0,0 +1,29 @@
+package zac.org.disruptivelights;
+
+/**
+ * The radio, as far as scanning goes. AndroidBleScanner is the real thing, BleSimulator
+ * makes advertisements up.
+ */
+public interface BleScanner {
+    /**
+     * Called for every advertisement received, on the scanner's callback thread.
+     */
+    interface Callback {
+        void onAdvertisement(String address, int rssi, byte[] scanRecord);
+    }
+
+    /**
+     * False while there is no radio to scan with, e.g. Bluetooth is off.
+     */
+    boolean isAvailable();
+
+    boolean startScan(Callback callback);
+
+    void stopScan(Callback callback);
+
+    /**
+     * Name of a device that was seen while scanning, or null. May be slow (a binder call on a
+     * phone), so ask once per device.
+     */
+    String getName(String address);
+}
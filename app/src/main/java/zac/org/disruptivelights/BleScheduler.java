@@ -0,0 +1,14 @@
+package zac.org.disruptivelights;
+
+import java.util.concurrent.Future;
+
+/**
+ * Where the BLE code runs its commands and timers. BleWorker on a phone; BleSimulator off
+ * device, where time is virtual and everything runs on the thread stepping the simulation.
+ * op is one of the BleWorker.OP_* kinds.
+ */
+public interface BleScheduler {
+    Future<?> post(int op, Runnable command);
+
+    Future<?> postDelayed(int op, Runnable command, long delayMs);
+}
@@ -0,0 +1,784 @@
+package zac.org.disruptivelights;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A made up radio neighbourhood for running the BLE code on a plain JVM: any number of
+ * advertisers, a scanner that hears them with noisy RSSI and lost packets, and light nodes
+ * to connect to with latency, lost writes, a fixed MTU and a limit on how many connections
+ * the phone can hold at once.
+ *
+ * The simulator is also the BleScheduler and the clock of the code under test, so a run is
+ * one sequence of events in virtual time, executed on whichever thread calls runFor().
+ * Everything random comes from one seeded Random and events due at the same time run in
+ * the order they were scheduled, so the same seed always gives the same run.
+ *
+ * Not thread safe, only the thread stepping the simulation may touch it or the code on it.
+ */
+public class BleSimulator implements BleScheduler {
+    public static final int DEFAULT_MTU = 23;
+    public static final int DEFAULT_MAX_CONNECTIONS = 7;
+    public static final long DEFAULT_CONNECTION_INTERVAL_US = 7500;
+    public static final int MAX_WRITE_ATTEMPTS = 8;
+
+    private final VirtualClock mClock = new VirtualClock();
+    private final Random mRandom;
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<Event>();
+    private long mNowUs;
+    private long mNextSeq;
+
+    //Radio conditions, change them any time
+    private double mAdvertisingLoss = 0.1;
+    private double mRssiNoiseDb = 4;
+    private long mMinConnectMs = 40;
+    private long mMaxConnectMs = 200;
+    private long mDiscoveryMs = 300;
+    private long mConnectTimeoutMs = 5000;
+    private long mConnectionIntervalUs = DEFAULT_CONNECTION_INTERVAL_US;
+    private double mWriteLoss = 0.02;
+    private int mMtu = DEFAULT_MTU;
+    private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    //Advertisers by index, addresses map back to their index
+    private String[] mAddresses = new String[64];
+    private String[] mNames = new String[64];
+    private byte[][] mRecords = new byte[64][];
+    private int[] mMeanRssi = new int[64];
+    private int[] mIntervalMs = new int[64];
+    private boolean[] mActive = new boolean[64];
+    private int mAdvertiserCount;
+    private final HashMap<String, Integer> mAdvertiserIndex = new HashMap<String, Integer>();
+
+    private final SimulatedScanner mScanner = new SimulatedScanner();
+    private final List<SimulatedLink> mLinks = new ArrayList<SimulatedLink>();
+    private int mConnectionsInUse;
+
+    private final long[] mPosted = new long[BleWorker.OP_COUNT];
+    private long mEventsRun;
+    private long mAdvertisementsSent;
+    private long mAdvertisementsLost;
+    private long mConnectAttempts;
+    private long mConnectFailures;
+    private long mWrites;
+    private long mWriteRetries;
+    private long mWriteFailures;
+
+    public BleSimulator(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * Virtual time in ms, for the code under test.
+     */
+    public MonotonicClock getClock() {
+        return mClock;
+    }
+
+    public long getTimeUs() {
+        return mNowUs;
+    }
+
+    public BleScanner getScanner() {
+        return mScanner;
+    }
+
+    /**
+     * Links made by this connect to advertisers of this simulator, see SimulatedLink.
+     */
+    public GattLink.Factory getLinkFactory() {
+        return new GattLink.Factory() {
+            @Override
+            public GattLink create(String address, GattLink.Callback callback) {
+                final SimulatedLink link = new SimulatedLink(address, callback);
+                mLinks.add(link);
+                return link;
+            }
+        };
+    }
+
+    public List<SimulatedLink> getLinks() {
+        return mLinks;
+    }
+
+    /**
+     * Share of advertisements the scanner misses, 0..1.
+     */
+    public void setAdvertisingLoss(double loss) {
+        mAdvertisingLoss = checkProbability(loss);
+    }
+
+    /**
+     * Standard deviation of each advertisement's RSSI around the advertiser's mean.
+     */
+    public void setRssiNoiseDb(double noiseDb) {
+        mRssiNoiseDb = noiseDb;
+    }
+
+    /**
+     * Connecting takes a uniformly random time between minMs and maxMs, discovery and
+     * MTU exchange another discoveryMs. A connect that cannot succeed, the node is not
+     * advertising or the phone is out of connections, fails after timeoutMs.
+     */
+    public void setConnectTiming(long minMs, long maxMs, long discoveryMs, long timeoutMs) {
+        if(minMs < 0 || maxMs < minMs || discoveryMs < 0 || timeoutMs < 0) {
+            throw new IllegalArgumentException("Bad connect timing " + minMs + "/" + maxMs + "/" + discoveryMs + "/" + timeoutMs);
+        }
+        mMinConnectMs = minMs;
+        mMaxConnectMs = maxMs;
+        mDiscoveryMs = discoveryMs;
+        mConnectTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Every write takes one connection interval; a lost one is retried the interval after,
+     * and after MAX_WRITE_ATTEMPTS losses in a row the write fails.
+     */
+    public void setWriteTiming(long connectionIntervalUs, double writeLoss) {
+        if(connectionIntervalUs < 1) {
+            throw new IllegalArgumentException("Bad connection interval " + connectionIntervalUs);
+        }
+        mConnectionIntervalUs = connectionIntervalUs;
+        mWriteLoss = checkProbability(writeLoss);
+    }
+
+    /**
+     * MTU every link settles on. Applies to links becoming ready from now on.
+     */
+    public void setMtu(int mtu) {
+        if(mtu < DEFAULT_MTU || mtu > PacketFramer.MAX_MTU) {
+            throw new IllegalArgumentException("Bad MTU " + mtu);
+        }
+        mMtu = mtu;
+    }
+
+    public void setMaxConnections(int maxConnections) {
+        if(maxConnections < 1) {
+            throw new IllegalArgumentException("Bad connection limit " + maxConnections);
+        }
+        mMaxConnections = maxConnections;
+    }
+
+    /**
+     * A light node advertising every intervalMs, heard at meanRssi. Returns its index.
+     */
+    public int addAdvertiser(String address, String name, int meanRssi, int intervalMs) {
+        if(DeviceRegistry.parseAddress(address) == DeviceRegistry.NO_ADDRESS || intervalMs < 20) {
+            throw new IllegalArgumentException("Bad advertiser " + address + " every " + intervalMs + " ms");
+        }
+        if(mAdvertiserIndex.containsKey(address)) {
+            throw new IllegalArgumentException("Already advertising " + address);
+        }
+
+        if(mAdvertiserCount == mAddresses.length) {
+            final int capacity = mAdvertiserCount * 2;
+            mAddresses = Arrays.copyOf(mAddresses, capacity);
+            mNames = Arrays.copyOf(mNames, capacity);
+            mRecords = Arrays.copyOf(mRecords, capacity);
+            mMeanRssi = Arrays.copyOf(mMeanRssi, capacity);
+            mIntervalMs = Arrays.copyOf(mIntervalMs, capacity);
+            mActive = Arrays.copyOf(mActive, capacity);
+        }
+
+        final int index = mAdvertiserCount++;
+        mAddresses[index] = address;
+        mNames[index] = name;
+        mRecords[index] = buildScanRecord(name, index);
+        mMeanRssi[index] = meanRssi;
+        mIntervalMs[index] = intervalMs;
+        mActive[index] = true;
+        mAdvertiserIndex.put(address, index);
+
+        if(mScanner.mCallback != null) {
+            mScanner.scheduleFirst(index);
+        }
+        return index;
+    }
+
+    /**
+     * count advertisers at random addresses, random RSSI in minRssi..maxRssi and random
+     * interval in minIntervalMs..maxIntervalMs. Returns the index of the first one.
+     */
+    public int addAdvertisers(int count, int minRssi, int maxRssi, int minIntervalMs, int maxIntervalMs) {
+        final int first = mAdvertiserCount;
+        for(int i = 0; i < count; i++) {
+            String address;
+            do {
+                address = DeviceRegistry.formatAddress(mRandom.nextLong() & 0xFFFFFFFFFFFFL);
+            } while(mAdvertiserIndex.containsKey(address));
+
+            addAdvertiser(address, "Light " + (first + i),
+                    minRssi + mRandom.nextInt(maxRssi - minRssi + 1),
+                    minIntervalMs + mRandom.nextInt(maxIntervalMs - minIntervalMs + 1));
+        }
+        return first;
+    }
+
+    public int getAdvertiserCount() {
+        return mAdvertiserCount;
+    }
+
+    public String getAdvertiserAddress(int index) {
+        return mAddresses[index];
+    }
+
+    /**
+     * Move an advertiser closer or further away.
+     */
+    public void setAdvertiserRssi(int index, int meanRssi) {
+        mMeanRssi[index] = meanRssi;
+    }
+
+    /**
+     * An inactive advertiser goes quiet and cannot be connected to, like a node switched off.
+     * Links connected to it are dropped.
+     */
+    public void setAdvertiserActive(int index, boolean active) {
+        if(mActive[index] == active) {
+            return;
+        }
+        mActive[index] = active;
+
+        if(active) {
+            if(mScanner.mCallback != null) {
+                mScanner.scheduleFirst(index);
+            }
+            return;
+        }
+        for(int i = 0; i < mLinks.size(); i++) {
+            final SimulatedLink link = mLinks.get(i);
+            if(link.mAddress.equals(mAddresses[index]) && link.mConnected) {
+                link.drop();
+            }
+        }
+    }
+
+    @Override
+    public Future<?> post(int op, Runnable command) {
+        return postDelayed(op, command, 0);
+    }
+
+    @Override
+    public Future<?> postDelayed(int op, Runnable command, long delayMs) {
+        if(op < 0 || op >= BleWorker.OP_COUNT) {
+            throw new IllegalArgumentException("Unknown op " + op);
+        }
+        mPosted[op]++;
+        return schedule(Math.max(0, delayMs) * 1000, command);
+    }
+
+    /**
+     * Run every event due in the next ms of virtual time, then leave the clock there.
+     */
+    public void runFor(long ms) {
+        runUntilUs(mNowUs + ms * 1000);
+    }
+
+    public void runUntilUs(long timeUs) {
+        Event event;
+        while((event = mEvents.peek()) != null && event.mTimeUs <= timeUs) {
+            mEvents.poll();
+            if(event.mCancelled) {
+                continue;
+            }
+            advanceTo(event.mTimeUs);
+            event.mDone = true;
+            mEventsRun++;
+            event.mTask.run();
+        }
+        advanceTo(timeUs);
+    }
+
+    /**
+     * Events waiting, cancelled ones included until their time comes.
+     */
+    public int getPendingEventCount() {
+        return mEvents.size();
+    }
+
+    public long getEventCount() {
+        return mEventsRun;
+    }
+
+    public long getPostedCount(int op) {
+        return mPosted[op];
+    }
+
+    public long getAdvertisementsSent() {
+        return mAdvertisementsSent;
+    }
+
+    public long getAdvertisementsLost() {
+        return mAdvertisementsLost;
+    }
+
+    public long getConnectAttempts() {
+        return mConnectAttempts;
+    }
+
+    public long getConnectFailures() {
+        return mConnectFailures;
+    }
+
+    public int getConnectionsInUse() {
+        return mConnectionsInUse;
+    }
+
+    public long getWrites() {
+        return mWrites;
+    }
+
+    public long getWriteRetries() {
+        return mWriteRetries;
+    }
+
+    public long getWriteFailures() {
+        return mWriteFailures;
+    }
+
+    @Override
+    public String toString() {
+        return "BleSimulator(t=" + mNowUs / 1000 + " ms, events=" + mEventsRun + ", advertisers=" + mAdvertiserCount
+                + ", adv=" + mAdvertisementsSent + "/lost " + mAdvertisementsLost
+                + ", connects=" + mConnectAttempts + "/failed " + mConnectFailures + ", connected=" + mConnectionsInUse
+                + ", writes=" + mWrites + "/retried " + mWriteRetries + "/failed " + mWriteFailures + ")";
+    }
+
+    private Event schedule(long delayUs, Runnable task) {
+        final Event event = new Event(mNowUs + delayUs, mNextSeq++, task);
+        mEvents.add(event);
+        return event;
+    }
+
+    private void advanceTo(long timeUs) {
+        if(timeUs > mNowUs) {
+            mNowUs = timeUs;
+            mClock.advanceTo(timeUs / 1000);
+        }
+    }
+
+    private boolean chance(double probability) {
+        return probability > 0 && mRandom.nextDouble() < probability;
+    }
+
+    private static double checkProbability(double probability) {
+        if(probability < 0 || probability > 1) {
+            throw new IllegalArgumentException("Bad probability " + probability);
+        }
+        return probability;
+    }
+
+    //Flags, complete local name and manufacturer data with the index, like the nodes send
+    private static byte[] buildScanRecord(String name, int index) {
+        final byte[] nameBytes = name == null ? new byte[0] : name.getBytes();
+        final byte[] record = new byte[3 + 2 + nameBytes.length + 6];
+        int i = 0;
+        record[i++] = 2;
+        record[i++] = ScanRecordParser.AD_FLAGS;
+        record[i++] = 0x06;
+        record[i++] = (byte)(nameBytes.length + 1);
+        record[i++] = (byte)ScanRecordParser.AD_NAME_COMPLETE;
+        System.arraycopy(nameBytes, 0, record, i, nameBytes.length);
+        i += nameBytes.length;
+        record[i++] = 5;
+        record[i++] = (byte)ScanRecordParser.AD_MANUFACTURER_DATA;
+        record[i++] = (byte)0xFF; //test company id
+        record[i++] = (byte)0xFF;
+        record[i++] = (byte)index;
+        record[i] = (byte)(index >> 8);
+        return record;
+    }
+
+    /**
+     * A scheduled task. Ordered by time, then by when it was scheduled.
+     */
+    private static class Event implements Future<Object>, Comparable<Event> {
+        final long mTimeUs;
+        final long mSeq;
+        final Runnable mTask;
+        boolean mCancelled;
+        boolean mDone;
+
+        Event(long timeUs, long seq, Runnable task) {
+            mTimeUs = timeUs;
+            mSeq = seq;
+            mTask = task;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if(mTimeUs != other.mTimeUs) {
+                return mTimeUs < other.mTimeUs ? -1 : 1;
+            }
+            return mSeq < other.mSeq ? -1 : (mSeq == other.mSeq ? 0 : 1);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if(mDone || mCancelled) {
+                return false;
+            }
+            mCancelled = true;
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone || mCancelled;
+        }
+
+        @Override
+        public Object get() throws InterruptedException, ExecutionException {
+            if(!isDone()) {
+                throw new IllegalStateException("Simulated events only complete while the simulation runs");
+            }
+            return null;
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException {
+            return get();
+        }
+    }
+
+    /**
+     * Hears every active advertiser once per interval, plus the 0..10 ms random delay real
+     * advertisers add, minus what is lost.
+     */
+    private class SimulatedScanner implements BleScanner {
+        private Callback mCallback;
+        private long mGeneration; //advertisements scheduled for an earlier scan die quietly
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public boolean startScan(Callback callback) {
+            if(mCallback != null) {
+                return false;
+            }
+            mCallback = callback;
+            mGeneration++;
+            for(int i = 0; i < mAdvertiserCount; i++) {
+                if(mActive[i]) {
+                    scheduleFirst(i);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void stopScan(Callback callback) {
+            if(mCallback == callback) {
+                mCallback = null;
+                mGeneration++;
+            }
+        }
+
+        @Override
+        public String getName(String address) {
+            final Integer index = mAdvertiserIndex.get(address);
+            return index == null ? null : mNames[index];
+        }
+
+        void scheduleFirst(int index) {
+            scheduleAdvertisement(index, mRandom.nextInt(mIntervalMs[index]) * 1000L);
+        }
+
+        private void scheduleAdvertisement(final int index, long delayUs) {
+            final long generation = mGeneration;
+            schedule(delayUs, new Runnable() {
+                @Override
+                public void run() {
+                    if(generation != mGeneration || !mActive[index]) {
+                        return;
+                    }
+                    advertise(index);
+                    scheduleAdvertisement(index, mIntervalMs[index] * 1000L + mRandom.nextInt(10000));
+                }
+            });
+        }
+
+        private void advertise(int index) {
+            mAdvertisementsSent++;
+            if(chance(mAdvertisingLoss)) {
+                mAdvertisementsLost++;
+                return;
+            }
+            final int rssi = (int)Math.round(mMeanRssi[index] + mRandom.nextGaussian() * mRssiNoiseDb);
+            mCallback.onAdvertisement(mAddresses[index], Math.max(-127, Math.min(0, rssi)), mRecords[index]);
+        }
+    }
+
+    /**
+     * GattLink to one of the simulator's advertisers. Holds one of the phone's connections
+     * from connect() until it is disconnected. Written messages are reassembled the way the
+     * node would, and notify() sends data back.
+     */
+    public class SimulatedLink implements GattLink {
+        private final String mAddress;
+        private final Callback mCallback;
+        private final GattWriteQueue mWriteQueue;
+        private final PacketReassembler mReassembler = new PacketReassembler();
+
+        private boolean mConnecting;
+        private boolean mConnected;
+        private boolean mReady;
+        private boolean mClosed;
+        private boolean mHoldsConnection; //counted in mConnectionsInUse
+        private long mConnection; //bumped on every connect and disconnect, stale events check it
+        private int mLinkMtu = DEFAULT_MTU;
+        private NotificationRing mNotificationRing;
+
+        private long mReceivedMessages;
+        private long mReceivedBytes;
+        private byte[] mLastMessage;
+        private long mConnectedCount;
+
+        private final GattWriteTransport mTransport = new GattWriteTransport() {
+            @Override
+            public boolean write(final byte[] frame, final long token) {
+                if(!mConnected || frame.length > mLinkMtu - PacketFramer.ATT_OVERHEAD) {
+                    return false;
+                }
+                mWrites++;
+
+                int attempts = 1;
+                while(attempts < MAX_WRITE_ATTEMPTS && chance(mWriteLoss)) {
+                    attempts++;
+                }
+                final boolean success = attempts < MAX_WRITE_ATTEMPTS || !chance(mWriteLoss);
+                mWriteRetries += attempts - 1;
+                if(!success) {
+                    mWriteFailures++;
+                }
+
+                final long connection = mConnection;
+                schedule(attempts * mConnectionIntervalUs, new Runnable() {
+                    @Override
+                    public void run() {
+                        if(connection != mConnection) {
+                            return;
+                        }
+                        if(success) {
+                            receive(frame);
+                        }
+                        mWriteQueue.onWriteComplete(token, success);
+                    }
+                });
+                return true;
+            }
+        };
+
+        SimulatedLink(String address, Callback callback) {
+            mAddress = address;
+            mCallback = callback;
+            mWriteQueue = new GattWriteQueue(mTransport);
+        }
+
+        @Override
+        public String getAddress() {
+            return mAddress;
+        }
+
+        @Override
+        public boolean connect() {
+            if(mClosed) {
+                return false;
+            }
+            if(mConnected || mConnecting) {
+                return true;
+            }
+
+            mConnectAttempts++;
+            mConnecting = true;
+            final long connection = ++mConnection;
+            final Integer index = mAdvertiserIndex.get(mAddress);
+            if(index == null || !mActive[index] || mConnectionsInUse >= mMaxConnections) {
+                schedule(mConnectTimeoutMs * 1000, new Runnable() {
+                    @Override
+                    public void run() {
+                        if(connection == mConnection) {
+                            mConnecting = false;
+                            mConnectFailures++;
+                            mCallback.onLinkDisconnected(SimulatedLink.this);
+                        }
+                    }
+                });
+                return true;
+            }
+
+            mConnectionsInUse++;
+            mHoldsConnection = true;
+            final long connectUs = (mMinConnectMs + (long)(mRandom.nextDouble() * (mMaxConnectMs - mMinConnectMs))) * 1000;
+            schedule(connectUs, new Runnable() {
+                @Override
+                public void run() {
+                    if(connection != mConnection) {
+                        return;
+                    }
+                    mConnecting = false;
+                    mConnected = true;
+                    mConnectedCount++;
+                    mCallback.onLinkConnected(SimulatedLink.this);
+
+                    schedule(mDiscoveryMs * 1000, new Runnable() {
+                        @Override
+                        public void run() {
+                            if(connection != mConnection) {
+                                return;
+                            }
+                            mLinkMtu = mMtu;
+                            mReady = true;
+                            mCallback.onLinkReady(SimulatedLink.this);
+                        }
+                    });
+                }
+            });
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+            if(!mConnected && !mConnecting) {
+                return;
+            }
+            drop();
+        }
+
+        @Override
+        public void close() {
+            disconnect();
+            mClosed = true;
+            mWriteQueue.close();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return mConnected;
+        }
+
+        @Override
+        public boolean isReady() {
+            return mReady;
+        }
+
+        //Simulated nodes do not answer probes
+        @Override
+        public boolean hasClockSync() {
+            return false;
+        }
+
+        @Override
+        public boolean send(byte[] data, int coalesceKey) {
+            return send(data, coalesceKey, null);
+        }
+
+        @Override
+        public boolean send(byte[] data, int coalesceKey, GattWriteQueue.FrameListener listener) {
+            return mReady && PacketFramer.offer(mWriteQueue, data, mLinkMtu, coalesceKey, listener);
+        }
+
+        @Override
+        public boolean subscribe(NotificationRing ring) {
+            mNotificationRing = ring;
+            return true;
+        }
+
+        @Override
+        public void unsubscribe() {
+            mNotificationRing = null;
+        }
+
+        @Override
+        public int getMtu() {
+            return mLinkMtu;
+        }
+
+        @Override
+        public GattWriteQueue getWriteQueue() {
+            return mWriteQueue;
+        }
+
+        /**
+         * The node notifies data on UUID_RECEIVE, it arrives one connection interval later.
+         */
+        public void notify(final byte[] data) {
+            final long connection = mConnection;
+            schedule(mConnectionIntervalUs, new Runnable() {
+                @Override
+                public void run() {
+                    if(connection != mConnection || !mConnected) {
+                        return;
+                    }
+                    final NotificationRing ring = mNotificationRing;
+                    if(ring != null) {
+                        ring.offer(data);
+                    } else {
+                        mCallback.onLinkData(SimulatedLink.this, data);
+                    }
+                }
+            });
+        }
+
+        public long getReceivedMessages() {
+            return mReceivedMessages;
+        }
+
+        public long getReceivedBytes() {
+            return mReceivedBytes;
+        }
+
+        /**
+         * Last complete message the node received, or null.
+         */
+        public byte[] getLastMessage() {
+            return mLastMessage;
+        }
+
+        /**
+         * How many times this link got connected.
+         */
+        public long getConnectedCount() {
+            return mConnectedCount;
+        }
+
+        //Connection gone, from our side or the node's
+        void drop() {
+            mConnection++;
+            if(mHoldsConnection) {
+                mHoldsConnection = false;
+                mConnectionsInUse--;
+            }
+            mConnecting = false;
+            mConnected = false;
+            mReady = false;
+            mWriteQueue.clear();
+            mReassembler.reset();
+            mCallback.onLinkDisconnected(this);
+        }
+
+        private void receive(byte[] chunk) {
+            mReceivedBytes += chunk.length;
+            final byte[] message = mReassembler.onPacket(chunk);
+            if(message != null) {
+                mReceivedMessages++;
+                mLastMessage = message;
+            }
+        }
+    }
+}
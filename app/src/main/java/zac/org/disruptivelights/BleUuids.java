@@ -0,0 +1,74 @@
+package zac.org.disruptivelights;
+
+import java.util.UUID;
+
+/**
+ * UUIDs on the Bluetooth base UUID, 0000xxxx-0000-1000-8000-00805F9B34FB, built with
+ * plain arithmetic instead of formatting and parsing strings. Also compares UUIDs against
+ * the little endian bytes they are advertised as, so a scan record can be checked without
+ * making a UUID out of it.
+ */
+public class BleUuids {
+    public static final long BASE_MOST_SIGNIFICANT = 0x0000000000001000L;
+    public static final long BASE_LEAST_SIGNIFICANT = 0x800000805F9B34FBL;
+
+    public static final int NOT_SHORT = -1;
+
+    private BleUuids() {
+    }
+
+    /**
+     * The full UUID of a 16 bit one.
+     */
+    public static UUID fromShort(int uuid16) {
+        if(uuid16 < 0 || uuid16 > 0xFFFF) {
+            throw new IllegalArgumentException("Bad 16 bit UUID " + uuid16);
+        }
+        return new UUID(BASE_MOST_SIGNIFICANT | (long)uuid16 << 32, BASE_LEAST_SIGNIFICANT);
+    }
+
+    /**
+     * The full UUID of a 32 bit one.
+     */
+    public static UUID from32Bit(long uuid32) {
+        if(uuid32 < 0 || uuid32 > 0xFFFFFFFFL) {
+            throw new IllegalArgumentException("Bad 32 bit UUID " + uuid32);
+        }
+        return new UUID(BASE_MOST_SIGNIFICANT | uuid32 << 32, BASE_LEAST_SIGNIFICANT);
+    }
+
+    /**
+     * The 32 bit value of a UUID on the base UUID, or NOT_SHORT.
+     */
+    public static long shortValueOf(UUID uuid) {
+        if(uuid.getLeastSignificantBits() != BASE_LEAST_SIGNIFICANT
+                || (uuid.getMostSignificantBits() & 0xFFFFFFFFL) != BASE_MOST_SIGNIFICANT) {
+            return NOT_SHORT;
+        }
+        return uuid.getMostSignificantBits() >>> 32;
+    }
+
+    /**
+     * Whether the length (2, 4 or 16) little endian bytes at offset in buffer are uuid, the
+     * way AD structures and GATT carry them.
+     */
+    public static boolean matches(byte[] buffer, int offset, int length, UUID uuid) {
+        if(length == 16) {
+            return readLittleEndian(buffer, offset, 8) == uuid.getLeastSignificantBits()
+                    && readLittleEndian(buffer, offset + 8, 8) == uuid.getMostSignificantBits();
+        }
+        if(length != 2 && length != 4) {
+            return false;
+        }
+        final long value = shortValueOf(uuid);
+        return value != NOT_SHORT && readLittleEndian(buffer, offset, length) == value;
+    }
+
+    private static long readLittleEndian(byte[] buffer, int offset, int length) {
+        long value = 0;
+        for(int i = length - 1; i >= 0; i--) {
+            value = value << 8 | buffer[offset + i] & 0xFF;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,201 @@
+package zac.org.disruptivelights;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one thread that talks to the radio. Scan start/stop, connect, discover and writes
+ * are posted here and run one after the other, so they never overlap each other and
+ * never run on the main thread or inside a scan callback. Results still come back on
+ * the Bluetooth callback threads and go out through BleEventBus as before.
+ *
+ * For each kind of operation it keeps how long commands waited in the queue and how long
+ * they ran, to show whether the radio thread is keeping up.
+ */
+public class BleWorker implements BleScheduler {
+    public static final int OP_SCAN = 0;
+    public static final int OP_CONNECT = 1;
+    public static final int OP_DISCOVER = 2;
+    public static final int OP_WRITE = 3;
+    public static final int OP_OTHER = 4;
+    public static final int OP_COUNT = 5;
+
+    private static final String[] OP_NAMES = {"scan", "connect", "discover", "write", "other"};
+
+    private static final BleWorker sInstance = new BleWorker("BleWorker");
+
+    public static BleWorker getInstance() {
+        return sInstance;
+    }
+
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private volatile Thread mThread;
+
+    //Guarded by mStatsLock, written by the worker thread only
+    private final Object mStatsLock = new Object();
+    private final long[] mCount = new long[OP_COUNT];
+    private final long[] mWaitNs = new long[OP_COUNT];
+    private final long[] mMaxWaitNs = new long[OP_COUNT];
+    private final long[] mRunNs = new long[OP_COUNT];
+    private final long[] mMaxRunNs = new long[OP_COUNT];
+
+    public BleWorker(final String name) {
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                mThread = thread;
+                return thread;
+            }
+        });
+        mExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Run command on the worker after everything already queued. The returned Future
+     * can cancel it if it has not started yet.
+     */
+    @Override
+    public Future<?> post(int op, Runnable command) {
+        return postDelayed(op, command, 0);
+    }
+
+    /**
+     * Run command on the worker delayMs from now. Queue wait is counted from then.
+     */
+    @Override
+    public Future<?> postDelayed(int op, Runnable command, long delayMs) {
+        if(op < 0 || op >= OP_COUNT) {
+            throw new IllegalArgumentException("Unknown op " + op);
+        }
+        final Command timed = new Command(op, command, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs));
+        if(delayMs <= 0) {
+            return mExecutor.submit(timed);
+        }
+        return mExecutor.schedule(timed, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isWorkerThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Commands waiting to run, delayed ones included.
+     */
+    public int getQueueLength() {
+        return mExecutor.getQueue().size();
+    }
+
+    /**
+     * Stop taking commands, the ones queued still run. The shared instance is never shut down.
+     */
+    public void shutdown() {
+        if(this == sInstance) {
+            throw new IllegalStateException("The shared BleWorker stays up");
+        }
+        mExecutor.shutdown();
+    }
+
+    public long getCount(int op) {
+        synchronized(mStatsLock) {
+            return mCount[op];
+        }
+    }
+
+    public long getMeanQueueWaitUs(int op) {
+        synchronized(mStatsLock) {
+            return mCount[op] == 0 ? 0 : mWaitNs[op] / mCount[op] / 1000;
+        }
+    }
+
+    public long getMaxQueueWaitUs(int op) {
+        synchronized(mStatsLock) {
+            return mMaxWaitNs[op] / 1000;
+        }
+    }
+
+    public long getMeanRunUs(int op) {
+        synchronized(mStatsLock) {
+            return mCount[op] == 0 ? 0 : mRunNs[op] / mCount[op] / 1000;
+        }
+    }
+
+    public long getMaxRunUs(int op) {
+        synchronized(mStatsLock) {
+            return mMaxRunNs[op] / 1000;
+        }
+    }
+
+    public void resetStatistics() {
+        synchronized(mStatsLock) {
+            for(int op = 0; op < OP_COUNT; op++) {
+                mCount[op] = 0;
+                mWaitNs[op] = 0;
+                mMaxWaitNs[op] = 0;
+                mRunNs[op] = 0;
+                mMaxRunNs[op] = 0;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("BleWorker(queued=").append(getQueueLength());
+        synchronized(mStatsLock) {
+            for(int op = 0; op < OP_COUNT; op++) {
+                if(mCount[op] == 0) {
+                    continue;
+                }
+                builder.append(", ").append(OP_NAMES[op]).append("=[n=").append(mCount[op])
+                        .append(" waitUs=").append(mWaitNs[op] / mCount[op] / 1000).append("/").append(mMaxWaitNs[op] / 1000)
+                        .append(" runUs=").append(mRunNs[op] / mCount[op] / 1000).append("/").append(mMaxRunNs[op] / 1000)
+                        .append("]");
+            }
+        }
+        return builder.append(")").toString();
+    }
+
+    private void record(int op, long waitNs, long runNs) {
+        synchronized(mStatsLock) {
+            mCount[op]++;
+            mWaitNs[op] += waitNs;
+            mRunNs[op] += runNs;
+            if(waitNs > mMaxWaitNs[op]) {
+                mMaxWaitNs[op] = waitNs;
+            }
+            if(runNs > mMaxRunNs[op]) {
+                mMaxRunNs[op] = runNs;
+            }
+        }
+    }
+
+    private class Command implements Runnable {
+        private final int mOp;
+        private final Runnable mCommand;
+        private final long mDueNs;
+
+        Command(int op, Runnable command, long dueNs) {
+            mOp = op;
+            mCommand = command;
+            mDueNs = dueNs;
+        }
+
+        @Override
+        public void run() {
+            final long start = System.nanoTime();
+            try {
+                mCommand.run();
+            } catch(RuntimeException e) {
+                //The executor would keep this in the Future nobody looks at, crash like a Handler would
+                final Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            } finally {
+                final long end = System.nanoTime();
+                record(mOp, Math.max(0, start - mDueNs), end - start);
+            }
+        }
+    }
+}
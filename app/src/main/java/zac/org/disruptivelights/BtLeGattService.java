@@ -1,22 +1,17 @@
 package zac.org.disruptivelights;
 
-import android.Manifest;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.IBinder;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.UUID;
 
 
@@ -29,95 +24,77 @@ public class BtLeGattService extends Service {
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
-    private BluetoothGatt mBluetoothGatt;
-    private BluetoothGattService mBluetoothGattService;
-    private String mBluetoothDeviceAddress;
-    private int mConnectionState = STATE_DISCONNECTED;
-
-    private static final int STATE_DISCONNECTED = 0;
-    private static final int STATE_CONNECTING = 1;
-    private static final int STATE_CONNECTED = 2;
-
-    public final static String ACTION_GATT_CONNECTED = "zac.org.disruptivelights.BtLeGattService.ACTION_GATT_CONNECTED";
-    public final static String ACTION_GATT_DISCONNECTED = "zac.org.disruptivelights.BtLeGattService.ACTION_GATT_DISCONNECTED";
-    public final static String ACTION_GATT_SERVICES_DISCOVERED = "zac.org.disruptivelights.BtLeGattService.ACTION_GATT_SERVICES_DISCOVERED";
-    public final static String ACTION_DATA_AVAILABLE = "zac.org.disruptivelights.BtLeGattService.ACTION_DATA_AVAILABLE";
-    public final static String EXTRA_DATA = "zac.org.disruptivelights.BtLeGattService.EXTRA_DATA";
+    private volatile AndroidGattLink mLink;
+    private volatile ReconnectPolicy mReconnectPolicy = new ReconnectPolicy();
+
+    //Links connect() switched away from, kept disconnected with their BluetoothGatt so
+    //switching back skips discovery. Least recently used first.
+    private static final int MAX_IDLE_LINKS = 2;
+    private final LinkedHashMap<String, AndroidGattLink> mIdleLinks = new LinkedHashMap<String, AndroidGattLink>(4, 0.75f, true);
+    private GattConnectionPool mConnectionPool;
+    private final BleEventBus mEventBus = BleEventBus.getInstance();
+    private final LightStateModel mLightState = new LightStateModel();
+    private TimelinePlayer mPlayer;
+    private final TimeSync mTimeSync = new TimeSync();
+    private volatile DeviceCache mDeviceCache;
+
+    //Frames a timeline may have queued before the next one is dropped instead
+    private static final int MAX_PENDING_FRAMES = 2;
 
     public final static UUID UUID_SERVICE = sixteenBitUuid(0x2220);
     public final static UUID UUID_RECEIVE = sixteenBitUuid(0x2221);
     public final static UUID UUID_SEND = sixteenBitUuid(0x2222);
     public final static UUID UUID_DISCONNECT = sixteenBitUuid(0x2223);
+    //Only there on firmware that takes PacketFramer chunks on UUID_SEND and sends them on UUID_RECEIVE
+    public final static UUID UUID_FRAMING = sixteenBitUuid(0x2224);
+    //Only there on firmware that answers ClockSync probes, with replies notified on UUID_RECEIVE
+    public final static UUID UUID_CLOCK_SYNC = sixteenBitUuid(0x2225);
     public final static UUID UUID_CLIENT_CONFIGURATION = sixteenBitUuid(0x2902);
 
 
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
-
+    //Events of the single connection made through connect() go out on the event bus, idle links stay quiet:
+    private final GattLink.Callback mLinkCallback = new GattLink.Callback() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            Log.d(TAG, "onConnectionStateChange(" + status + ", " + newState + ")");
-
-            if(newState == BluetoothProfile.STATE_CONNECTED) {
-                mConnectionState = STATE_CONNECTED;
-                broadcastUpdate(ACTION_GATT_CONNECTED);
-                mBluetoothGatt.discoverServices();
-            } else if(newState == BluetoothProfile.STATE_DISCONNECTED) {
-                mConnectionState = STATE_DISCONNECTED;
-                broadcastUpdate(ACTION_GATT_DISCONNECTED);
+        public void onLinkConnected(GattLink link) {
+            if(link == mLink) {
+                mEventBus.postGattConnected();
             }
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            Log.d(TAG, "onServicesDiscovered(" + status + ")");
-
-            if(status == BluetoothGatt.GATT_SUCCESS) {
-                mBluetoothGattService = gatt.getService(UUID_SERVICE);
-                if (mBluetoothGattService == null) {
-                    Log.e(TAG, "mGattCallback.onServicesDiscovered() - Failed to hook UUID_SERVICE!");
-                    return;
-                }
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-            } else {
-                Log.w(TAG, "onServicesDiscovered(" + status + ") - Unhandled");
+        public void onLinkReady(GattLink link) {
+            mLightState.onLinkReady(link.getAddress());
+            if(link == mLink) {
+                restoreLightState(link);
+                mTimeSync.start(link);
+                mEventBus.postGattServicesDiscovered();
             }
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            Log.d(TAG, "onCharacteristicRead(" + status + ")");
-
-            if(status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-            } else {
-                Log.e(TAG, "onCharacteristicRead() failed to read!");
+        public void onLinkDisconnected(GattLink link) {
+            mTimeSync.stop(link.getAddress());
+            if(link == mLink) {
+                mEventBus.postGattDisconnected();
             }
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            Log.d(TAG, "onCharacteristicChanged()");
-
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+        public void onLinkData(GattLink link, byte[] data) {
+            if(link == mLink && !mTimeSync.onLinkData(link.getAddress(), data)) {
+                mEventBus.postDataAvailable(data);
+            }
         }
     };
 
-    private void broadcastUpdate(final String action) {
-        Log.d(TAG, "broadcastUpdate(" + action + ")");
-
-        final Intent intent = new Intent(action);
-        sendBroadcast(intent);
-        //TODO: Consider LocalBroadcastManager?
-    }
-
-    private void broadcastUpdate(final String action, final BluetoothGattCharacteristic characteristic) {
-        Log.d(TAG, "broadcastUpdate(" + action + ", characteristic)");
-
-        final Intent intent = new Intent(action);
-        intent.putExtra(EXTRA_DATA, characteristic.getValue());
-        sendBroadcast(intent, Manifest.permission.BLUETOOTH);
-        //TODO: Consider LocalBroadcastManager?
-    }
+    private final GattLink.Factory mLinkFactory = new GattLink.Factory() {
+        @Override
+        public GattLink create(String address, GattLink.Callback callback) {
+            final AndroidGattLink link = new AndroidGattLink(BtLeGattService.this, mBluetoothAdapter, address, callback);
+            link.setDeviceCache(mDeviceCache);
+            return link;
+        }
+    };
 
     public class BtLeGattBinder extends Binder {
         public BtLeGattService getService() {
@@ -139,6 +116,9 @@ public class BtLeGattService extends Service {
         Log.d(TAG, "onUnbound(" + (intent == null || intent.getAction() == null ? "null" : intent.getAction()) + ")");
 
         close();
+        if(mConnectionPool != null) {
+            mConnectionPool.closeAll();
+        }
         return super.onUnbind(intent);
     }
 
@@ -159,6 +139,16 @@ public class BtLeGattService extends Service {
             return false;
         }
 
+        if(mDeviceCache == null) {
+            mDeviceCache = DeviceCache.getInstance(new File(getFilesDir(), DeviceCache.FILE_NAME), ElapsedRealtimeClock.INSTANCE);
+            mLightState.setDeviceCache(mDeviceCache);
+        }
+
+        if(mConnectionPool == null) {
+            mConnectionPool = new GattConnectionPool(mLinkFactory);
+            mConnectionPool.setTimeSync(new TimeSync());
+        }
+
         return true;
     }
 
@@ -176,29 +166,32 @@ public class BtLeGattService extends Service {
         }
 
         //Try to reconnect if possible:
-        if(mBluetoothDeviceAddress != null && mBluetoothDeviceAddress.equals(address) && mBluetoothGatt != null) {
-            if(mBluetoothGatt.connect()) {
-                mConnectionState = STATE_CONNECTING;
-                return true;
-            } else {
-                //TODO - ? - mConnectionState = STATE_DISCONNECTED;
-                return false;
-            }
+        if(mLink != null && mLink.getAddress().equals(address)) {
+            return mLink.connect();
         }
 
-        //New device:
-        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if(device == null) {
-            Log.e(TAG, "Device " + address + "not found!");
-            return false;
-        }
+        //Other device, park the current link and pick up one we had before if there is one:
+        synchronized(mIdleLinks) {
+            if(mLink != null) {
+                mLink.disconnect();
+                mIdleLinks.put(mLink.getAddress(), mLink);
+            }
 
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to connect to " + address);
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
+            AndroidGattLink link = mIdleLinks.remove(address);
+            if(link == null) {
+                link = new AndroidGattLink(this, mBluetoothAdapter, address, mLinkCallback);
+                link.setDeviceCache(mDeviceCache);
+            }
+            link.setReconnectPolicy(mReconnectPolicy);
+            mLink = link;
 
-        return true;
+            final Iterator<AndroidGattLink> iterator = mIdleLinks.values().iterator();
+            while(mIdleLinks.size() > MAX_IDLE_LINKS) {
+                iterator.next().close();
+                iterator.remove();
+            }
+        }
+        return mLink.connect();
     }
 
     public void disconnect() {
@@ -208,47 +201,268 @@ public class BtLeGattService extends Service {
             Log.e(TAG, "disconnect() - mBluetoothAdapter is null");
             return;
         }
-        if(mBluetoothGatt == null) {
-            Log.e(TAG, "disconnect() - mBluetoothGatt is null");
+        if(mLink == null) {
+            Log.e(TAG, "disconnect() - mLink is null");
             return;
         }
 
-        mBluetoothGatt.disconnect();
+        mLink.disconnect();
     }
 
     public void close() {
-        Log.d(TAG, "close()" + (mBluetoothGatt == null ? "(mBluetoothGatt is null)" : ""));
+        Log.d(TAG, "close()" + (mLink == null ? "(mLink is null)" : ""));
+
+        stopTimeline();
+        mTimeSync.stopAll();
 
-        if(mBluetoothGatt == null) {
+        //Do not wait for the delayed flush, the process may be on its way out
+        final DeviceCache cache = mDeviceCache;
+        if(cache != null) {
+            cache.postFlush();
+        }
+
+        synchronized(mIdleLinks) {
+            for(AndroidGattLink link : mIdleLinks.values()) {
+                link.close();
+            }
+            mIdleLinks.clear();
+        }
+
+        if(mLink == null) {
             return;
         }
 
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
+        mLink.close();
+        mLink = null;
+    }
+
+    /**
+     * How the connection made through connect() retries after it dropped on its own.
+     * Applies from the next connect().
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        mReconnectPolicy = policy;
+    }
+
+    /**
+     * Reconnect timings of the current connection, or null without one.
+     */
+    public ReconnectStats getReconnectStats() {
+        final AndroidGattLink link = mLink;
+        return link == null ? null : link.getReconnectStats();
     }
 
+    /**
+     * Queue data for UUID_SEND, split into as few chunks as the negotiated MTU allows if the
+     * node has UUID_FRAMING, else written as it is and refused if it does not fit in one
+     * write. Returns false if the write queue would not take all of it.
+     */
     public boolean send(byte[] data) {
-        Log.d(TAG, "send()");
+        return send(data, GattWriteQueue.NO_COALESCE);
+    }
+
+    /**
+     * Queue data for UUID_SEND, replacing any still pending frame with the same coalesceKey.
+     * Only single chunk messages are coalesced, a multi chunk message is always queued whole.
+     */
+    public boolean send(byte[] data, int coalesceKey) {
+        logPerFrame("send", null);
+
+        final AndroidGattLink link = mLink;
+        if(link == null || !link.isReady()) {
+            Log.e(TAG, "send() - not connected and discovered");
+            return false;
+        }
+
+        return link.send(data, coalesceKey);
+    }
+
+    /**
+     * Queue data for the current connection to apply at phone time presentAtUs, on
+     * TimeSync.nowUs(). Fails until a few time sync probes have come back after connecting.
+     * With subscribe() replies go to the ring, hand them to getTimeSync().onLinkData() then.
+     */
+    public boolean sendAt(byte[] data, long presentAtUs) {
+        logPerFrame("sendAt", null);
+
+        final AndroidGattLink link = mLink;
+        if(link == null || !link.isReady()) {
+            Log.e(TAG, "sendAt() - not connected and discovered");
+            return false;
+        }
+        if(!mTimeSync.isSynced(link.getAddress())) {
+            Log.e(TAG, "sendAt() - clock not synced yet");
+            return false;
+        }
 
-        if(mBluetoothGatt == null || mBluetoothGattService == null) {
-            Log.e(TAG, "send() - mBluetoothGatt or mBluetoothGattService is null");
+        return mTimeSync.sendAt(link, data, presentAtUs, null);
+    }
+
+    public TimeSync getTimeSync() {
+        return mTimeSync;
+    }
+
+    /**
+     * Stream UUID_RECEIVE notifications of the current connection into ring, see
+     * GattLink.subscribe(). Drain it from one thread of your own.
+     */
+    public boolean subscribe(NotificationRing ring) {
+        Log.d(TAG, "subscribe()");
+
+        final AndroidGattLink link = mLink;
+        if(link == null) {
+            Log.e(TAG, "subscribe() - mLink is null");
+            return false;
         }
+        return link.subscribe(ring);
+    }
 
-        BluetoothGattCharacteristic characteristic = mBluetoothGattService.getCharacteristic(UUID_SEND);
-        if(characteristic == null) {
-            Log.e(TAG, "Failed to get UUID_SEND characteristic");
+    public void unsubscribe() {
+        Log.d(TAG, "unsubscribe()");
+
+        final AndroidGattLink link = mLink;
+        if(link != null) {
+            link.unsubscribe();
+        }
+    }
+
+    /**
+     * Send a light frame (raw LED bytes) to the current connection, only the bytes that
+     * changed since the last frame go out. See LightStateModel.
+     */
+    public boolean sendLightFrame(byte[] frame) {
+        final AndroidGattLink link = mLink;
+        if(link == null || !link.isReady()) {
+            Log.e(TAG, "sendLightFrame() - not connected and discovered");
             return false;
         }
 
-        characteristic.setValue(data);
-        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-        return mBluetoothGatt.writeCharacteristic(characteristic);
+        return mLightState.update(link, frame);
+    }
+
+    /**
+     * Play timeline on the current connection at fps, replacing whatever was playing.
+     * Returns the player for its statistics, or null without a ready connection.
+     */
+    public synchronized TimelinePlayer playTimeline(Timeline timeline, int leds, int fps) {
+        Log.d(TAG, "playTimeline(" + leds + ", " + fps + ")");
+
+        stopTimeline();
+
+        final AndroidGattLink link = mLink;
+        if(link == null || !link.isReady()) {
+            Log.e(TAG, "playTimeline() - not connected and discovered");
+            return null;
+        }
+
+        mPlayer = new TimelinePlayer(timeline, leds, fps, TimelinePlayer.DEFAULT_BUFFER_FRAMES,
+                mLightState.sinkFor(link, MAX_PENDING_FRAMES));
+        mPlayer.start();
+        return mPlayer;
+    }
+
+    public synchronized void stopTimeline() {
+        if(mPlayer != null) {
+            mPlayer.stop();
+            Log.d(TAG, "Stopped " + mPlayer);
+            mPlayer = null;
+        }
+    }
+
+    /**
+     * Known devices from this and earlier runs, see DeviceCache. Available once initialize() succeeded.
+     */
+    public DeviceCache getDeviceCache() {
+        return mDeviceCache;
+    }
+
+    public LightStateModel getLightStateModel() {
+        return mLightState;
+    }
+
+    public int getMtu() {
+        final AndroidGattLink link = mLink;
+        return link == null ? PacketFramer.DEFAULT_MTU : link.getMtu();
+    }
+
+    /**
+     * Replace the write queue of the current connection. Anything still pending in the old
+     * queue is dropped. overflowPolicy is one of GattWriteQueue.OVERFLOW_*. A connection
+     * takes one write at a time, so maxInFlight above 1 is held to 1; use sendToGroup() to
+     * have writes to several devices in flight together.
+     */
+    public void configureWriteQueue(int capacity, int maxInFlight, int overflowPolicy) {
+        if(mLink == null) {
+            Log.e(TAG, "configureWriteQueue() - mLink is null");
+            return;
+        }
+        mLink.configureWriteQueue(capacity, maxInFlight, overflowPolicy);
+    }
+
+    public GattWriteQueue getWriteQueue() {
+        final AndroidGattLink link = mLink;
+        return link == null ? null : link.getWriteQueue();
+    }
+
+    /**
+     * Links to any number of other devices, next to the single connection managed by
+     * connect() / send(). Available once initialize() succeeded.
+     */
+    public GattConnectionPool getConnectionPool() {
+        return mConnectionPool;
+    }
+
+    /**
+     * Send frame to every device of group that has a ready link in the connection pool,
+     * see GattConnectionPool.sendToGroup(). Returns null before initialize().
+     */
+    public GroupSend sendToGroup(DeviceGroup group, byte[] frame, boolean skipUnchanged, GroupSend.Listener listener) {
+        logPerFrame("sendToGroup", group);
+
+        if(mConnectionPool == null) {
+            Log.e(TAG, "sendToGroup() - mConnectionPool is null");
+            return null;
+        }
+        return mConnectionPool.sendToGroup(group, frame, skipUnchanged, listener);
     }
 
+    /**
+     * Send data to every synced device of group for all of them to apply together at phone
+     * time presentAtUs, see GattConnectionPool.sendToGroupAt(). Returns null before initialize().
+     */
+    public GroupSend sendToGroupAt(DeviceGroup group, byte[] data, long presentAtUs, GroupSend.Listener listener) {
+        logPerFrame("sendToGroupAt", group);
+
+        if(mConnectionPool == null) {
+            Log.e(TAG, "sendToGroupAt() - mConnectionPool is null");
+            return null;
+        }
+        return mConnectionPool.sendToGroupAt(group, data, presentAtUs, listener);
+    }
+
+    //The send calls run once per frame, so the line is only built when verbose logging is on
+    private static void logPerFrame(String method, DeviceGroup group) {
+        if(Log.isLoggable(TAG, Log.VERBOSE)) {
+            Log.v(TAG, method + "(" + (group == null ? "" : group.getName()) + ")");
+        }
+    }
+
+    //First time this run that the device is ready: it may have lost power since, show the last frame again
+    private void restoreLightState(GattLink link) {
+        final DeviceCache cache = mDeviceCache;
+        if(cache == null || mLightState.getEncoder(link.getAddress()) != null) {
+            return;
+        }
+
+        final DeviceCache.Entry entry = cache.get(link.getAddress());
+        if(entry != null && entry.getLightState() != null) {
+            Log.d(TAG, "Restoring last light state of " + link.getAddress());
+            mLightState.update(link, entry.getLightState());
+        }
+    }
 
     public static UUID sixteenBitUuid(long shortUuid) {
-        final String shortUuidFormat = "0000%04X-0000-1000-8000-00805F9B34FB";
         assert shortUuid >= 0 && shortUuid <= 0xFFFF;
-        return UUID.fromString(String.format(shortUuidFormat, shortUuid & 0xFFFF));
+        return BleUuids.fromShort((int)(shortUuid & 0xFFFF));
     }
 }
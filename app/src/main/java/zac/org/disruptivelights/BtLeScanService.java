@@ -2,89 +2,29 @@ package zac.org.disruptivelights;
 
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
-import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
 
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.io.File;
 
+/**
+ * Scanning as an Android service. All the work is done by a ScanEngine on the phone's
+ * radio, the shared BleWorker and SystemClock; this keeps the Bluetooth adapter current
+ * and the service lifecycle.
+ */
 public class BtLeScanService extends Service {
     public final static String TAG = "BtLeScanService";
 
     private BluetoothManager mBluetoothManager;
     private BluetoothAdapter mBluetoothAdapter;
 
-    private int mScanState = STATE_STOPPED;
-    private boolean mCurrentlyScanning;
-    private boolean mContinuous; //TODO: Not tested or used currently
-
-    private static final int STATE_STOPPED = 1;
-    private static final int STATE_RUNNING = 2;
-
-    public final static String ACTION_SCAN_STARTED = "zac.org.disruptivelights.BtLeScanService.ACTION_SCAN_STARTED"; //TODO: Change Gatt to Scan in all of these!
-    public final static String ACTION_SCAN_STOPPED = "zac.org.disruptivelights.BtLeScanService.ACTION_SCAN_STOPPED";
-    public final static String ACTION_DEVICE_NEW= "zac.org.disruptivelights.BtLeScanService.ACTION_DEVICE_NEW";
-    public final static String ACTION_DEVICE_UPDATE = "zac.org.disruptivelights.BtLeScanService.ACTION_DEVICE_UPDATE";
-    public final static String ACTION_DEVICE_GONE = "zac.org.disruptivelights.BtLeScanService.ACTION_DEVICE_GONE";
-    public final static String EXTRA_DEVICE_ADDRESS = "zac.org.disruptivelights.BtLeScanService.EXTRA_DEVICE_ADDRESS";
-    public final static String EXTRA_DEVICE_NAME = "zac.org.disruptivelights.BtLeScanService.EXTRA_DEVICE_NAME";
-    public final static String EXTRA_DEVICE_RSSI  = "zac.org.disruptivelights.BtLeScanService.EXTRA_DEVICE_RSSI";
-
-    private final HashMap<String, Date> mDevices = new HashMap<String, Date>();
-
-    private final Handler mHandler = new Handler();
-    private static int SCAN_DURATION_MS = 2000;
-    private static int OUT_OF_RANGE_AFTER_S = 60;
-
-
-    private final BluetoothAdapter.LeScanCallback mLeScanCallback = new BluetoothAdapter.LeScanCallback() {
-        @Override
-        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
-            Log.d(TAG, "onLeScan(" + (device != null ? device.getAddress() : "null") + ", " + rssi + ")");
-
-            Date lastSeen = mDevices.put(device.getAddress(), new Date());
-            if(lastSeen == null) {
-                final Intent intent = new Intent(ACTION_DEVICE_NEW);
-                intent.putExtra(EXTRA_DEVICE_ADDRESS, device.getAddress());
-                intent.putExtra(EXTRA_DEVICE_NAME, device.getName());
-                intent.putExtra(EXTRA_DEVICE_RSSI, rssi);
-                sendBroadcast(intent);
-            } else {
-                final Intent intent = new Intent(ACTION_DEVICE_UPDATE);
-                intent.putExtra(EXTRA_DEVICE_ADDRESS, device.getAddress());
-                intent.putExtra(EXTRA_DEVICE_NAME, device.getName());
-                intent.putExtra(EXTRA_DEVICE_RSSI, rssi);
-                sendBroadcast(intent);
-            }
-        }
-    };
-
-    private final Runnable mAutoStopRunnable = new Runnable() {
-        @Override
-        public void run() {
-            Log.d(TAG, "Auto-stopping LeScan");
-
-            mBluetoothAdapter.stopLeScan(mLeScanCallback);
-            final Intent intent = new Intent(ACTION_SCAN_STOPPED);
-            sendBroadcast(intent);
-
-            mCurrentlyScanning = false;
-
-            findOutOfRangeDevices();
-
-            if(mContinuous) {
-                scheduleNextLeScan();
-            }
-        }
-    };
+    private final MonotonicClock mClock = ElapsedRealtimeClock.INSTANCE;
+    private final AndroidBleScanner mScanner = new AndroidBleScanner();
+    private final ScanEngine mEngine = new ScanEngine(mScanner, BleWorker.getInstance(), mClock, BleEventBus.getInstance());
 
 
     public class BtLeScanBinder extends Binder {
@@ -117,93 +57,107 @@ public class BtLeScanService extends Service {
             return false;
         }
 
+        if(mEngine.getDeviceCache() == null) {
+            mEngine.setDeviceCache(DeviceCache.getInstance(new File(getFilesDir(), DeviceCache.FILE_NAME), mClock),
+                    BtLeGattService.UUID_SERVICE);
+        }
+
         return true;
     }
 
+    /**
+     * Every device seen by this and earlier runs of the app. Available once initialize() succeeded.
+     */
+    public DeviceCache getDeviceCache() {
+        return mEngine.getDeviceCache();
+    }
+
+    /**
+     * Start scanning using whatever mode was set on getScanScheduler(), by default a
+     * single ScanScheduler.DEFAULT_WINDOW_MS window. The radio is started on the BLE
+     * worker, onScanStarted() tells when it actually is.
+     */
     public boolean startScan() {
         Log.d(TAG, "startScan()");
 
-        if(mScanState != STATE_RUNNING) {
-            Log.w(TAG, "startScan() but state is not STATE_RUNNING");
+        if(mEngine.isScanning()) {
+            Log.e(TAG, "startScan() - already STATE_RUNNING");
+            return false;
         }
 
-        if(mCurrentlyScanning) {
-            Log.e(TAG, "startScan() - mCurrentlyScanning");
+        if(!getBluetoothAdapter()) {
+            Log.e(TAG, "!getBluetoothAdapter()");
             return false;
         }
 
-        return doLeScan(false /*TODO*/);
+        return mEngine.startScan();
     }
 
     public boolean stopScanning() {
         Log.d(TAG, "stopScanning()");
 
-        if(mScanState == STATE_STOPPED) {
+        if(!mEngine.stopScanning()) {
             Log.w(TAG, "Already stopped");
             return false;
         }
-
-        //TODO!
-        mHandler.removeCallbacks(mAutoStopRunnable);
-        mHandler.post(mAutoStopRunnable);
-
-        return false;
+        return true;
     }
 
-    private boolean doLeScan(final boolean continuous) {
-        Log.d(TAG, "doLeScan()");
-
-        if(mCurrentlyScanning) {
-            Log.e(TAG, "mCurrentlyScanning");
-            return false;
-        }
+    /**
+     * Like startScan(), but listener is called for the first advertisement matching filter.
+     * Does not stop the scan by itself. Replaces any filter still waiting for a match.
+     */
+    public boolean startFilteredScan(AdvertisementFilter filter, ScanEngine.FilterMatchListener listener) {
+        Log.d(TAG, "startFilteredScan()");
 
-        if(!getBluetoothAdapter()) {
+        if(!mEngine.isScanning() && !getBluetoothAdapter()) {
             Log.e(TAG, "!getBluetoothAdapter()");
             return false;
         }
-
-        Log.d(TAG, "Starting LeScan");
-        mBluetoothAdapter.startLeScan(mLeScanCallback);
-        mCurrentlyScanning = true;
-        final Intent intent = new Intent(ACTION_SCAN_STARTED);
-        sendBroadcast(intent);
-
-        mHandler.postDelayed(mAutoStopRunnable, SCAN_DURATION_MS);
-
-        return true;
+        return mEngine.startFilteredScan(filter, listener);
     }
 
-    private void scheduleNextLeScan() {
-        Log.d(TAG, "scheduleNextLeScan()");
+    public void cancelFilteredScan() {
+        Log.d(TAG, "cancelFilteredScan()");
 
-        if(mScanState != STATE_RUNNING) {
-            Log.w(TAG, "Not STATE_RUNNING any longer");
-            return;
-        }
+        mEngine.cancelFilteredScan();
+    }
 
-        //TODO
-        //throw new Exception("TODO");
+    /**
+     * Fill addresses and rssi with up to max of the nearest devices by smoothed RSSI, nearest
+     * first, and return how many that were.
+     */
+    public int getNearest(int max, String[] addresses, int[] rssi) {
+        return mEngine.getNearest(max, addresses, rssi);
     }
 
-    private void findOutOfRangeDevices() {
-        Log.d(TAG, "findOutOfRangeDevices()");
+    /**
+     * 0 for the nearest device in range, ProximityIndex.NOT_RANKED if address is not in range.
+     */
+    public int getProximityRank(String address) {
+        return mEngine.getProximityRank(address);
+    }
 
-        long outOfRangeTime = new Date().getTime() - OUT_OF_RANGE_AFTER_S * 1000;
-        Iterator iterator = mDevices.entrySet().iterator();
-        while(iterator.hasNext()) {
-            Map.Entry<String, Date> pairs = (Map.Entry)iterator.next();
-            if(pairs.getValue().getTime() < outOfRangeTime) {
-                long secondsSinceLastSeen = (new Date().getTime() - pairs.getValue().getTime()) / 1000;
+    /**
+     * Smoothed RSSI of address, or 0 if it is not in range.
+     */
+    public int getSmoothedRssi(String address) {
+        return mEngine.getSmoothedRssi(address);
+    }
 
-                Log.d(TAG, "Have not heard from device in " + secondsSinceLastSeen + " seconds. Sending device gone");
-                final Intent intent = new Intent(ACTION_DEVICE_GONE);
-                intent.putExtra(EXTRA_DEVICE_ADDRESS, pairs.getKey());
-                sendBroadcast(intent);
+    /**
+     * Minimum interval, RSSI threshold and batch interval for onDeviceUpdates() live here,
+     * along with how many advertisements came in and how many updates went out.
+     */
+    public UpdateCoalescer getUpdateCoalescer() {
+        return mEngine.getUpdateCoalescer();
+    }
 
-                iterator.remove();
-            }
-        }
+    /**
+     * Scan mode, window and interval live here. Changes apply from the next window.
+     */
+    public ScanScheduler getScanScheduler() {
+        return mEngine.getScanScheduler();
     }
 
     private boolean getBluetoothManager() {
@@ -223,6 +177,7 @@ public class BtLeScanService extends Service {
         }
 
         mBluetoothAdapter = mBluetoothManager.getAdapter();
+        mScanner.setAdapter(mBluetoothAdapter);
         if(mBluetoothAdapter == null) {
             Log.e(TAG, "Unable to get BluetoothAdapter");
             return false;
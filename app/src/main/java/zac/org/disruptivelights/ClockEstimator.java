@@ -0,0 +1,198 @@
+package zac.org.disruptivelights;
+
+/**
+ * Where one node's clock stands against the phone's, from NTP style round trips. Each probe
+ * gives the phone send time t1, the node's receive and reply times t2, t3 and the phone
+ * receive time t4, so
+ *
+ *   offset = ((t2 - t1) + (t3 - t4)) / 2    round trip = (t4 - t1) - (t3 - t2)
+ *
+ * The offset of a sample is off by at most half its round trip, and BLE round trips vary by
+ * whole connection intervals, so a line is fitted through the last WINDOW samples with the
+ * ones slower than the fastest weighted down hard. It gives offset and drift, the drift keeps
+ * frames scheduled well ahead on time even though crystals differ by tens of ppm.
+ *
+ * Phone times are microseconds on any monotonic clock, node times 32 bit microseconds as in
+ * ClockSync.
+ */
+public class ClockEstimator {
+    public static final int WINDOW = 32;
+    public static final int MIN_SAMPLES = 4;
+    public static final long MAX_RTT_US = 1000000;
+    public static final double MAX_DRIFT_PPM = 500;
+
+    //Below this (weighted) spread of sample times a drift fit is mostly noise
+    private static final long MIN_DRIFT_SPAN_US = 5000000;
+    private static final long RTT_SCALE_US = 1000;
+    private static final long NOT_SENT = Long.MIN_VALUE;
+
+    //Phone time of every outstanding probe by seq
+    private final long[] mProbeSentUs = new long[256];
+    private int mSeq;
+
+    //Last WINDOW samples, offsets relative to the first one seen so they never wrap
+    private final long[] mSampleUs = new long[WINDOW];
+    private final long[] mSampleOffsetUs = new long[WINDOW];
+    private final long[] mSampleRttUs = new long[WINDOW];
+    private int mNext;
+    private long mSamples;
+    private long mRejected;
+    private int mBaseOffsetUs;
+
+    //Current fit: offset = mBaseOffsetUs + mRefOffsetUs + mDrift * (phone - mRefUs)
+    private long mRefUs;
+    private double mRefOffsetUs;
+    private double mDrift;
+    private long mBestRttUs;
+
+    public ClockEstimator() {
+        for(int i = 0; i < mProbeSentUs.length; i++) {
+            mProbeSentUs[i] = NOT_SENT;
+        }
+    }
+
+    /**
+     * Next probe to send, nowUs being the phone time it goes out.
+     */
+    public synchronized byte[] probe(long nowUs) {
+        mSeq = (mSeq + 1) & 0xFF;
+        mProbeSentUs[mSeq] = nowUs;
+        return ClockSync.probe(mSeq);
+    }
+
+    /**
+     * Take in a reply received at phone time nowUs. Returns false if it does not belong to
+     * a probe of ours or its round trip makes no sense.
+     */
+    public synchronized boolean onReply(byte[] reply, long nowUs) {
+        if(!ClockSync.isReply(reply)) {
+            return false;
+        }
+
+        final int seq = ClockSync.getSeq(reply);
+        final long sentUs = mProbeSentUs[seq];
+        mProbeSentUs[seq] = NOT_SENT;
+        if(sentUs == NOT_SENT) {
+            mRejected++;
+            return false;
+        }
+
+        final int rx = ClockSync.getReplyRx(reply);
+        final int tx = ClockSync.getReplyTx(reply);
+        final long rttUs = (nowUs - sentUs) - (tx - rx);
+        if(rttUs < 0 || rttUs > MAX_RTT_US || tx - rx < 0) {
+            mRejected++;
+            return false;
+        }
+
+        //Both halves wrap with the node clock, take the second relative to the first
+        final int forward = rx - (int)sentUs;
+        final int backward = tx - (int)nowUs;
+        final int offsetUs = forward + (backward - forward) / 2;
+        if(mSamples == 0) {
+            mBaseOffsetUs = offsetUs;
+        }
+
+        mSampleUs[mNext] = sentUs + (nowUs - sentUs) / 2;
+        mSampleOffsetUs[mNext] = offsetUs - mBaseOffsetUs;
+        mSampleRttUs[mNext] = rttUs;
+        mNext = (mNext + 1) % WINDOW;
+        mSamples++;
+        fit();
+        return true;
+    }
+
+    public synchronized boolean isSynced() {
+        return mSamples >= MIN_SAMPLES;
+    }
+
+    /**
+     * The node's clock at phone time phoneUs.
+     */
+    public synchronized int toNodeTime(long phoneUs) {
+        final long offsetUs = Math.round(mRefOffsetUs + mDrift * (phoneUs - mRefUs));
+        return (int)(phoneUs + mBaseOffsetUs + offsetUs);
+    }
+
+    /**
+     * Node clock minus phone clock as of the latest fit, modulo 2^32.
+     */
+    public synchronized int getOffsetUs() {
+        return mBaseOffsetUs + (int)Math.round(mRefOffsetUs);
+    }
+
+    /**
+     * How much faster the node's clock runs than the phone's, in parts per million.
+     */
+    public synchronized double getDriftPpm() {
+        return mDrift * 1e6;
+    }
+
+    /**
+     * Fastest round trip in the window. Half of it bounds the error of the best sample.
+     */
+    public synchronized long getBestRttUs() {
+        return mBestRttUs;
+    }
+
+    public synchronized long getSampleCount() {
+        return mSamples;
+    }
+
+    public synchronized long getRejectedCount() {
+        return mRejected;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ClockEstimator(samples=" + mSamples + ", rejected=" + mRejected + ", offsetUs=" + getOffsetUs()
+                + ", driftPpm=" + String.format("%.1f", mDrift * 1e6) + ", bestRttUs=" + mBestRttUs + ")";
+    }
+
+    private void fit() {
+        final int count = (int)Math.min(mSamples, WINDOW);
+
+        long bestRttUs = Long.MAX_VALUE;
+        for(int i = 0; i < count; i++) {
+            bestRttUs = Math.min(bestRttUs, mSampleRttUs[i]);
+        }
+        mBestRttUs = bestRttUs;
+
+        //Weighted least squares, a sample RTT_SCALE_US slower than the best counts a quarter
+        double weights = 0;
+        double meanUs = 0;
+        double meanOffset = 0;
+        for(int i = 0; i < count; i++) {
+            final double weight = weight(mSampleRttUs[i] - bestRttUs);
+            weights += weight;
+            meanUs += weight * (mSampleUs[i] - mSampleUs[0]);
+            meanOffset += weight * mSampleOffsetUs[i];
+        }
+        meanUs = mSampleUs[0] + meanUs / weights;
+        meanOffset /= weights;
+
+        double covariance = 0;
+        double variance = 0;
+        for(int i = 0; i < count; i++) {
+            final double weight = weight(mSampleRttUs[i] - bestRttUs);
+            final double dt = mSampleUs[i] - meanUs;
+            covariance += weight * dt * (mSampleOffsetUs[i] - meanOffset);
+            variance += weight * dt * dt;
+        }
+
+        double drift = 0;
+        if(count >= MIN_SAMPLES && Math.sqrt(variance / weights) >= MIN_DRIFT_SPAN_US) {
+            drift = covariance / variance;
+            drift = Math.max(-MAX_DRIFT_PPM / 1e6, Math.min(MAX_DRIFT_PPM / 1e6, drift));
+        }
+
+        mRefUs = Math.round(meanUs);
+        mRefOffsetUs = meanOffset;
+        mDrift = drift;
+    }
+
+    private static double weight(long slowerUs) {
+        final double x = (double)slowerUs / RTT_SCALE_US;
+        return 1 / (1 + x * x);
+    }
+}
@@ -0,0 +1,98 @@
+package zac.org.disruptivelights;
+
+/**
+ * Wire format of the time sync protocol, over UUID_SEND and UUID_RECEIVE like everything else.
+ *
+ *   probe      phone -> node   ['T'][seq]
+ *   reply      node -> phone   ['t'][seq][rx][tx]
+ *   scheduled  phone -> node   ['S'][at][payload]
+ *
+ * rx and tx are the node's clock when the probe arrived and when the reply left, at is when
+ * the node should apply payload (e.g. a FrameDeltaEncoder packet) by its own clock. Node
+ * times are 32 bit little endian microseconds that wrap every 71 minutes, so always compare
+ * them as (int)(a - b). ClockEstimator turns replies into the phone to node mapping.
+ */
+public final class ClockSync {
+    public static final byte TYPE_PROBE = 'T';
+    public static final byte TYPE_REPLY = 't';
+    public static final byte TYPE_SCHEDULED = 'S';
+
+    public static final int PROBE_SIZE = 2;
+    public static final int REPLY_SIZE = 10;
+    public static final int SCHEDULED_HEADER_SIZE = 5;
+
+    //Probes replace a probe still waiting in the write queue instead of piling up behind frames
+    public static final int PROBE_COALESCE_KEY = 0x5443;
+
+    private ClockSync() {
+    }
+
+    public static byte[] probe(int seq) {
+        return new byte[] {TYPE_PROBE, (byte)seq};
+    }
+
+    /**
+     * What the node answers to a probe, for simulators and node firmware.
+     */
+    public static byte[] reply(int seq, int rxUs, int txUs) {
+        final byte[] packet = new byte[REPLY_SIZE];
+        packet[0] = TYPE_REPLY;
+        packet[1] = (byte)seq;
+        putInt(packet, 2, rxUs);
+        putInt(packet, 6, txUs);
+        return packet;
+    }
+
+    /**
+     * payload to be applied when the node's clock reaches atUs.
+     */
+    public static byte[] scheduled(int atUs, byte[] payload) {
+        final byte[] packet = new byte[SCHEDULED_HEADER_SIZE + payload.length];
+        packet[0] = TYPE_SCHEDULED;
+        putInt(packet, 1, atUs);
+        System.arraycopy(payload, 0, packet, SCHEDULED_HEADER_SIZE, payload.length);
+        return packet;
+    }
+
+    public static boolean isProbe(byte[] packet) {
+        return packet != null && packet.length == PROBE_SIZE && packet[0] == TYPE_PROBE;
+    }
+
+    public static boolean isReply(byte[] packet) {
+        return packet != null && packet.length == REPLY_SIZE && packet[0] == TYPE_REPLY;
+    }
+
+    public static boolean isScheduled(byte[] packet) {
+        return packet != null && packet.length >= SCHEDULED_HEADER_SIZE && packet[0] == TYPE_SCHEDULED;
+    }
+
+    public static int getSeq(byte[] packet) {
+        return packet[1] & 0xFF;
+    }
+
+    public static int getReplyRx(byte[] reply) {
+        return getInt(reply, 2);
+    }
+
+    public static int getReplyTx(byte[] reply) {
+        return getInt(reply, 6);
+    }
+
+    public static int getScheduledAt(byte[] scheduled) {
+        return getInt(scheduled, 1);
+    }
+
+    public static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte)value;
+        buffer[offset + 1] = (byte)(value >> 8);
+        buffer[offset + 2] = (byte)(value >> 16);
+        buffer[offset + 3] = (byte)(value >> 24);
+    }
+
+    public static int getInt(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFF)
+                | (buffer[offset + 1] & 0xFF) << 8
+                | (buffer[offset + 2] & 0xFF) << 16
+                | (buffer[offset + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,756 @@
+package zac.org.disruptivelights;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * What we knew about every light the last time the app ran: name, RSSI and when it was last
+ * seen, the MTU and characteristic handles of its GATT service and the frame it was last
+ * sent. Lets the app connect to known lights straight away instead of scanning for them first.
+ *
+ * Kept in an append-only file of small records, each with a CRC so a record torn by the app
+ * dying mid-write is simply where loading stops. Nothing is read until the cache is first
+ * used, and then the file is mapped rather than copied. Updates only change memory and mark
+ * the device dirty; FLUSH_DELAY_MS later the latest state of every dirty device is appended
+ * on the cache's own I/O worker, so a device seen a thousand times a minute still costs one
+ * record and the radio's BleWorker never waits on the disk. Once the file is mostly
+ * superseded records it is rewritten from memory. Devices not seen for MAX_AGE_MS are
+ * dropped when the file is loaded.
+ */
+public class DeviceCache {
+    public static final String FILE_NAME = "devices.cache";
+    public static final int NO_HANDLE = -1;
+    public static final long FLUSH_DELAY_MS = 2000;
+
+    //A device that is just seen again is only written this often, name changes go out at once
+    public static final long SEEN_WRITE_INTERVAL_MS = 60000;
+
+    //A show changes the lights many times a second, the flash does not need to hear every frame
+    public static final long LIGHT_WRITE_INTERVAL_MS = 10000;
+
+    //A light not seen for this long is gone
+    public static final long MAX_AGE_MS = 30L * 24 * 60 * 60 * 1000;
+
+    private static final int MAGIC = 0x444C4331; //DLC1
+    private static final int TYPE_SEEN = 1;
+    private static final int TYPE_GATT = 2;
+    private static final int TYPE_LIGHT = 3;
+    private static final int TYPE_REMOVE = 4;
+    private static final int RECORD_OVERHEAD = 1 + 2 + 4; //type, body length, CRC
+    private static final int MAX_BODY = 0xFFFF;
+    private static final int COMPACT_MIN_BYTES = 64 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int DIRTY_SEEN = 1;
+    private static final int DIRTY_GATT = 2;
+    private static final int DIRTY_LIGHT = 4;
+
+    private static final HashMap<String, DeviceCache> sInstances = new HashMap<String, DeviceCache>();
+    private static BleWorker sIoWorker; //guarded by sInstances, shared by the caches of getInstance()
+
+    /**
+     * The one cache of file, shared by everything in the process that uses it.
+     */
+    public static DeviceCache getInstance(File file, MonotonicClock clock) {
+        synchronized(sInstances) {
+            DeviceCache cache = sInstances.get(file.getAbsolutePath());
+            if(cache == null) {
+                if(sIoWorker == null) {
+                    sIoWorker = new BleWorker("DeviceCache");
+                }
+                cache = new DeviceCache(file, sIoWorker, clock);
+                sInstances.put(file.getAbsolutePath(), cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * A copy of what is known about one device.
+     */
+    public static class Entry {
+        private final long mKey;
+        private final String mAddress;
+        private String mName;
+        private int mRssi;
+        private long mLastSeenMs;
+        private int mMtu;
+        private int mSendHandle = NO_HANDLE;
+        private int mReceiveHandle = NO_HANDLE;
+        private byte[] mLightState;
+        private long mSeenWrittenMs;
+        private long mLightWrittenAt = Long.MIN_VALUE / 2;
+        private int mDirty;
+
+        Entry(long key, String address) {
+            mKey = key;
+            mAddress = address;
+        }
+
+        Entry(Entry other) {
+            mKey = other.mKey;
+            mAddress = other.mAddress;
+            mName = other.mName;
+            mRssi = other.mRssi;
+            mLastSeenMs = other.mLastSeenMs;
+            mMtu = other.mMtu;
+            mSendHandle = other.mSendHandle;
+            mReceiveHandle = other.mReceiveHandle;
+            mLightState = other.mLightState == null ? null : other.mLightState.clone();
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public int getRssi() {
+            return mRssi;
+        }
+
+        /**
+         * Wall clock time, it has to mean something after a reboot.
+         */
+        public long getLastSeenMs() {
+            return mLastSeenMs;
+        }
+
+        /**
+         * MTU negotiated last time, 0 if it never connected.
+         */
+        public int getMtu() {
+            return mMtu;
+        }
+
+        public int getSendHandle() {
+            return mSendHandle;
+        }
+
+        public int getReceiveHandle() {
+            return mReceiveHandle;
+        }
+
+        /**
+         * Last frame sent to the device, or null.
+         */
+        public byte[] getLightState() {
+            return mLightState;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry(" + mAddress + (mName == null ? "" : " " + mName) + ", rssi=" + mRssi + ", lastSeenMs=" + mLastSeenMs
+                    + ", mtu=" + mMtu + ", handles=" + mSendHandle + "/" + mReceiveHandle
+                    + ", light=" + (mLightState == null ? 0 : mLightState.length) + ")";
+        }
+    }
+
+    private final File mFile;
+    private final BleWorker mWorker;
+    private final MonotonicClock mClock;
+
+    //Guarded by this
+    private HashMap<Long, Entry> mEntries;
+    private final LinkedHashSet<Entry> mDirty = new LinkedHashSet<Entry>();
+    private final ArrayList<Long> mRemoved = new ArrayList<Long>();
+    private Future<?> mFlushFuture;
+    private long mValidLength; //end of the last good record on disk
+    private long mLoadNs;
+    private int mLoadedRecords;
+    private int mBadRecords;
+
+    //Guarded by mFileLock, taken before this when both are needed
+    private final Object mFileLock = new Object();
+    private long mRecordsWritten;
+    private long mBytesWritten;
+    private long mCompactions;
+    private long mWriteErrors;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized(DeviceCache.this) {
+                mFlushFuture = null;
+            }
+            flush(false);
+        }
+    };
+
+    /**
+     * Flushes, compaction and postSeen() run on ioWorker, which should not be the shared
+     * BleWorker: a compaction rewrites the whole file.
+     */
+    public DeviceCache(File file, BleWorker ioWorker, MonotonicClock clock) {
+        mFile = file;
+        mWorker = ioWorker;
+        mClock = clock;
+    }
+
+    /**
+     * Record an advertisement of address at wall clock time nowMs.
+     */
+    public void putSeen(String address, String name, int rssi, long nowMs) {
+        putSeen(DeviceRegistry.parseAddress(address), name, rssi, nowMs);
+    }
+
+    /**
+     * putSeen() later on the I/O worker, for the scan callback: it neither waits for the
+     * lock nor loads the file. key as in DeviceRegistry.parseAddress().
+     */
+    public void postSeen(final long key, final String name, final int rssi, final long nowMs) {
+        mWorker.post(BleWorker.OP_OTHER, new Runnable() {
+            @Override
+            public void run() {
+                putSeen(key, name, rssi, nowMs);
+            }
+        });
+    }
+
+    public synchronized void putSeen(long key, String name, int rssi, long nowMs) {
+        final Entry entry = entryOf(key);
+        if(entry == null) {
+            return;
+        }
+
+        boolean write = nowMs - entry.mSeenWrittenMs >= SEEN_WRITE_INTERVAL_MS;
+        if(name != null && !name.equals(entry.mName)) {
+            entry.mName = name;
+            write = true;
+        }
+        entry.mRssi = rssi;
+        entry.mLastSeenMs = nowMs;
+        if(write) {
+            entry.mSeenWrittenMs = nowMs;
+            markDirty(entry, DIRTY_SEEN);
+        }
+    }
+
+    /**
+     * What connecting to address found out: the negotiated MTU and the instance handles of
+     * UUID_SEND and UUID_RECEIVE.
+     */
+    public synchronized void putGatt(String address, int mtu, int sendHandle, int receiveHandle) {
+        final Entry entry = entryOf(address);
+        if(entry == null) {
+            return;
+        }
+
+        if(entry.mMtu != mtu || entry.mSendHandle != sendHandle || entry.mReceiveHandle != receiveHandle) {
+            entry.mMtu = mtu;
+            entry.mSendHandle = sendHandle;
+            entry.mReceiveHandle = receiveHandle;
+            markDirty(entry, DIRTY_GATT);
+        }
+    }
+
+    /**
+     * Remember frame as what address shows. Copied, the caller may reuse it.
+     */
+    public synchronized void putLightState(String address, byte[] frame) {
+        final Entry entry = entryOf(address);
+        if(entry == null || frame.length > MAX_BODY - 8) {
+            return;
+        }
+
+        if(entry.mLightState == null || entry.mLightState.length != frame.length) {
+            entry.mLightState = frame.clone();
+        } else {
+            System.arraycopy(frame, 0, entry.mLightState, 0, frame.length);
+        }
+        markDirty(entry, DIRTY_LIGHT);
+    }
+
+    public synchronized void remove(String address) {
+        load();
+        final long key = DeviceRegistry.parseAddress(address);
+        final Entry entry = mEntries.remove(key);
+        if(entry != null) {
+            mDirty.remove(entry);
+            mRemoved.add(key);
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * A copy of what is known about address, or null.
+     */
+    public synchronized Entry get(String address) {
+        load();
+        final Entry entry = mEntries.get(DeviceRegistry.parseAddress(address));
+        return entry == null ? null : new Entry(entry);
+    }
+
+    /**
+     * Copies of up to max devices, the most recently seen first.
+     */
+    public synchronized List<Entry> getRecent(int max) {
+        load();
+        final ArrayList<Entry> entries = new ArrayList<Entry>(mEntries.size());
+        for(Entry entry : mEntries.values()) {
+            entries.add(new Entry(entry));
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return a.mLastSeenMs > b.mLastSeenMs ? -1 : a.mLastSeenMs == b.mLastSeenMs ? 0 : 1;
+            }
+        });
+        return entries.size() > max ? new ArrayList<Entry>(entries.subList(0, max)) : entries;
+    }
+
+    public synchronized int size() {
+        load();
+        return mEntries.size();
+    }
+
+    /**
+     * Read the file now instead of on first use, e.g. on a background thread at startup.
+     */
+    public synchronized void preload() {
+        load();
+    }
+
+    /**
+     * Append the latest state of every dirty device. Runs by itself FLUSH_DELAY_MS after a
+     * change; call it directly before the process may go away. Returns false if the file
+     * could not be written, the changes stay dirty then.
+     */
+    public boolean flush() {
+        return flush(true);
+    }
+
+    /**
+     * flush() on the I/O worker now instead of waiting for the delayed flush.
+     */
+    public void postFlush() {
+        mWorker.post(BleWorker.OP_OTHER, new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    /**
+     * flush(false) is what runs by itself: a light state written less than
+     * LIGHT_WRITE_INTERVAL_MS ago stays dirty for a later flush.
+     */
+    public boolean flush(boolean all) {
+        synchronized(mFileLock) {
+            final byte[] records;
+            final long validLength;
+            final List<Entry> written;
+            final List<Long> removed;
+            synchronized(this) {
+                if(mEntries == null || (mDirty.isEmpty() && mRemoved.isEmpty())) {
+                    return true;
+                }
+                written = new ArrayList<Entry>(mDirty);
+                removed = new ArrayList<Long>(mRemoved);
+                records = encodeDirty(all, mClock.now());
+                validLength = mValidLength;
+            }
+
+            final long end;
+            try {
+                end = append(records, validLength);
+            } catch(IOException e) {
+                mWriteErrors++;
+                synchronized(this) {
+                    //Put back what we took, all of it since we no longer know which parts changed
+                    for(Entry entry : written) {
+                        if(mEntries.get(entry.mKey) == entry) {
+                            markDirty(entry, DIRTY_SEEN | DIRTY_GATT | DIRTY_LIGHT);
+                        }
+                    }
+                    for(Long key : removed) {
+                        if(!mEntries.containsKey(key)) {
+                            mRemoved.add(key);
+                        }
+                    }
+                    scheduleFlush();
+                }
+                return false;
+            }
+
+            synchronized(this) {
+                mValidLength = end;
+            }
+            mBytesWritten += records.length;
+
+            if(end > COMPACT_MIN_BYTES) {
+                compactIfWorthIt();
+            }
+            return true;
+        }
+    }
+
+    public synchronized long getLoadMicros() {
+        return mLoadNs / 1000;
+    }
+
+    public synchronized int getLoadedRecordCount() {
+        return mLoadedRecords;
+    }
+
+    public long getRecordsWritten() {
+        synchronized(mFileLock) {
+            return mRecordsWritten;
+        }
+    }
+
+    public long getWriteErrorCount() {
+        synchronized(mFileLock) {
+            return mWriteErrors;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized(mFileLock) {
+            synchronized(this) {
+                return "DeviceCache(" + (mEntries == null ? "not loaded" : mEntries.size() + " devices, loaded "
+                        + mLoadedRecords + " records in " + mLoadNs / 1000 + " us" + (mBadRecords > 0 ? ", torn tail" : ""))
+                        + ", file=" + mValidLength + " bytes, written=" + mRecordsWritten + " records/" + mBytesWritten + " bytes"
+                        + ", compactions=" + mCompactions + ", errors=" + mWriteErrors + ")";
+            }
+        }
+    }
+
+    //Holding this
+    private Entry entryOf(String address) {
+        return entryOf(DeviceRegistry.parseAddress(address));
+    }
+
+    //Holding this
+    private Entry entryOf(long key) {
+        if(key == DeviceRegistry.NO_ADDRESS) {
+            return null;
+        }
+        load();
+        Entry entry = mEntries.get(key);
+        if(entry == null) {
+            entry = new Entry(key, DeviceRegistry.formatAddress(key));
+            mEntries.put(key, entry);
+        }
+        return entry;
+    }
+
+    //Holding this
+    private void markDirty(Entry entry, int what) {
+        entry.mDirty |= what;
+        mDirty.add(entry);
+        scheduleFlush();
+    }
+
+    //Holding this
+    private void scheduleFlush() {
+        if(mFlushFuture == null) {
+            mFlushFuture = mWorker.postDelayed(BleWorker.OP_OTHER, mFlushRunnable, FLUSH_DELAY_MS);
+        }
+    }
+
+    //Holding this. A missing or unreadable file is an empty cache
+    private void load() {
+        if(mEntries != null) {
+            return;
+        }
+        mEntries = new HashMap<Long, Entry>();
+
+        final long start = System.nanoTime();
+        RandomAccessFile file = null;
+        try {
+            if(mFile.length() >= 4) {
+                file = new RandomAccessFile(mFile, "r");
+                final FileChannel channel = file.getChannel();
+                final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if(buffer.getInt() == MAGIC) {
+                    mValidLength = parse(buffer);
+                }
+            }
+        } catch(IOException e) {
+            mEntries.clear();
+            mValidLength = 0;
+        } finally {
+            closeQuietly(file);
+        }
+        dropOlderThan(System.currentTimeMillis() - MAX_AGE_MS);
+        mLoadNs = System.nanoTime() - start;
+    }
+
+    //Holding this. Devices never seen, only connected to, are kept
+    private void dropOlderThan(long cutoffMs) {
+        final Iterator<Entry> iterator = mEntries.values().iterator();
+        while(iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if(entry.mLastSeenMs != 0 && entry.mLastSeenMs < cutoffMs) {
+                iterator.remove();
+                mRemoved.add(entry.mKey);
+            }
+        }
+        if(!mRemoved.isEmpty()) {
+            scheduleFlush();
+        }
+    }
+
+    //Returns where the last good record ends
+    private long parse(ByteBuffer buffer) {
+        final CRC32 crc = new CRC32();
+        final byte[] record = new byte[3 + MAX_BODY];
+        final ByteBuffer body = ByteBuffer.wrap(record);
+        while(buffer.remaining() >= RECORD_OVERHEAD) {
+            final int start = buffer.position();
+            final int type = buffer.get() & 0xFF;
+            final int length = buffer.getShort() & 0xFFFF;
+            if(buffer.remaining() < length + 4) {
+                mBadRecords++;
+                return start;
+            }
+
+            buffer.position(start);
+            buffer.get(record, 0, 3 + length);
+            crc.reset();
+            crc.update(record, 0, 3 + length);
+            if((int)crc.getValue() != buffer.getInt()) {
+                mBadRecords++;
+                return start;
+            }
+
+            body.limit(3 + length).position(3);
+            apply(type, body);
+            mLoadedRecords++;
+        }
+        return buffer.position();
+    }
+
+    private void apply(int type, ByteBuffer body) {
+        final long key = body.getLong();
+        if(type == TYPE_REMOVE) {
+            mEntries.remove(key);
+            return;
+        }
+
+        Entry entry = mEntries.get(key);
+        if(entry == null) {
+            entry = new Entry(key, DeviceRegistry.formatAddress(key));
+            mEntries.put(key, entry);
+        }
+        switch(type) {
+            case TYPE_SEEN:
+                final byte[] name = new byte[body.getShort() & 0xFFFF];
+                body.get(name);
+                entry.mName = name.length == 0 ? null : new String(name, UTF8);
+                entry.mRssi = body.get();
+                entry.mLastSeenMs = body.getLong();
+                entry.mSeenWrittenMs = entry.mLastSeenMs;
+                break;
+            case TYPE_GATT:
+                entry.mMtu = body.getInt();
+                entry.mSendHandle = body.getInt();
+                entry.mReceiveHandle = body.getInt();
+                break;
+            case TYPE_LIGHT:
+                entry.mLightState = new byte[body.remaining()];
+                body.get(entry.mLightState);
+                break;
+            default:
+                //Written by a newer version, skip
+                break;
+        }
+    }
+
+    //Holding this, clears the dirty state it encodes
+    private byte[] encodeDirty(boolean all, long now) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            for(Long key : mRemoved) {
+                writeRemove(out, key);
+            }
+            mRemoved.clear();
+
+            final Iterator<Entry> iterator = mDirty.iterator();
+            while(iterator.hasNext()) {
+                final Entry entry = iterator.next();
+                int what = entry.mDirty;
+                if(!all && now - entry.mLightWrittenAt < LIGHT_WRITE_INTERVAL_MS) {
+                    what &= ~DIRTY_LIGHT;
+                }
+                if((what & DIRTY_LIGHT) != 0) {
+                    entry.mLightWrittenAt = now;
+                }
+                writeEntry(out, entry, what);
+                entry.mDirty &= ~what;
+                if(entry.mDirty == 0) {
+                    iterator.remove();
+                }
+            }
+            if(!mDirty.isEmpty()) {
+                scheduleFlush();
+            }
+        } catch(IOException e) {
+            //Not from a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    //Holding this
+    private byte[] encodeAll() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            new DataOutputStream(out).writeInt(MAGIC);
+            for(Entry entry : mEntries.values()) {
+                writeEntry(out, entry, DIRTY_SEEN | DIRTY_GATT | (entry.mLightState == null ? 0 : DIRTY_LIGHT));
+            }
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private void writeEntry(ByteArrayOutputStream out, Entry entry, int what) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream data = new DataOutputStream(body);
+        if((what & DIRTY_SEEN) != 0) {
+            final byte[] name = entry.mName == null ? new byte[0] : entry.mName.getBytes(UTF8);
+            data.writeLong(entry.mKey);
+            data.writeShort(Math.min(name.length, 255));
+            data.write(name, 0, Math.min(name.length, 255));
+            data.writeByte(entry.mRssi);
+            data.writeLong(entry.mLastSeenMs);
+            writeRecord(out, TYPE_SEEN, body);
+        }
+        if((what & DIRTY_GATT) != 0) {
+            body.reset();
+            data.writeLong(entry.mKey);
+            data.writeInt(entry.mMtu);
+            data.writeInt(entry.mSendHandle);
+            data.writeInt(entry.mReceiveHandle);
+            writeRecord(out, TYPE_GATT, body);
+        }
+        if((what & DIRTY_LIGHT) != 0 && entry.mLightState != null) {
+            body.reset();
+            data.writeLong(entry.mKey);
+            data.write(entry.mLightState);
+            writeRecord(out, TYPE_LIGHT, body);
+        }
+    }
+
+    private void writeRemove(ByteArrayOutputStream out, long key) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        new DataOutputStream(body).writeLong(key);
+        writeRecord(out, TYPE_REMOVE, body);
+    }
+
+    private void writeRecord(ByteArrayOutputStream out, int type, ByteArrayOutputStream body) {
+        final byte[] record = new byte[3 + body.size() + 4];
+        record[0] = (byte)type;
+        record[1] = (byte)(body.size() >> 8);
+        record[2] = (byte)body.size();
+        System.arraycopy(body.toByteArray(), 0, record, 3, body.size());
+
+        final CRC32 crc = new CRC32();
+        crc.update(record, 0, 3 + body.size());
+        final int value = (int)crc.getValue();
+        final int at = 3 + body.size();
+        record[at] = (byte)(value >> 24);
+        record[at + 1] = (byte)(value >> 16);
+        record[at + 2] = (byte)(value >> 8);
+        record[at + 3] = (byte)value;
+        out.write(record, 0, record.length);
+    }
+
+    //Holding mFileLock. Writes after the last good record, dropping a torn tail first, and
+    //returns the new end of the file
+    private long append(byte[] records, long validLength) throws IOException {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            if(validLength == 0) {
+                file.setLength(0);
+                file.writeInt(MAGIC);
+                validLength = 4;
+            } else if(file.length() != validLength) {
+                file.setLength(validLength);
+            }
+            file.seek(validLength);
+            file.write(records);
+            mRecordsWritten += countRecords(records);
+            return validLength + records.length;
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    //Holding mFileLock
+    private void compactIfWorthIt() {
+        final byte[] snapshot;
+        synchronized(this) {
+            snapshot = encodeAll();
+            if(mValidLength < 4L * snapshot.length) {
+                return;
+            }
+        }
+
+        final File temp = new File(mFile.getPath() + ".tmp");
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(temp, "rw");
+            file.setLength(0);
+            file.write(snapshot);
+            file.getFD().sync();
+        } catch(IOException e) {
+            mWriteErrors++;
+            return;
+        } finally {
+            closeQuietly(file);
+        }
+        if(!temp.renameTo(mFile)) {
+            mWriteErrors++;
+            return;
+        }
+
+        synchronized(this) {
+            mValidLength = snapshot.length;
+        }
+        mCompactions++;
+    }
+
+    private static int countRecords(byte[] records) {
+        int count = 0;
+        int at = 0;
+        while(at + RECORD_OVERHEAD <= records.length) {
+            at += RECORD_OVERHEAD + ((records[at + 1] & 0xFF) << 8 | records[at + 2] & 0xFF);
+            count++;
+        }
+        return count;
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if(file != null) {
+            try {
+                file.close();
+            } catch(IOException e) {
+                //Nothing left to do about it
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package zac.org.disruptivelights;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A named, ordered set of light node addresses that frames are sent to together,
+ * see GattConnectionPool.sendToGroup().
+ */
+public class DeviceGroup {
+    private final String mName;
+    private final ArrayList<String> mAddresses = new ArrayList<String>();
+
+    public DeviceGroup(String name, String... addresses) {
+        mName = name;
+        for(String address : addresses) {
+            add(address);
+        }
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Returns false if address was already in the group.
+     */
+    public synchronized boolean add(String address) {
+        if(address == null) {
+            throw new IllegalArgumentException("address is null");
+        }
+        if(mAddresses.contains(address)) {
+            return false;
+        }
+        return mAddresses.add(address);
+    }
+
+    public synchronized boolean remove(String address) {
+        return mAddresses.remove(address);
+    }
+
+    public synchronized boolean contains(String address) {
+        return mAddresses.contains(address);
+    }
+
+    public synchronized int size() {
+        return mAddresses.size();
+    }
+
+    /**
+     * Snapshot of the addresses in the order they were added.
+     */
+    public synchronized List<String> getAddresses() {
+        return new ArrayList<String>(mAddresses);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DeviceGroup(" + mName + ", " + mAddresses + ")";
+    }
+}
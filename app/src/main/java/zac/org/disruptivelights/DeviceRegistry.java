@@ -0,0 +1,430 @@
+package zac.org.disruptivelights;
+
+import java.util.Arrays;
+
+/**
+ * Devices seen while scanning, keyed by the 48 bit MAC address packed into a long.
+ *
+ * Besides last seen time and RSSI it keeps the TX power and manufacturer id from the
+ * latest advertisement, parsed by ScanRecordParser, and a smoothed RSSI: a one dimensional
+ * Kalman filter that trusts a single reading as much as RSSI deserves (not much) and lets
+ * the estimate wander faster the longer a device was not heard from.
+ *
+ * Open addressing with linear probing over parallel arrays, so looking a device up or
+ * recording a new advertisement for a known device allocates nothing. The tables only
+ * grow (and allocate) when a new device pushes the load factor past one half.
+ *
+ * Slots are exposed so callers can read fields without boxing, but a slot index is
+ * only good until the next put() or remove(). Not thread safe.
+ */
+public class DeviceRegistry {
+    public static final long NO_ADDRESS = -1L;
+    public static final int NOT_FOUND = -1;
+    public static final long NOT_CACHED = Long.MIN_VALUE / 2;
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    //Variance of one RSSI reading (4 dB standard deviation) and how fast the true value may
+    //drift while someone walks around, in dB^2 per second
+    public static final float RSSI_MEASUREMENT_VARIANCE = 16f;
+    public static final float RSSI_PROCESS_VARIANCE_PER_S = 4f;
+
+    private long[] mKeys;
+    private long[] mLastSeen;
+    private int[] mRssi;
+    private float[] mSmoothedRssi;
+    private float[] mRssiVariance;
+    private int[] mRank;
+    private long[] mReportedAt;
+    private int[] mReportedRssi;
+    private boolean[] mUpdatePending;
+    private long[] mCachedAt;
+    private int[] mTxPower;
+    private int[] mManufacturer;
+    private String[] mAddresses;
+    private String[] mNames;
+    private int mSize;
+    private int mShift;
+    private ProximityIndex mProximity;
+
+    public DeviceRegistry() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public DeviceRegistry(int expectedDevices) {
+        int capacity = DEFAULT_CAPACITY;
+        while(capacity < expectedDevices * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Record an advertisement. Returns the slot of the device, or the slot encoded as
+     * -(slot + 2) if the device was not known before (so NOT_FOUND is never returned).
+     * address is the textual form, kept so events do not have to format it again.
+     */
+    public int put(long key, String address, String name, int rssi, long now) {
+        int slot = find(key);
+        if(slot >= 0) {
+            smoothRssi(slot, rssi, now - mLastSeen[slot]);
+            mLastSeen[slot] = now;
+            mRssi[slot] = rssi;
+            if(name != null) {
+                mNames[slot] = name;
+            }
+            return slot;
+        }
+
+        if((mSize + 1) * 2 > mKeys.length) {
+            grow();
+        }
+
+        slot = insertionSlot(key);
+        mKeys[slot] = key;
+        mLastSeen[slot] = now;
+        mRssi[slot] = rssi;
+        mSmoothedRssi[slot] = rssi;
+        mRssiVariance[slot] = RSSI_MEASUREMENT_VARIANCE;
+        mRank[slot] = ProximityIndex.NOT_RANKED;
+        mReportedAt[slot] = now;
+        mReportedRssi[slot] = rssi;
+        mUpdatePending[slot] = false;
+        mCachedAt[slot] = NOT_CACHED;
+        mTxPower[slot] = ScanRecordParser.NO_TX_POWER;
+        mManufacturer[slot] = ScanRecordParser.NO_MANUFACTURER;
+        mAddresses[slot] = address;
+        mNames[slot] = name;
+        mSize++;
+        return -(slot + 2);
+    }
+
+    /**
+     * Turn a put() result back into a slot index.
+     */
+    public static int slotOf(int putResult) {
+        return putResult >= 0 ? putResult : -(putResult + 2);
+    }
+
+    public static boolean isNew(int putResult) {
+        return putResult < 0;
+    }
+
+    public int find(long key) {
+        final int mask = mKeys.length - 1;
+        int slot = hash(key);
+        while(true) {
+            final long k = mKeys[slot];
+            if(k == key) {
+                return slot;
+            }
+            if(k == NO_ADDRESS) {
+                return NOT_FOUND;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    public boolean remove(long key) {
+        int slot = find(key);
+        if(slot == NOT_FOUND) {
+            return false;
+        }
+
+        //Backward shift deletion, pull later entries of the probe chain into the hole:
+        final int mask = mKeys.length - 1;
+        int next = (slot + 1) & mask;
+        while(mKeys[next] != NO_ADDRESS) {
+            final int home = hash(mKeys[next]);
+            if(((next - home) & mask) >= ((next - slot) & mask)) {
+                move(next, slot);
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+
+        mKeys[slot] = NO_ADDRESS;
+        mAddresses[slot] = null;
+        mNames[slot] = null;
+        mSize--;
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(mKeys, NO_ADDRESS);
+        Arrays.fill(mAddresses, null);
+        Arrays.fill(mNames, null);
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Number of slots, iterate 0..capacity() and skip slots where keyAt() is NO_ADDRESS.
+     */
+    public int capacity() {
+        return mKeys.length;
+    }
+
+    public long keyAt(int slot) {
+        return mKeys[slot];
+    }
+
+    public long lastSeenAt(int slot) {
+        return mLastSeen[slot];
+    }
+
+    public int rssiAt(int slot) {
+        return mRssi[slot];
+    }
+
+    /**
+     * Filtered RSSI, rounded. Use this to compare devices, rssiAt() jumps around by 10 dB.
+     */
+    public int smoothedRssiAt(int slot) {
+        return Math.round(mSmoothedRssi[slot]);
+    }
+
+    /**
+     * How sure the filter is, in dB^2. Starts at RSSI_MEASUREMENT_VARIANCE and shrinks with
+     * every reading.
+     */
+    public float rssiVarianceAt(int slot) {
+        return mRssiVariance[slot];
+    }
+
+    /**
+     * Position of the device in the ProximityIndex that keeps it, NOT_RANKED if none.
+     */
+    public int rankAt(int slot) {
+        return mRank[slot];
+    }
+
+    public void setRankAt(int slot, int rank) {
+        mRank[slot] = rank;
+    }
+
+    /**
+     * The index ranking these devices, told whenever a ranked device moves to another slot.
+     */
+    public void setProximityIndex(ProximityIndex index) {
+        mProximity = index;
+    }
+
+    /**
+     * When and with what smoothed RSSI the device was last handed to listeners, see
+     * UpdateCoalescer. A new device counts as reported when it was put().
+     */
+    public long lastReportedAt(int slot) {
+        return mReportedAt[slot];
+    }
+
+    public int reportedRssiAt(int slot) {
+        return mReportedRssi[slot];
+    }
+
+    public void setReportedAt(int slot, long now, int rssi) {
+        mReportedAt[slot] = now;
+        mReportedRssi[slot] = rssi;
+    }
+
+    public boolean isUpdatePendingAt(int slot) {
+        return mUpdatePending[slot];
+    }
+
+    public void setUpdatePendingAt(int slot, boolean pending) {
+        mUpdatePending[slot] = pending;
+    }
+
+    /**
+     * When the device was last handed to the DeviceCache, see ScanEngine. NOT_CACHED for a
+     * new device.
+     */
+    public long cachedAt(int slot) {
+        return mCachedAt[slot];
+    }
+
+    public void setCachedAt(int slot, long now) {
+        mCachedAt[slot] = now;
+    }
+
+    public int txPowerAt(int slot) {
+        return mTxPower[slot];
+    }
+
+    public int manufacturerAt(int slot) {
+        return mManufacturer[slot];
+    }
+
+    /**
+     * Copy what the advertisement says about the device itself into its slot.
+     * record must already be reset() to the advertisement's scan record.
+     */
+    public void setAdvertisementAt(int slot, ScanRecordParser record) {
+        final int txPower = record.txPower();
+        if(txPower != ScanRecordParser.NO_TX_POWER) {
+            mTxPower[slot] = txPower;
+        }
+        final int manufacturer = record.manufacturerId();
+        if(manufacturer != ScanRecordParser.NO_MANUFACTURER) {
+            mManufacturer[slot] = manufacturer;
+        }
+    }
+
+    public String addressAt(int slot) {
+        return mAddresses[slot];
+    }
+
+    public String nameAt(int slot) {
+        return mNames[slot];
+    }
+
+    public void setNameAt(int slot, String name) {
+        mNames[slot] = name;
+    }
+
+    /**
+     * Parse "D2:86:6A:06:04:83" (either case) into a long without allocating.
+     * Returns NO_ADDRESS if it is not a MAC address.
+     */
+    public static long parseAddress(String address) {
+        if(address == null || address.length() != 17) {
+            return NO_ADDRESS;
+        }
+
+        long key = 0;
+        for(int i = 0; i < 17; i++) {
+            final char c = address.charAt(i);
+            if(i % 3 == 2) {
+                if(c != ':') {
+                    return NO_ADDRESS;
+                }
+                continue;
+            }
+
+            final int digit = Character.digit(c, 16);
+            if(digit < 0) {
+                return NO_ADDRESS;
+            }
+            key = (key << 4) | digit;
+        }
+        return key;
+    }
+
+    public static String formatAddress(long key) {
+        final char[] chars = new char[17];
+        for(int i = 16, shift = 0; i >= 0; i -= 3, shift += 8) {
+            final int b = (int)(key >>> shift) & 0xFF;
+            chars[i - 1] = Character.toUpperCase(Character.forDigit(b >>> 4, 16));
+            chars[i] = Character.toUpperCase(Character.forDigit(b & 0xF, 16));
+            if(i > 1) {
+                chars[i - 2] = ':';
+            }
+        }
+        return new String(chars);
+    }
+
+    private void smoothRssi(int slot, int rssi, long elapsedMs) {
+        final float variance = mRssiVariance[slot] + RSSI_PROCESS_VARIANCE_PER_S * elapsedMs / 1000f;
+        final float gain = variance / (variance + RSSI_MEASUREMENT_VARIANCE);
+        mSmoothedRssi[slot] += gain * (rssi - mSmoothedRssi[slot]);
+        mRssiVariance[slot] = (1 - gain) * variance;
+    }
+
+    private int hash(long key) {
+        return (int)((key * 0x9E3779B97F4A7C15L) >>> mShift);
+    }
+
+    private int insertionSlot(long key) {
+        final int mask = mKeys.length - 1;
+        int slot = hash(key);
+        while(mKeys[slot] != NO_ADDRESS) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void move(int from, int to) {
+        mKeys[to] = mKeys[from];
+        mLastSeen[to] = mLastSeen[from];
+        mRssi[to] = mRssi[from];
+        mSmoothedRssi[to] = mSmoothedRssi[from];
+        mRssiVariance[to] = mRssiVariance[from];
+        mRank[to] = mRank[from];
+        mReportedAt[to] = mReportedAt[from];
+        mReportedRssi[to] = mReportedRssi[from];
+        mUpdatePending[to] = mUpdatePending[from];
+        mCachedAt[to] = mCachedAt[from];
+        mTxPower[to] = mTxPower[from];
+        mManufacturer[to] = mManufacturer[from];
+        mAddresses[to] = mAddresses[from];
+        mNames[to] = mNames[from];
+        rankedMovedTo(to);
+    }
+
+    private void rankedMovedTo(int slot) {
+        if(mProximity != null && mRank[slot] != ProximityIndex.NOT_RANKED) {
+            mProximity.slotMoved(mRank[slot], slot);
+        }
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        Arrays.fill(mKeys, NO_ADDRESS);
+        mLastSeen = new long[capacity];
+        mRssi = new int[capacity];
+        mSmoothedRssi = new float[capacity];
+        mRssiVariance = new float[capacity];
+        mRank = new int[capacity];
+        mReportedAt = new long[capacity];
+        mReportedRssi = new int[capacity];
+        mUpdatePending = new boolean[capacity];
+        mCachedAt = new long[capacity];
+        mTxPower = new int[capacity];
+        mManufacturer = new int[capacity];
+        mAddresses = new String[capacity];
+        mNames = new String[capacity];
+        mShift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private void grow() {
+        final long[] keys = mKeys;
+        final long[] lastSeen = mLastSeen;
+        final int[] rssi = mRssi;
+        final float[] smoothedRssi = mSmoothedRssi;
+        final float[] rssiVariance = mRssiVariance;
+        final int[] rank = mRank;
+        final long[] reportedAt = mReportedAt;
+        final int[] reportedRssi = mReportedRssi;
+        final boolean[] updatePending = mUpdatePending;
+        final long[] cachedAt = mCachedAt;
+        final int[] txPower = mTxPower;
+        final int[] manufacturer = mManufacturer;
+        final String[] addresses = mAddresses;
+        final String[] names = mNames;
+
+        allocate(keys.length * 2);
+        for(int i = 0; i < keys.length; i++) {
+            if(keys[i] != NO_ADDRESS) {
+                final int slot = insertionSlot(keys[i]);
+                mKeys[slot] = keys[i];
+                mLastSeen[slot] = lastSeen[i];
+                mRssi[slot] = rssi[i];
+                mSmoothedRssi[slot] = smoothedRssi[i];
+                mRssiVariance[slot] = rssiVariance[i];
+                mRank[slot] = rank[i];
+                mReportedAt[slot] = reportedAt[i];
+                mReportedRssi[slot] = reportedRssi[i];
+                mUpdatePending[slot] = updatePending[i];
+                mCachedAt[slot] = cachedAt[i];
+                mTxPower[slot] = txPower[i];
+                mManufacturer[slot] = manufacturer[i];
+                mAddresses[slot] = addresses[i];
+                mNames[slot] = names[i];
+                rankedMovedTo(slot);
+            }
+        }
+    }
+}
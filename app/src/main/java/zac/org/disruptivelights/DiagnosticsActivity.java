@@ -0,0 +1,44 @@
+package zac.org.disruptivelights;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.Handler;
+import android.widget.TextView;
+
+/**
+ * Shows Metrics.dump() once a second while on screen, so the counters read as per second
+ * rates.
+ */
+public class DiagnosticsActivity extends Activity {
+    private static final long REFRESH_MS = 1000;
+
+    private final Handler mHandler = new Handler();
+    private TextView mDiagnosticsTextView;
+
+    private final Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mDiagnosticsTextView.setText(Metrics.getInstance().dump());
+            mHandler.postDelayed(mRefreshRunnable, REFRESH_MS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+        mDiagnosticsTextView = (TextView)findViewById(R.id.diagnosticsTextView);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mRefreshRunnable.run();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mRefreshRunnable);
+    }
+}
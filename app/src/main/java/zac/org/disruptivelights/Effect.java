@@ -0,0 +1,12 @@
+package zac.org.disruptivelights;
+
+/**
+ * Something that can draw itself onto a strip of RGB LEDs at a point in time.
+ * See Effects for the stock ones.
+ */
+public interface Effect {
+    /**
+     * Fill frame with leds RGB pixels for t milliseconds into the effect.
+     */
+    void render(long t, byte[] frame, int leds);
+}
@@ -0,0 +1,96 @@
+package zac.org.disruptivelights;
+
+/**
+ * Stock effects. Colors are 0xRRGGBB ints.
+ */
+public final class Effects {
+    private Effects() {
+    }
+
+    /**
+     * Every pixel one color.
+     */
+    public static Effect solid(final int color) {
+        return new Effect() {
+            @Override
+            public void render(long t, byte[] frame, int leds) {
+                fill(frame, leds, color);
+            }
+        };
+    }
+
+    /**
+     * The whole strip blends from one color to another over durationMs, then holds.
+     */
+    public static Effect fade(final int from, final int to, final long durationMs) {
+        return new Effect() {
+            @Override
+            public void render(long t, byte[] frame, int leds) {
+                final int amount = durationMs <= 0 || t >= durationMs ? 256 : (int)(t * 256 / durationMs);
+                fill(frame, leds, blend(from, to, amount));
+            }
+        };
+    }
+
+    /**
+     * A segment of length pixels running along the strip at pixelsPerSecond, wrapping around.
+     */
+    public static Effect chase(final int color, final int background, final int length, final int pixelsPerSecond) {
+        return new Effect() {
+            @Override
+            public void render(long t, byte[] frame, int leds) {
+                fill(frame, leds, background);
+                final int head = (int)(t * pixelsPerSecond / 1000 % leds);
+                for(int i = 0; i < length && i < leds; i++) {
+                    set(frame, (head + leds - i) % leds, color);
+                }
+            }
+        };
+    }
+
+    /**
+     * The palette spread once along the strip, blended between entries and scrolling by
+     * one full palette every periodMs.
+     */
+    public static Effect palette(final int[] colors, final long periodMs) {
+        if(colors.length == 0) {
+            throw new IllegalArgumentException("Empty palette");
+        }
+        final int[] palette = colors.clone();
+        return new Effect() {
+            @Override
+            public void render(long t, byte[] frame, int leds) {
+                //Position on the palette in 1/256ths of an entry
+                final int span = palette.length * 256;
+                final int shift = periodMs <= 0 ? 0 : (int)(t % periodMs * span / periodMs);
+                for(int i = 0; i < leds; i++) {
+                    final int position = (i * span / leds + shift) % span;
+                    final int index = position >> 8;
+                    set(frame, i, blend(palette[index], palette[(index + 1) % palette.length], position & 0xFF));
+                }
+            }
+        };
+    }
+
+    /**
+     * from at amount 0, to at amount 256.
+     */
+    public static int blend(int from, int to, int amount) {
+        final int r = ((from >> 16) & 0xFF) + ((((to >> 16) & 0xFF) - ((from >> 16) & 0xFF)) * amount >> 8);
+        final int g = ((from >> 8) & 0xFF) + ((((to >> 8) & 0xFF) - ((from >> 8) & 0xFF)) * amount >> 8);
+        final int b = (from & 0xFF) + (((to & 0xFF) - (from & 0xFF)) * amount >> 8);
+        return (r << 16) | (g << 8) | b;
+    }
+
+    public static void fill(byte[] frame, int leds, int color) {
+        for(int i = 0; i < leds; i++) {
+            set(frame, i, color);
+        }
+    }
+
+    public static void set(byte[] frame, int led, int color) {
+        frame[led * 3] = (byte)(color >> 16);
+        frame[led * 3 + 1] = (byte)(color >> 8);
+        frame[led * 3 + 2] = (byte)color;
+    }
+}
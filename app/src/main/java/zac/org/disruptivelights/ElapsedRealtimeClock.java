@@ -0,0 +1,18 @@
+package zac.org.disruptivelights;
+
+import android.os.SystemClock;
+
+/**
+ * MonotonicClock backed by SystemClock.elapsedRealtime(), keeps counting in deep sleep.
+ */
+public class ElapsedRealtimeClock implements MonotonicClock {
+    public static final ElapsedRealtimeClock INSTANCE = new ElapsedRealtimeClock();
+
+    private ElapsedRealtimeClock() {
+    }
+
+    @Override
+    public long now() {
+        return SystemClock.elapsedRealtime();
+    }
+}
@@ -0,0 +1,140 @@
+package zac.org.disruptivelights;
+
+/**
+ * Timer wheel for expiring keys that keep getting refreshed, like devices that keep
+ * advertising.
+ *
+ * A key is scheduled once. When its bucket comes around the owner is asked for the
+ * key's current deadline: keys that were refreshed in the meantime are simply moved to
+ * the bucket of their new deadline, the rest have expired. Refreshing a key therefore
+ * costs nothing, and each key costs O(1) per timeout period instead of every key being
+ * looked at on every check.
+ *
+ * Buckets are tickMs wide and a key fires at most one tick late. Deadlines further out
+ * than the wheel spans just get re-checked early. Not thread safe.
+ */
+public class ExpiryWheel {
+    public static final long EXPIRED = Long.MIN_VALUE;
+
+    public interface Owner {
+        /**
+         * A key's bucket came around. Return the key's current deadline to keep it,
+         * or EXPIRED to drop it (the owner does its own clean up before returning).
+         * A deadline that has already passed is checked again on the next tick.
+         */
+        long onDeadline(long key, long now);
+    }
+
+    private final long mTickMs;
+    private final int mMask;
+    private final long[][] mBuckets;
+    private final int[] mCounts;
+    private long[] mSpare;
+    private long mNextTick;
+    private int mSize;
+
+    /**
+     * @param spanMs  longest deadline that fits without an early re-check, normally the timeout
+     * @param tickMs  bucket width, i.e. how late a key may expire
+     * @param now     current time, the wheel starts turning from here
+     */
+    public ExpiryWheel(long spanMs, long tickMs, long now) {
+        if(tickMs <= 0 || spanMs < tickMs) {
+            throw new IllegalArgumentException("Need 0 < tickMs <= spanMs");
+        }
+
+        int buckets = 1;
+        while(buckets <= spanMs / tickMs + 1) {
+            buckets <<= 1;
+        }
+
+        mTickMs = tickMs;
+        mMask = buckets - 1;
+        mBuckets = new long[buckets][];
+        for(int i = 0; i < buckets; i++) {
+            mBuckets[i] = new long[8];
+        }
+        mCounts = new int[buckets];
+        mSpare = new long[8];
+        mNextTick = now / tickMs;
+    }
+
+    public void schedule(long key, long deadline) {
+        long tick = deadline / mTickMs;
+        if(tick < mNextTick) {
+            tick = mNextTick;
+        }
+        add((int)(tick & mMask), key);
+        mSize++;
+    }
+
+    /**
+     * Fire every bucket whose whole tick lies before now. Returns the number of keys
+     * that expired.
+     */
+    public int advance(long now, Owner owner) {
+        final long lastTick = now / mTickMs - 1;
+        if(lastTick < mNextTick) {
+            return 0;
+        }
+
+        //One full turn visits every bucket, any more would only find renewed keys
+        long tick = Math.max(mNextTick, lastTick - mMask);
+        int expired = 0;
+        for(; tick <= lastTick; tick++) {
+            final int bucket = (int)(tick & mMask);
+            final int count = mCounts[bucket];
+            if(count == 0) {
+                continue;
+            }
+
+            //Swap the bucket out so keys rescheduled into it land in a fresh array
+            final long[] keys = mBuckets[bucket];
+            mBuckets[bucket] = mSpare;
+            mCounts[bucket] = 0;
+            mSize -= count;
+            mNextTick = tick + 1;
+
+            for(int i = 0; i < count; i++) {
+                final long deadline = owner.onDeadline(keys[i], now);
+                if(deadline == EXPIRED) {
+                    expired++;
+                } else {
+                    schedule(keys[i], deadline);
+                }
+            }
+
+            mSpare = keys;
+        }
+        mNextTick = lastTick + 1;
+
+        return expired;
+    }
+
+    /**
+     * Number of scheduled keys.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        for(int i = 0; i < mCounts.length; i++) {
+            mCounts[i] = 0;
+        }
+        mSize = 0;
+    }
+
+    private void add(int bucket, long key) {
+        long[] keys = mBuckets[bucket];
+        final int count = mCounts[bucket];
+        if(count == keys.length) {
+            final long[] grown = new long[count * 2];
+            System.arraycopy(keys, 0, grown, 0, count);
+            keys = grown;
+            mBuckets[bucket] = keys;
+        }
+        keys[count] = key;
+        mCounts[bucket] = count + 1;
+    }
+}
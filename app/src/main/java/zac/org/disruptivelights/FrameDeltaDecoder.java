@@ -0,0 +1,166 @@
+package zac.org.disruptivelights;
+
+/**
+ * The node's side of FrameDeltaEncoder: applies keyframes and deltas to the current frame.
+ * Used by the simulated links and benchmarks to check what a light would show.
+ */
+public class FrameDeltaDecoder {
+    public static final int RESULT_APPLIED = 0;
+    public static final int RESULT_NEED_KEYFRAME = 1;
+    public static final int RESULT_MALFORMED = 2;
+
+    private byte[] mFrame = new byte[0];
+    private int mFrameLength;
+    private int mSeq;
+    private boolean mSynced;
+
+    private long mApplied;
+    private long mSkipped;
+
+    public int apply(byte[] packet) {
+        return apply(packet, 0, packet.length);
+    }
+
+    /**
+     * Apply one packet. A delta that does not follow the last applied packet is ignored
+     * until the next keyframe.
+     */
+    public int apply(byte[] packet, int offset, int length) {
+        if(length < FrameDeltaEncoder.HEADER_SIZE) {
+            return RESULT_MALFORMED;
+        }
+
+        final int type = packet[offset] & 0xFF;
+        final int seq = packet[offset + 1] & 0xFF;
+        int pos = offset + FrameDeltaEncoder.HEADER_SIZE;
+        final int end = offset + length;
+
+        if(type == FrameDeltaEncoder.TYPE_KEYFRAME) {
+            mFrameLength = end - pos;
+            if(mFrame.length < mFrameLength) {
+                mFrame = new byte[mFrameLength];
+            }
+            System.arraycopy(packet, pos, mFrame, 0, mFrameLength);
+        } else if(type == FrameDeltaEncoder.TYPE_RUNS) {
+            //Two passes, the frame length is the sum of the counts
+            int total = 0;
+            int scan = pos;
+            while(scan < end) {
+                int count = 0;
+                int shift = 0;
+                int b;
+                do {
+                    if(scan >= end) {
+                        return malformed();
+                    }
+                    b = packet[scan++];
+                    count |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while((b & 0x80) != 0);
+                if(end - scan < FrameDeltaEncoder.PIXEL_SIZE) {
+                    return malformed();
+                }
+                scan += FrameDeltaEncoder.PIXEL_SIZE;
+                total += count * FrameDeltaEncoder.PIXEL_SIZE;
+            }
+
+            if(mFrame.length < total) {
+                mFrame = new byte[total];
+            }
+            mFrameLength = total;
+            int at = 0;
+            while(pos < end) {
+                int count = 0;
+                int shift = 0;
+                int b;
+                do {
+                    b = packet[pos++];
+                    count |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while((b & 0x80) != 0);
+                for(int k = 0; k < count; k++) {
+                    mFrame[at++] = packet[pos];
+                    mFrame[at++] = packet[pos + 1];
+                    mFrame[at++] = packet[pos + 2];
+                }
+                pos += FrameDeltaEncoder.PIXEL_SIZE;
+            }
+        } else if(type == FrameDeltaEncoder.TYPE_DELTA) {
+            if(!mSynced || seq != ((mSeq + 1) & 0xFF)) {
+                mSynced = false;
+                mSkipped++;
+                return RESULT_NEED_KEYFRAME;
+            }
+
+            int at = 0;
+            while(pos < end) {
+                //Varints inline, skip then len:
+                int skip = 0;
+                int shift = 0;
+                int b;
+                do {
+                    if(pos >= end) {
+                        return malformed();
+                    }
+                    b = packet[pos++];
+                    skip |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while((b & 0x80) != 0);
+
+                int runLength = 0;
+                shift = 0;
+                do {
+                    if(pos >= end) {
+                        return malformed();
+                    }
+                    b = packet[pos++];
+                    runLength |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while((b & 0x80) != 0);
+
+                at += skip;
+                if(runLength > end - pos || at + runLength > mFrameLength) {
+                    return malformed();
+                }
+                System.arraycopy(packet, pos, mFrame, at, runLength);
+                pos += runLength;
+                at += runLength;
+            }
+        } else {
+            return malformed();
+        }
+
+        mSeq = seq;
+        mSynced = true;
+        mApplied++;
+        return RESULT_APPLIED;
+    }
+
+    /**
+     * Current frame, valid up to getFrameLength().
+     */
+    public byte[] getFrame() {
+        return mFrame;
+    }
+
+    public int getFrameLength() {
+        return mFrameLength;
+    }
+
+    public boolean isSynced() {
+        return mSynced;
+    }
+
+    public long getAppliedCount() {
+        return mApplied;
+    }
+
+    public long getSkippedCount() {
+        return mSkipped;
+    }
+
+    private int malformed() {
+        mSynced = false;
+        return RESULT_MALFORMED;
+    }
+}
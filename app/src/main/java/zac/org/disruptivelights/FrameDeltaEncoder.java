@@ -0,0 +1,260 @@
+package zac.org.disruptivelights;
+
+/**
+ * Turns a stream of light frames (raw LED bytes) for one device into keyframes and deltas
+ * against the previous frame, so only what changed goes over the air.
+ *
+ * Wire format, all packets start with [type][seq], seq counting up by one per packet:
+ *   KEYFRAME  'K' seq frame...                    the whole frame
+ *   RUNS      'R' seq (count r g b)...            keyframe as runs of count equal pixels
+ *   DELTA     'D' seq (skip len bytes[len])...    skip unchanged bytes, then overwrite len
+ * skip, len and count are unsigned LEB128 varints. A node applies a delta only if its seq
+ * follows the last one it applied, and otherwise waits for the next keyframe.
+ *
+ * Keyframes go out for the first frame, every keyframeInterval frames, when the frame size
+ * changes, when a delta would not be smaller, and after requestKeyframe() (reconnect, failed
+ * write). Not thread safe apart from requestKeyframe().
+ */
+public class FrameDeltaEncoder {
+    public static final int TYPE_KEYFRAME = 'K';
+    public static final int TYPE_RUNS = 'R';
+    public static final int TYPE_DELTA = 'D';
+    public static final int HEADER_SIZE = 2;
+    public static final int PIXEL_SIZE = 3;
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 60;
+
+    //Equal bytes between two changes cost less to resend than a new skip/len pair
+    private static final int MERGE_GAP = 2;
+
+    private final int mKeyframeInterval;
+    private byte[] mBase;
+    private int mBaseLength = -1;
+    private int mSeq;
+    private int mSinceKeyframe;
+    private volatile boolean mKeyframeRequested = true;
+    private byte[] mScratch = new byte[0];
+
+    private long mFrames;
+    private long mKeyframes;
+    private long mDeltas;
+    private long mUnchanged;
+    private long mRawBytes;
+    private long mEncodedBytes;
+
+    public FrameDeltaEncoder() {
+        this(DEFAULT_KEYFRAME_INTERVAL);
+    }
+
+    public FrameDeltaEncoder(int keyframeInterval) {
+        if(keyframeInterval < 1) {
+            throw new IllegalArgumentException("keyframeInterval must be at least 1");
+        }
+        mKeyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * Make the next packet a keyframe. Safe to call from any thread.
+     */
+    public void requestKeyframe() {
+        mKeyframeRequested = true;
+    }
+
+    /**
+     * Packet to send for frame, or null if frame equals the previous one and nothing needs
+     * to go out. The packet is a new array the caller may hand to a write queue.
+     */
+    public byte[] encode(byte[] frame) {
+        final int length = encode(frame, 0, frame.length);
+        if(length == 0) {
+            return null;
+        }
+
+        final byte[] packet = new byte[length];
+        System.arraycopy(mScratch, 0, packet, 0, length);
+        return packet;
+    }
+
+    /**
+     * Like encode(frame) but leaves the packet in getBuffer() and returns its length, 0 for
+     * an unchanged frame. Allocates nothing once the buffer has grown to the frame size.
+     */
+    public int encode(byte[] frame, int offset, int length) {
+        if(mScratch.length < HEADER_SIZE + length) {
+            mScratch = new byte[HEADER_SIZE + length];
+        }
+        mFrames++;
+        mRawBytes += length;
+
+        int size = 0;
+        final boolean keyframe = mKeyframeRequested || length != mBaseLength || mSinceKeyframe + 1 >= mKeyframeInterval;
+        if(!keyframe) {
+            size = encodeDelta(frame, offset, length);
+            if(size == HEADER_SIZE) {
+                //Nothing changed, nothing to send and seq stays where it is
+                mUnchanged++;
+                return 0;
+            }
+        }
+
+        if(size == 0) {
+            mKeyframeRequested = false;
+            size = encodeRuns(frame, offset, length);
+            if(size == 0) {
+                mScratch[0] = (byte)TYPE_KEYFRAME;
+                System.arraycopy(frame, offset, mScratch, HEADER_SIZE, length);
+                size = HEADER_SIZE + length;
+            }
+            mScratch[1] = (byte)++mSeq;
+            mSinceKeyframe = 0;
+            mKeyframes++;
+        } else {
+            mSinceKeyframe++;
+            mDeltas++;
+        }
+
+        if(mBase == null || mBase.length < length) {
+            mBase = new byte[length];
+        }
+        System.arraycopy(frame, offset, mBase, 0, length);
+        mBaseLength = length;
+        mEncodedBytes += size;
+        return size;
+    }
+
+    /**
+     * Holds the packet after encode(frame, offset, length).
+     */
+    public byte[] getBuffer() {
+        return mScratch;
+    }
+
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    public long getKeyframeCount() {
+        return mKeyframes;
+    }
+
+    public long getDeltaCount() {
+        return mDeltas;
+    }
+
+    public long getUnchangedCount() {
+        return mUnchanged;
+    }
+
+    public long getRawBytes() {
+        return mRawBytes;
+    }
+
+    public long getEncodedBytes() {
+        return mEncodedBytes;
+    }
+
+    public void resetStatistics() {
+        mFrames = 0;
+        mKeyframes = 0;
+        mDeltas = 0;
+        mUnchanged = 0;
+        mRawBytes = 0;
+        mEncodedBytes = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "FrameDeltaEncoder(frames=" + mFrames + ", keyframes=" + mKeyframes + ", deltas=" + mDeltas
+                + ", unchanged=" + mUnchanged + ", raw=" + mRawBytes + ", encoded=" + mEncodedBytes + ")";
+    }
+
+    //Returns the packet size in mScratch, HEADER_SIZE if nothing changed, 0 if a keyframe is smaller
+    private int encodeDelta(byte[] frame, int offset, int length) {
+        final byte[] base = mBase;
+        final byte[] out = mScratch;
+        final int limit = HEADER_SIZE + length;
+        int pos = HEADER_SIZE;
+        int last = 0; //end of the previous run
+
+        int i = 0;
+        while(i < length) {
+            if(frame[offset + i] == base[i]) {
+                i++;
+                continue;
+            }
+
+            //A run starts at i, stretch it over short stretches of equal bytes
+            final int start = i;
+            int end = i + 1;
+            int scan = end;
+            while(scan < length && scan - end <= MERGE_GAP) {
+                if(frame[offset + scan] != base[scan]) {
+                    end = scan + 1;
+                }
+                scan++;
+            }
+
+            final int runLength = end - start;
+            if(pos + 6 + runLength >= limit) {
+                return 0;
+            }
+            pos = putVarint(out, pos, start - last);
+            pos = putVarint(out, pos, runLength);
+            System.arraycopy(frame, offset + start, out, pos, runLength);
+            pos += runLength;
+            last = end;
+            i = end;
+        }
+
+        if(pos == HEADER_SIZE) {
+            return HEADER_SIZE;
+        }
+        out[0] = (byte)TYPE_DELTA;
+        out[1] = (byte)++mSeq;
+        return pos;
+    }
+
+    //Run length keyframe in mScratch, 0 if it would not be smaller than the plain one
+    private int encodeRuns(byte[] frame, int offset, int length) {
+        if(length == 0 || length % PIXEL_SIZE != 0) {
+            return 0;
+        }
+
+        final byte[] out = mScratch;
+        final int limit = HEADER_SIZE + length;
+        final int end = offset + length;
+        int pos = HEADER_SIZE;
+        int i = offset;
+        while(i < end) {
+            final byte r = frame[i];
+            final byte g = frame[i + 1];
+            final byte b = frame[i + 2];
+            int count = 1;
+            int next = i + PIXEL_SIZE;
+            while(next < end && frame[next] == r && frame[next + 1] == g && frame[next + 2] == b) {
+                count++;
+                next += PIXEL_SIZE;
+            }
+
+            if(pos + 3 + PIXEL_SIZE >= limit) {
+                return 0;
+            }
+            pos = putVarint(out, pos, count);
+            out[pos++] = r;
+            out[pos++] = g;
+            out[pos++] = b;
+            i = next;
+        }
+
+        out[0] = (byte)TYPE_RUNS;
+        return pos;
+    }
+
+    static int putVarint(byte[] out, int pos, int value) {
+        while((value & ~0x7F) != 0) {
+            out[pos++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte)value;
+        return pos;
+    }
+}
@@ -0,0 +1,326 @@
+package zac.org.disruptivelights;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Keeps up to maxConnections GattLinks open at once, keyed by address.
+ *
+ * Opening a link when the pool is full closes the least recently used link that has
+ * nothing left to write; if every link is busy the open fails instead. Each link has its
+ * own write queue, so sends to different devices are in flight at the same time rather
+ * than one device after the other. sendToGroup() uses that to fan one frame out to a
+ * whole DeviceGroup. This is where writes are pipelined: a single link has one write in
+ * flight at a time, as Android allows one GATT operation per connection.
+ */
+public class GattConnectionPool {
+    public static final int DEFAULT_MAX_CONNECTIONS = 7;
+
+    /**
+     * Link events with the address attached, called on the link's callback thread.
+     */
+    public interface Listener {
+        void onLinkReady(String address);
+        void onLinkDisconnected(String address);
+        void onLinkData(String address, byte[] data);
+    }
+
+    private final GattLink.Factory mFactory;
+    private final int mMaxConnections;
+    private volatile Listener mListener;
+    private volatile TimeSync mTimeSync;
+
+    //Access ordered, so iteration starts at the least recently used link
+    private final LinkedHashMap<String, GattLink> mLinks = new LinkedHashMap<String, GattLink>(16, 0.75f, true);
+
+    private long mOpened;
+    private long mEvicted;
+
+    //Last frame queued to each device for sendToGroup(skipUnchanged), forgotten when the write
+    //fails or the link goes down since the node may not have it then
+    private final HashMap<String, byte[]> mLastFrames = new HashMap<String, byte[]>();
+
+    private final GattLink.Callback mLinkCallback = new GattLink.Callback() {
+        @Override
+        public void onLinkConnected(GattLink link) {
+        }
+
+        @Override
+        public void onLinkReady(GattLink link) {
+            final TimeSync timeSync = mTimeSync;
+            if(timeSync != null) {
+                timeSync.start(link);
+            }
+            final Listener listener = mListener;
+            if(listener != null) {
+                listener.onLinkReady(link.getAddress());
+            }
+        }
+
+        @Override
+        public void onLinkDisconnected(GattLink link) {
+            forgetLastFrame(link.getAddress(), null);
+            final TimeSync timeSync = mTimeSync;
+            if(timeSync != null) {
+                timeSync.stop(link.getAddress());
+            }
+            final Listener listener = mListener;
+            if(listener != null) {
+                listener.onLinkDisconnected(link.getAddress());
+            }
+        }
+
+        @Override
+        public void onLinkData(GattLink link, byte[] data) {
+            final TimeSync timeSync = mTimeSync;
+            if(timeSync != null && timeSync.onLinkData(link.getAddress(), data)) {
+                return;
+            }
+            final Listener listener = mListener;
+            if(listener != null) {
+                listener.onLinkData(link.getAddress(), data);
+            }
+        }
+    };
+
+    public GattConnectionPool(GattLink.Factory factory) {
+        this(factory, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    public GattConnectionPool(GattLink.Factory factory, int maxConnections) {
+        if(maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        mFactory = factory;
+        mMaxConnections = maxConnections;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Keep the clocks of all ready links in sync through timeSync, which then also takes the
+     * probe replies before the listener sees any data. Needed for sendToGroupAt().
+     */
+    public void setTimeSync(TimeSync timeSync) {
+        mTimeSync = timeSync;
+    }
+
+    public TimeSync getTimeSync() {
+        return mTimeSync;
+    }
+
+    /**
+     * Get the link for address, creating and connecting it if needed. Returns null if
+     * the pool is full and no link is idle enough to evict.
+     */
+    public synchronized GattLink open(String address) {
+        GattLink link = mLinks.get(address);
+        if(link != null) {
+            if(!link.isConnected()) {
+                link.connect();
+            }
+            return link;
+        }
+
+        if(mLinks.size() >= mMaxConnections && !evictIdle()) {
+            return null;
+        }
+
+        link = mFactory.create(address, mLinkCallback);
+        if(!link.connect()) {
+            link.close();
+            return null;
+        }
+        mLinks.put(address, link);
+        mOpened++;
+        return link;
+    }
+
+    /**
+     * The open link for address, or null. Counts as a use for LRU purposes.
+     */
+    public synchronized GattLink get(String address) {
+        return mLinks.get(address);
+    }
+
+    /**
+     * Send to one device. The link has to be open and ready already.
+     */
+    public boolean send(String address, byte[] data) {
+        return send(address, data, GattWriteQueue.NO_COALESCE);
+    }
+
+    public boolean send(String address, byte[] data, int coalesceKey) {
+        final GattLink link = get(address);
+        return link != null && link.isReady() && link.send(data, coalesceKey);
+    }
+
+    /**
+     * Send frame to every device of group at once. Each ready link gets the frame queued
+     * straight away, so the writes go out in parallel and the returned GroupSend fills in
+     * as they complete; listener, if not null, hears when all of them have. With
+     * skipUnchanged a device whose last group frame was equal to this one is left alone.
+     * frame is copied, so the caller may reuse its buffer as soon as this returns.
+     */
+    public GroupSend sendToGroup(DeviceGroup group, byte[] frame, boolean skipUnchanged, GroupSend.Listener listener) {
+        if(frame == null) {
+            throw new IllegalArgumentException("frame is null");
+        }
+        //Queued and remembered as the last frame of every device, so never the caller's buffer
+        final byte[] copy = frame.clone();
+
+        final List<String> addresses = group.getAddresses();
+        final List<GattLink> links = new ArrayList<GattLink>(addresses.size());
+        synchronized(this) {
+            for(String address : addresses) {
+                links.add(mLinks.get(address));
+            }
+        }
+
+        final GroupSend send = new GroupSend(addresses, listener);
+        for(int i = 0; i < addresses.size(); i++) {
+            final String address = addresses.get(i);
+            final GattLink link = links.get(i);
+            if(link == null || !link.isReady()) {
+                send.finish(i, GroupSend.STATUS_NOT_READY);
+                continue;
+            }
+
+            synchronized(mLastFrames) {
+                if(skipUnchanged && Arrays.equals(mLastFrames.get(address), copy)) {
+                    send.finish(i, GroupSend.STATUS_SKIPPED);
+                    continue;
+                }
+                mLastFrames.put(address, copy);
+            }
+
+            final GattWriteQueue.FrameListener written = send.frameListener(i);
+            final boolean queued = link.send(copy, GattWriteQueue.NO_COALESCE, new GattWriteQueue.FrameListener() {
+                @Override
+                public void onFrameDone(boolean success) {
+                    if(!success) {
+                        forgetLastFrame(address, copy);
+                    }
+                    written.onFrameDone(success);
+                }
+            });
+            if(!queued) {
+                forgetLastFrame(address, copy);
+                send.finish(i, GroupSend.STATUS_FAILED);
+            }
+        }
+        return send;
+    }
+
+    /**
+     * Send payload to every device of group, scheduled to be applied at phone time
+     * presentAtUs (TimeSync.nowUs() based) by each node's own clock. Send it early enough for
+     * the slowest write to arrive in time; a device that is not synced yet is NOT_READY.
+     */
+    public GroupSend sendToGroupAt(DeviceGroup group, byte[] payload, long presentAtUs, GroupSend.Listener listener) {
+        final TimeSync timeSync = mTimeSync;
+        if(timeSync == null) {
+            throw new IllegalStateException("No TimeSync set");
+        }
+
+        final List<String> addresses = group.getAddresses();
+        final List<GattLink> links = new ArrayList<GattLink>(addresses.size());
+        synchronized(this) {
+            for(String address : addresses) {
+                links.add(mLinks.get(address));
+            }
+        }
+
+        final GroupSend send = new GroupSend(addresses, listener);
+        for(int i = 0; i < addresses.size(); i++) {
+            final GattLink link = links.get(i);
+            if(link == null || !link.isReady() || !timeSync.isSynced(link.getAddress())) {
+                send.finish(i, GroupSend.STATUS_NOT_READY);
+            } else if(!timeSync.sendAt(link, payload, presentAtUs, send.frameListener(i))) {
+                send.finish(i, GroupSend.STATUS_FAILED);
+            }
+        }
+        return send;
+    }
+
+    public synchronized void close(String address) {
+        final GattLink link = mLinks.remove(address);
+        if(link != null) {
+            link.close();
+        }
+        forgetLastFrame(address, null);
+        final TimeSync timeSync = mTimeSync;
+        if(timeSync != null) {
+            timeSync.forget(address);
+        }
+    }
+
+    public synchronized void closeAll() {
+        for(GattLink link : mLinks.values()) {
+            link.close();
+        }
+        mLinks.clear();
+        synchronized(mLastFrames) {
+            mLastFrames.clear();
+        }
+        final TimeSync timeSync = mTimeSync;
+        if(timeSync != null) {
+            timeSync.stopAll();
+        }
+    }
+
+    public synchronized int size() {
+        return mLinks.size();
+    }
+
+    public int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    /**
+     * Snapshot of the open links, least recently used first.
+     */
+    public synchronized List<GattLink> getLinks() {
+        return new ArrayList<GattLink>(mLinks.values());
+    }
+
+    public synchronized long getOpenedCount() {
+        return mOpened;
+    }
+
+    public synchronized long getEvictedCount() {
+        return mEvicted;
+    }
+
+    //Forget the last frame of address, or only if it is still frame when that is not null
+    private void forgetLastFrame(String address, byte[] frame) {
+        synchronized(mLastFrames) {
+            if(frame == null || mLastFrames.get(address) == frame) {
+                mLastFrames.remove(address);
+            }
+        }
+    }
+
+    //Lock must be held
+    private boolean evictIdle() {
+        final Iterator<GattLink> iterator = mLinks.values().iterator();
+        while(iterator.hasNext()) {
+            final GattLink link = iterator.next();
+            final GattWriteQueue queue = link.getWriteQueue();
+            if(queue.getPendingCount() == 0 && queue.getInFlightCount() == 0) {
+                iterator.remove();
+                link.close();
+                forgetLastFrame(link.getAddress(), null);
+                mEvicted++;
+                return true;
+            }
+        }
+        return false;
+    }
+}
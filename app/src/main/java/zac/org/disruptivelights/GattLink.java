@@ -0,0 +1,75 @@
+package zac.org.disruptivelights;
+
+/**
+ * One connection to a light node: connect, discover, negotiate the MTU, then frame and
+ * queue writes to UUID_SEND and reassemble what comes back on UUID_RECEIVE.
+ *
+ * AndroidGattLink is the real thing, LoopbackGattLink an in-memory stand-in for
+ * running the layers above on a plain JVM.
+ */
+public interface GattLink {
+    /**
+     * Link events, called on whatever thread the link reports them from.
+     */
+    interface Callback {
+        void onLinkConnected(GattLink link);
+        void onLinkReady(GattLink link);
+        void onLinkDisconnected(GattLink link);
+        void onLinkData(GattLink link, byte[] data);
+    }
+
+    interface Factory {
+        GattLink create(String address, Callback callback);
+    }
+
+    String getAddress();
+
+    /**
+     * Start connecting, or reconnecting. Returns false if that could not even be started.
+     */
+    boolean connect();
+
+    void disconnect();
+
+    /**
+     * Disconnect and release everything, the link cannot be used afterwards.
+     */
+    void close();
+
+    boolean isConnected();
+
+    /**
+     * Connected, services discovered and MTU settled, so send() will go through.
+     */
+    boolean isReady();
+
+    /**
+     * The node answers ClockSync probes, known once the link is ready. Such a link has
+     * notifications on UUID_RECEIVE on for the replies even without subscribe().
+     */
+    boolean hasClockSync();
+
+    /**
+     * Frame data for the current MTU and queue it, see BtLeGattService.send().
+     */
+    boolean send(byte[] data, int coalesceKey);
+
+    /**
+     * Like send(data, coalesceKey), listener hears when the last chunk was written or
+     * given up on. It is not called when this returns false.
+     */
+    boolean send(byte[] data, int coalesceKey, GattWriteQueue.FrameListener listener);
+
+    /**
+     * Enable notifications on UUID_RECEIVE and put every packet, as it arrives and without
+     * reassembly, into ring instead of onLinkData(). The link is the ring's only producer,
+     * so give each link its own. Stays on across reconnects until unsubscribe().
+     */
+    boolean subscribe(NotificationRing ring);
+
+    void unsubscribe();
+
+    int getMtu();
+
+    GattWriteQueue getWriteQueue();
+}
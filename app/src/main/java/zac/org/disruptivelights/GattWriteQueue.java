@@ -0,0 +1,517 @@
+package zac.org.disruptivelights;
+
+/**
+ * Bounded outbound frame queue sitting in front of a GattWriteTransport.
+ *
+ * Frames are handed to the transport as long as fewer than maxInFlight writes are
+ * outstanding, and the queue is drained further each time the owner reports a write
+ * completion through onWriteComplete(). Pending frames sharing a coalesce key are
+ * replaced in place so only the newest one goes out. When the queue is full the
+ * overflow policy decides whether to reject, block the caller or drop the oldest message.
+ * The chunks of a message queued with offerAll() are dropped together, never some of them.
+ *
+ * Every write handed to the transport gets a token, and a completion only counts for the
+ * write with that token. Completions may come back in any order, and late ones for writes
+ * that clear() already gave up on are ignored instead of being credited to a newer frame.
+ *
+ * A frame can carry a FrameListener that hears whether it was actually written, which
+ * is how callers measure per-frame completion latency.
+ *
+ * Plain Java on purpose so it can be driven by a simulated transport off-device.
+ */
+public class GattWriteQueue {
+    /**
+     * Told once what became of a frame: written (true) or failed, dropped, replaced by
+     * a coalesced frame or cleared away (false). Called on the thread that made the call
+     * that settled the frame, after the queue was unlocked, so it may call back into it.
+     */
+    public interface FrameListener {
+        void onFrameDone(boolean written);
+    }
+
+    public static final int OVERFLOW_REJECT = 1;
+    public static final int OVERFLOW_BLOCK = 2;
+    public static final int OVERFLOW_DROP_OLDEST = 3;
+
+    public static final int NO_COALESCE = -1;
+    public static final long NO_TOKEN = 0;
+
+    public static final int DEFAULT_CAPACITY = 32;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1;
+
+    //Depth and write latency go to Metrics for one frame in this many, reading the clock
+    //twice costs about as much as the rest of a write
+    private static final int SAMPLE_EVERY = 16;
+    private static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+    private final GattWriteTransport mTransport;
+    private final int mMaxInFlight;
+    private final int mOverflowPolicy;
+
+    //Ring of pending frames, mHead is the oldest:
+    private final byte[][] mFrames;
+    private final int[] mKeys;
+    private final FrameListener[] mListeners;
+    private final boolean[] mFirst;   //first frame of its message
+    private final int[] mMessageLeft; //frames from this one to the end of its message
+    private int mHead;
+    private int mCount;
+
+    //Writes in flight by slot, a free slot has NO_TOKEN
+    private final long[] mInFlightTokens;
+    private final FrameListener[] mInFlightListeners;
+    private final long[] mInFlightSinceUs;
+    private int mInFlight;
+    private long mLastToken = NO_TOKEN;
+
+    //Listeners to tell once the lock is released, with what became of their frame
+    private FrameListener[] mDoneListeners = new FrameListener[8];
+    private boolean[] mDoneWritten = new boolean[8];
+    private int mDoneHead;
+    private int mDoneCount;
+    private boolean mPumping;
+    private boolean mClosed;
+
+    private long mSubmitted;
+    private long mCompleted;
+    private long mFailed;
+    private long mCoalesced;
+    private long mDropped;
+    private long mRejected;
+
+    private long mWritesStarted;
+    private final Metrics.Histogram mWriteLatency = Metrics.getInstance().histogram(Metrics.GATT_WRITE_US);
+    private final Metrics.Histogram mDepth = Metrics.getInstance().histogram(Metrics.GATT_QUEUE_DEPTH);
+    private final Metrics.Counter mFailedCounter = Metrics.getInstance().counter(Metrics.GATT_WRITES_FAILED);
+    private final Metrics.Counter mDroppedCounter = Metrics.getInstance().counter(Metrics.GATT_WRITES_DROPPED);
+
+    public GattWriteQueue(GattWriteTransport transport) {
+        this(transport, DEFAULT_CAPACITY, DEFAULT_MAX_IN_FLIGHT, OVERFLOW_REJECT);
+    }
+
+    public GattWriteQueue(GattWriteTransport transport, int capacity, int maxInFlight, int overflowPolicy) {
+        if(transport == null) {
+            throw new IllegalArgumentException("transport is null");
+        }
+        if(capacity < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("capacity and maxInFlight must be at least 1");
+        }
+        if(overflowPolicy != OVERFLOW_REJECT && overflowPolicy != OVERFLOW_BLOCK && overflowPolicy != OVERFLOW_DROP_OLDEST) {
+            throw new IllegalArgumentException("Unknown overflow policy " + overflowPolicy);
+        }
+
+        mTransport = transport;
+        mMaxInFlight = maxInFlight;
+        mOverflowPolicy = overflowPolicy;
+        mFrames = new byte[capacity][];
+        mKeys = new int[capacity];
+        mListeners = new FrameListener[capacity];
+        mFirst = new boolean[capacity];
+        mMessageLeft = new int[capacity];
+        mInFlightTokens = new long[maxInFlight];
+        mInFlightListeners = new FrameListener[maxInFlight];
+        mInFlightSinceUs = new long[maxInFlight];
+    }
+
+    public boolean offer(byte[] frame) {
+        return offer(frame, NO_COALESCE);
+    }
+
+    /**
+     * Queue a frame for writing. If coalesceKey is not NO_COALESCE and a frame with the same
+     * key is still pending, that frame is replaced and keeps its place in the queue.
+     * Returns false if the frame was rejected (queue full, closed or interrupted while blocked).
+     */
+    public boolean offer(byte[] frame, int coalesceKey) {
+        return offer(frame, coalesceKey, null);
+    }
+
+    /**
+     * Like offer(frame, coalesceKey) but listener, if not null, is told what became of the
+     * frame. It is not called at all when this returns false.
+     */
+    public boolean offer(byte[] frame, int coalesceKey, FrameListener listener) {
+        final boolean queued;
+        synchronized(this) {
+            queued = offerLocked(frame, coalesceKey, listener);
+        }
+        deliverDone();
+        return queued;
+    }
+
+    /**
+     * Queue all frames of one message, or none of them. The queue never holds part of a
+     * message: they are all coalesced as NO_COALESCE and either fit behind what is pending,
+     * after waiting for room or dropping older frames as the overflow policy says, or the
+     * whole message is rejected. OVERFLOW_DROP_OLDEST drops whole older messages to make room,
+     * and one whose first frame already went out only if nothing else can go. More frames
+     * than the capacity are always rejected. listener,
+     * if not null, is told about the last frame only. Under OVERFLOW_BLOCK this waits for
+     * room for the whole message, so never call it on the thread that completes writes.
+     */
+    public boolean offerAll(byte[][] frames, FrameListener listener) {
+        final boolean queued;
+        synchronized(this) {
+            queued = offerAllLocked(frames, listener);
+        }
+        deliverDone();
+        return queued;
+    }
+
+    private boolean offerLocked(byte[] frame, int coalesceKey, FrameListener listener) {
+        if(frame == null) {
+            throw new IllegalArgumentException("frame is null");
+        }
+        if(mClosed) {
+            mRejected++;
+            mDroppedCounter.increment();
+            return false;
+        }
+
+        mSubmitted++;
+
+        if(coalesceKey != NO_COALESCE) {
+            for(int i = 0; i < mCount; i++) {
+                final int slot = (mHead + i) % mFrames.length;
+                if(mKeys[slot] == coalesceKey) {
+                    mFrames[slot] = frame;
+                    addDone(mListeners[slot], false);
+                    mListeners[slot] = listener;
+                    mCoalesced++;
+                    return true;
+                }
+            }
+        }
+
+        if(!makeRoom(1)) {
+            return false;
+        }
+
+        append(frame, coalesceKey, listener, true, 1);
+        pump();
+        return true;
+    }
+
+    private boolean offerAllLocked(byte[][] frames, FrameListener listener) {
+        for(int i = 0; i < frames.length; i++) {
+            if(frames[i] == null) {
+                throw new IllegalArgumentException("frame " + i + " is null");
+            }
+        }
+        if(mClosed || frames.length > mFrames.length) {
+            mRejected++;
+            mDroppedCounter.increment();
+            return false;
+        }
+
+        mSubmitted++;
+        if(!makeRoom(frames.length)) {
+            return false;
+        }
+
+        for(int i = 0; i < frames.length; i++) {
+            append(frames[i], NO_COALESCE, i == frames.length - 1 ? listener : null, i == 0, frames.length - i);
+        }
+        pump();
+        return true;
+    }
+
+    //Lock must be held. Free room for count more frames as the overflow policy says, false
+    //(counted as rejected) if that is not possible.
+    private boolean makeRoom(int count) {
+        while(mFrames.length - mCount < count) {
+            if(mOverflowPolicy == OVERFLOW_REJECT) {
+                mRejected++;
+                mDroppedCounter.increment();
+                return false;
+            } else if(mOverflowPolicy == OVERFLOW_DROP_OLDEST) {
+                dropOldestMessage();
+            } else {
+                try {
+                    wait();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    mRejected++;
+                    mDroppedCounter.increment();
+                    return false;
+                }
+                if(mClosed) {
+                    mRejected++;
+                    mDroppedCounter.increment();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    //Lock must be held. The rest of a message that is partly written already would leave the
+    //receiver with a broken message, so the next whole one goes first if there is one
+    private void dropOldestMessage() {
+        int first = 0;
+        if(!mFirst[mHead] && mMessageLeft[mHead] < mCount) {
+            first = mMessageLeft[mHead];
+        }
+        final int count = mMessageLeft[(mHead + first) % mFrames.length];
+        for(int i = first; i < first + count; i++) {
+            addDone(mListeners[(mHead + i) % mFrames.length], false);
+        }
+        removePending(first, count);
+        mDropped += count;
+        mDroppedCounter.add(count);
+    }
+
+    //Lock must be held. Take count pending frames out from index on, counted from the head
+    private void removePending(int index, int count) {
+        if(index == 0) {
+            for(int i = 0; i < count; i++) {
+                takeHead();
+            }
+            return;
+        }
+
+        final int capacity = mFrames.length;
+        for(int i = index; i + count < mCount; i++) {
+            final int to = (mHead + i) % capacity;
+            final int from = (mHead + i + count) % capacity;
+            mFrames[to] = mFrames[from];
+            mKeys[to] = mKeys[from];
+            mListeners[to] = mListeners[from];
+            mFirst[to] = mFirst[from];
+            mMessageLeft[to] = mMessageLeft[from];
+        }
+        for(int i = mCount - count; i < mCount; i++) {
+            final int slot = (mHead + i) % capacity;
+            mFrames[slot] = null;
+            mListeners[slot] = null;
+        }
+        mCount -= count;
+    }
+
+    private void append(byte[] frame, int coalesceKey, FrameListener listener, boolean first, int messageLeft) {
+        final int tail = (mHead + mCount) % mFrames.length;
+        mFrames[tail] = frame;
+        mKeys[tail] = coalesceKey;
+        mListeners[tail] = listener;
+        mFirst[tail] = first;
+        mMessageLeft[tail] = messageLeft;
+        mCount++;
+        if(mSubmitted % SAMPLE_EVERY == 0) {
+            mDepth.record(mCount + mInFlight); //waiting or in flight, this one included
+        }
+    }
+
+    /**
+     * Must be called once for every write the transport accepted, with the token it was
+     * given. Tokens of writes the queue no longer waits for, e.g. from before clear(), are
+     * ignored.
+     */
+    public void onWriteComplete(long token, boolean success) {
+        synchronized(this) {
+            onWriteCompleteLocked(token, success);
+        }
+        deliverDone();
+    }
+
+    private void onWriteCompleteLocked(long token, boolean success) {
+        final int slot = findInFlight(token);
+        if(slot < 0) {
+            return;
+        }
+
+        final FrameListener listener = mInFlightListeners[slot];
+        final long sinceUs = mInFlightSinceUs[slot];
+        mInFlightTokens[slot] = NO_TOKEN;
+        mInFlightListeners[slot] = null;
+        mInFlight--;
+        if(success) {
+            mCompleted++;
+            if(sinceUs != NOT_SAMPLED) {
+                mWriteLatency.record(Metrics.nowUs() - sinceUs);
+            }
+        } else {
+            mFailed++;
+            mFailedCounter.increment();
+        }
+        addDone(listener, success);
+
+        pump();
+    }
+
+    /**
+     * Drop everything pending and forget outstanding writes, e.g. when the link goes away.
+     * Their completions may still come and are ignored.
+     */
+    public void clear() {
+        synchronized(this) {
+            clearLocked();
+        }
+        deliverDone();
+    }
+
+    public void close() {
+        synchronized(this) {
+            mClosed = true;
+            clearLocked();
+        }
+        deliverDone();
+    }
+
+    private void clearLocked() {
+        mDropped += mCount;
+        mDroppedCounter.add(mCount);
+        while(mCount > 0) {
+            addDone(mListeners[mHead], false);
+            takeHead();
+        }
+        for(int slot = 0; slot < mInFlightTokens.length; slot++) {
+            if(mInFlightTokens[slot] != NO_TOKEN) {
+                addDone(mInFlightListeners[slot], false);
+                mInFlightTokens[slot] = NO_TOKEN;
+                mInFlightListeners[slot] = null;
+            }
+        }
+        mInFlight = 0;
+        notifyAll();
+    }
+
+    public synchronized int getPendingCount() {
+        return mCount;
+    }
+
+    public synchronized int getInFlightCount() {
+        return mInFlight;
+    }
+
+    public synchronized long getSubmittedCount() {
+        return mSubmitted;
+    }
+
+    public synchronized long getCompletedCount() {
+        return mCompleted;
+    }
+
+    public synchronized long getFailedCount() {
+        return mFailed;
+    }
+
+    public synchronized long getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    public synchronized long getRejectedCount() {
+        return mRejected;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "GattWriteQueue(pending=" + mCount + ", inFlight=" + mInFlight
+                + ", submitted=" + mSubmitted + ", completed=" + mCompleted + ", failed=" + mFailed
+                + ", coalesced=" + mCoalesced + ", dropped=" + mDropped + ", rejected=" + mRejected + ")";
+    }
+
+    //Lock must be held. A transport that completes synchronously calls back into
+    //onWriteComplete() from inside write(), so guard against re-entering the loop.
+    private void pump() {
+        if(mPumping) {
+            return;
+        }
+
+        mPumping = true;
+        try {
+            while(mInFlight < mMaxInFlight && mCount > 0) {
+                final FrameListener listener = mListeners[mHead];
+                final byte[] frame = takeHead();
+                notifyAll();
+
+                //Registered before the write, a synchronous transport completes from inside it
+                final int slot = findInFlight(NO_TOKEN);
+                final long token = ++mLastToken;
+                mInFlightTokens[slot] = token;
+                mInFlightListeners[slot] = listener;
+                mInFlightSinceUs[slot] = ++mWritesStarted % SAMPLE_EVERY == 0 ? Metrics.nowUs() : NOT_SAMPLED;
+                mInFlight++;
+                if(!mTransport.write(frame, token)) {
+                    //A transport that refuses never completes
+                    mInFlightTokens[slot] = NO_TOKEN;
+                    mInFlightListeners[slot] = null;
+                    mInFlight--;
+                    mFailed++;
+                    mFailedCounter.increment();
+                    addDone(listener, false);
+                }
+            }
+        } finally {
+            mPumping = false;
+        }
+    }
+
+    private int findInFlight(long token) {
+        for(int slot = 0; slot < mInFlightTokens.length; slot++) {
+            if(mInFlightTokens[slot] == token) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    //Lock must be held
+    private void addDone(FrameListener listener, boolean written) {
+        if(listener == null) {
+            return;
+        }
+        if(mDoneCount == mDoneListeners.length) {
+            final FrameListener[] listeners = new FrameListener[mDoneCount * 2];
+            final boolean[] writtenFlags = new boolean[mDoneCount * 2];
+            for(int i = 0; i < mDoneCount; i++) {
+                listeners[i] = mDoneListeners[(mDoneHead + i) % mDoneCount];
+                writtenFlags[i] = mDoneWritten[(mDoneHead + i) % mDoneCount];
+            }
+            mDoneListeners = listeners;
+            mDoneWritten = writtenFlags;
+            mDoneHead = 0;
+        }
+        final int tail = (mDoneHead + mDoneCount) % mDoneListeners.length;
+        mDoneListeners[tail] = listener;
+        mDoneWritten[tail] = written;
+        mDoneCount++;
+    }
+
+    //Tell the listeners of settled frames one at a time without the lock. A transport that
+    //completes from inside write() gets here with the lock held, the outer call delivers.
+    //Reading mDoneCount unlocked is enough to see what this thread added itself, and
+    //whoever added the rest delivers it.
+    private void deliverDone() {
+        if(mDoneCount == 0 || Thread.holdsLock(this)) {
+            return;
+        }
+        while(true) {
+            final FrameListener listener;
+            final boolean written;
+            synchronized(this) {
+                if(mDoneCount == 0) {
+                    return;
+                }
+                listener = mDoneListeners[mDoneHead];
+                written = mDoneWritten[mDoneHead];
+                mDoneListeners[mDoneHead] = null;
+                mDoneHead = (mDoneHead + 1) % mDoneListeners.length;
+                mDoneCount--;
+            }
+            listener.onFrameDone(written);
+        }
+    }
+
+    private byte[] takeHead() {
+        final byte[] frame = mFrames[mHead];
+        mFrames[mHead] = null;
+        mListeners[mHead] = null;
+        mHead = (mHead + 1) % mFrames.length;
+        mCount--;
+        return frame;
+    }
+}
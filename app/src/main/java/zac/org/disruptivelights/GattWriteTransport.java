@@ -0,0 +1,14 @@
+package zac.org.disruptivelights;
+
+/**
+ * The thing a GattWriteQueue actually pushes frames into. On a phone this is a
+ * BluetoothGatt characteristic write, off-device it can be any stand-in.
+ */
+public interface GattWriteTransport {
+    /**
+     * Start writing one frame. Returns false if the write could not be issued at all.
+     * If it returns true the owner must eventually call GattWriteQueue.onWriteComplete()
+     * with token, which tells this write apart from any other in flight.
+     */
+    boolean write(byte[] frame, long token);
+}
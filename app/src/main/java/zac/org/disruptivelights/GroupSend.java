@@ -0,0 +1,165 @@
+package zac.org.disruptivelights;
+
+import java.util.List;
+
+/**
+ * Outcome of one frame sent to a DeviceGroup. Every device ends up WRITTEN, FAILED,
+ * SKIPPED (it already had this exact frame) or NOT_READY (no ready link), and the latency
+ * of a written device is measured from the start of the fan-out to the completion of its
+ * last chunk. The skew between the first and last device to finish is what decides how
+ * synchronized a show looks.
+ */
+public class GroupSend {
+    public static final int STATUS_PENDING = 0;
+    public static final int STATUS_WRITTEN = 1;
+    public static final int STATUS_FAILED = 2;
+    public static final int STATUS_SKIPPED = 3;
+    public static final int STATUS_NOT_READY = 4;
+
+    /**
+     * Called once every device has an outcome, on the thread of the last completion.
+     */
+    public interface Listener {
+        void onGroupSendDone(GroupSend send);
+    }
+
+    private final String[] mAddresses;
+    private final int[] mStatus;
+    private final long[] mLatencyNs;
+    private final long mStartNs;
+    private final Listener mListener;
+    private int mRemaining;
+
+    GroupSend(List<String> addresses, Listener listener) {
+        mAddresses = addresses.toArray(new String[addresses.size()]);
+        mStatus = new int[mAddresses.length];
+        mLatencyNs = new long[mAddresses.length];
+        mListener = listener;
+        mRemaining = mAddresses.length;
+        mStartNs = System.nanoTime();
+    }
+
+    /**
+     * Listener for the write of device i, to hand to GattLink.send().
+     */
+    GattWriteQueue.FrameListener frameListener(final int i) {
+        return new GattWriteQueue.FrameListener() {
+            @Override
+            public void onFrameDone(boolean written) {
+                finish(i, written ? STATUS_WRITTEN : STATUS_FAILED);
+            }
+        };
+    }
+
+    void finish(int i, int status) {
+        final boolean done;
+        synchronized(this) {
+            if(mStatus[i] != STATUS_PENDING) {
+                return;
+            }
+            mStatus[i] = status;
+            if(status == STATUS_WRITTEN) {
+                mLatencyNs[i] = System.nanoTime() - mStartNs;
+            }
+            mRemaining--;
+            done = mRemaining == 0;
+            if(done) {
+                notifyAll();
+            }
+        }
+
+        //Outside the lock, the listener is free to look at the result
+        if(done && mListener != null) {
+            mListener.onGroupSendDone(this);
+        }
+    }
+
+    public int size() {
+        return mAddresses.length;
+    }
+
+    public String addressAt(int i) {
+        return mAddresses[i];
+    }
+
+    public synchronized int statusAt(int i) {
+        return mStatus[i];
+    }
+
+    /**
+     * Nanoseconds from the start of the fan-out until device i was written, or -1.
+     */
+    public synchronized long latencyNsAt(int i) {
+        return mStatus[i] == STATUS_WRITTEN ? mLatencyNs[i] : -1;
+    }
+
+    public synchronized boolean isDone() {
+        return mRemaining == 0;
+    }
+
+    /**
+     * Wait up to timeoutMs for every device to have an outcome. Returns isDone().
+     */
+    public synchronized boolean await(long timeoutMs) throws InterruptedException {
+        final long end = System.currentTimeMillis() + timeoutMs;
+        long left = timeoutMs;
+        while(mRemaining > 0 && left > 0) {
+            wait(left);
+            left = end - System.currentTimeMillis();
+        }
+        return mRemaining == 0;
+    }
+
+    public synchronized int count(int status) {
+        int count = 0;
+        for(int s : mStatus) {
+            if(s == status) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Fastest written device, or -1 if none was written.
+     */
+    public synchronized long getMinLatencyNs() {
+        long min = -1;
+        for(int i = 0; i < mStatus.length; i++) {
+            if(mStatus[i] == STATUS_WRITTEN && (min < 0 || mLatencyNs[i] < min)) {
+                min = mLatencyNs[i];
+            }
+        }
+        return min;
+    }
+
+    /**
+     * Slowest written device, or -1 if none was written.
+     */
+    public synchronized long getMaxLatencyNs() {
+        long max = -1;
+        for(int i = 0; i < mStatus.length; i++) {
+            if(mStatus[i] == STATUS_WRITTEN && mLatencyNs[i] > max) {
+                max = mLatencyNs[i];
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Spread between the first and last written device.
+     */
+    public synchronized long getSkewNs() {
+        final long min = getMinLatencyNs();
+        return min < 0 ? 0 : getMaxLatencyNs() - min;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "GroupSend(devices=" + mAddresses.length + ", written=" + count(STATUS_WRITTEN)
+                + ", failed=" + count(STATUS_FAILED) + ", skipped=" + count(STATUS_SKIPPED)
+                + ", notReady=" + count(STATUS_NOT_READY) + ", pending=" + mRemaining
+                + ", minUs=" + getMinLatencyNs() / 1000 + ", maxUs=" + getMaxLatencyNs() / 1000
+                + ", skewUs=" + getSkewNs() / 1000 + ")";
+    }
+}
@@ -0,0 +1,157 @@
+package zac.org.disruptivelights;
+
+import java.util.HashMap;
+
+/**
+ * What every light is showing, as far as the phone knows. update() encodes a new frame for
+ * a device against the last one sent to it (FrameDeltaEncoder) and sends only the change.
+ *
+ * GATT writes arrive in order, so the last frame sent is what the node has once its writes
+ * complete. Any write that fails or is dropped, and any reconnect, makes the device's next
+ * packet a keyframe so it can never drift from what we think it shows.
+ */
+public class LightStateModel {
+    private final int mKeyframeInterval;
+    private final HashMap<String, DeviceState> mDevices = new HashMap<String, DeviceState>();
+    private volatile DeviceCache mDeviceCache;
+
+    private static class DeviceState {
+        final FrameDeltaEncoder mEncoder;
+
+        //Runs after the write queue is unlocked, on whichever thread completed the write.
+        //requestKeyframe() needs no lock, so the GATT callback never waits on update()
+        final GattWriteQueue.FrameListener mWriteListener = new GattWriteQueue.FrameListener() {
+            @Override
+            public void onFrameDone(boolean written) {
+                if(!written) {
+                    mEncoder.requestKeyframe();
+                }
+            }
+        };
+
+        DeviceState(int keyframeInterval) {
+            mEncoder = new FrameDeltaEncoder(keyframeInterval);
+        }
+    }
+
+    public LightStateModel() {
+        this(FrameDeltaEncoder.DEFAULT_KEYFRAME_INTERVAL);
+    }
+
+    public LightStateModel(int keyframeInterval) {
+        mKeyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * Send frame to link's device as a keyframe or delta. Returns true if it was queued or
+     * there was nothing to send because the frame did not change.
+     */
+    public boolean update(GattLink link, byte[] frame) {
+        final DeviceState state = stateOf(link.getAddress());
+        synchronized(state) {
+            if(!link.isReady()) {
+                state.mEncoder.requestKeyframe();
+                return false;
+            }
+
+            final byte[] packet = state.mEncoder.encode(frame);
+            if(packet == null) {
+                return true;
+            }
+
+            //Never coalesced, a replaced delta would break the chain
+            if(!link.send(packet, GattWriteQueue.NO_COALESCE, state.mWriteListener)) {
+                state.mEncoder.requestKeyframe();
+                return false;
+            }
+
+            final DeviceCache cache = mDeviceCache;
+            if(cache != null) {
+                cache.putLightState(link.getAddress(), frame);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Remember the last frame sent to every device in cache, so it can be put back after a restart.
+     */
+    public void setDeviceCache(DeviceCache cache) {
+        mDeviceCache = cache;
+    }
+
+    /**
+     * A TimelinePlayer sink that sends through update(), busy while link has more than
+     * maxPending writes queued.
+     */
+    public TimelinePlayer.FrameSink sinkFor(final GattLink link, final int maxPending) {
+        return new TimelinePlayer.FrameSink() {
+            @Override
+            public boolean isBusy() {
+                return link.getWriteQueue().getPendingCount() > maxPending;
+            }
+
+            @Override
+            public boolean send(byte[] frame) {
+                return update(link, frame);
+            }
+        };
+    }
+
+    /**
+     * The device (re)connected, it may have lost its state.
+     */
+    public void onLinkReady(String address) {
+        final DeviceState state;
+        synchronized(mDevices) {
+            state = mDevices.get(address);
+        }
+        if(state != null) {
+            state.mEncoder.requestKeyframe();
+        }
+    }
+
+    public void forget(String address) {
+        synchronized(mDevices) {
+            mDevices.remove(address);
+        }
+    }
+
+    /**
+     * The encoder of address, for its counters, or null if nothing was sent to it yet.
+     */
+    public FrameDeltaEncoder getEncoder(String address) {
+        synchronized(mDevices) {
+            final DeviceState state = mDevices.get(address);
+            return state == null ? null : state.mEncoder;
+        }
+    }
+
+    /**
+     * Raw frame bytes over bytes actually sent, across all devices.
+     */
+    public double getCompressionRatio() {
+        long raw = 0;
+        long encoded = 0;
+        synchronized(mDevices) {
+            for(DeviceState state : mDevices.values()) {
+                synchronized(state) {
+                    raw += state.mEncoder.getRawBytes();
+                    encoded += state.mEncoder.getEncodedBytes();
+                }
+            }
+        }
+        return encoded == 0 ? 1.0 : (double)raw / encoded;
+    }
+
+    private DeviceState stateOf(String address) {
+        synchronized(mDevices) {
+            DeviceState state = mDevices.get(address);
+            if(state == null) {
+                state = new DeviceState(mKeyframeInterval);
+                mDevices.put(address, state);
+            }
+            return state;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package zac.org.disruptivelights;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+/**
+ * Shows one filter of a LogBuffer in a ListView, oldest line first. The lines it shows
+ * only change in refresh(), so the ListView never sees the count change behind its back
+ * while other threads keep adding. Rows are recycled, only the visible ones get text.
+ *
+ * UI thread only.
+ */
+public class LogAdapter extends BaseAdapter {
+    private final LogBuffer mBuffer;
+    private final LayoutInflater mInflater;
+    private final long mStartedAt;
+
+    private int mFilter = LogBuffer.FILTER_ALL;
+    private long mFirst; //sequence number of row 0
+    private int mCount;
+
+    public LogAdapter(LogBuffer buffer, LayoutInflater inflater, long startedAt) {
+        mBuffer = buffer;
+        mInflater = inflater;
+        mStartedAt = startedAt;
+    }
+
+    /**
+     * LogBuffer.TYPE_* or LogBuffer.FILTER_ALL.
+     */
+    public void setFilter(int filter) {
+        mFilter = filter;
+        refresh();
+    }
+
+    public int getFilter() {
+        return mFilter;
+    }
+
+    /**
+     * Pick up whatever was added since the last refresh.
+     */
+    public void refresh() {
+        mBuffer.takeWakeup();
+        final long end = mBuffer.getEnd(mFilter);
+        mCount = mBuffer.size(mFilter);
+        mFirst = end - mCount;
+        notifyDataSetChanged();
+    }
+
+    @Override
+    public int getCount() {
+        return mCount;
+    }
+
+    @Override
+    public Object getItem(int position) {
+        return mBuffer.messageAt(mFilter, mFirst + position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mFirst + position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView textView;
+        if(convertView == null) {
+            convertView = mInflater.inflate(R.layout.log_row, parent, false);
+            textView = (TextView)convertView.findViewById(R.id.logRowTextView);
+            convertView.setTag(textView);
+        } else {
+            textView = (TextView)convertView.getTag();
+        }
+
+        final long seq = mFirst + position;
+        final String message = mBuffer.messageAt(mFilter, seq);
+        if(message == null) {
+            //Pushed out since the last refresh, the next one drops the row
+            textView.setText("");
+            return convertView;
+        }
+
+        final long ms = mBuffer.timeAt(mFilter, seq) - mStartedAt;
+        final StringBuilder builder = new StringBuilder(message.length() + 16);
+        builder.append(ms / 1000).append('.').append(ms % 1000 / 100).append("s ");
+        builder.append(LogBuffer.typeName(mBuffer.typeAt(mFilter, seq))).append(": ").append(message);
+        textView.setText(builder);
+        return convertView;
+    }
+}
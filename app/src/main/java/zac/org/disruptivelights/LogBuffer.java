@@ -0,0 +1,162 @@
+package zac.org.disruptivelights;
+
+import java.util.Arrays;
+
+/**
+ * The last few hundred log lines, for showing on screen. Lines are tagged with a type and
+ * kept in one ring per type plus one ring for all of them, so adding a line and looking at
+ * any filter costs the same however long the app has been running; old lines just fall
+ * off the end.
+ *
+ * Lines are addressed by sequence number, counted per ring from the first line ever added
+ * to it. A reader takes getEnd() and size() once, e.g. per screen refresh, and reads the
+ * lines in between at its own pace; a line that was pushed out meanwhile reads as null.
+ *
+ * Thread safe, add() may be called from any thread.
+ */
+public class LogBuffer {
+    public static final int TYPE_APP = 0;
+    public static final int TYPE_SCAN = 1;
+    public static final int TYPE_GATT = 2;
+    public static final int TYPE_COUNT = 3;
+    public static final int FILTER_ALL = TYPE_COUNT;
+
+    public static final int DEFAULT_CAPACITY = 500;
+
+    private static final String[] TYPE_NAMES = {"app", "scan", "gatt"};
+
+    private final MonotonicClock mClock;
+    private final int mMask;
+
+    //Index TYPE_* for one type, FILTER_ALL for everything
+    private final String[][] mMessages = new String[TYPE_COUNT + 1][];
+    private final long[][] mTimes = new long[TYPE_COUNT + 1][];
+    private final int[] mAllTypes;
+    private final long[] mEnd = new long[TYPE_COUNT + 1];
+
+    private Runnable mWakeup;
+    private boolean mWakeupPending;
+
+    public LogBuffer(MonotonicClock clock) {
+        this(clock, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * capacity lines per filter, rounded up to a power of two.
+     */
+    public LogBuffer(MonotonicClock clock, int capacity) {
+        if(capacity < 1 || capacity > 1 << 16) {
+            throw new IllegalArgumentException("Bad log capacity " + capacity);
+        }
+        int size = 1;
+        while(size < capacity) {
+            size <<= 1;
+        }
+        mClock = clock;
+        mMask = size - 1;
+        for(int filter = 0; filter <= TYPE_COUNT; filter++) {
+            mMessages[filter] = new String[size];
+            mTimes[filter] = new long[size];
+        }
+        mAllTypes = new int[size];
+    }
+
+    public static String typeName(int type) {
+        return TYPE_NAMES[type];
+    }
+
+    /**
+     * Run on the adding thread for the first line after each takeWakeup(), e.g. to schedule
+     * a screen refresh. Lines added before the refresh happens do not run it again.
+     */
+    public synchronized void setWakeup(Runnable wakeup) {
+        mWakeup = wakeup;
+        mWakeupPending = false;
+    }
+
+    /**
+     * Call when the lines are about to be read, so the next add() runs the wakeup again.
+     */
+    public synchronized void takeWakeup() {
+        mWakeupPending = false;
+    }
+
+    public void add(int type, String message) {
+        if(type < 0 || type >= TYPE_COUNT) {
+            throw new IllegalArgumentException("Bad log type " + type);
+        }
+
+        final Runnable wakeup;
+        synchronized(this) {
+            final long now = mClock.now();
+            put(type, now, message);
+            final int slot = put(FILTER_ALL, now, message);
+            mAllTypes[slot] = type;
+
+            if(mWakeupPending || mWakeup == null) {
+                return;
+            }
+            mWakeupPending = true;
+            wakeup = mWakeup;
+        }
+        wakeup.run();
+    }
+
+    /**
+     * Sequence number of the next line of filter, one past the newest.
+     */
+    public synchronized long getEnd(int filter) {
+        return mEnd[filter];
+    }
+
+    /**
+     * How many lines of filter are still kept, the oldest one is getEnd() - size().
+     */
+    public synchronized int size(int filter) {
+        return (int)Math.min(mEnd[filter], mMask + 1);
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * null if seq was pushed out already or has not been added yet.
+     */
+    public synchronized String messageAt(int filter, long seq) {
+        return isKept(filter, seq) ? mMessages[filter][(int)seq & mMask] : null;
+    }
+
+    public synchronized long timeAt(int filter, long seq) {
+        return isKept(filter, seq) ? mTimes[filter][(int)seq & mMask] : 0;
+    }
+
+    /**
+     * For FILTER_ALL, which type the line is. For a single type, that type.
+     */
+    public synchronized int typeAt(int filter, long seq) {
+        if(filter != FILTER_ALL) {
+            return filter;
+        }
+        return isKept(filter, seq) ? mAllTypes[(int)seq & mMask] : TYPE_APP;
+    }
+
+    public synchronized void clear() {
+        for(int filter = 0; filter <= TYPE_COUNT; filter++) {
+            Arrays.fill(mMessages[filter], null);
+            mEnd[filter] = 0;
+        }
+    }
+
+    private int put(int filter, long now, String message) {
+        final int slot = (int)mEnd[filter] & mMask;
+        mMessages[filter][slot] = message;
+        mTimes[filter][slot] = now;
+        mEnd[filter]++;
+        return slot;
+    }
+
+    private boolean isKept(int filter, long seq) {
+        return seq >= 0 && seq < mEnd[filter] && mEnd[filter] - seq <= mMask + 1;
+    }
+}
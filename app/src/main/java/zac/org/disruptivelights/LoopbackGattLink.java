@@ -0,0 +1,243 @@
+package zac.org.disruptivelights;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory GattLink that plays the light node itself. Connecting and every write
+ * complete after a fixed delay on the given executor (or straight away without one),
+ * and written chunks are reassembled so the received messages can be checked.
+ * echo(data) pushes data back to the callback as if the node had notified it.
+ *
+ * Meant for running the connection pool and everything above it on a plain JVM.
+ */
+public class LoopbackGattLink implements GattLink {
+    private final String mAddress;
+    private final Callback mCallback;
+    private final ScheduledExecutorService mExecutor;
+    private final long mConnectDelayUs;
+    private final long mWriteDelayUs;
+    private final int mMtu;
+
+    private volatile boolean mConnected;
+    private volatile boolean mReady;
+    private volatile boolean mClosed;
+
+    private final PacketReassembler mReassembler = new PacketReassembler();
+    private volatile NotificationRing mNotificationRing;
+    private long mReceivedChunks;
+    private long mReceivedBytes;
+    private long mReceivedMessages;
+    private byte[] mLastMessage;
+
+    private final GattWriteTransport mTransport = new GattWriteTransport() {
+        @Override
+        public boolean write(final byte[] frame, final long token) {
+            if(!mConnected) {
+                return false;
+            }
+
+            run(new Runnable() {
+                @Override
+                public void run() {
+                    receive(frame);
+                    mWriteQueue.onWriteComplete(token, true);
+                }
+            }, mWriteDelayUs);
+            return true;
+        }
+    };
+
+    private final GattWriteQueue mWriteQueue;
+
+    public static class Factory implements GattLink.Factory {
+        private final ScheduledExecutorService mExecutor;
+        private final long mConnectDelayUs;
+        private final long mWriteDelayUs;
+        private final int mMtu;
+
+        public Factory(ScheduledExecutorService executor, long connectDelayUs, long writeDelayUs, int mtu) {
+            mExecutor = executor;
+            mConnectDelayUs = connectDelayUs;
+            mWriteDelayUs = writeDelayUs;
+            mMtu = mtu;
+        }
+
+        @Override
+        public GattLink create(String address, Callback callback) {
+            return new LoopbackGattLink(address, callback, mExecutor, mConnectDelayUs, mWriteDelayUs, mMtu);
+        }
+    }
+
+    public LoopbackGattLink(String address, Callback callback, ScheduledExecutorService executor,
+                            long connectDelayUs, long writeDelayUs, int mtu) {
+        mAddress = address;
+        mCallback = callback;
+        mExecutor = executor;
+        mConnectDelayUs = connectDelayUs;
+        mWriteDelayUs = writeDelayUs;
+        mMtu = mtu;
+        mWriteQueue = new GattWriteQueue(mTransport);
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public boolean connect() {
+        if(mClosed) {
+            return false;
+        }
+        if(mConnected) {
+            return true;
+        }
+
+        run(new Runnable() {
+            @Override
+            public void run() {
+                if(mClosed) {
+                    return;
+                }
+                mConnected = true;
+                mCallback.onLinkConnected(LoopbackGattLink.this);
+                mReady = true;
+                mCallback.onLinkReady(LoopbackGattLink.this);
+            }
+        }, mConnectDelayUs);
+        return true;
+    }
+
+    @Override
+    public void disconnect() {
+        if(!mConnected) {
+            return;
+        }
+        mConnected = false;
+        mReady = false;
+        mWriteQueue.clear();
+        synchronized(mReassembler) {
+            mReassembler.reset();
+        }
+        mCallback.onLinkDisconnected(this);
+    }
+
+    @Override
+    public void close() {
+        disconnect();
+        mClosed = true;
+        mWriteQueue.close();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    @Override
+    public boolean isReady() {
+        return mReady;
+    }
+
+    //The loopback node does not answer probes
+    @Override
+    public boolean hasClockSync() {
+        return false;
+    }
+
+    @Override
+    public boolean send(byte[] data, int coalesceKey) {
+        return send(data, coalesceKey, null);
+    }
+
+    @Override
+    public boolean send(byte[] data, int coalesceKey, GattWriteQueue.FrameListener listener) {
+        return mReady && PacketFramer.offer(mWriteQueue, data, mMtu, coalesceKey, listener);
+    }
+
+    @Override
+    public boolean subscribe(NotificationRing ring) {
+        mNotificationRing = ring;
+        return true;
+    }
+
+    @Override
+    public void unsubscribe() {
+        mNotificationRing = null;
+    }
+
+    @Override
+    public int getMtu() {
+        return mMtu;
+    }
+
+    @Override
+    public GattWriteQueue getWriteQueue() {
+        return mWriteQueue;
+    }
+
+    /**
+     * Pretend the node notified data on UUID_RECEIVE. Goes to the subscribed ring if there
+     * is one, so only one thread at a time may echo() then.
+     */
+    public void echo(byte[] data) {
+        if(!mConnected) {
+            return;
+        }
+
+        final NotificationRing ring = mNotificationRing;
+        if(ring != null) {
+            ring.offer(data);
+        } else {
+            mCallback.onLinkData(this, data);
+        }
+    }
+
+    public long getReceivedChunks() {
+        synchronized(mReassembler) {
+            return mReceivedChunks;
+        }
+    }
+
+    public long getReceivedBytes() {
+        synchronized(mReassembler) {
+            return mReceivedBytes;
+        }
+    }
+
+    public long getReceivedMessages() {
+        synchronized(mReassembler) {
+            return mReceivedMessages;
+        }
+    }
+
+    /**
+     * Last complete message the node received, or null.
+     */
+    public byte[] getLastMessage() {
+        synchronized(mReassembler) {
+            return mLastMessage;
+        }
+    }
+
+    private void receive(byte[] chunk) {
+        synchronized(mReassembler) {
+            mReceivedChunks++;
+            mReceivedBytes += chunk.length;
+            final byte[] message = mReassembler.onPacket(chunk);
+            if(message != null) {
+                mReceivedMessages++;
+                mLastMessage = message;
+            }
+        }
+    }
+
+    private void run(Runnable runnable, long delayUs) {
+        if(mExecutor == null) {
+            runnable.run();
+        } else {
+            mExecutor.schedule(runnable, delayUs, TimeUnit.MICROSECONDS);
+        }
+    }
+}
@@ -1,11 +1,8 @@
 package zac.org.disruptivelights;
 
 import android.app.Activity;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.Handler;
@@ -14,75 +11,119 @@ import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.TextView;
+import android.widget.ListView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
+
 
 
 public class MainActivity extends Activity {
     private final static String TAG = "MainActivity";
     private BtLeScanService mBtLeScanService;
     private AutoConnectBLEService mAutoConnectBLEService;
-    private TextView mLogTextView;
+    private final static long LOG_REFRESH_MS = 33; //at most this often, however fast lines come in
+    private final MonotonicClock mClock = ElapsedRealtimeClock.INSTANCE;
+    private final LogBuffer mLog = new LogBuffer(mClock);
+    private LogAdapter mLogAdapter;
     private final Handler mHandler = new Handler();
 
+    //Run by whoever adds the first line since the last refresh, on any thread
+    private final Runnable mLogWakeup = new Runnable() {
+        @Override
+        public void run() {
+            mHandler.postDelayed(mLogRefreshRunnable, LOG_REFRESH_MS);
+        }
+    };
+
+    private final Runnable mLogRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mLogAdapter.refresh();
+        }
+    };
+
 
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder service) {
             Log.d(TAG, "mServiceConnection.onServiceConnected()");
-            addLog("BT scan service connected");
+            addLog(LogBuffer.TYPE_APP, "BT scan service connected");
 
             mBtLeScanService = ((BtLeScanService.BtLeScanBinder) service).getService();
             if(!mBtLeScanService.initialize()) {
                 Log.e(TAG, "Failed to get Bluetooth scanning service!");
-                addLog("BT scan service failed to initialize");
+                addLog(LogBuffer.TYPE_APP, "BT scan service failed to initialize");
                 finish();
             } else {
-                addLog("BT scan service initialized");
+                addLog(LogBuffer.TYPE_APP, "BT scan service initialized");
             }
         }
 
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
             Log.d(TAG, "mServiceConnection.onServiceDisconnected()");
-            addLog("BT scan service disconnected");
+            addLog(LogBuffer.TYPE_APP, "BT scan service disconnected");
             mBtLeScanService = null;
         }
     };
 
-    private final BroadcastReceiver mBtLeScanUpdateReceiver = new BroadcastReceiver() {
+    //Called on the scan callback thread, addLog() is fine with that.
+    private final BleEventBus.ScanListener mBtLeScanListener = new BleEventBus.ScanListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            Log.d(TAG, "onReceive(" + action + ")");
+        public void onScanStarted() {
+            addLog(LogBuffer.TYPE_SCAN, "Scan started");
+        }
 
-            if(BtLeScanService.ACTION_SCAN_STARTED.equals(action)) {
-                addLog("Scan started");
-            }
-            else if(BtLeScanService.ACTION_SCAN_STOPPED.equals(action)) {
-                addLog("Scan stopped");
-            }
-            else if(BtLeScanService.ACTION_DEVICE_NEW.equals(action)) {
-                final String deviceName = intent.getStringExtra(BtLeScanService.EXTRA_DEVICE_NAME);
-                final String deviceAddress = intent.getStringExtra(BtLeScanService.EXTRA_DEVICE_ADDRESS);
-                final int deviceRssi = intent.getIntExtra(BtLeScanService.EXTRA_DEVICE_RSSI, -1);
+        @Override
+        public void onScanStopped() {
+            addLog(LogBuffer.TYPE_SCAN, "Scan stopped");
+        }
 
-                addLog("New device " + deviceAddress + (deviceName == null || deviceName.equals("null") ? "" : " (" + deviceName + ")") + " RSSI: " + deviceRssi);
-            }
-            else if(BtLeScanService.ACTION_DEVICE_UPDATE.equals(action)) {
-                final String deviceName = intent.getStringExtra(BtLeScanService.EXTRA_DEVICE_NAME);
-                final String deviceAddress = intent.getStringExtra(BtLeScanService.EXTRA_DEVICE_ADDRESS);
-                final int deviceRssi = intent.getIntExtra(BtLeScanService.EXTRA_DEVICE_RSSI, -1);
+        @Override
+        public void onDeviceNew(String address, String name, int rssi) {
+            addLog(LogBuffer.TYPE_SCAN, "New device " + address + (name == null || name.equals("null") ? "" : " (" + name + ")") + " RSSI: " + rssi);
+        }
 
-                addLog("Update device " + deviceAddress + (deviceName == null || deviceName.equals("null") ? "" : " (" + deviceName + ")") + " RSSI: " + deviceRssi);
-            }
-            else if(BtLeScanService.ACTION_DEVICE_GONE.equals(action)) {
-                final String deviceAddress = intent.getStringExtra(BtLeScanService.EXTRA_DEVICE_ADDRESS);
+        @Override
+        public void onDeviceUpdates(UpdateCoalescer.Batch updates) {
+            //Still too many to log, mProximityListener logs what matters
+        }
 
-                addLog("Device gone " + deviceAddress);
+        @Override
+        public void onDeviceGone(String address) {
+            addLog(LogBuffer.TYPE_SCAN, "Device gone " + address);
+        }
+    };
+
+    //Called on the scan callback thread as well.
+    private final BleEventBus.ProximityListener mProximityListener = new BleEventBus.ProximityListener() {
+        @Override
+        public void onProximityChanged(String address, int rank, int rssi) {
+            if(rank == ProximityIndex.NOT_RANKED) {
+                addLog(LogBuffer.TYPE_SCAN, "Device " + address + " no longer among the nearest");
+            } else {
+                addLog(LogBuffer.TYPE_SCAN, "Device " + address + " nearest #" + (rank + 1) + " RSSI: " + rssi);
             }
+        }
+    };
 
+    //Called on the GATT callback thread.
+    private final BleEventBus.GattListener mGattListener = new BleEventBus.SimpleGattListener() {
+        @Override
+        public void onGattConnected() {
+            addLog(LogBuffer.TYPE_GATT, "Connected");
+        }
+
+        @Override
+        public void onGattDisconnected() {
+            addLog(LogBuffer.TYPE_GATT, "Disconnected");
+        }
+
+        @Override
+        public void onGattServicesDiscovered() {
+            addLog(LogBuffer.TYPE_GATT, "Services discovered");
         }
     };
 
@@ -92,12 +133,12 @@ public class MainActivity extends Activity {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
             Log.d(TAG, "mAutoConnectBLEServiceConnection.onServiceConnected");
-            addLog("mAutoConnectBLEServiceConnection.onServiceConnected");
+            addLog(LogBuffer.TYPE_APP, "mAutoConnectBLEServiceConnection.onServiceConnected");
 
             mAutoConnectBLEService = ((AutoConnectBLEService.AutoConnectBLEBinder)service).getService();
             if(mAutoConnectBLEService.start()) {
                 Log.d(TAG, "Starting AutoConnectBLEService");
-                addLog("Starting AutoConnectBLEService");
+                addLog(LogBuffer.TYPE_APP, "Starting AutoConnectBLEService");
                 mHandler.postDelayed(new Runnable() {
                     @Override
                     public void run() {
@@ -108,7 +149,7 @@ public class MainActivity extends Activity {
                 }, 5000);
             } else {
                 Log.d(TAG, "Failed to start AutoConnectBLEService");
-                addLog("Failed to start AutoConnectBLEService");
+                addLog(LogBuffer.TYPE_APP, "Failed to start AutoConnectBLEService");
                 mAutoConnectBLEService.stop(); //??? TODO
             }
         }
@@ -116,7 +157,7 @@ public class MainActivity extends Activity {
         @Override
         public void onServiceDisconnected(ComponentName name) {
             Log.d(TAG, "mAutoConnectBLEServiceConnection.onServiceDisconnected");
-            addLog("mAutoConnectBLEServiceConnection.onServiceDisconnected");
+            addLog(LogBuffer.TYPE_APP, "mAutoConnectBLEServiceConnection.onServiceDisconnected");
         }
     };
 
@@ -128,7 +169,9 @@ public class MainActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
-        mLogTextView = (TextView)findViewById(R.id.logTextView);
+        mLogAdapter = new LogAdapter(mLog, getLayoutInflater(), mClock.now());
+        ((ListView)findViewById(R.id.logListView)).setAdapter(mLogAdapter);
+        mLog.setWakeup(mLogWakeup);
 
         Log.d(TAG, "Binding scan service");
         Intent btLeScanServiceIntent = new Intent(this, BtLeScanService.class);
@@ -140,22 +183,18 @@ public class MainActivity extends Activity {
         Log.d(TAG, "onResume()");
         super.onResume();
 
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(BtLeScanService.ACTION_SCAN_STARTED);
-        intentFilter.addAction(BtLeScanService.ACTION_SCAN_STOPPED);
-        intentFilter.addAction(BtLeScanService.ACTION_DEVICE_NEW);
-        intentFilter.addAction(BtLeScanService.ACTION_DEVICE_UPDATE);
-        intentFilter.addAction(BtLeScanService.ACTION_DEVICE_GONE);
-        registerReceiver(mBtLeScanUpdateReceiver, intentFilter);
+        BleEventBus.getInstance().register(mBtLeScanListener);
+        BleEventBus.getInstance().register(mProximityListener);
+        BleEventBus.getInstance().register(mGattListener);
 
         if(mBtLeScanService != null) {
             final boolean result = mBtLeScanService.initialize();
             if(result) {
                 Log.d(TAG, "onResume() BT Scan initialize succeeded");
-                addLog("onResume() BT Scan initialize succeeded");
+                addLog(LogBuffer.TYPE_APP, "onResume() BT Scan initialize succeeded");
             } else {
                 Log.d(TAG, "onResume() BT Scan initialize failed");
-                addLog("onResume() BT Scan initialize failed");
+                addLog(LogBuffer.TYPE_APP, "onResume() BT Scan initialize failed");
             }
         }
     }
@@ -165,7 +204,9 @@ public class MainActivity extends Activity {
         Log.d(TAG, "onPause()");
         super.onPause();
 
-        unregisterReceiver(mBtLeScanUpdateReceiver);
+        BleEventBus.getInstance().unregister(mBtLeScanListener);
+        BleEventBus.getInstance().unregister(mProximityListener);
+        BleEventBus.getInstance().unregister(mGattListener);
     }
 
     @Override
@@ -184,12 +225,29 @@ public class MainActivity extends Activity {
         if (id == R.id.action_settings) {
             return true;
         }
+        if(id == R.id.action_trace) {
+            item.setChecked(toggleTrace());
+            return true;
+        }
+        if(id == R.id.action_diagnostics) {
+            startActivity(new Intent(this, DiagnosticsActivity.class));
+            return true;
+        }
+
+        final int filter = logFilterFor(id);
+        if(filter >= 0) {
+            item.setChecked(true);
+            mLogAdapter.setFilter(filter);
+            return true;
+        }
         return super.onOptionsItemSelected(item);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        mLog.setWakeup(null);
+        mHandler.removeCallbacks(mLogRefreshRunnable);
         unbindService(mServiceConnection);
         mBtLeScanService = null;
 
@@ -198,8 +256,43 @@ public class MainActivity extends Activity {
         mAutoConnectBLEService = null;
     }
 
-    private void addLog(String s) {
-        mLogTextView.append("\n" + s);
+    //Returns whether a trace is being recorded now. A new trace replaces the last one
+    private boolean toggleTrace() {
+        final TraceRecorder active = TraceRecorder.getActive();
+        if(active != null) {
+            active.close();
+            addLog(LogBuffer.TYPE_APP, "BLE trace stopped after " + active.getRecordCount() + " events");
+            return false;
+        }
+
+        final File file = new File(getFilesDir(), TraceRecorder.FILE_NAME);
+        try {
+            TraceRecorder.setActive(new TraceRecorder(file, TraceRecorder.DEFAULT_SIZE));
+        } catch(IOException e) {
+            Log.e(TAG, "Failed to start a BLE trace in " + file, e);
+            addLog(LogBuffer.TYPE_APP, "Failed to start a BLE trace");
+            return false;
+        }
+        addLog(LogBuffer.TYPE_APP, "Recording BLE trace to " + file);
+        return true;
+    }
+
+    //Any thread. The list catches up within LOG_REFRESH_MS
+    private void addLog(int type, String s) {
+        mLog.add(type, s);
+    }
+
+    private static int logFilterFor(int menuId) {
+        if(menuId == R.id.action_filter_all) {
+            return LogBuffer.FILTER_ALL;
+        } else if(menuId == R.id.action_filter_app) {
+            return LogBuffer.TYPE_APP;
+        } else if(menuId == R.id.action_filter_scan) {
+            return LogBuffer.TYPE_SCAN;
+        } else if(menuId == R.id.action_filter_gatt) {
+            return LogBuffer.TYPE_GATT;
+        }
+        return -1;
     }
 
     public void onScanButtonClick(View view) {
@@ -215,14 +308,14 @@ public class MainActivity extends Activity {
 
     public void onConnectButtonClick(View view) {
         Log.d(TAG, "onConnectButtonClick()");
-        addLog("Trying auto search & connect");
+        addLog(LogBuffer.TYPE_APP, "Trying auto search & connect");
 
         //Bind the Gatt service:
         final Intent gattIntent = new Intent(getApplicationContext(), AutoConnectBLEService.class);
         if(!bindService(gattIntent, mAutoConnectBLEServiceConnection, BIND_AUTO_CREATE)) {
             Log.e(TAG, "Failed to bind Gatt service");
-            addLog("Failed to bind AutoConnectBLEService");
+            addLog(LogBuffer.TYPE_APP, "Failed to bind AutoConnectBLEService");
         }
-        addLog("Bound AutoConnectBLEService, waiting on ServiceConnection");
+        addLog(LogBuffer.TYPE_APP, "Bound AutoConnectBLEService, waiting on ServiceConnection");
     }
 }
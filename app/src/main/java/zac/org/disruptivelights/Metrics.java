@@ -0,0 +1,254 @@
+package zac.org.disruptivelights;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for the scan and GATT paths, cheap enough to record on
+ * every advertisement and every write. Recording is lock free and allocates nothing;
+ * only creating a metric and dump() take the lock.
+ *
+ * Classes look their metrics up once by name, typically into a final field, and record
+ * into them from whatever thread they run on. The names used by the app are the
+ * constants below, dump() lists everything in the order it was created.
+ */
+public class Metrics {
+    public static final String SCAN_ADVERTISEMENTS = "scan.advertisements";
+    public static final String SCAN_UPDATES_COALESCED = "scan.updates.coalesced";
+    public static final String SCAN_DEVICES_GONE = "scan.devices.gone";
+    public static final String GATT_CONNECT_MS = "gatt.connect.ms";
+    public static final String GATT_DISCOVERY_MS = "gatt.discovery.ms";
+    public static final String GATT_RECONNECTS = "gatt.reconnects";
+    public static final String GATT_WRITE_US = "gatt.write.us";
+    public static final String GATT_WRITES_FAILED = "gatt.writes.failed";
+    public static final String GATT_WRITES_DROPPED = "gatt.writes.dropped";
+    public static final String GATT_QUEUE_DEPTH = "gatt.queue.depth";
+    public static final String GATT_NOTIFICATIONS = "gatt.notifications";
+    public static final String GATT_NOTIFICATIONS_DROPPED = "gatt.notifications.dropped";
+
+    private static Metrics sInstance;
+
+    private final List<Counter> mCounters = new ArrayList<Counter>();
+    private final List<Histogram> mHistograms = new ArrayList<Histogram>();
+    private long mLastDumpUs = nowUs();
+
+    /**
+     * Count of something, with the rate since the previous dump() when dumped.
+     */
+    public static class Counter {
+        private final String mName;
+        private final AtomicLong mValue = new AtomicLong();
+        private long mLastDumped; //only touched in dump()
+
+        Counter(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        void reset() {
+            mValue.set(0);
+            mLastDumped = 0;
+        }
+    }
+
+    /**
+     * Distribution of non-negative values in log-linear buckets like HdrHistogram: exact
+     * below 16, after that 16 buckets per power of two, so a percentile is never more than
+     * 1/16 above the real value. Negative values count as 0.
+     */
+    public static class Histogram {
+        private static final int SUB_BUCKET_BITS = 4;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final String mName;
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        Histogram(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public void record(long value) {
+            if(value < 0) {
+                value = 0;
+            }
+            mBuckets.incrementAndGet(bucketOf(value));
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+            long max = mMax.get();
+            while(value > max && !mMax.compareAndSet(max, value)) {
+                max = mMax.get();
+            }
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getMax() {
+            return mMax.get();
+        }
+
+        public long getMean() {
+            final long count = mCount.get();
+            return count == 0 ? 0 : mSum.get() / count;
+        }
+
+        /**
+         * Highest value in the bucket holding the given percentile (0-100), 0 when empty.
+         * Recording may go on meanwhile, so it is a close look rather than an exact one.
+         */
+        public long getPercentile(double percentile) {
+            final long count = mCount.get();
+            if(count == 0) {
+                return 0;
+            }
+
+            final long rank = Math.max(1, (long)Math.ceil(count * percentile / 100));
+            long seen = 0;
+            for(int bucket = 0; bucket < BUCKETS; bucket++) {
+                seen += mBuckets.get(bucket);
+                if(seen >= rank) {
+                    return Math.min(highestIn(bucket), mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        void reset() {
+            for(int bucket = 0; bucket < BUCKETS; bucket++) {
+                mBuckets.set(bucket, 0);
+            }
+            mCount.set(0);
+            mSum.set(0);
+            mMax.set(0);
+        }
+
+        static int bucketOf(long value) {
+            if(value < SUB_BUCKETS) {
+                return (int)value;
+            }
+            final int msb = 63 - Long.numberOfLeadingZeros(value);
+            final int shift = msb - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int)(value >>> shift) - SUB_BUCKETS;
+        }
+
+        static long highestIn(int bucket) {
+            if(bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            final int shift = bucket / SUB_BUCKETS - 1;
+            final long lowest = (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+    }
+
+    public static synchronized Metrics getInstance() {
+        if(sInstance == null) {
+            sInstance = new Metrics();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Microseconds for latencies, only differences mean anything.
+     */
+    public static long nowUs() {
+        return System.nanoTime() / 1000;
+    }
+
+    /**
+     * The counter called name, created on first use.
+     */
+    public synchronized Counter counter(String name) {
+        for(Counter counter : mCounters) {
+            if(counter.getName().equals(name)) {
+                return counter;
+            }
+        }
+        final Counter counter = new Counter(name);
+        mCounters.add(counter);
+        return counter;
+    }
+
+    /**
+     * The histogram called name, created on first use. End the name in its unit.
+     */
+    public synchronized Histogram histogram(String name) {
+        for(Histogram histogram : mHistograms) {
+            if(histogram.getName().equals(name)) {
+                return histogram;
+            }
+        }
+        final Histogram histogram = new Histogram(name);
+        mHistograms.add(histogram);
+        return histogram;
+    }
+
+    /**
+     * Everything recorded so far, one metric per line. Counters also show their rate since
+     * the previous dump, so dumping once a second gives per second rates.
+     */
+    public synchronized String dump() {
+        final long now = nowUs();
+        final long elapsedUs = Math.max(1, now - mLastDumpUs);
+        mLastDumpUs = now;
+
+        final StringBuilder builder = new StringBuilder();
+        for(Counter counter : mCounters) {
+            final long value = counter.get();
+            final long rate = (value - counter.mLastDumped) * 1000000 / elapsedUs;
+            counter.mLastDumped = value;
+            builder.append(counter.getName()).append(' ').append(value).append(" (").append(rate).append("/s)\n");
+        }
+        for(Histogram histogram : mHistograms) {
+            builder.append(histogram.getName()).append(" n=").append(histogram.getCount());
+            if(histogram.getCount() > 0) {
+                builder.append(" p50=").append(histogram.getPercentile(50))
+                        .append(" p90=").append(histogram.getPercentile(90))
+                        .append(" p99=").append(histogram.getPercentile(99))
+                        .append(" max=").append(histogram.getMax())
+                        .append(" mean=").append(histogram.getMean());
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Zero everything, the metrics themselves stay registered.
+     */
+    public synchronized void reset() {
+        for(Counter counter : mCounters) {
+            counter.reset();
+        }
+        for(Histogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        mLastDumpUs = nowUs();
+    }
+}
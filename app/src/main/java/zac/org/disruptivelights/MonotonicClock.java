@@ -0,0 +1,9 @@
+package zac.org.disruptivelights;
+
+/**
+ * Source of milliseconds that never goes backwards. Lets time driven logic run
+ * against the real clock on a phone and a virtual one off-device.
+ */
+public interface MonotonicClock {
+    long now();
+}
@@ -0,0 +1,197 @@
+package zac.org.disruptivelights;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single producer / single consumer ring of fixed size byte slots for notification
+ * packets. All slots live in one array allocated up front, so the producer (the GATT
+ * callback thread) only copies bytes and the consumer reads them in place; nothing is
+ * allocated per packet. When the consumer falls behind, new packets are dropped and counted
+ * rather than blocking the Bluetooth thread.
+ *
+ * Exactly one thread may offer() and exactly one other thread may drain()/poll().
+ */
+public class NotificationRing {
+    public static final int DEFAULT_SLOTS = 256;
+    public static final int DEFAULT_SLOT_SIZE = PacketFramer.MAX_MTU - PacketFramer.ATT_OVERHEAD;
+
+    /**
+     * Gets each packet in place. buffer is only valid until onPacket() returns.
+     */
+    public interface PacketHandler {
+        void onPacket(byte[] buffer, int offset, int length);
+    }
+
+    private final int mSlotSize;
+    private final int mMask;
+    private final byte[] mData;
+    private final int[] mLengths;
+
+    //Sequence numbers, slot = sequence & mMask. Each side writes only its own
+    private final AtomicLong mHead = new AtomicLong(); //next to read, written by the consumer
+    private final AtomicLong mTail = new AtomicLong(); //next to write, written by the producer
+    private long mCachedHead; //producer's last look at mHead
+    private volatile Runnable mWakeup;
+
+    //Producer side counters
+    private volatile long mOffered;
+    private volatile long mDropped;
+    private volatile long mTruncated;
+    private final Metrics.Counter mDroppedCounter = Metrics.getInstance().counter(Metrics.GATT_NOTIFICATIONS_DROPPED);
+
+    public NotificationRing() {
+        this(DEFAULT_SLOTS, DEFAULT_SLOT_SIZE);
+    }
+
+    /**
+     * slots is rounded up to a power of two.
+     */
+    public NotificationRing(int slots, int slotSize) {
+        if(slots < 1 || slots > 1 << 20 || slotSize < 1) {
+            throw new IllegalArgumentException("Bad ring size " + slots + " x " + slotSize);
+        }
+        int capacity = 1;
+        while(capacity < slots) {
+            capacity <<= 1;
+        }
+        mSlotSize = slotSize;
+        mMask = capacity - 1;
+        mData = new byte[capacity * slotSize];
+        mLengths = new int[capacity];
+    }
+
+    /**
+     * Run by the producer whenever it puts a packet into an empty ring, e.g. to post a
+     * drain to the consumer's thread. Must be cheap, it runs on the Bluetooth thread.
+     */
+    public void setWakeup(Runnable wakeup) {
+        mWakeup = wakeup;
+    }
+
+    public boolean offer(byte[] packet) {
+        return offer(packet, 0, packet.length);
+    }
+
+    /**
+     * Producer only. Copies the packet into the next slot, cutting it to the slot size if
+     * needed. Returns false and drops it if the ring is full.
+     */
+    public boolean offer(byte[] packet, int offset, int length) {
+        mOffered++;
+
+        final long tail = mTail.get();
+        if(tail - mCachedHead > mMask) {
+            mCachedHead = mHead.get();
+            if(tail - mCachedHead > mMask) {
+                mDropped++;
+                mDroppedCounter.increment();
+                return false;
+            }
+        }
+
+        if(length > mSlotSize) {
+            length = mSlotSize;
+            mTruncated++;
+        }
+        final int slot = (int)tail & mMask;
+        System.arraycopy(packet, offset, mData, slot * mSlotSize, length);
+        mLengths[slot] = length;
+
+        final Runnable wakeup = mWakeup;
+        if(wakeup == null) {
+            mTail.lazySet(tail + 1);
+            return true;
+        }
+
+        //Full store so the look at mHead below is not stale, else a wakeup could be missed
+        mTail.set(tail + 1);
+        if(tail == mHead.get()) {
+            wakeup.run();
+        }
+        return true;
+    }
+
+    /**
+     * Consumer only. Hands every packet that is there now to handler, in order, and
+     * returns how many that were.
+     */
+    public int drain(PacketHandler handler) {
+        return drain(handler, Integer.MAX_VALUE);
+    }
+
+    public int drain(PacketHandler handler, int max) {
+        long head = mHead.get();
+        int count = 0;
+        while(count < max) {
+            final long tail = mTail.get();
+            if(head == tail) {
+                break;
+            }
+
+            while(head < tail && count < max) {
+                final int slot = (int)head & mMask;
+                handler.onPacket(mData, slot * mSlotSize, mLengths[slot]);
+                head++;
+                count++;
+                //Free the slot straight away so the producer can reuse it
+                mHead.lazySet(head);
+            }
+            //Pairs with the producer's full store of mTail: either it sees this head and
+            //wakes us, or we see its tail on the next pass
+            mHead.set(head);
+        }
+        return count;
+    }
+
+    /**
+     * Consumer only. Copy the oldest packet into dst at offset and return its length, or -1
+     * if the ring is empty. dst must have room for getSlotSize() bytes.
+     */
+    public int poll(byte[] dst, int offset) {
+        final long head = mHead.get();
+        if(head == mTail.get()) {
+            return -1;
+        }
+
+        final int slot = (int)head & mMask;
+        final int length = mLengths[slot];
+        System.arraycopy(mData, slot * mSlotSize, dst, offset, length);
+        mHead.set(head + 1);
+        return length;
+    }
+
+    public int size() {
+        return (int)(mTail.get() - mHead.get());
+    }
+
+    public int capacity() {
+        return mMask + 1;
+    }
+
+    public int getSlotSize() {
+        return mSlotSize;
+    }
+
+    public long getOfferedCount() {
+        return mOffered;
+    }
+
+    public long getDeliveredCount() {
+        return mHead.get();
+    }
+
+    public long getDroppedCount() {
+        return mDropped;
+    }
+
+    public long getTruncatedCount() {
+        return mTruncated;
+    }
+
+    @Override
+    public String toString() {
+        return "NotificationRing(" + size() + "/" + capacity() + " x " + mSlotSize
+                + ", offered=" + mOffered + ", delivered=" + getDeliveredCount()
+                + ", dropped=" + mDropped + ", truncated=" + mTruncated + ")";
+    }
+}
@@ -0,0 +1,108 @@
+package zac.org.disruptivelights;
+
+/**
+ * Splits a message into ATT sized chunks. Every chunk starts with a one byte header:
+ *
+ *   bit 7     FLAG_FIRST - first chunk of a message
+ *   bit 6     FLAG_LAST  - last chunk of a message (a single chunk message has both)
+ *   bits 0-5  sequence number of the chunk within the message, modulo 64
+ *
+ * The rest of the chunk is payload, filling whatever the negotiated MTU allows.
+ * See PacketReassembler for the receiving side.
+ *
+ * Only nodes whose UUID_SERVICE has the BtLeGattService.UUID_FRAMING characteristic
+ * understand the header. Older firmware takes each UUID_SEND write as a whole message
+ * ('H','I', a light frame), so for those links offerUnframed() writes messages as they
+ * are and refuses what does not fit in one write.
+ */
+public class PacketFramer {
+    public static final int HEADER_SIZE = 1;
+    public static final int FLAG_FIRST = 0x80;
+    public static final int FLAG_LAST = 0x40;
+    public static final int SEQUENCE_MASK = 0x3F;
+
+    public static final int ATT_OVERHEAD = 3;    //opcode + attribute handle
+    public static final int DEFAULT_MTU = 23;    //what every link starts with
+    public static final int MAX_MTU = 517;       //largest MTU the spec allows
+
+    /**
+     * How many payload bytes fit in one chunk at the given MTU.
+     */
+    public static int maxChunkPayload(int mtu) {
+        if(mtu < DEFAULT_MTU) {
+            mtu = DEFAULT_MTU;
+        }
+        return mtu - ATT_OVERHEAD - HEADER_SIZE;
+    }
+
+    public static int chunkCount(int messageLength, int mtu) {
+        final int payload = maxChunkPayload(mtu);
+        return messageLength == 0 ? 1 : (messageLength + payload - 1) / payload;
+    }
+
+    /**
+     * Split message into framed chunks no larger than mtu - ATT_OVERHEAD bytes each.
+     * An empty message still produces one (header only) chunk.
+     */
+    public static byte[][] fragment(byte[] message, int mtu) {
+        final int payload = maxChunkPayload(mtu);
+        final int count = chunkCount(message.length, mtu);
+        final byte[][] chunks = new byte[count][];
+
+        int offset = 0;
+        for(int i = 0; i < count; i++) {
+            final int length = Math.min(payload, message.length - offset);
+            final byte[] chunk = new byte[HEADER_SIZE + length];
+
+            int header = i & SEQUENCE_MASK;
+            if(i == 0) {
+                header |= FLAG_FIRST;
+            }
+            if(i == count - 1) {
+                header |= FLAG_LAST;
+            }
+            chunk[0] = (byte)header;
+            System.arraycopy(message, offset, chunk, HEADER_SIZE, length);
+
+            chunks[i] = chunk;
+            offset += length;
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Fragment message for mtu and queue the chunks. Only a single chunk message is
+     * coalesced by coalesceKey. A multi chunk message is queued whole or not at all, see
+     * GattWriteQueue.offerAll(), so the receiver never gets a FLAG_FIRST without its
+     * FLAG_LAST; a message of more chunks than the queue holds is refused.
+     */
+    public static boolean offer(GattWriteQueue queue, byte[] message, int mtu, int coalesceKey) {
+        return offer(queue, message, mtu, coalesceKey, null);
+    }
+
+    /**
+     * Like offer(queue, message, mtu, coalesceKey) with listener riding on the last chunk, so
+     * it hears about the message as a whole. Not called when this returns false.
+     */
+    public static boolean offer(GattWriteQueue queue, byte[] message, int mtu, int coalesceKey,
+                                GattWriteQueue.FrameListener listener) {
+        final byte[][] chunks = fragment(message, mtu);
+        if(chunks.length == 1) {
+            return queue.offer(chunks[0], coalesceKey, listener);
+        }
+        return queue.offerAll(chunks, listener);
+    }
+
+    /**
+     * Queue message as one write without a header, for firmware that does not know framing.
+     * False if it does not fit in one write at mtu or the queue refused it.
+     */
+    public static boolean offerUnframed(GattWriteQueue queue, byte[] message, int mtu, int coalesceKey,
+                                        GattWriteQueue.FrameListener listener) {
+        if(message.length > Math.max(mtu, DEFAULT_MTU) - ATT_OVERHEAD) {
+            return false;
+        }
+        return queue.offer(message, coalesceKey, listener);
+    }
+}
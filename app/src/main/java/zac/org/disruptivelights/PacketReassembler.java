@@ -0,0 +1,95 @@
+package zac.org.disruptivelights;
+
+/**
+ * Puts messages framed by PacketFramer back together, one notification at a time.
+ *
+ * A chunk arriving out of sequence throws away the partial message, and a new
+ * FLAG_FIRST chunk always starts over, so a lost packet costs one message rather
+ * than desynchronising the stream. Not thread safe, feed it from one callback thread.
+ */
+public class PacketReassembler {
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 4096;
+
+    private final byte[] mBuffer;
+    private int mLength;
+    private int mNextSequence;
+    private boolean mInMessage;
+
+    private long mMessages;
+    private long mDiscarded;
+
+    public PacketReassembler() {
+        this(DEFAULT_MAX_MESSAGE_SIZE);
+    }
+
+    public PacketReassembler(int maxMessageSize) {
+        mBuffer = new byte[maxMessageSize];
+    }
+
+    /**
+     * Feed one received chunk. Returns the complete message once its FLAG_LAST chunk
+     * arrives, otherwise null.
+     */
+    public byte[] onPacket(byte[] packet) {
+        if(packet == null || packet.length < PacketFramer.HEADER_SIZE) {
+            discard();
+            return null;
+        }
+
+        final int header = packet[0] & 0xFF;
+        final int sequence = header & PacketFramer.SEQUENCE_MASK;
+
+        if((header & PacketFramer.FLAG_FIRST) != 0) {
+            if(mInMessage) {
+                discard();
+            }
+            mInMessage = true;
+            mLength = 0;
+            mNextSequence = 0;
+        } else if(!mInMessage || sequence != mNextSequence) {
+            discard();
+            return null;
+        }
+
+        final int length = packet.length - PacketFramer.HEADER_SIZE;
+        if(mLength + length > mBuffer.length) {
+            discard();
+            return null;
+        }
+        System.arraycopy(packet, PacketFramer.HEADER_SIZE, mBuffer, mLength, length);
+        mLength += length;
+        mNextSequence = (sequence + 1) & PacketFramer.SEQUENCE_MASK;
+
+        if((header & PacketFramer.FLAG_LAST) == 0) {
+            return null;
+        }
+
+        final byte[] message = new byte[mLength];
+        System.arraycopy(mBuffer, 0, message, 0, mLength);
+        mInMessage = false;
+        mLength = 0;
+        mMessages++;
+        return message;
+    }
+
+    public void reset() {
+        mInMessage = false;
+        mLength = 0;
+        mNextSequence = 0;
+    }
+
+    public long getMessageCount() {
+        return mMessages;
+    }
+
+    public long getDiscardedCount() {
+        return mDiscarded;
+    }
+
+    private void discard() {
+        if(mInMessage) {
+            mDiscarded++;
+        }
+        reset();
+    }
+}
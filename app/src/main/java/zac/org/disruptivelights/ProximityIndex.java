@@ -0,0 +1,268 @@
+package zac.org.disruptivelights;
+
+import java.util.Arrays;
+
+/**
+ * Devices of a DeviceRegistry ordered by smoothed RSSI, nearest first, kept up to date one
+ * advertisement at a time. A device only changes places with a neighbour it beats by more
+ * than the hysteresis, so two lights at about the same distance do not swap on every
+ * advertisement, and it only moves as far as its RSSI changed, which is usually not at all.
+ *
+ * Only the top getTop() places are reported. update() and remove() add a change for a
+ * device when it enters or leaves the top, changes place in it or its smoothed RSSI moved
+ * by rssiStep since it was last reported; everything else is silent.
+ *
+ * Every device in range is kept in order, not just the top, so a device's place is known
+ * the moment it gets close. The position of every device lives in its registry slot
+ * (rankAt()) and the index keeps the slot of every position, so moving a device never
+ * has to look anything up. The registry tells the index when it moves a device to another
+ * slot (DeviceRegistry.setProximityIndex()), and has to be told about every device it
+ * drops. Not thread safe, use it under the same lock as the registry.
+ */
+public class ProximityIndex {
+    public static final int NOT_RANKED = -1;
+    public static final int DEFAULT_TOP = 8;
+    public static final int DEFAULT_RSSI_STEP = 3;
+    public static final int DEFAULT_HYSTERESIS = 2;
+
+    /**
+     * Changes from one update() or remove(), to be published once the lock is let go. rank
+     * is NOT_RANKED for a device that dropped out of the top.
+     */
+    public static class Changes {
+        private String[] mAddresses = new String[8];
+        private int[] mRanks = new int[8];
+        private int[] mRssi = new int[8];
+        private int mSize;
+
+        public int size() {
+            return mSize;
+        }
+
+        public String addressAt(int i) {
+            return mAddresses[i];
+        }
+
+        public int rankAt(int i) {
+            return mRanks[i];
+        }
+
+        public int rssiAt(int i) {
+            return mRssi[i];
+        }
+
+        public void clear() {
+            Arrays.fill(mAddresses, 0, mSize, null);
+            mSize = 0;
+        }
+
+        void add(String address, int rank, int rssi) {
+            if(mSize == mAddresses.length) {
+                mAddresses = Arrays.copyOf(mAddresses, mSize * 2);
+                mRanks = Arrays.copyOf(mRanks, mSize * 2);
+                mRssi = Arrays.copyOf(mRssi, mSize * 2);
+            }
+            mAddresses[mSize] = address;
+            mRanks[mSize] = rank;
+            mRssi[mSize] = rssi;
+            mSize++;
+        }
+    }
+
+    private final int mTop;
+    private final int mRssiStep;
+    private final int mHysteresis;
+
+    //By position, nearest first. What was last reported moves along with the device
+    private int[] mSlots = new int[64];
+    private String[] mAddresses = new String[64];
+    private int[] mRssi = new int[64];
+    private int[] mReportedRank = new int[64];
+    private int[] mReportedRssi = new int[64];
+    private int mSize;
+
+    private long mUpdates;
+    private long mChanges;
+
+    public ProximityIndex() {
+        this(DEFAULT_TOP, DEFAULT_RSSI_STEP, DEFAULT_HYSTERESIS);
+    }
+
+    public ProximityIndex(int top, int rssiStep, int hysteresis) {
+        if(top < 1 || rssiStep < 1 || hysteresis < 0) {
+            throw new IllegalArgumentException("Bad proximity index " + top + "/" + rssiStep + "/" + hysteresis);
+        }
+        mTop = top;
+        mRssiStep = rssiStep;
+        mHysteresis = hysteresis;
+    }
+
+    /**
+     * The device in slot has a new smoothed RSSI (or is new), move it to where it belongs.
+     */
+    public void update(DeviceRegistry registry, int slot, Changes changes) {
+        mUpdates++;
+        final int rssi = registry.smoothedRssiAt(slot);
+        int position = registry.rankAt(slot);
+        if(position == NOT_RANKED) {
+            if(mSize == mSlots.length) {
+                grow();
+            }
+            position = mSize++;
+            mSlots[position] = slot;
+            mAddresses[position] = registry.addressAt(slot);
+            mReportedRank[position] = NOT_RANKED;
+            registry.setRankAt(slot, position);
+        }
+        mRssi[position] = rssi;
+
+        final int from = position;
+        while(position > 0 && rssi > mRssi[position - 1] + mHysteresis) {
+            swap(registry, position, position - 1);
+            position--;
+        }
+        while(position < mSize - 1 && rssi < mRssi[position + 1] - mHysteresis) {
+            swap(registry, position, position + 1);
+            position++;
+        }
+
+        //Everything between the old and new place moved by one. Past the top nobody was
+        //reported, so only the device itself can need telling there
+        final int high = Math.min(Math.max(from, position), mTop);
+        for(int i = Math.min(from, position); i <= high && i < mSize; i++) {
+            report(i, changes);
+        }
+        if(position > high) {
+            report(position, changes);
+        }
+    }
+
+    /**
+     * Take the device in slot out, call before removing it from the registry.
+     */
+    public void remove(DeviceRegistry registry, int slot, Changes changes) {
+        final int position = registry.rankAt(slot);
+        if(position == NOT_RANKED) {
+            return;
+        }
+
+        if(mReportedRank[position] != NOT_RANKED) {
+            changes.add(mAddresses[position], NOT_RANKED, mRssi[position]);
+            mChanges++;
+        }
+        registry.setRankAt(slot, NOT_RANKED);
+
+        for(int i = position; i < mSize - 1; i++) {
+            mSlots[i] = mSlots[i + 1];
+            mAddresses[i] = mAddresses[i + 1];
+            mRssi[i] = mRssi[i + 1];
+            mReportedRank[i] = mReportedRank[i + 1];
+            mReportedRssi[i] = mReportedRssi[i + 1];
+            registry.setRankAt(mSlots[i], i);
+        }
+        mSize--;
+        mAddresses[mSize] = null;
+
+        //Everybody in the top behind it moved up a place, and one more made it in
+        for(int i = position; i < Math.min(mSize, mTop); i++) {
+            report(i, changes);
+        }
+    }
+
+    public void clear(DeviceRegistry registry) {
+        for(int i = 0; i < mSize; i++) {
+            registry.setRankAt(mSlots[i], NOT_RANKED);
+            mAddresses[i] = null;
+        }
+        mSize = 0;
+    }
+
+    /**
+     * Fill addresses and rssi with up to max of the nearest devices, nearest first, and
+     * return how many that were.
+     */
+    public int getNearest(int max, String[] addresses, int[] rssi) {
+        final int count = Math.min(Math.min(max, mSize), Math.min(addresses.length, rssi.length));
+        System.arraycopy(mAddresses, 0, addresses, 0, count);
+        System.arraycopy(mRssi, 0, rssi, 0, count);
+        return count;
+    }
+
+    public String addressAt(int rank) {
+        return mAddresses[rank];
+    }
+
+    public int rssiAt(int rank) {
+        return mRssi[rank];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getTop() {
+        return mTop;
+    }
+
+    public long getUpdateCount() {
+        return mUpdates;
+    }
+
+    /**
+     * Changes handed out, against getUpdateCount() advertisements that went in.
+     */
+    public long getChangeCount() {
+        return mChanges;
+    }
+
+    @Override
+    public String toString() {
+        return "ProximityIndex(" + mSize + " devices, top " + mTop + ", updates=" + mUpdates + ", changes=" + mChanges + ")";
+    }
+
+    //The registry moved the device at position to another slot
+    void slotMoved(int position, int slot) {
+        mSlots[position] = slot;
+    }
+
+    private void report(int position, Changes changes) {
+        final int rank = position < mTop ? position : NOT_RANKED;
+        if(rank == mReportedRank[position]
+                && (rank == NOT_RANKED || Math.abs(mRssi[position] - mReportedRssi[position]) < mRssiStep)) {
+            return;
+        }
+        mReportedRank[position] = rank;
+        mReportedRssi[position] = mRssi[position];
+        changes.add(mAddresses[position], rank, mRssi[position]);
+        mChanges++;
+    }
+
+    private void swap(DeviceRegistry registry, int a, int b) {
+        final int slot = mSlots[a];
+        final String address = mAddresses[a];
+        final int rssi = mRssi[a];
+        final int reportedRank = mReportedRank[a];
+        final int reportedRssi = mReportedRssi[a];
+        mSlots[a] = mSlots[b];
+        mAddresses[a] = mAddresses[b];
+        mRssi[a] = mRssi[b];
+        mReportedRank[a] = mReportedRank[b];
+        mReportedRssi[a] = mReportedRssi[b];
+        mSlots[b] = slot;
+        mAddresses[b] = address;
+        mRssi[b] = rssi;
+        mReportedRank[b] = reportedRank;
+        mReportedRssi[b] = reportedRssi;
+        registry.setRankAt(mSlots[a], a);
+        registry.setRankAt(mSlots[b], b);
+    }
+
+    private void grow() {
+        final int capacity = mSlots.length * 2;
+        mSlots = Arrays.copyOf(mSlots, capacity);
+        mAddresses = Arrays.copyOf(mAddresses, capacity);
+        mRssi = Arrays.copyOf(mRssi, capacity);
+        mReportedRank = Arrays.copyOf(mReportedRank, capacity);
+        mReportedRssi = Arrays.copyOf(mReportedRssi, capacity);
+    }
+}
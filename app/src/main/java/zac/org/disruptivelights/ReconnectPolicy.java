@@ -0,0 +1,86 @@
+package zac.org.disruptivelights;
+
+/**
+ * How a link retries after it dropped without being asked to: a few direct attempts with
+ * exponentially growing delays, then one background autoConnect that waits for the node
+ * to come back for as long as it takes. A direct attempt that has not connected after the
+ * connect timeout is given up and counts as failed.
+ *
+ * Immutable, the attempt count lives with the link.
+ */
+public class ReconnectPolicy {
+    public static final long DEFAULT_INITIAL_DELAY_MS = 250;
+    public static final long DEFAULT_MAX_DELAY_MS = 8000;
+    public static final int DEFAULT_DIRECT_ATTEMPTS = 5;
+    public static final long DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+
+    /**
+     * Returned by delayForAttempt() once the direct attempts are used up.
+     */
+    public static final long AUTO_CONNECT = -1;
+
+    private final long mInitialDelayMs;
+    private final long mMaxDelayMs;
+    private final int mDirectAttempts;
+    private final long mConnectTimeoutMs;
+
+    public ReconnectPolicy() {
+        this(DEFAULT_INITIAL_DELAY_MS, DEFAULT_MAX_DELAY_MS, DEFAULT_DIRECT_ATTEMPTS);
+    }
+
+    public ReconnectPolicy(long initialDelayMs, long maxDelayMs, int directAttempts) {
+        this(initialDelayMs, maxDelayMs, directAttempts, DEFAULT_CONNECT_TIMEOUT_MS);
+    }
+
+    public ReconnectPolicy(long initialDelayMs, long maxDelayMs, int directAttempts, long connectTimeoutMs) {
+        if(initialDelayMs < 0 || maxDelayMs < initialDelayMs || directAttempts < 0 || connectTimeoutMs <= 0) {
+            throw new IllegalArgumentException("Bad reconnect policy " + initialDelayMs + "/" + maxDelayMs + "/"
+                    + directAttempts + "/" + connectTimeoutMs);
+        }
+        mInitialDelayMs = initialDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mDirectAttempts = directAttempts;
+        mConnectTimeoutMs = connectTimeoutMs;
+    }
+
+    /**
+     * Delay before direct attempt number attempt (0 based), or AUTO_CONNECT once there have
+     * been getDirectAttempts() of them.
+     */
+    public long delayForAttempt(int attempt) {
+        if(attempt >= mDirectAttempts) {
+            return AUTO_CONNECT;
+        }
+
+        long delay = mInitialDelayMs;
+        for(int i = 0; i < attempt && delay < mMaxDelayMs; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, mMaxDelayMs);
+    }
+
+    public long getInitialDelayMs() {
+        return mInitialDelayMs;
+    }
+
+    public long getMaxDelayMs() {
+        return mMaxDelayMs;
+    }
+
+    public int getDirectAttempts() {
+        return mDirectAttempts;
+    }
+
+    /**
+     * How long one direct attempt may take to connect.
+     */
+    public long getConnectTimeoutMs() {
+        return mConnectTimeoutMs;
+    }
+
+    @Override
+    public String toString() {
+        return "ReconnectPolicy(" + mInitialDelayMs + "-" + mMaxDelayMs + " ms, " + mDirectAttempts + " direct attempts of "
+                + mConnectTimeoutMs + " ms)";
+    }
+}
@@ -0,0 +1,113 @@
+package zac.org.disruptivelights;
+
+/**
+ * Reconnect bookkeeping of one link: how often it dropped, how many attempts it took to
+ * get back, how long from the drop until it was ready again, and how often the cached
+ * services let it skip discovery.
+ */
+public class ReconnectStats {
+    private static final long NOT_DROPPED = -1;
+
+    private long mDroppedAt = NOT_DROPPED;
+    private long mDrops;
+    private long mAttempts;
+    private long mReconnects;
+    private long mCachedServiceHits;
+    private long mDiscoveries;
+    private long mLastReconnectMs;
+    private long mTotalReconnectMs;
+    private long mMaxReconnectMs;
+
+    /**
+     * The link went down without being asked to. Only the first drop of a series counts,
+     * failed attempts that follow it do not restart the clock.
+     */
+    public synchronized void onDrop(long now) {
+        if(mDroppedAt == NOT_DROPPED) {
+            mDroppedAt = now;
+            mDrops++;
+        }
+    }
+
+    public synchronized void onAttempt() {
+        mAttempts++;
+    }
+
+    /**
+     * Services found, either from the cache or by a full discovery.
+     */
+    public synchronized void onServices(boolean cached) {
+        if(cached) {
+            mCachedServiceHits++;
+        } else {
+            mDiscoveries++;
+        }
+    }
+
+    /**
+     * The link is ready, which ends a reconnect if there was a drop.
+     */
+    public synchronized void onReady(long now) {
+        if(mDroppedAt == NOT_DROPPED) {
+            return;
+        }
+
+        mLastReconnectMs = now - mDroppedAt;
+        mTotalReconnectMs += mLastReconnectMs;
+        if(mLastReconnectMs > mMaxReconnectMs) {
+            mMaxReconnectMs = mLastReconnectMs;
+        }
+        mReconnects++;
+        mDroppedAt = NOT_DROPPED;
+    }
+
+    /**
+     * Stop timing a reconnect, e.g. because the link was closed instead.
+     */
+    public synchronized void cancel() {
+        mDroppedAt = NOT_DROPPED;
+    }
+
+    public synchronized boolean isReconnecting() {
+        return mDroppedAt != NOT_DROPPED;
+    }
+
+    public synchronized long getDropCount() {
+        return mDrops;
+    }
+
+    public synchronized long getAttemptCount() {
+        return mAttempts;
+    }
+
+    public synchronized long getReconnectCount() {
+        return mReconnects;
+    }
+
+    public synchronized long getCachedServiceHits() {
+        return mCachedServiceHits;
+    }
+
+    public synchronized long getDiscoveryCount() {
+        return mDiscoveries;
+    }
+
+    public synchronized long getLastReconnectMs() {
+        return mLastReconnectMs;
+    }
+
+    public synchronized long getMeanReconnectMs() {
+        return mReconnects == 0 ? 0 : mTotalReconnectMs / mReconnects;
+    }
+
+    public synchronized long getMaxReconnectMs() {
+        return mMaxReconnectMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ReconnectStats(drops=" + mDrops + ", attempts=" + mAttempts + ", reconnects=" + mReconnects
+                + ", cachedServices=" + mCachedServiceHits + ", discoveries=" + mDiscoveries
+                + ", lastMs=" + mLastReconnectMs + ", meanMs=" + getMeanReconnectMs() + ", maxMs=" + mMaxReconnectMs + ")";
+    }
+}
@@ -0,0 +1,504 @@
+package zac.org.disruptivelights;
+
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.Future;
+
+/**
+ * Everything BtLeScanService does apart from being an Android service: runs scan windows
+ * on a BleScanner as the ScanScheduler says, keeps every device heard in a DeviceRegistry,
+ * ranks them in a ProximityIndex, coalesces their updates, notices when they go quiet and
+ * publishes all of it on a BleEventBus.
+ *
+ * Radio, timers and clock are all handed in, so the same code runs against the phone's
+ * Bluetooth stack and against BleSimulator on a plain JVM.
+ */
+public class ScanEngine {
+    /**
+     * Called once, on the scan callback thread, for the first advertisement that passes
+     * the filter given to startFilteredScan().
+     */
+    public interface FilterMatchListener {
+        void onFilterMatch(String address, int rssi, byte[] scanRecord);
+    }
+
+    public static final long OUT_OF_RANGE_AFTER_MS = 60000;
+    public static final long OUT_OF_RANGE_CHECK_MS = 1000;
+
+    private static final int STATE_STOPPED = 1;
+    private static final int STATE_RUNNING = 2;
+
+    private final BleScanner mScanner;
+    private final BleScheduler mScheduler;
+    private final MonotonicClock mClock;
+    private final BleEventBus mEventBus;
+    private volatile DeviceCache mDeviceCache;
+    private volatile UUID mCachedService;
+
+    private final Object mMatchLock = new Object();
+    private volatile AdvertisementFilter mMatchFilter;
+    private FilterMatchListener mMatchListener; //guarded by mMatchLock
+
+    private volatile int mScanState = STATE_STOPPED;
+
+    //Starting and stopping the radio, and the timers that do it, all run on mScheduler
+    private boolean mCurrentlyScanning;
+    private Future<?> mAutoStopFuture;
+    private Future<?> mNextScanFuture;
+    private final ScanScheduler mScanScheduler;
+
+    //Everything below is guarded by mDevices, written from the scan callback thread and read from mScheduler
+    private final DeviceRegistry mDevices = new DeviceRegistry();
+    private final ScanRecordParser mScanRecord = new ScanRecordParser();
+    private final ExpiryWheel mExpiryWheel;
+    private int mNewDevicesInWindow;
+    private boolean mExpiryCheckPosted;
+    private final ArrayList<String> mGoneAddresses = new ArrayList<String>();
+    private long mAdvertisements;
+
+    //Counted above as part of the work anyway and handed to Metrics from the timers, so
+    //recording costs the scan callback nothing
+    private final Metrics.Counter mAdvertisementCounter = Metrics.getInstance().counter(Metrics.SCAN_ADVERTISEMENTS);
+    private final Metrics.Counter mCoalescedCounter = Metrics.getInstance().counter(Metrics.SCAN_UPDATES_COALESCED);
+    private final Metrics.Counter mGoneCounter = Metrics.getInstance().counter(Metrics.SCAN_DEVICES_GONE);
+    private long mPublishedAdvertisements;
+    private long mPublishedCoalesced;
+
+    //One change buffer per thread that updates the index
+    private final ProximityIndex mProximity = new ProximityIndex();
+    private final ProximityIndex.Changes mScanChanges = new ProximityIndex.Changes();
+    private final ProximityIndex.Changes mExpiryChanges = new ProximityIndex.Changes();
+
+    //Known devices go out in batches from mScheduler, not per advertisement
+    private final UpdateCoalescer mUpdates = new UpdateCoalescer();
+    private boolean mUpdateFlushPosted;
+
+    private final ExpiryWheel.Owner mExpiryOwner = new ExpiryWheel.Owner() {
+        @Override
+        public long onDeadline(long key, long now) {
+            final int slot = mDevices.find(key);
+            if(slot == DeviceRegistry.NOT_FOUND) {
+                return ExpiryWheel.EXPIRED;
+            }
+
+            final long deadline = mDevices.lastSeenAt(slot) + OUT_OF_RANGE_AFTER_MS;
+            if(deadline > now) {
+                return deadline;
+            }
+
+            mGoneAddresses.add(mDevices.addressAt(slot));
+            mProximity.remove(mDevices, slot, mExpiryChanges);
+            mDevices.remove(key);
+            return ExpiryWheel.EXPIRED;
+        }
+    };
+
+    private final Runnable mExpiryCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            findOutOfRangeDevices();
+        }
+    };
+
+    private final Runnable mUpdateFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushDeviceUpdates();
+        }
+    };
+
+    private final BleScanner.Callback mScanCallback = new BleScanner.Callback() {
+        @Override
+        public void onAdvertisement(String address, int rssi, byte[] scanRecord) {
+            onScanResult(address, rssi, scanRecord);
+        }
+    };
+
+    private final Runnable mAutoStopRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mAutoStopFuture = null;
+            final long idleMs = endWindow();
+            if(idleMs == ScanScheduler.STOP) {
+                mScanState = STATE_STOPPED;
+            } else {
+                scheduleNextScan(idleMs);
+            }
+        }
+    };
+
+    private final Runnable mNextScanRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mNextScanFuture = null;
+            if(mScanState == STATE_RUNNING) {
+                startWindow();
+            }
+        }
+    };
+
+    private final Runnable mStartRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if(mScanState == STATE_RUNNING && !mCurrentlyScanning && !startWindow()) {
+                mScanState = STATE_STOPPED;
+            }
+        }
+    };
+
+    private final Runnable mStopRunnable = new Runnable() {
+        @Override
+        public void run() {
+            cancel(mAutoStopFuture);
+            mAutoStopFuture = null;
+            cancel(mNextScanFuture);
+            mNextScanFuture = null;
+
+            //Close the window that was open, an idle gap just ends
+            if(mCurrentlyScanning) {
+                endWindow();
+            }
+        }
+    };
+
+    public ScanEngine(BleScanner scanner, BleScheduler scheduler, MonotonicClock clock, BleEventBus eventBus) {
+        mScanner = scanner;
+        mScheduler = scheduler;
+        mClock = clock;
+        mEventBus = eventBus;
+        mScanScheduler = new ScanScheduler(clock);
+        mExpiryWheel = new ExpiryWheel(OUT_OF_RANGE_AFTER_MS, OUT_OF_RANGE_CHECK_MS, clock.now());
+        mDevices.setProximityIndex(mProximity);
+    }
+
+    /**
+     * Devices that advertise service, the lights, get recorded in cache, at most once every
+     * DeviceCache.SEEN_WRITE_INTERVAL_MS each. Everything else heard is left out, phones
+     * and the like keep changing their address. null for no cache.
+     */
+    public void setDeviceCache(DeviceCache cache, UUID service) {
+        mCachedService = service;
+        mDeviceCache = cache;
+    }
+
+    public DeviceCache getDeviceCache() {
+        return mDeviceCache;
+    }
+
+    /**
+     * Start scanning using whatever mode was set on getScanScheduler(). The radio is
+     * started on the scheduler, onScanStarted() tells when it actually is. False if
+     * already scanning or there is no radio.
+     */
+    public boolean startScan() {
+        if(mScanState == STATE_RUNNING || !mScanner.isAvailable()) {
+            return false;
+        }
+
+        mScanState = STATE_RUNNING;
+        mScheduler.post(BleWorker.OP_SCAN, mStartRunnable);
+        return true;
+    }
+
+    /**
+     * False if it was not scanning.
+     */
+    public boolean stopScanning() {
+        if(mScanState == STATE_STOPPED) {
+            return false;
+        }
+
+        mScanState = STATE_STOPPED;
+        mScheduler.post(BleWorker.OP_SCAN, mStopRunnable);
+        return true;
+    }
+
+    public boolean isScanning() {
+        return mScanState == STATE_RUNNING;
+    }
+
+    /**
+     * Like startScan(), but listener is called for the first advertisement matching filter.
+     * Does not stop the scan by itself. Replaces any filter still waiting for a match.
+     */
+    public boolean startFilteredScan(AdvertisementFilter filter, FilterMatchListener listener) {
+        synchronized(mMatchLock) {
+            mMatchListener = listener;
+            mMatchFilter = filter;
+        }
+
+        if(mScanState == STATE_RUNNING) {
+            //Already scanning, the filter applies from the next advertisement
+            return true;
+        }
+        return startScan();
+    }
+
+    public void cancelFilteredScan() {
+        synchronized(mMatchLock) {
+            mMatchFilter = null;
+            mMatchListener = null;
+        }
+    }
+
+    /**
+     * Fill addresses and rssi with up to max of the nearest devices by smoothed RSSI, nearest
+     * first, and return how many that were.
+     */
+    public int getNearest(int max, String[] addresses, int[] rssi) {
+        synchronized(mDevices) {
+            return mProximity.getNearest(max, addresses, rssi);
+        }
+    }
+
+    /**
+     * 0 for the nearest device in range, ProximityIndex.NOT_RANKED if address is not in range.
+     */
+    public int getProximityRank(String address) {
+        final long key = DeviceRegistry.parseAddress(address);
+        synchronized(mDevices) {
+            final int slot = mDevices.find(key);
+            return slot == DeviceRegistry.NOT_FOUND ? ProximityIndex.NOT_RANKED : mDevices.rankAt(slot);
+        }
+    }
+
+    /**
+     * Smoothed RSSI of address, or 0 if it is not in range.
+     */
+    public int getSmoothedRssi(String address) {
+        final long key = DeviceRegistry.parseAddress(address);
+        synchronized(mDevices) {
+            final int slot = mDevices.find(key);
+            return slot == DeviceRegistry.NOT_FOUND ? 0 : mDevices.smoothedRssiAt(slot);
+        }
+    }
+
+    /**
+     * Devices currently in range.
+     */
+    public int getDeviceCount() {
+        synchronized(mDevices) {
+            return mDevices.size();
+        }
+    }
+
+    /**
+     * Advertisements received since this was created.
+     */
+    public long getAdvertisementCount() {
+        synchronized(mDevices) {
+            return mAdvertisements;
+        }
+    }
+
+    /**
+     * Minimum interval, RSSI threshold and batch interval for onDeviceUpdates() live here,
+     * along with how many advertisements came in and how many updates went out.
+     */
+    public UpdateCoalescer getUpdateCoalescer() {
+        return mUpdates;
+    }
+
+    /**
+     * Scan mode, window and interval live here. Changes apply from the next window.
+     */
+    public ScanScheduler getScanScheduler() {
+        return mScanScheduler;
+    }
+
+    //On the scanner's callback thread
+    private void onScanResult(String address, int rssi, byte[] scanRecord) {
+        final long key = DeviceRegistry.parseAddress(address);
+        if(key == DeviceRegistry.NO_ADDRESS) {
+            return;
+        }
+
+        final TraceRecorder trace = TraceRecorder.getActive();
+        if(trace != null) {
+            trace.advertisement(key, rssi, scanRecord);
+        }
+
+        final boolean isNew;
+        String name;
+        boolean cacheIt = false;
+        FilterMatchListener matchListener = null;
+        synchronized(mDevices) {
+            mAdvertisements++;
+            mScanRecord.reset(scanRecord);
+
+            //Before anything else, somebody may be waiting on exactly this advertisement
+            if(mMatchFilter != null) {
+                matchListener = takeMatchListener(key);
+            }
+
+            final long now = mClock.now();
+            final int result = mDevices.put(key, address, null, rssi, now);
+            final int slot = DeviceRegistry.slotOf(result);
+            isNew = DeviceRegistry.isNew(result);
+            if(isNew) {
+                mExpiryWheel.schedule(key, now + OUT_OF_RANGE_AFTER_MS);
+                mNewDevicesInWindow++;
+                if(!mExpiryCheckPosted) {
+                    mExpiryCheckPosted = true;
+                    mScheduler.postDelayed(BleWorker.OP_OTHER, mExpiryCheckRunnable, OUT_OF_RANGE_CHECK_MS);
+                }
+            }
+            mDevices.setAdvertisementAt(slot, mScanRecord);
+            name = mDevices.nameAt(slot);
+            if(mDeviceCache != null && now - mDevices.cachedAt(slot) >= DeviceCache.SEEN_WRITE_INTERVAL_MS
+                    && mScanRecord.hasServiceUuid(mCachedService)) {
+                mDevices.setCachedAt(slot, now);
+                cacheIt = true;
+            }
+            mProximity.update(mDevices, slot, mScanChanges);
+
+            if(!isNew && mUpdates.offer(mDevices, slot) && !mUpdateFlushPosted) {
+                mUpdateFlushPosted = true;
+                mScheduler.postDelayed(BleWorker.OP_OTHER, mUpdateFlushRunnable, mUpdates.getBatchIntervalMs());
+            }
+        }
+
+        if(isNew) {
+            //getName() may be a binder call: once per device, and not holding mDevices so the
+            //timers and other callbacks do not wait on it
+            name = mScanner.getName(address);
+            synchronized(mDevices) {
+                final int slot = mDevices.find(key);
+                if(slot != DeviceRegistry.NOT_FOUND && mDevices.nameAt(slot) == null) {
+                    mDevices.setNameAt(slot, name);
+                }
+            }
+        }
+
+        final DeviceCache cache = mDeviceCache;
+        if(cacheIt && cache != null) {
+            cache.postSeen(key, name, rssi, System.currentTimeMillis());
+        }
+
+        if(matchListener != null) {
+            matchListener.onFilterMatch(address, rssi, scanRecord);
+        }
+
+        if(isNew) {
+            mEventBus.postDeviceNew(address, name, rssi);
+        }
+
+        //Only this thread touches mScanChanges outside the lock
+        if(mScanChanges.size() > 0) {
+            mEventBus.postProximityChanges(mScanChanges);
+            mScanChanges.clear();
+        }
+    }
+
+    //Everything from here on runs on mScheduler:
+
+    private boolean startWindow() {
+        if(mCurrentlyScanning || !mScanner.startScan(mScanCallback)) {
+            return false;
+        }
+        mCurrentlyScanning = true;
+        mScanScheduler.onWindowStart();
+        mEventBus.postScanStarted();
+
+        mAutoStopFuture = mScheduler.postDelayed(BleWorker.OP_SCAN, mAutoStopRunnable, mScanScheduler.getWindowMs());
+        return true;
+    }
+
+    //Stop the radio if it is on and tell the scheduler, returns what it wants next
+    private long endWindow() {
+        if(mCurrentlyScanning) {
+            mScanner.stopScan(mScanCallback);
+            mCurrentlyScanning = false;
+            mEventBus.postScanStopped();
+        }
+
+        final int newDevices;
+        synchronized(mDevices) {
+            newDevices = mNewDevicesInWindow;
+            mNewDevicesInWindow = 0;
+        }
+
+        return mScanScheduler.onWindowEnd(newDevices);
+    }
+
+    private static void cancel(Future<?> future) {
+        if(future != null) {
+            future.cancel(false);
+        }
+    }
+
+    private void scheduleNextScan(long idleMs) {
+        if(mScanState != STATE_RUNNING) {
+            return;
+        }
+        mNextScanFuture = mScheduler.postDelayed(BleWorker.OP_SCAN, mNextScanRunnable, idleMs);
+    }
+
+    //mDevices must be held, mScanRecord is reset to the advertisement
+    private FilterMatchListener takeMatchListener(long key) {
+        synchronized(mMatchLock) {
+            final AdvertisementFilter filter = mMatchFilter;
+            if(filter == null || !filter.matches(key, mScanRecord)) {
+                return null;
+            }
+
+            final FilterMatchListener listener = mMatchListener;
+            mMatchFilter = null;
+            mMatchListener = null;
+            return listener;
+        }
+    }
+
+    //Runs every OUT_OF_RANGE_CHECK_MS for as long as any device is tracked
+    private void findOutOfRangeDevices() {
+        synchronized(mDevices) {
+            mExpiryWheel.advance(mClock.now(), mExpiryOwner);
+            publishMetrics();
+
+            if(mExpiryWheel.size() > 0) {
+                mScheduler.postDelayed(BleWorker.OP_OTHER, mExpiryCheckRunnable, OUT_OF_RANGE_CHECK_MS);
+            } else {
+                mExpiryCheckPosted = false;
+            }
+        }
+
+        mGoneCounter.add(mGoneAddresses.size());
+        for(int i = 0; i < mGoneAddresses.size(); i++) {
+            mEventBus.postDeviceGone(mGoneAddresses.get(i));
+        }
+        mGoneAddresses.clear();
+
+        if(mExpiryChanges.size() > 0) {
+            mEventBus.postProximityChanges(mExpiryChanges);
+            mExpiryChanges.clear();
+        }
+    }
+
+    //Runs every batch interval for as long as any update is pending
+    private void flushDeviceUpdates() {
+        final UpdateCoalescer.Batch batch;
+        synchronized(mDevices) {
+            batch = mUpdates.flush(mDevices, mClock.now());
+            publishMetrics();
+
+            if(mUpdates.hasPending()) {
+                mScheduler.postDelayed(BleWorker.OP_OTHER, mUpdateFlushRunnable, mUpdates.getBatchIntervalMs());
+            } else {
+                mUpdateFlushPosted = false;
+            }
+        }
+
+        if(batch != null) {
+            mEventBus.postDeviceUpdates(batch);
+        }
+    }
+
+    //mDevices must be held
+    private void publishMetrics() {
+        mAdvertisementCounter.add(mAdvertisements - mPublishedAdvertisements);
+        mPublishedAdvertisements = mAdvertisements;
+        final long coalesced = mUpdates.getCoalescedCount();
+        mCoalescedCounter.add(coalesced - mPublishedCoalesced);
+        mPublishedCoalesced = coalesced;
+    }
+}
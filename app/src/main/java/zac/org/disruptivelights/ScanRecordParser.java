@@ -0,0 +1,220 @@
+package zac.org.disruptivelights;
+
+import java.util.UUID;
+
+/**
+ * Flyweight cursor over the AD structures of a raw advertisement (the scanRecord handed
+ * to onLeScan). reset() points it at a record, next() steps from structure to structure
+ * and the accessors read straight out of the backing array, so one instance can be
+ * reused for every advertisement without allocating.
+ *
+ * The find/has helpers rewind and walk the whole record themselves. Not thread safe.
+ */
+public class ScanRecordParser {
+    //AD structure types from the Bluetooth assigned numbers
+    public static final int AD_FLAGS = 0x01;
+    public static final int AD_UUID16_INCOMPLETE = 0x02;
+    public static final int AD_UUID16_COMPLETE = 0x03;
+    public static final int AD_UUID32_INCOMPLETE = 0x04;
+    public static final int AD_UUID32_COMPLETE = 0x05;
+    public static final int AD_UUID128_INCOMPLETE = 0x06;
+    public static final int AD_UUID128_COMPLETE = 0x07;
+    public static final int AD_NAME_SHORT = 0x08;
+    public static final int AD_NAME_COMPLETE = 0x09;
+    public static final int AD_TX_POWER = 0x0A;
+    public static final int AD_SERVICE_DATA16 = 0x16;
+    public static final int AD_MANUFACTURER_DATA = 0xFF;
+
+    public static final int NO_TX_POWER = Integer.MIN_VALUE;
+    public static final int NO_MANUFACTURER = -1;
+
+    private byte[] mRecord;
+    private int mStart;
+    private int mEnd;
+
+    private int mNext;
+    private int mType;
+    private int mDataOffset;
+    private int mDataLength;
+
+    public ScanRecordParser reset(byte[] record) {
+        return reset(record, 0, record == null ? 0 : record.length);
+    }
+
+    public ScanRecordParser reset(byte[] record, int offset, int length) {
+        mRecord = record;
+        mStart = offset;
+        mEnd = offset + length;
+        rewind();
+        return this;
+    }
+
+    public void rewind() {
+        mNext = mStart;
+        mType = -1;
+        mDataOffset = mStart;
+        mDataLength = 0;
+    }
+
+    /**
+     * Move to the next AD structure. Returns false at the end of the record, at the zero
+     * padding Android leaves after the data, or at a structure that runs past the end.
+     */
+    public boolean next() {
+        if(mRecord == null || mNext >= mEnd) {
+            return false;
+        }
+
+        final int length = mRecord[mNext] & 0xFF;
+        if(length == 0 || mNext + 1 + length > mEnd) {
+            mNext = mEnd;
+            return false;
+        }
+
+        mType = mRecord[mNext + 1] & 0xFF;
+        mDataOffset = mNext + 2;
+        mDataLength = length - 1;
+        mNext += 1 + length;
+        return true;
+    }
+
+    public int type() {
+        return mType;
+    }
+
+    /**
+     * Backing array, read dataLength() bytes from dataOffset().
+     */
+    public byte[] buffer() {
+        return mRecord;
+    }
+
+    public int dataOffset() {
+        return mDataOffset;
+    }
+
+    public int dataLength() {
+        return mDataLength;
+    }
+
+    public int dataByte(int index) {
+        return mRecord[mDataOffset + index] & 0xFF;
+    }
+
+    /**
+     * Little endian 16 bit value at index within the current structure's data.
+     */
+    public int dataUint16(int index) {
+        return dataByte(index) | (dataByte(index + 1) << 8);
+    }
+
+    public boolean dataStartsWith(int index, byte[] prefix) {
+        if(mDataLength - index < prefix.length) {
+            return false;
+        }
+        final int offset = mDataOffset + index;
+        for(int i = 0; i < prefix.length; i++) {
+            if(mRecord[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rewind and stop at the first structure of the given type.
+     */
+    public boolean find(int type) {
+        rewind();
+        while(next()) {
+            if(mType == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean hasServiceUuid16(int uuid16) {
+        rewind();
+        while(next()) {
+            if(mType == AD_UUID16_INCOMPLETE || mType == AD_UUID16_COMPLETE) {
+                for(int i = 0; i + 1 < mDataLength; i += 2) {
+                    if(dataUint16(i) == uuid16) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether uuid is in any of the advertised service UUID lists. UUIDs on the Bluetooth
+     * base UUID are also found in the 16 and 32 bit lists. Compared against the raw bytes,
+     * no UUID is made out of the record.
+     */
+    public boolean hasServiceUuid(UUID uuid) {
+        rewind();
+        while(next()) {
+            final int size = serviceUuidSize(mType);
+            if(size == 0) {
+                continue;
+            }
+            for(int i = 0; i + size <= mDataLength; i += size) {
+                if(BleUuids.matches(mRecord, mDataOffset + i, size, uuid)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    //Bytes per UUID in a service UUID list of the given AD type, 0 if it is not one
+    private static int serviceUuidSize(int type) {
+        switch(type) {
+            case AD_UUID16_INCOMPLETE:
+            case AD_UUID16_COMPLETE:
+                return 2;
+            case AD_UUID32_INCOMPLETE:
+            case AD_UUID32_COMPLETE:
+                return 4;
+            case AD_UUID128_INCOMPLETE:
+            case AD_UUID128_COMPLETE:
+                return 16;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Advertised TX power level in dBm, or NO_TX_POWER.
+     */
+    public int txPower() {
+        if(find(AD_TX_POWER) && mDataLength >= 1) {
+            return mRecord[mDataOffset];
+        }
+        return NO_TX_POWER;
+    }
+
+    /**
+     * Company identifier of the first manufacturer specific data, or NO_MANUFACTURER.
+     * When found the cursor is left on that structure, the company specific part
+     * starts at data index 2.
+     */
+    public int manufacturerId() {
+        if(find(AD_MANUFACTURER_DATA) && mDataLength >= 2) {
+            return dataUint16(0);
+        }
+        return NO_MANUFACTURER;
+    }
+
+    public boolean localNameStartsWith(byte[] prefix) {
+        rewind();
+        while(next()) {
+            if((mType == AD_NAME_SHORT || mType == AD_NAME_COMPLETE) && dataStartsWith(0, prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
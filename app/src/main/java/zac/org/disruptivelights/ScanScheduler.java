@@ -0,0 +1,188 @@
+package zac.org.disruptivelights;
+
+/**
+ * Decides how long each scan window lasts and how long the radio rests in between.
+ *
+ *   MODE_SINGLE      one window, then stop (the original behaviour)
+ *   MODE_CONTINUOUS  back to back windows, restarted every window so the stack keeps reporting
+ *   MODE_DUTY_CYCLED fixed window every fixed interval
+ *   MODE_ADAPTIVE    windows grow and rests shrink while new devices keep turning up,
+ *                    and the other way round once nothing new has been seen for a while
+ *
+ * The owner calls onWindowStart() / onWindowEnd() and does the actual radio work, so the
+ * same logic can be stepped with a VirtualClock to compare radio time against discovery
+ * latency off-device.
+ *
+ * Android 7 and later quietly stops delivering results to an app that starts more than 5
+ * scans in 30 s, so windows never start closer than MIN_START_INTERVAL_MS apart.
+ */
+public class ScanScheduler {
+    public static final int MODE_SINGLE = 0;
+    public static final int MODE_CONTINUOUS = 1;
+    public static final int MODE_DUTY_CYCLED = 2;
+    public static final int MODE_ADAPTIVE = 3;
+
+    public static final long STOP = -1;
+
+    //5 starts in 30 s is the most Android 7+ allows
+    public static final long MIN_START_INTERVAL_MS = 6000;
+
+    public static final long DEFAULT_WINDOW_MS = 2000;
+    public static final long DEFAULT_INTERVAL_MS = 10000;
+    public static final long CONTINUOUS_WINDOW_MS = 30000;
+    public static final long ADAPTIVE_MIN_WINDOW_MS = 1000;
+    public static final long ADAPTIVE_MAX_WINDOW_MS = 8000;
+    public static final long ADAPTIVE_MIN_IDLE_MS = 500;
+    public static final long ADAPTIVE_MAX_IDLE_MS = 30000;
+
+    private final MonotonicClock mClock;
+
+    private int mMode = MODE_SINGLE;
+    private long mWindowMs = DEFAULT_WINDOW_MS;
+    private long mIntervalMs = DEFAULT_INTERVAL_MS;
+    private long mMinWindowMs = ADAPTIVE_MIN_WINDOW_MS;
+    private long mMaxWindowMs = ADAPTIVE_MAX_WINDOW_MS;
+    private long mMinIdleMs = ADAPTIVE_MIN_IDLE_MS;
+    private long mMaxIdleMs = ADAPTIVE_MAX_IDLE_MS;
+
+    //Adaptive state
+    private long mAdaptiveWindowMs = ADAPTIVE_MIN_WINDOW_MS;
+    private long mAdaptiveIdleMs = ADAPTIVE_MIN_IDLE_MS;
+
+    private long mWindowStart = -1;
+    private long mFirstStart = -1;
+    private long mRadioOnMs;
+    private long mWindows;
+
+    public ScanScheduler(MonotonicClock clock) {
+        mClock = clock;
+    }
+
+    public synchronized int getMode() {
+        return mMode;
+    }
+
+    public synchronized void setSingle(long windowMs) {
+        mMode = MODE_SINGLE;
+        mWindowMs = windowMs;
+    }
+
+    public synchronized void setContinuous() {
+        mMode = MODE_CONTINUOUS;
+        mWindowMs = CONTINUOUS_WINDOW_MS;
+    }
+
+    /**
+     * Scan for windowMs out of every intervalMs, intervalMs is at least MIN_START_INTERVAL_MS.
+     */
+    public synchronized void setDutyCycled(long windowMs, long intervalMs) {
+        if(windowMs <= 0 || intervalMs < windowMs || intervalMs < MIN_START_INTERVAL_MS) {
+            throw new IllegalArgumentException("Need 0 < windowMs <= intervalMs and intervalMs >= " + MIN_START_INTERVAL_MS);
+        }
+        mMode = MODE_DUTY_CYCLED;
+        mWindowMs = windowMs;
+        mIntervalMs = intervalMs;
+    }
+
+    public synchronized void setAdaptive(long minWindowMs, long maxWindowMs, long minIdleMs, long maxIdleMs) {
+        if(minWindowMs <= 0 || maxWindowMs < minWindowMs || minIdleMs < 0 || maxIdleMs < minIdleMs) {
+            throw new IllegalArgumentException("Bad adaptive limits");
+        }
+        mMode = MODE_ADAPTIVE;
+        mMinWindowMs = minWindowMs;
+        mMaxWindowMs = maxWindowMs;
+        mMinIdleMs = minIdleMs;
+        mMaxIdleMs = maxIdleMs;
+        mAdaptiveWindowMs = minWindowMs;
+        mAdaptiveIdleMs = minIdleMs;
+    }
+
+    /**
+     * How long the window about to start should last.
+     */
+    public synchronized long getWindowMs() {
+        return mMode == MODE_ADAPTIVE ? mAdaptiveWindowMs : mWindowMs;
+    }
+
+    public synchronized void onWindowStart() {
+        mWindowStart = mClock.now();
+        if(mFirstStart < 0) {
+            mFirstStart = mWindowStart;
+        }
+    }
+
+    /**
+     * The current window is over and newDevices devices were seen for the first time in it.
+     * Returns how long to rest before the next window, or STOP. The rest is stretched so the
+     * next window starts at least MIN_START_INTERVAL_MS after this one did.
+     */
+    public synchronized long onWindowEnd(int newDevices) {
+        final long now = mClock.now();
+        final long sinceStart = mWindowStart >= 0 ? now - mWindowStart : 0;
+        final long restMs = nextRestMs(newDevices);
+        if(mWindowStart >= 0) {
+            mRadioOnMs += now - mWindowStart;
+            mWindows++;
+            mWindowStart = -1;
+        }
+        return restMs == STOP ? STOP : Math.max(restMs, MIN_START_INTERVAL_MS - sinceStart);
+    }
+
+    private long nextRestMs(int newDevices) {
+        switch(mMode) {
+            case MODE_CONTINUOUS:
+                return 0;
+
+            case MODE_DUTY_CYCLED:
+                return mIntervalMs - mWindowMs;
+
+            case MODE_ADAPTIVE:
+                if(newDevices > 0) {
+                    //Things are changing, listen longer and come back sooner
+                    mAdaptiveWindowMs = Math.min(mAdaptiveWindowMs * 2, mMaxWindowMs);
+                    mAdaptiveIdleMs = mMinIdleMs;
+                } else {
+                    //Quiet, back off
+                    mAdaptiveWindowMs = Math.max(mAdaptiveWindowMs / 2, mMinWindowMs);
+                    mAdaptiveIdleMs = Math.min(Math.max(mAdaptiveIdleMs * 2, 1), mMaxIdleMs);
+                }
+                return mAdaptiveIdleMs;
+
+            default:
+                return STOP;
+        }
+    }
+
+    /**
+     * Forget the radio time statistics, the adaptive state is kept.
+     */
+    public synchronized void resetStatistics() {
+        mFirstStart = -1;
+        mRadioOnMs = 0;
+        mWindows = 0;
+    }
+
+    public synchronized long getRadioOnMs() {
+        return mRadioOnMs;
+    }
+
+    public synchronized long getWindowCount() {
+        return mWindows;
+    }
+
+    /**
+     * Fraction of time the radio was scanning since the first window started.
+     */
+    public synchronized double getDutyCycle() {
+        if(mFirstStart < 0) {
+            return 0;
+        }
+        final long now = mClock.now();
+        long radioOn = mRadioOnMs;
+        if(mWindowStart >= 0) {
+            radioOn += now - mWindowStart;
+        }
+        final long elapsed = now - mFirstStart;
+        return elapsed <= 0 ? 1 : (double)radioOn / elapsed;
+    }
+}
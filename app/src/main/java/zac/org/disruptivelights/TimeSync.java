@@ -0,0 +1,194 @@
+package zac.org.disruptivelights;
+
+import java.util.HashMap;
+import java.util.concurrent.Future;
+
+/**
+ * Keeps a ClockEstimator per device and the probes going that feed it, so frames can be sent
+ * ahead of time with the moment to show them in the node's own clock (ClockSync scheduled
+ * packets). Every node then lights up at the same moment however long its writes took.
+ *
+ * A link that becomes ready gets a burst of BURST_PROBES probes to sync quickly, then one
+ * every PROBE_INTERVAL_MS to follow drift. Only nodes that answer probes are probed, see
+ * GattLink.hasClockSync(). After MAX_UNANSWERED_PROBES probes in a row without a reply the
+ * interval doubles with every further probe, up to MAX_PROBE_INTERVAL_MS, until one comes
+ * back. Probes are sent on the BleWorker and replies have to be handed to onLinkData().
+ * Phone time is nowUs() throughout.
+ */
+public class TimeSync {
+    public static final int BURST_PROBES = 8;
+    public static final long BURST_INTERVAL_MS = 50;
+    public static final long PROBE_INTERVAL_MS = 1000;
+    public static final int MAX_UNANSWERED_PROBES = 16;
+    public static final long MAX_PROBE_INTERVAL_MS = 60000;
+
+    private final BleWorker mWorker;
+    private final HashMap<String, ClockEstimator> mEstimators = new HashMap<String, ClockEstimator>();
+    private final HashMap<String, Prober> mProbers = new HashMap<String, Prober>();
+
+    public TimeSync() {
+        this(BleWorker.getInstance());
+    }
+
+    public TimeSync(BleWorker worker) {
+        mWorker = worker;
+    }
+
+    public static long nowUs() {
+        return System.nanoTime() / 1000;
+    }
+
+    /**
+     * Start syncing with link's device from scratch, it may have rebooted since we last saw it.
+     * Returns false, and stops any probing of the address, if the node does not answer probes.
+     */
+    public boolean start(GattLink link) {
+        if(!link.hasClockSync()) {
+            stop(link.getAddress());
+            return false;
+        }
+
+        final Prober prober = new Prober(link);
+        synchronized(this) {
+            mEstimators.put(link.getAddress(), new ClockEstimator());
+            final Prober old = mProbers.put(link.getAddress(), prober);
+            if(old != null) {
+                old.cancel();
+            }
+        }
+        prober.schedule(0);
+        return true;
+    }
+
+    /**
+     * Stop probing address. Its estimate stays, scheduled sends keep working until it is stale.
+     */
+    public synchronized void stop(String address) {
+        final Prober prober = mProbers.remove(address);
+        if(prober != null) {
+            prober.cancel();
+        }
+    }
+
+    public synchronized void stopAll() {
+        for(Prober prober : mProbers.values()) {
+            prober.cancel();
+        }
+        mProbers.clear();
+    }
+
+    /**
+     * Returns true if data was a probe reply and has been used, false if it is for someone else.
+     */
+    public boolean onLinkData(String address, byte[] data) {
+        if(!ClockSync.isReply(data)) {
+            return false;
+        }
+
+        final long nowUs = nowUs();
+        final ClockEstimator estimator = getEstimator(address);
+        if(estimator != null) {
+            estimator.onReply(data, nowUs);
+        }
+        return true;
+    }
+
+    /**
+     * Send one probe to link now.
+     */
+    public boolean probe(GattLink link) {
+        final ClockEstimator estimator = getEstimator(link.getAddress());
+        if(estimator == null || !link.isReady()) {
+            return false;
+        }
+        //Time spent in the write queue counts as round trip, the slow samples get filtered out
+        return link.send(estimator.probe(nowUs()), ClockSync.PROBE_COALESCE_KEY);
+    }
+
+    /**
+     * Send payload for link's device to apply at phone time presentAtUs. Returns false if
+     * the device is not synced yet or the write queue would not take it.
+     */
+    public boolean sendAt(GattLink link, byte[] payload, long presentAtUs, GattWriteQueue.FrameListener listener) {
+        final ClockEstimator estimator = getEstimator(link.getAddress());
+        if(estimator == null || !estimator.isSynced()) {
+            return false;
+        }
+        final byte[] packet = ClockSync.scheduled(estimator.toNodeTime(presentAtUs), payload);
+        return link.send(packet, GattWriteQueue.NO_COALESCE, listener);
+    }
+
+    public synchronized boolean isSynced(String address) {
+        final ClockEstimator estimator = mEstimators.get(address);
+        return estimator != null && estimator.isSynced();
+    }
+
+    /**
+     * The estimator of address, or null if it was never started.
+     */
+    public synchronized ClockEstimator getEstimator(String address) {
+        return mEstimators.get(address);
+    }
+
+    public synchronized void forget(String address) {
+        stop(address);
+        mEstimators.remove(address);
+    }
+
+    private class Prober implements Runnable {
+        private final GattLink mLink;
+        private int mSent;
+        private int mUnanswered; //probes sent since the estimator last took a sample
+        private long mSamples;
+        private volatile boolean mCancelled;
+        private volatile Future<?> mFuture;
+
+        Prober(GattLink link) {
+            mLink = link;
+        }
+
+        void schedule(long delayMs) {
+            mFuture = mWorker.postDelayed(BleWorker.OP_OTHER, this, delayMs);
+            //Cancelled while posting
+            if(mCancelled) {
+                mFuture.cancel(false);
+            }
+        }
+
+        void cancel() {
+            mCancelled = true;
+            final Future<?> future = mFuture;
+            if(future != null) {
+                future.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            if(mCancelled || !mLink.isReady()) {
+                return;
+            }
+
+            final ClockEstimator estimator = getEstimator(mLink.getAddress());
+            final long samples = estimator == null ? 0 : estimator.getSampleCount();
+            if(samples != mSamples) {
+                mSamples = samples;
+                mUnanswered = 0;
+            }
+            if(probe(mLink)) {
+                mSent++;
+                mUnanswered++;
+            }
+            schedule(nextDelayMs());
+        }
+
+        private long nextDelayMs() {
+            if(mUnanswered > MAX_UNANSWERED_PROBES) {
+                //The node went quiet, keep asking now and then in case it comes back
+                final int doublings = Math.min(mUnanswered - MAX_UNANSWERED_PROBES, 16);
+                return Math.min(PROBE_INTERVAL_MS << doublings, MAX_PROBE_INTERVAL_MS);
+            }
+            return mSent < BURST_PROBES ? BURST_INTERVAL_MS : PROBE_INTERVAL_MS;
+        }
+    }
+}
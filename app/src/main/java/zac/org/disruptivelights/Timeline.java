@@ -0,0 +1,69 @@
+package zac.org.disruptivelights;
+
+import java.util.ArrayList;
+
+/**
+ * A show: effects placed on a time line. At any time the cue added last among those
+ * running is drawn, nothing running means dark. Build it up front, it must not change
+ * while a TimelinePlayer plays it.
+ */
+public class Timeline {
+    private static class Cue {
+        final long mStartMs;
+        final long mEndMs;
+        final Effect mEffect;
+
+        Cue(long startMs, long endMs, Effect effect) {
+            mStartMs = startMs;
+            mEndMs = endMs;
+            mEffect = effect;
+        }
+    }
+
+    private final ArrayList<Cue> mCues = new ArrayList<Cue>();
+    private long mDurationMs;
+    private boolean mLooping;
+
+    public Timeline add(long startMs, long durationMs, Effect effect) {
+        if(startMs < 0 || durationMs <= 0 || effect == null) {
+            throw new IllegalArgumentException("Bad cue " + startMs + "+" + durationMs);
+        }
+        mCues.add(new Cue(startMs, startMs + durationMs, effect));
+        mDurationMs = Math.max(mDurationMs, startMs + durationMs);
+        return this;
+    }
+
+    /**
+     * Start over from 0 at the end instead of stopping.
+     */
+    public Timeline setLooping(boolean looping) {
+        mLooping = looping;
+        return this;
+    }
+
+    public boolean isLooping() {
+        return mLooping;
+    }
+
+    public long getDurationMs() {
+        return mDurationMs;
+    }
+
+    /**
+     * Draw the show at timeMs into frame. Effects get the time since their own start.
+     */
+    public void render(long timeMs, byte[] frame, int leds) {
+        if(mLooping && mDurationMs > 0) {
+            timeMs %= mDurationMs;
+        }
+
+        for(int i = mCues.size() - 1; i >= 0; i--) {
+            final Cue cue = mCues.get(i);
+            if(timeMs >= cue.mStartMs && timeMs < cue.mEndMs) {
+                cue.mEffect.render(timeMs - cue.mStartMs, frame, leds);
+                return;
+            }
+        }
+        Effects.fill(frame, leds, 0);
+    }
+}
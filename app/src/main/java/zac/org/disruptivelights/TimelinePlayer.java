@@ -0,0 +1,314 @@
+package zac.org.disruptivelights;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a Timeline at a fixed frame rate. A render thread draws frames ahead of time into a
+ * bounded pool of frame buffers, and a pacer thread hands frame n to the sink at
+ * start + n / fps. Frames are never sent late: a frame whose time has passed is dropped,
+ * and so is a frame due while the sink is still busy with earlier ones. Lag therefore
+ * never builds up; with delta encoding a skipped frame's changes simply arrive with the
+ * next one.
+ *
+ * Keeps achieved frame rate, pacer wake-up jitter and why frames were dropped.
+ */
+public class TimelinePlayer {
+    public static final int DEFAULT_FPS = 30;
+    public static final int DEFAULT_BUFFER_FRAMES = 8;
+
+    /**
+     * Where frames go, e.g. LightStateModel.sinkFor(link). Called on the pacer thread.
+     */
+    public interface FrameSink {
+        /**
+         * True while earlier frames are still on their way, the frame due now is dropped then.
+         */
+        boolean isBusy();
+
+        boolean send(byte[] frame);
+    }
+
+    private static class Frame {
+        long mIndex;
+        final byte[] mData;
+
+        Frame(int size) {
+            mData = new byte[size];
+        }
+    }
+
+    private final Timeline mTimeline;
+    private final int mLeds;
+    private final long mPeriodNs;
+    private final FrameSink mSink;
+
+    //Frames go free -> render thread -> ready -> pacer -> free
+    private final ArrayBlockingQueue<Frame> mFree;
+    private final ArrayBlockingQueue<Frame> mReady;
+
+    private volatile boolean mRunning;
+    private volatile long mDueIndex; //frame the pacer wants now, the renderer skips ahead to it
+    private long mStartNs;
+    private long mEndIndex;
+    private Thread mRenderThread;
+    private Thread mPacerThread;
+
+    //Written by the pacer thread only
+    private volatile long mSent;
+    private volatile long mLateDropped;
+    private volatile long mBusyDropped;
+    private volatile long mUnderruns;
+    private volatile long mSendFailures;
+    private volatile long mTicks;
+    private volatile long mJitterNsTotal;
+    private volatile long mJitterNsMax;
+    private volatile long mLastTickNs;
+
+    public TimelinePlayer(Timeline timeline, int leds, FrameSink sink) {
+        this(timeline, leds, DEFAULT_FPS, DEFAULT_BUFFER_FRAMES, sink);
+    }
+
+    public TimelinePlayer(Timeline timeline, int leds, int fps, int bufferFrames, FrameSink sink) {
+        if(leds < 1 || fps < 1 || fps > 1000 || bufferFrames < 1) {
+            throw new IllegalArgumentException("Bad player setup " + leds + " LEDs, " + fps + " fps, " + bufferFrames + " frames");
+        }
+        mTimeline = timeline;
+        mLeds = leds;
+        mPeriodNs = TimeUnit.SECONDS.toNanos(1) / fps;
+        mSink = sink;
+        mFree = new ArrayBlockingQueue<Frame>(bufferFrames);
+        mReady = new ArrayBlockingQueue<Frame>(bufferFrames);
+        for(int i = 0; i < bufferFrames; i++) {
+            mFree.add(new Frame(leds * 3));
+        }
+    }
+
+    public synchronized void start() {
+        if(mRunning) {
+            return;
+        }
+
+        //After a timeline played to its end the render thread may still be on its way out
+        if(mRenderThread != null) {
+            try {
+                mRenderThread.join();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            recycleReady();
+        }
+
+        mRunning = true;
+        mDueIndex = 0;
+        mEndIndex = mTimeline.isLooping() ? Long.MAX_VALUE : (TimeUnit.MILLISECONDS.toNanos(mTimeline.getDurationMs()) + mPeriodNs - 1) / mPeriodNs;
+        mStartNs = System.nanoTime() + mPeriodNs; //first frame one period from now, the renderer gets a head start
+        mLastTickNs = mStartNs;
+
+        mRenderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                render();
+            }
+        }, "TimelineRender");
+        mPacerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pace();
+            }
+        }, "TimelinePacer");
+        mRenderThread.setDaemon(true);
+        mPacerThread.setDaemon(true);
+        mRenderThread.start();
+        mPacerThread.start();
+    }
+
+    public void stop() {
+        final Thread render;
+        final Thread pacer;
+        synchronized(this) {
+            if(!mRunning) {
+                return;
+            }
+            mRunning = false;
+            render = mRenderThread;
+            pacer = mPacerThread;
+        }
+
+        render.interrupt();
+        pacer.interrupt();
+        try {
+            render.join();
+            pacer.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        recycleReady();
+    }
+
+    /**
+     * False once stopped or a non looping timeline played to its end.
+     */
+    public synchronized boolean isRunning() {
+        return mRunning && mPacerThread != null && mPacerThread.isAlive();
+    }
+
+    /**
+     * Wait up to timeoutMs for a non looping timeline to finish. Returns !isRunning().
+     */
+    public boolean await(long timeoutMs) throws InterruptedException {
+        final Thread pacer;
+        synchronized(this) {
+            pacer = mPacerThread;
+        }
+        if(pacer != null) {
+            pacer.join(timeoutMs);
+        }
+        return !isRunning();
+    }
+
+    public long getSentCount() {
+        return mSent;
+    }
+
+    /**
+     * Frames whose time had passed by the time the pacer got to them. Every frame of the
+     * timeline ends up sent, late, busy, an underrun or a send failure.
+     */
+    public long getLateDropCount() {
+        return mLateDropped;
+    }
+
+    /**
+     * Frames dropped because the sink was still busy.
+     */
+    public long getBusyDropCount() {
+        return mBusyDropped;
+    }
+
+    /**
+     * Ticks where the renderer had not drawn the due frame yet.
+     */
+    public long getUnderrunCount() {
+        return mUnderruns;
+    }
+
+    public long getSendFailureCount() {
+        return mSendFailures;
+    }
+
+    public double getAchievedFps() {
+        final long elapsedNs = mLastTickNs - mStartNs;
+        return elapsedNs <= 0 ? 0 : mSent * 1e9 / elapsedNs;
+    }
+
+    /**
+     * How late the pacer woke up for its ticks, on average and at worst.
+     */
+    public long getMeanJitterUs() {
+        final long ticks = mTicks;
+        return ticks == 0 ? 0 : mJitterNsTotal / ticks / 1000;
+    }
+
+    public long getMaxJitterUs() {
+        return mJitterNsMax / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return "TimelinePlayer(fps=" + String.format("%.1f", getAchievedFps()) + "/" + TimeUnit.SECONDS.toNanos(1) / mPeriodNs
+                + ", sent=" + mSent + ", late=" + mLateDropped + ", busy=" + mBusyDropped
+                + ", underruns=" + mUnderruns + ", failed=" + mSendFailures
+                + ", jitterUs=" + getMeanJitterUs() + "/" + getMaxJitterUs() + ")";
+    }
+
+    //Render thread: draw frames in order, never behind what the pacer already wants
+    private void render() {
+        long index = 0;
+        try {
+            while(mRunning && index < mEndIndex) {
+                final Frame frame = mFree.take();
+                index = Math.max(index, mDueIndex);
+                frame.mIndex = index;
+                mTimeline.render(TimeUnit.NANOSECONDS.toMillis(index * mPeriodNs), frame.mData, mLeds);
+                mReady.put(frame);
+                index++;
+            }
+        } catch(InterruptedException e) {
+            //stop()
+        }
+    }
+
+    //Pacer thread: one tick per period, on time or skipping ahead
+    private void pace() {
+        long index = 0;
+        while(mRunning && index < mEndIndex) {
+            final long deadline = mStartNs + index * mPeriodNs;
+            long now = System.nanoTime();
+            while(now < deadline) {
+                LockSupport.parkNanos(deadline - now);
+                if(!mRunning) {
+                    return;
+                }
+                now = System.nanoTime();
+            }
+
+            final long lateNs = now - deadline;
+            mTicks++;
+            mJitterNsTotal += lateNs;
+            if(lateNs > mJitterNsMax) {
+                mJitterNsMax = lateNs;
+            }
+
+            //Woke up more than a period late, the frames in between are gone
+            if(lateNs >= mPeriodNs) {
+                final long skipped = Math.min(lateNs / mPeriodNs, mEndIndex - 1 - index);
+                mLateDropped += skipped;
+                index += skipped;
+            }
+            mDueIndex = index;
+            tick(index);
+            mLastTickNs = now;
+            index++;
+        }
+
+        //Played to the end, the renderer may be waiting for room that will not come
+        mRunning = false;
+        mRenderThread.interrupt();
+    }
+
+    //Everything back to the free pool for the next start(), both threads must be gone
+    private void recycleReady() {
+        Frame frame;
+        while((frame = mReady.poll()) != null) {
+            mFree.add(frame);
+        }
+    }
+
+    private void tick(long index) {
+        //Stale frames were already counted, as skipped or as an underrun at their tick
+        Frame frame;
+        while((frame = mReady.peek()) != null && frame.mIndex < index) {
+            mReady.poll();
+            mFree.add(frame);
+        }
+
+        if(frame == null || frame.mIndex != index) {
+            mUnderruns++;
+            return;
+        }
+
+        mReady.poll();
+        if(mSink.isBusy()) {
+            mBusyDropped++;
+        } else if(mSink.send(frame.mData)) {
+            mSent++;
+        } else {
+            mSendFailures++;
+        }
+        mFree.add(frame);
+    }
+}
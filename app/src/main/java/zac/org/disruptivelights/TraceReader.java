@@ -0,0 +1,146 @@
+package zac.org.disruptivelights;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Walks the records of a file written by TraceRecorder, oldest first. next() moves to the
+ * next record and the getters describe it. Reading stops early at anything that does not
+ * look like a record.
+ *
+ * Not thread safe.
+ */
+public class TraceReader {
+    private final ByteBuffer mBuffer;
+    private final int mRingSize;
+    private final long mOldest;
+    private final long mEnd;
+    private final long mRecordCount;
+
+    private long mPosition; //of the next record
+    private int mAt = -1; //offset of the current record in mBuffer
+
+    /**
+     * Takes a look at file as it is now, a recorder still writing to it is not followed.
+     */
+    public TraceReader(File file) throws IOException {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            final FileChannel channel = raf.getChannel();
+            if(channel.size() < TraceRecorder.HEADER_SIZE) {
+                throw new IOException("Not a trace: " + file);
+            }
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            if(raf != null) {
+                raf.close();
+            }
+        }
+
+        mRingSize = mBuffer.getInt(TraceRecorder.HEADER_RING_SIZE);
+        mEnd = mBuffer.getLong(TraceRecorder.HEADER_END);
+        mOldest = mBuffer.getLong(TraceRecorder.HEADER_OLDEST);
+        mRecordCount = mBuffer.getLong(TraceRecorder.HEADER_RECORDS);
+        if(mBuffer.getInt(0) != TraceRecorder.MAGIC || mRingSize <= 0
+                || mBuffer.capacity() < TraceRecorder.HEADER_SIZE + (long)mRingSize
+                || mOldest < 0 || mOldest > mEnd || mEnd - mOldest > mRingSize) {
+            throw new IOException("Not a trace: " + file);
+        }
+        mPosition = mOldest;
+    }
+
+    /**
+     * Records ever written to the trace, including those that fell out of the ring.
+     */
+    public long getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * Start over from the oldest record.
+     */
+    public void rewind() {
+        mPosition = mOldest;
+        mAt = -1;
+    }
+
+    /**
+     * Move to the next record, false at the end. Padding is skipped.
+     */
+    public boolean next() {
+        while(mPosition < mEnd) {
+            //Too little left for a record at the end of the ring, the recorder skipped it
+            final int left = mRingSize - (int)(mPosition % mRingSize);
+            if(left < TraceRecorder.RECORD_HEADER_SIZE) {
+                mPosition += left;
+                continue;
+            }
+
+            final int at = TraceRecorder.HEADER_SIZE + (int)(mPosition % mRingSize);
+            final int length = mBuffer.getShort(at) & 0xFFFF;
+            if(length < TraceRecorder.RECORD_HEADER_SIZE || length % TraceRecorder.RECORD_ALIGN != 0
+                    || mPosition + length > mEnd
+                    || TraceRecorder.RECORD_HEADER_SIZE + (mBuffer.getShort(at + 6) & 0xFFFF) > length) {
+                //Torn or garbage, nothing after it can be trusted
+                mPosition = mEnd;
+                break;
+            }
+
+            mPosition += length;
+            if(mBuffer.get(at + 2) != TraceRecorder.TYPE_PAD) {
+                mAt = at;
+                return true;
+            }
+        }
+        mAt = -1;
+        return false;
+    }
+
+    /**
+     * TraceRecorder.TYPE_*.
+     */
+    public int getType() {
+        return mBuffer.get(mAt + 2);
+    }
+
+    /**
+     * TraceRecorder.FLAG_*.
+     */
+    public int getFlags() {
+        return mBuffer.get(mAt + 3) & 0xFF;
+    }
+
+    public int getArg() {
+        return mBuffer.getShort(mAt + 4);
+    }
+
+    public long getAddressKey() {
+        return mBuffer.getLong(mAt + 8);
+    }
+
+    public String getAddress() {
+        return DeviceRegistry.formatAddress(getAddressKey());
+    }
+
+    public long getTimeUs() {
+        return mBuffer.getLong(mAt + 16);
+    }
+
+    public int getPayloadLength() {
+        return mBuffer.getShort(mAt + 6) & 0xFFFF;
+    }
+
+    /**
+     * A copy of the payload, empty if there is none.
+     */
+    public byte[] getPayload() {
+        final byte[] payload = new byte[getPayloadLength()];
+        mBuffer.position(mAt + TraceRecorder.RECORD_HEADER_SIZE);
+        mBuffer.get(payload);
+        return payload;
+    }
+}
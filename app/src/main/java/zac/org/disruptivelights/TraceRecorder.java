@@ -0,0 +1,239 @@
+package zac.org.disruptivelights;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary trace of a BLE session: advertisements with their raw scan records, connection
+ * changes, writes and notifications, each with a timestamp. For finding out afterwards
+ * what happened when a show stuttered, and for feeding the same session back through the
+ * app with TraceReplayer.
+ *
+ * The trace is a ring in a memory mapped file, so recording is a few stores into memory
+ * and the newest events are still there after the app dies; once the ring is full the
+ * oldest events make room. Recording allocates nothing.
+ *
+ * File layout, big endian. A header of HEADER_SIZE bytes: MAGIC, the size of the ring,
+ * the position (bytes ever written) of the end, of the oldest record, and the count of
+ * records ever written. Then the ring, records RECORD_ALIGN aligned and never split by
+ * its end, a record that does not fit is preceded by TYPE_PAD up to the end. Less than
+ * RECORD_HEADER_SIZE left at the end is skipped without a pad:
+ *
+ *   0 length of the whole record, 2 type, 3 flags, 4 arg, 6 payload length,
+ *   8 address as in DeviceRegistry.parseAddress(), 16 time in us, 24 payload
+ *
+ * Any thread. The active recorder is the one the app's BLE code records into.
+ */
+public class TraceRecorder {
+    public static final String FILE_NAME = "ble.trace";
+    public static final int DEFAULT_SIZE = 4 * 1024 * 1024;
+
+    public static final int TYPE_PAD = 0;
+    public static final int TYPE_ADVERTISEMENT = 1; //arg RSSI, payload the scan record
+    public static final int TYPE_CONNECTED = 2; //arg GATT status
+    public static final int TYPE_DISCONNECTED = 3; //arg GATT status
+    public static final int TYPE_READY = 4; //arg MTU, flags FLAG_FRAMED
+    public static final int TYPE_WRITE = 5; //payload the frame
+    public static final int TYPE_WRITE_DONE = 6; //arg GATT status
+    public static final int TYPE_NOTIFICATION = 7; //payload the value
+
+    public static final int FLAG_FRAMED = 0x01; //the link uses PacketFramer chunks
+
+    static final int MAGIC = 0x444C5431; //DLT1
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_HEADER_SIZE = 24;
+    static final int RECORD_ALIGN = 8;
+    static final int MAX_PAYLOAD = 0xFFFF - RECORD_HEADER_SIZE - RECORD_ALIGN;
+
+    static final int HEADER_RING_SIZE = 4;
+    static final int HEADER_END = 8;
+    static final int HEADER_OLDEST = 16;
+    static final int HEADER_RECORDS = 24;
+
+    private static volatile TraceRecorder sActive;
+
+    private final MonotonicClock mClock;
+    private final int mRingSize;
+    private final int mMaxPayload;
+    private MappedByteBuffer mBuffer; //null once closed
+    private long mEnd;
+    private long mOldest;
+    private long mRecords;
+
+    /**
+     * The recorder to record into, null while not tracing.
+     */
+    public static TraceRecorder getActive() {
+        return sActive;
+    }
+
+    /**
+     * Start recording into recorder, null to stop. Closing the one that was active is up
+     * to the caller.
+     */
+    public static void setActive(TraceRecorder recorder) {
+        sActive = recorder;
+    }
+
+    public TraceRecorder(File file, int size) throws IOException {
+        this(file, size, null);
+    }
+
+    /**
+     * Starts a new trace in file, ring size rounded down to RECORD_ALIGN. Times come from
+     * clock if not null, e.g. a simulator's, else from TimeSync.nowUs().
+     */
+    public TraceRecorder(File file, int size, MonotonicClock clock) throws IOException {
+        if(size < 1024 || size > 1 << 30) {
+            throw new IllegalArgumentException("Bad trace size " + size);
+        }
+        mClock = clock;
+        mRingSize = size - size % RECORD_ALIGN;
+        mMaxPayload = Math.min(MAX_PAYLOAD, mRingSize / 4 - RECORD_HEADER_SIZE);
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            raf.setLength(HEADER_SIZE + mRingSize);
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + mRingSize);
+        } finally {
+            if(raf != null) {
+                raf.close();
+            }
+        }
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(HEADER_RING_SIZE, mRingSize);
+        writeHeader();
+    }
+
+    public void advertisement(long address, int rssi, byte[] scanRecord) {
+        record(TYPE_ADVERTISEMENT, address, rssi, scanRecord);
+    }
+
+    public void connected(long address, int status) {
+        record(TYPE_CONNECTED, address, status, null);
+    }
+
+    public void disconnected(long address, int status) {
+        record(TYPE_DISCONNECTED, address, status, null);
+    }
+
+    public void ready(long address, int mtu, boolean framed) {
+        record(TYPE_READY, address, mtu, framed ? FLAG_FRAMED : 0, null);
+    }
+
+    public void write(long address, byte[] frame) {
+        record(TYPE_WRITE, address, 0, frame);
+    }
+
+    public void writeDone(long address, int status) {
+        record(TYPE_WRITE_DONE, address, status, null);
+    }
+
+    public void notification(long address, byte[] value) {
+        record(TYPE_NOTIFICATION, address, 0, value);
+    }
+
+    /**
+     * Payloads are cut to a quarter of the ring, MAX_PAYLOAD at most.
+     */
+    public void record(int type, long address, int arg, byte[] payload) {
+        record(type, address, arg, 0, payload);
+    }
+
+    private synchronized void record(int type, long address, int arg, int flags, byte[] payload) {
+        if(mBuffer == null) {
+            return;
+        }
+
+        final int payloadLength = payload == null ? 0 : Math.min(payload.length, mMaxPayload);
+        final int length = align(RECORD_HEADER_SIZE + payloadLength);
+
+        //Never split a record by the end of the ring
+        final int room = mRingSize - (int)(mEnd % mRingSize);
+        if(room < length) {
+            makeRoom(room);
+            if(room >= RECORD_HEADER_SIZE) {
+                putHeader(mEnd, room, TYPE_PAD, 0, address, 0, 0);
+            }
+            mEnd += room;
+        }
+
+        makeRoom(length);
+        putHeader(mEnd, length, type, flags, address, arg, payloadLength);
+        if(payloadLength > 0) {
+            mBuffer.position(HEADER_SIZE + (int)(mEnd % mRingSize) + RECORD_HEADER_SIZE);
+            mBuffer.put(payload, 0, payloadLength);
+        }
+        mEnd += length;
+        mRecords++;
+        writeHeader();
+    }
+
+    public synchronized long getRecordCount() {
+        return mRecords;
+    }
+
+    /**
+     * Bytes in the ring, records that fell out not counted.
+     */
+    public synchronized long getSize() {
+        return mEnd - mOldest;
+    }
+
+    public int getRingSize() {
+        return mRingSize;
+    }
+
+    /**
+     * Push what was recorded to the file and stop recording. The file stays readable.
+     */
+    public synchronized void close() {
+        if(mBuffer == null) {
+            return;
+        }
+        mBuffer.force();
+        mBuffer = null;
+        if(sActive == this) {
+            sActive = null;
+        }
+    }
+
+    //Drop the oldest records until length more bytes fit, and say so in the file first
+    private void makeRoom(int length) {
+        final long oldest = mOldest;
+        while(mEnd + length - mOldest > mRingSize) {
+            final int left = mRingSize - (int)(mOldest % mRingSize);
+            mOldest += left < RECORD_HEADER_SIZE ? left : mBuffer.getShort(HEADER_SIZE + (int)(mOldest % mRingSize)) & 0xFFFF;
+        }
+        if(mOldest != oldest) {
+            mBuffer.putLong(HEADER_OLDEST, mOldest);
+        }
+    }
+
+    private void putHeader(long position, int length, int type, int flags, long address, int arg, int payloadLength) {
+        final int at = HEADER_SIZE + (int)(position % mRingSize);
+        mBuffer.putShort(at, (short)length);
+        mBuffer.put(at + 2, (byte)type);
+        mBuffer.put(at + 3, (byte)flags);
+        mBuffer.putShort(at + 4, (short)arg);
+        mBuffer.putShort(at + 6, (short)payloadLength);
+        mBuffer.putLong(at + 8, address);
+        mBuffer.putLong(at + 16, mClock == null ? TimeSync.nowUs() : mClock.now() * 1000);
+    }
+
+    //The end last, a reader never looks past it
+    private void writeHeader() {
+        mBuffer.putLong(HEADER_OLDEST, mOldest);
+        mBuffer.putLong(HEADER_RECORDS, mRecords);
+        mBuffer.putLong(HEADER_END, mEnd);
+    }
+
+    private static int align(int length) {
+        return (length + RECORD_ALIGN - 1) & ~(RECORD_ALIGN - 1);
+    }
+}
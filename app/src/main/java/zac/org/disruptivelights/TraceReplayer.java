@@ -0,0 +1,258 @@
+package zac.org.disruptivelights;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Future;
+
+/**
+ * Plays a TraceRecorder trace back through the app's own logic. Advertisements go to
+ * whoever scans with this BleScanner, e.g. a ScanEngine as BtLeScanService has one, and
+ * only while they scan, like a radio. Connection changes and notifications go out on a
+ * BleEventBus the way BtLeGattService publishes them, notifications put back together
+ * first on links that were framed, so AutoConnectBLEService style listeners see the
+ * session again. Writes only
+ * reach the Listener, the app makes its own.
+ *
+ * Runs on a BleScheduler: on BleWorker in real time, on a BleSimulator in virtual time.
+ * At speed 1 events keep their recorded spacing, at 10 they come ten times as fast and at
+ * SPEED_UNLIMITED they come as fast as they can be handled, without time moving at all.
+ */
+public class TraceReplayer implements BleScanner {
+    public static final double SPEED_UNLIMITED = 0;
+
+    //Events handled per turn on the scheduler before letting others have it
+    private static final int BATCH = 256;
+
+    /**
+     * Hears about every event before it is replayed, on the scheduler thread. The reader
+     * is only valid during the call.
+     */
+    public interface Listener {
+        void onTraceEvent(TraceReader event);
+        void onReplayDone();
+    }
+
+    private final TraceReader mReader;
+    private final BleScheduler mScheduler;
+    private final MonotonicClock mClock;
+    private final BleEventBus mEventBus;
+
+    private volatile double mSpeed = 1;
+    private volatile Listener mListener;
+    private volatile Callback mCallback;
+
+    //Only touched on mScheduler apart from mRunning
+    private volatile boolean mRunning;
+    private boolean mHasEvent;
+    private long mFirstUs;
+    private long mStartedAt;
+    private Future<?> mStepFuture;
+    private final HashMap<Long, PacketReassembler> mReassemblers = new HashMap<Long, PacketReassembler>();
+    private final HashSet<Long> mFramed = new HashSet<Long>();
+
+    private volatile long mReplayed;
+    private volatile long mMissed;
+
+    private final Runnable mStepRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mStepFuture = null;
+            if(mRunning) {
+                step();
+            }
+        }
+    };
+
+    public TraceReplayer(TraceReader reader, BleScheduler scheduler, MonotonicClock clock, BleEventBus eventBus) {
+        mReader = reader;
+        mScheduler = scheduler;
+        mClock = clock;
+        mEventBus = eventBus;
+    }
+
+    /**
+     * How many times faster than recorded, or SPEED_UNLIMITED. Set before start().
+     */
+    public void setSpeed(double speed) {
+        if(speed < 0 || Double.isNaN(speed) || Double.isInfinite(speed)) {
+            throw new IllegalArgumentException("Bad replay speed " + speed);
+        }
+        mSpeed = speed;
+    }
+
+    public double getSpeed() {
+        return mSpeed;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Replay from the start of the trace. False if already replaying.
+     */
+    public boolean start() {
+        if(mRunning) {
+            return false;
+        }
+
+        mRunning = true;
+        mScheduler.post(BleWorker.OP_OTHER, new Runnable() {
+            @Override
+            public void run() {
+                mReader.rewind();
+                mReassemblers.clear();
+                mFramed.clear();
+                mHasEvent = mReader.next();
+                mFirstUs = mHasEvent ? mReader.getTimeUs() : 0;
+                mStartedAt = mClock.now();
+                step();
+            }
+        });
+        return true;
+    }
+
+    public void stop() {
+        mRunning = false;
+        mScheduler.post(BleWorker.OP_OTHER, new Runnable() {
+            @Override
+            public void run() {
+                if(mStepFuture != null) {
+                    mStepFuture.cancel(false);
+                    mStepFuture = null;
+                }
+            }
+        });
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public long getReplayedCount() {
+        return mReplayed;
+    }
+
+    /**
+     * Advertisements that came while nobody was scanning.
+     */
+    public long getMissedCount() {
+        return mMissed;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public boolean startScan(Callback callback) {
+        if(mCallback != null) {
+            return false;
+        }
+        mCallback = callback;
+        return true;
+    }
+
+    @Override
+    public void stopScan(Callback callback) {
+        if(mCallback == callback) {
+            mCallback = null;
+        }
+    }
+
+    /**
+     * Traces do not keep names, they are in the scan records if the devices advertise them.
+     */
+    @Override
+    public String getName(String address) {
+        return null;
+    }
+
+    //On mScheduler
+    private void step() {
+        final double speed = mSpeed;
+        final long dueUs = speed == SPEED_UNLIMITED ? Long.MAX_VALUE
+                : mFirstUs + (long)((mClock.now() - mStartedAt) * 1000 * speed);
+
+        int handled = 0;
+        while(mHasEvent && mReader.getTimeUs() <= dueUs && handled < BATCH) {
+            replay();
+            handled++;
+            mHasEvent = mReader.next();
+        }
+
+        if(!mHasEvent) {
+            mRunning = false;
+            final Listener listener = mListener;
+            if(listener != null) {
+                listener.onReplayDone();
+            }
+            return;
+        }
+
+        if(handled == BATCH) {
+            mStepFuture = mScheduler.post(BleWorker.OP_OTHER, mStepRunnable);
+        } else {
+            final long waitMs = (long)Math.ceil((mReader.getTimeUs() - dueUs) / 1000.0 / speed);
+            mStepFuture = mScheduler.postDelayed(BleWorker.OP_OTHER, mStepRunnable, waitMs);
+        }
+    }
+
+    //On mScheduler, mReader is at the event
+    private void replay() {
+        mReplayed++;
+        final Listener listener = mListener;
+        if(listener != null) {
+            listener.onTraceEvent(mReader);
+        }
+
+        switch(mReader.getType()) {
+            case TraceRecorder.TYPE_ADVERTISEMENT:
+                final Callback callback = mCallback;
+                if(callback == null) {
+                    mMissed++;
+                } else {
+                    callback.onAdvertisement(mReader.getAddress(), mReader.getArg(), mReader.getPayload());
+                }
+                break;
+            case TraceRecorder.TYPE_CONNECTED:
+                mEventBus.postGattConnected();
+                break;
+            case TraceRecorder.TYPE_READY:
+                if((mReader.getFlags() & TraceRecorder.FLAG_FRAMED) != 0) {
+                    mFramed.add(mReader.getAddressKey());
+                } else {
+                    mFramed.remove(mReader.getAddressKey());
+                }
+                mEventBus.postGattServicesDiscovered();
+                break;
+            case TraceRecorder.TYPE_DISCONNECTED:
+                reassemblerFor(mReader.getAddressKey()).reset();
+                mEventBus.postGattDisconnected();
+                break;
+            case TraceRecorder.TYPE_NOTIFICATION:
+                if(!mFramed.contains(mReader.getAddressKey())) {
+                    mEventBus.postDataAvailable(mReader.getPayload());
+                    break;
+                }
+                final byte[] message = reassemblerFor(mReader.getAddressKey()).onPacket(mReader.getPayload());
+                if(message != null) {
+                    mEventBus.postDataAvailable(message);
+                }
+                break;
+            default:
+                //Writes and their completions were the app's doing, it does them again
+                break;
+        }
+    }
+
+    private PacketReassembler reassemblerFor(long key) {
+        PacketReassembler reassembler = mReassemblers.get(key);
+        if(reassembler == null) {
+            reassembler = new PacketReassembler();
+            mReassemblers.put(key, reassembler);
+        }
+        return reassembler;
+    }
+}
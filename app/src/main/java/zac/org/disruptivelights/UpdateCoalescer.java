@@ -0,0 +1,235 @@
+package zac.org.disruptivelights;
+
+import java.util.Arrays;
+
+/**
+ * Turns the stream of advertisements from known devices into occasional batches of device
+ * updates. An advertisement only makes its device pending when the smoothed RSSI moved by
+ * at least the RSSI threshold since the device was last reported, a pending device is
+ * reported at most once per minimum interval, and whatever is pending and due goes out
+ * together in one Batch. Later advertisements of a pending device just overwrite what the
+ * batch will say about it.
+ *
+ * What was last reported lives in the device's registry slot, the coalescer itself only
+ * keeps the keys of pending devices. Not thread safe, use it under the same lock as the
+ * registry; the settings may be changed from any thread.
+ */
+public class UpdateCoalescer {
+    public static final long DEFAULT_MIN_INTERVAL_MS = 1000;
+    public static final int DEFAULT_RSSI_THRESHOLD = 4;
+    public static final long DEFAULT_BATCH_INTERVAL_MS = 250;
+
+    /**
+     * Updates for several devices, one entry per device. A batch is never touched again once
+     * handed out, listeners may keep it and read it on any thread.
+     */
+    public static class Batch {
+        private final String[] mAddresses;
+        private final String[] mNames;
+        private final int[] mRssi;
+        private final int[] mSmoothedRssi;
+        private final int mSize;
+
+        Batch(String[] addresses, String[] names, int[] rssi, int[] smoothedRssi, int size) {
+            mAddresses = addresses;
+            mNames = names;
+            mRssi = rssi;
+            mSmoothedRssi = smoothedRssi;
+            mSize = size;
+        }
+
+        public int size() {
+            return mSize;
+        }
+
+        public String addressAt(int i) {
+            return mAddresses[i];
+        }
+
+        public String nameAt(int i) {
+            return mNames[i];
+        }
+
+        /**
+         * RSSI of the latest advertisement.
+         */
+        public int rssiAt(int i) {
+            return mRssi[i];
+        }
+
+        public int smoothedRssiAt(int i) {
+            return mSmoothedRssi[i];
+        }
+    }
+
+    private volatile long mMinIntervalMs = DEFAULT_MIN_INTERVAL_MS;
+    private volatile int mRssiThreshold = DEFAULT_RSSI_THRESHOLD;
+    private volatile long mBatchIntervalMs = DEFAULT_BATCH_INTERVAL_MS;
+
+    private long[] mPending = new long[64];
+    private int mPendingSize;
+
+    private long mOffered;
+    private long mCoalesced;
+    private long mDelivered;
+    private long mBatches;
+
+    /**
+     * A device is reported at most once per minIntervalMs. 0 leaves only the batching.
+     */
+    public void setMinIntervalMs(long minIntervalMs) {
+        if(minIntervalMs < 0) {
+            throw new IllegalArgumentException("Bad min interval " + minIntervalMs);
+        }
+        mMinIntervalMs = minIntervalMs;
+    }
+
+    public long getMinIntervalMs() {
+        return mMinIntervalMs;
+    }
+
+    /**
+     * How far the smoothed RSSI has to move, in dB, before a device is worth reporting
+     * again. 0 reports every advertisement (once per interval).
+     */
+    public void setRssiThreshold(int rssiThreshold) {
+        if(rssiThreshold < 0) {
+            throw new IllegalArgumentException("Bad RSSI threshold " + rssiThreshold);
+        }
+        mRssiThreshold = rssiThreshold;
+    }
+
+    public int getRssiThreshold() {
+        return mRssiThreshold;
+    }
+
+    /**
+     * How long pending updates collect before flush() is due.
+     */
+    public void setBatchIntervalMs(long batchIntervalMs) {
+        if(batchIntervalMs < 1) {
+            throw new IllegalArgumentException("Bad batch interval " + batchIntervalMs);
+        }
+        mBatchIntervalMs = batchIntervalMs;
+    }
+
+    public long getBatchIntervalMs() {
+        return mBatchIntervalMs;
+    }
+
+    /**
+     * The known device in slot was just put() into registry. Returns true if that made it
+     * pending, i.e. somebody should make sure a flush() is coming.
+     */
+    public boolean offer(DeviceRegistry registry, int slot) {
+        mOffered++;
+        if(registry.isUpdatePendingAt(slot)) {
+            mCoalesced++;
+            return false;
+        }
+        if(Math.abs(registry.smoothedRssiAt(slot) - registry.reportedRssiAt(slot)) < mRssiThreshold) {
+            return false;
+        }
+
+        if(mPendingSize == mPending.length) {
+            mPending = Arrays.copyOf(mPending, mPendingSize * 2);
+        }
+        mPending[mPendingSize++] = registry.keyAt(slot);
+        registry.setUpdatePendingAt(slot, true);
+        return true;
+    }
+
+    /**
+     * Take every pending device that is due at now out into a batch and mark it reported.
+     * Returns null if none is due. Devices removed from the registry meanwhile are dropped.
+     */
+    public Batch flush(DeviceRegistry registry, long now) {
+        final long minIntervalMs = mMinIntervalMs;
+        String[] addresses = null;
+        String[] names = null;
+        int[] rssi = null;
+        int[] smoothedRssi = null;
+        int size = 0;
+
+        //Keep what is not due yet at the front of mPending
+        int kept = 0;
+        for(int i = 0; i < mPendingSize; i++) {
+            final long key = mPending[i];
+            final int slot = registry.find(key);
+            if(slot == DeviceRegistry.NOT_FOUND || !registry.isUpdatePendingAt(slot)) {
+                continue;
+            }
+            if(now - registry.lastReportedAt(slot) < minIntervalMs) {
+                mPending[kept++] = key;
+                continue;
+            }
+
+            if(addresses == null) {
+                final int capacity = mPendingSize - i;
+                addresses = new String[capacity];
+                names = new String[capacity];
+                rssi = new int[capacity];
+                smoothedRssi = new int[capacity];
+            }
+            addresses[size] = registry.addressAt(slot);
+            names[size] = registry.nameAt(slot);
+            rssi[size] = registry.rssiAt(slot);
+            smoothedRssi[size] = registry.smoothedRssiAt(slot);
+            size++;
+
+            registry.setReportedAt(slot, now, registry.smoothedRssiAt(slot));
+            registry.setUpdatePendingAt(slot, false);
+        }
+        mPendingSize = kept;
+
+        if(size == 0) {
+            return null;
+        }
+        mDelivered += size;
+        mBatches++;
+        return new Batch(addresses, names, rssi, smoothedRssi, size);
+    }
+
+    /**
+     * True while flush() still has devices to report, now or later.
+     */
+    public boolean hasPending() {
+        return mPendingSize > 0;
+    }
+
+    public void clear() {
+        mPendingSize = 0;
+    }
+
+    /**
+     * Advertisements offered, every one of them is an update that used to be sent.
+     */
+    public long getOfferedCount() {
+        return mOffered;
+    }
+
+    /**
+     * Advertisements that landed on a device already pending.
+     */
+    public long getCoalescedCount() {
+        return mCoalesced;
+    }
+
+    /**
+     * Device updates that went out in batches.
+     */
+    public long getDeliveredCount() {
+        return mDelivered;
+    }
+
+    public long getBatchCount() {
+        return mBatches;
+    }
+
+    @Override
+    public String toString() {
+        return "UpdateCoalescer(offered=" + mOffered + ", coalesced=" + mCoalesced
+                + ", delivered=" + mDelivered + ", batches=" + mBatches + ", pending=" + mPendingSize
+                + ", minIntervalMs=" + mMinIntervalMs + ", rssiThreshold=" + mRssiThreshold + ")";
+    }
+}
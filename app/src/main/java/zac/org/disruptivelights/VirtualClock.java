@@ -0,0 +1,34 @@
+package zac.org.disruptivelights;
+
+/**
+ * MonotonicClock that only moves when told to, for simulations and off-device runs.
+ */
+public class VirtualClock implements MonotonicClock {
+    private long mNow;
+
+    public VirtualClock() {
+        this(0);
+    }
+
+    public VirtualClock(long start) {
+        mNow = start;
+    }
+
+    @Override
+    public synchronized long now() {
+        return mNow;
+    }
+
+    public synchronized void advance(long ms) {
+        if(ms < 0) {
+            throw new IllegalArgumentException("Time only moves forward");
+        }
+        mNow += ms;
+    }
+
+    public synchronized void advanceTo(long time) {
+        if(time > mNow) {
+            mNow = time;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package zac.org.disruptivelights;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceRegistryTest {
+
+    //Keys that all hash to the same slot of an empty registry of the default capacity
+    private static long[] collidingKeys(int count) {
+        final long[] keys = new long[count];
+        final DeviceRegistry probe = new DeviceRegistry();
+        int home = DeviceRegistry.NOT_FOUND;
+        int found = 0;
+        for(long key = 1; found < count; key++) {
+            final int slot = DeviceRegistry.slotOf(probe.put(key, null, null, 0, 0));
+            probe.remove(key);
+            if(home == DeviceRegistry.NOT_FOUND) {
+                home = slot;
+            }
+            if(slot == home) {
+                keys[found++] = key;
+            }
+        }
+        return keys;
+    }
+
+    private static int put(DeviceRegistry registry, long key, int rssi) {
+        return registry.put(key, DeviceRegistry.formatAddress(key), null, rssi, 0);
+    }
+
+    @Test
+    public void putTellsNewFromKnown() {
+        final DeviceRegistry registry = new DeviceRegistry();
+        final int first = put(registry, 0xD2866A060483L, -60);
+        assertTrue(DeviceRegistry.isNew(first));
+        final int second = put(registry, 0xD2866A060483L, -50);
+        assertFalse(DeviceRegistry.isNew(second));
+        assertEquals(DeviceRegistry.slotOf(first), second);
+        assertEquals(-50, registry.rssiAt(second));
+        assertEquals("D2:86:6A:06:04:83", registry.addressAt(second));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void removeKeepsTheRestOfTheProbeChain() {
+        final long[] keys = collidingKeys(5);
+        for(int removed = 0; removed < keys.length; removed++) {
+            final DeviceRegistry registry = new DeviceRegistry();
+            for(int i = 0; i < keys.length; i++) {
+                put(registry, keys[i], -40 - i);
+            }
+
+            assertTrue(registry.remove(keys[removed]));
+            assertEquals(DeviceRegistry.NOT_FOUND, registry.find(keys[removed]));
+            for(int i = 0; i < keys.length; i++) {
+                if(i == removed) {
+                    continue;
+                }
+                final int slot = registry.find(keys[i]);
+                assertTrue(slot != DeviceRegistry.NOT_FOUND);
+                assertEquals(-40 - i, registry.rssiAt(slot));
+                assertEquals(DeviceRegistry.formatAddress(keys[i]), registry.addressAt(slot));
+            }
+            assertEquals(keys.length - 1, registry.size());
+        }
+    }
+
+    @Test
+    public void removedDeviceComesBackAsNew() {
+        final long[] keys = collidingKeys(3);
+        final DeviceRegistry registry = new DeviceRegistry();
+        for(long key : keys) {
+            put(registry, key, -70);
+        }
+        registry.remove(keys[0]);
+        assertFalse(registry.remove(keys[0]));
+        assertTrue(DeviceRegistry.isNew(put(registry, keys[0], -70)));
+        assertEquals(3, registry.size());
+    }
+
+    @Test
+    public void matchesAMapThroughGrowthAndRemoves() {
+        final Random random = new Random(1);
+        final DeviceRegistry registry = new DeviceRegistry();
+        final Map<Long, Integer> expected = new HashMap<Long, Integer>();
+        final List<Long> keys = new ArrayList<Long>();
+        for(int step = 0; step < 50000; step++) {
+            if(keys.isEmpty() || random.nextInt(3) > 0) {
+                final long key = random.nextLong() & 0xFFFFFFFFFFFFL;
+                final int rssi = -random.nextInt(100);
+                assertEquals(!expected.containsKey(key), DeviceRegistry.isNew(put(registry, key, rssi)));
+                if(!expected.containsKey(key)) {
+                    keys.add(key);
+                }
+                expected.put(key, rssi);
+            } else {
+                final long key = keys.remove(random.nextInt(keys.size()));
+                assertTrue(registry.remove(key));
+                expected.remove(key);
+            }
+        }
+
+        assertEquals(expected.size(), registry.size());
+        for(Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            final int slot = registry.find(entry.getKey());
+            assertTrue(slot != DeviceRegistry.NOT_FOUND);
+            assertEquals((int)entry.getValue(), registry.rssiAt(slot));
+        }
+    }
+
+    @Test
+    public void addressesRoundTrip() {
+        assertEquals(0xD2866A060483L, DeviceRegistry.parseAddress("D2:86:6A:06:04:83"));
+        assertEquals(0xD2866A060483L, DeviceRegistry.parseAddress("d2:86:6a:06:04:83"));
+        assertEquals("00:00:00:00:00:01", DeviceRegistry.formatAddress(1));
+        assertEquals(DeviceRegistry.NO_ADDRESS, DeviceRegistry.parseAddress("D2:86:6A:06:04"));
+        assertEquals(DeviceRegistry.NO_ADDRESS, DeviceRegistry.parseAddress("D2-86-6A-06-04-83"));
+        assertEquals(DeviceRegistry.NO_ADDRESS, DeviceRegistry.parseAddress("G2:86:6A:06:04:83"));
+        assertEquals(DeviceRegistry.NO_ADDRESS, DeviceRegistry.parseAddress(null));
+    }
+}
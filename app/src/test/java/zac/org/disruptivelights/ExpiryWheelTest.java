@@ -0,0 +1,146 @@
+package zac.org.disruptivelights;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExpiryWheelTest {
+    private static final long TIMEOUT_MS = 60000;
+    private static final long TICK_MS = 1000;
+
+    //Keys expire TIMEOUT_MS after they were last seen, on the virtual clock
+    private static class Devices implements ExpiryWheel.Owner {
+        final VirtualClock mClock;
+        final Map<Long, Long> mLastSeen = new HashMap<Long, Long>();
+        final Map<Long, Long> mExpiredAt = new HashMap<Long, Long>();
+
+        Devices(VirtualClock clock) {
+            mClock = clock;
+        }
+
+        void seen(ExpiryWheel wheel, long key) {
+            if(mLastSeen.put(key, mClock.now()) == null) {
+                wheel.schedule(key, mClock.now() + TIMEOUT_MS);
+            }
+        }
+
+        @Override
+        public long onDeadline(long key, long now) {
+            final long deadline = mLastSeen.get(key) + TIMEOUT_MS;
+            if(deadline > now) {
+                return deadline;
+            }
+            mLastSeen.remove(key);
+            mExpiredAt.put(key, now);
+            return ExpiryWheel.EXPIRED;
+        }
+    }
+
+    @Test
+    public void expiresAtMostOneTickLate() {
+        final VirtualClock clock = new VirtualClock(5000);
+        final ExpiryWheel wheel = new ExpiryWheel(TIMEOUT_MS, TICK_MS, clock.now());
+        final Devices devices = new Devices(clock);
+        devices.seen(wheel, 1);
+
+        clock.advanceTo(5000 + TIMEOUT_MS - 1);
+        assertEquals(0, wheel.advance(clock.now(), devices));
+        clock.advanceTo(5000 + TIMEOUT_MS + TICK_MS);
+        assertEquals(1, wheel.advance(clock.now(), devices));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void refreshedKeyIsKept() {
+        final VirtualClock clock = new VirtualClock();
+        final ExpiryWheel wheel = new ExpiryWheel(TIMEOUT_MS, TICK_MS, clock.now());
+        final Devices devices = new Devices(clock);
+        devices.seen(wheel, 1);
+        devices.seen(wheel, 2);
+
+        clock.advance(30000);
+        devices.seen(wheel, 1);
+        clock.advance(32000);
+        assertEquals(1, wheel.advance(clock.now(), devices));
+        assertTrue(devices.mExpiredAt.containsKey(2L));
+        assertEquals(1, wheel.size());
+
+        clock.advance(30000);
+        assertEquals(1, wheel.advance(clock.now(), devices));
+        assertTrue(devices.mExpiredAt.containsKey(1L));
+    }
+
+    @Test
+    public void deadlineBeyondTheSpanIsCheckedEarlyButKept() {
+        final VirtualClock clock = new VirtualClock();
+        final ExpiryWheel wheel = new ExpiryWheel(10000, TICK_MS, clock.now());
+        final Devices devices = new Devices(clock);
+        devices.seen(wheel, 1); //deadline 60 s out on a 16 s wheel
+
+        for(int s = 1; s < 60; s++) {
+            clock.advanceTo(s * 1000L);
+            assertEquals(0, wheel.advance(clock.now(), devices));
+        }
+        clock.advanceTo(TIMEOUT_MS + TICK_MS);
+        assertEquals(1, wheel.advance(clock.now(), devices));
+    }
+
+    @Test
+    public void longGapExpiresEverything() {
+        final VirtualClock clock = new VirtualClock();
+        final ExpiryWheel wheel = new ExpiryWheel(TIMEOUT_MS, TICK_MS, clock.now());
+        final Devices devices = new Devices(clock);
+        for(long key = 0; key < 100; key++) {
+            clock.advance(100);
+            devices.seen(wheel, key);
+        }
+
+        clock.advance(24 * 3600 * 1000L);
+        assertEquals(100, wheel.advance(clock.now(), devices));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void neverEarlyAndNeverLeftBehind() {
+        final Random random = new Random(1);
+        final VirtualClock clock = new VirtualClock();
+        final ExpiryWheel wheel = new ExpiryWheel(TIMEOUT_MS, TICK_MS, clock.now());
+        final Devices devices = new Devices(clock);
+
+        for(int step = 0; step < 20000; step++) {
+            clock.advance(random.nextInt(200));
+            devices.seen(wheel, random.nextInt(500));
+            if(step % 10 == 0) {
+                final Map<Long, Long> lastSeen = new HashMap<Long, Long>(devices.mLastSeen);
+                devices.mExpiredAt.clear();
+                wheel.advance(clock.now(), devices);
+                for(Map.Entry<Long, Long> expired : devices.mExpiredAt.entrySet()) {
+                    assertTrue(expired.getValue() >= lastSeen.get(expired.getKey()) + TIMEOUT_MS);
+                }
+                for(long seen : devices.mLastSeen.values()) {
+                    assertFalse(clock.now() >= seen + TIMEOUT_MS + 2 * TICK_MS);
+                }
+            }
+        }
+        assertEquals(devices.mLastSeen.size(), wheel.size());
+    }
+
+    @Test
+    public void clearForgetsEverything() {
+        final VirtualClock clock = new VirtualClock();
+        final ExpiryWheel wheel = new ExpiryWheel(TIMEOUT_MS, TICK_MS, clock.now());
+        final Devices devices = new Devices(clock);
+        devices.seen(wheel, 1);
+        wheel.clear();
+        assertEquals(0, wheel.size());
+
+        clock.advance(2 * TIMEOUT_MS);
+        assertEquals(0, wheel.advance(clock.now(), devices));
+    }
+}
@@ -0,0 +1,368 @@
+package zac.org.disruptivelights;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GattWriteQueueTest {
+
+    //Accepts every write and leaves completing it to the test
+    private static class ManualTransport implements GattWriteTransport {
+        final List<byte[]> mFrames = new ArrayList<byte[]>();
+        final List<Long> mTokens = new ArrayList<Long>();
+        boolean mRefuse;
+
+        @Override
+        public boolean write(byte[] frame, long token) {
+            if(mRefuse) {
+                return false;
+            }
+            mFrames.add(frame);
+            mTokens.add(token);
+            return true;
+        }
+    }
+
+    private static class RecordingListener implements GattWriteQueue.FrameListener {
+        Boolean mWritten;
+        int mCalls;
+
+        @Override
+        public void onFrameDone(boolean written) {
+            mWritten = written;
+            mCalls++;
+        }
+    }
+
+    private static byte[] frame(int value) {
+        return new byte[] {(byte)value};
+    }
+
+    @Test
+    public void writesUpToMaxInFlight() {
+        final ManualTransport transport = new ManualTransport();
+        final GattWriteQueue queue = new GattWriteQueue(transport, 8, 2, GattWriteQueue.OVERFLOW_REJECT);
+
+        queue.offer(frame(1));
+        queue.offer(frame(2));
+        queue.offer(frame(3));
+        assertEquals(2, transport.mFrames.size());
+        assertEquals(2, queue.getInFlightCount());
+        assertEquals(1, queue.getPendingCount());
+
+        queue.onWriteComplete(transport.mTokens.get(0), true);
+        assertEquals(3, transport.mFrames.size());
+        assertEquals(3, transport.mFrames.get(2)[0]);
+    }
+
+    @Test
+    public void completionGoesToTheWriteWithItsToken() {
+        final ManualTransport transport = new ManualTransport();
+        final GattWriteQueue queue = new GattWriteQueue(transport, 8, 2, GattWriteQueue.OVERFLOW_REJECT);
+        final RecordingListener first = new RecordingListener();
+        final RecordingListener second = new RecordingListener();
+        queue.offer(frame(1), GattWriteQueue.NO_COALESCE, first);
+        queue.offer(frame(2), GattWriteQueue.NO_COALESCE, second);
+
+        //The second write fails first
+        queue.onWriteComplete(transport.mTokens.get(1), false);
+        assertNull(first.mWritten);
+        assertEquals(Boolean.FALSE, second.mWritten);
+        assertEquals(1, queue.getInFlightCount());
+
+        queue.onWriteComplete(transport.mTokens.get(0), true);
+        assertEquals(Boolean.TRUE, first.mWritten);
+        assertEquals(1, queue.getCompletedCount());
+        assertEquals(1, queue.getFailedCount());
+    }
+
+    @Test
+    public void staleCompletionAfterClearIsIgnored() {
+        final ManualTransport transport = new ManualTransport();
+        final GattWriteQueue queue = new GattWriteQueue(transport);
+        final RecordingListener old = new RecordingListener();
+        queue.offer(frame(1), GattWriteQueue.NO_COALESCE, old);
+        final long oldToken = transport.mTokens.get(0);
+
+        queue.clear();
+        assertEquals(Boolean.FALSE, old.mWritten);
+
+        final RecordingListener fresh = new RecordingListener();
+        queue.offer(frame(2), GattWriteQueue.NO_COALESCE, fresh);
+        queue.onWriteComplete(oldToken, true);
+        assertNull(fresh.mWritten);
+        assertEquals(1, queue.getInFlightCount());
+        assertEquals(1, old.mCalls);
+
+        queue.onWriteComplete(transport.mTokens.get(1), true);
+        assertEquals(Boolean.TRUE, fresh.mWritten);
+    }
+
+    @Test
+    public void unknownAndRepeatedTokensAreIgnored() {
+        final ManualTransport transport = new ManualTransport();
+        final GattWriteQueue queue = new GattWriteQueue(transport);
+        queue.offer(frame(1));
+        final long token = transport.mTokens.get(0);
+
+        queue.onWriteComplete(GattWriteQueue.NO_TOKEN, true);
+        queue.onWriteComplete(token + 100, true);
+        assertEquals(1, queue.getInFlightCount());
+
+        queue.onWriteComplete(token, true);
+        queue.onWriteComplete(token, true);
+        assertEquals(1, queue.getCompletedCount());
+        assertEquals(0, queue.getInFlightCount());
+    }
+
+    @Test
+    public void refusedWriteFailsTheFrame() {
+        final ManualTransport transport = new ManualTransport();
+        transport.mRefuse = true;
+        final GattWriteQueue queue = new GattWriteQueue(transport);
+        final RecordingListener listener = new RecordingListener();
+
+        assertTrue(queue.offer(frame(1), GattWriteQueue.NO_COALESCE, listener));
+        assertEquals(Boolean.FALSE, listener.mWritten);
+        assertEquals(1, queue.getFailedCount());
+        assertEquals(0, queue.getInFlightCount());
+    }
+
+    @Test
+    public void synchronousTransportCompletesInsideWrite() {
+        final GattWriteQueue[] queue = new GattWriteQueue[1];
+        final List<byte[]> written = new ArrayList<byte[]>();
+        queue[0] = new GattWriteQueue(new GattWriteTransport() {
+            @Override
+            public boolean write(byte[] frame, long token) {
+                written.add(frame);
+                queue[0].onWriteComplete(token, true);
+                return true;
+            }
+        }, 4, 1, GattWriteQueue.OVERFLOW_REJECT);
+
+        final RecordingListener listener = new RecordingListener();
+        for(int i = 0; i < 10; i++) {
+            assertTrue(queue[0].offer(frame(i), GattWriteQueue.NO_COALESCE, i == 9 ? listener : null));
+        }
+        assertEquals(10, written.size());
+        assertEquals(10, queue[0].getCompletedCount());
+        assertEquals(Boolean.TRUE, listener.mWritten);
+    }
+
+    @Test
+    public void listenersAreCalledWithoutTheLock() {
+        final ManualTransport transport = new ManualTransport();
+        final GattWriteQueue queue = new GattWriteQueue(transport);
+        final boolean[] locked = new boolean[1];
+        queue.offer(frame(1), GattWriteQueue.NO_COALESCE, new GattWriteQueue.FrameListener() {
+            @Override
+            public void onFrameDone(boolean written) {
+                locked[0] = Thread.holdsLock(queue);
+                //Calling back in is allowed
+                queue.offer(frame(2));
+            }
+        });
+
+        queue.onWriteComplete(transport.mTokens.get(0), true);
+        assertFalse(locked[0]);
+        assertEquals(2, transport.mFrames.size());
+    }
+
+    @Test
+    public void coalescedFrameIsReplacedInPlace() {
+        final ManualTransport transport = new ManualTransport();
+        final GattWriteQueue queue = new GattWriteQueue(transport);
+        final RecordingListener replaced = new RecordingListener();
+        queue.offer(frame(0));
+        queue.offer(frame(1), 7, replaced);
+        queue.offer(frame(2));
+        queue.offer(frame(3), 7, null);
+
+        assertEquals(Boolean.FALSE, replaced.mWritten);
+        assertEquals(2, queue.getPendingCount());
+        assertEquals(1, queue.getCoalescedCount());
+
+        queue.onWriteComplete(transport.mTokens.get(0), true);
+        assertEquals(3, transport.mFrames.get(1)[0]);
+    }
+
+    @Test
+    public void rejectWhenFull() {
+        final ManualTransport transport = new ManualTransport();
+        final GattWriteQueue queue = new GattWriteQueue(transport, 2, 1, GattWriteQueue.OVERFLOW_REJECT);
+        assertTrue(queue.offer(frame(0))); //in flight
+        assertTrue(queue.offer(frame(1)));
+        assertTrue(queue.offer(frame(2)));
+        assertFalse(queue.offer(frame(3)));
+        assertEquals(1, queue.getRejectedCount());
+        assertEquals(2, queue.getPendingCount());
+    }
+
+    @Test
+    public void dropOldestWhenFull() {
+        final ManualTransport transport = new ManualTransport();
+        final GattWriteQueue queue = new GattWriteQueue(transport, 2, 1, GattWriteQueue.OVERFLOW_DROP_OLDEST);
+        final RecordingListener oldest = new RecordingListener();
+        queue.offer(frame(0));
+        queue.offer(frame(1), GattWriteQueue.NO_COALESCE, oldest);
+        queue.offer(frame(2));
+        assertTrue(queue.offer(frame(3)));
+
+        assertEquals(Boolean.FALSE, oldest.mWritten);
+        assertEquals(1, queue.getDroppedCount());
+        queue.onWriteComplete(transport.mTokens.get(0), true);
+        assertEquals(2, transport.mFrames.get(1)[0]);
+    }
+
+    @Test
+    public void messageBiggerThanTheQueueIsRejected() {
+        final ManualTransport transport = new ManualTransport();
+        final GattWriteQueue queue = new GattWriteQueue(transport, 4, 1, GattWriteQueue.OVERFLOW_DROP_OLDEST);
+        final byte[][] message = {frame(1), frame(2), frame(3), frame(4), frame(5)};
+
+        assertFalse(queue.offerAll(message, null));
+        assertEquals(0, transport.mFrames.size());
+        assertEquals(0, queue.getPendingCount());
+        assertEquals(1, queue.getRejectedCount());
+    }
+
+    @Test
+    public void messageIsQueuedWholeOrNotAtAll() {
+        final ManualTransport transport = new ManualTransport();
+        final GattWriteQueue queue = new GattWriteQueue(transport, 4, 1, GattWriteQueue.OVERFLOW_REJECT);
+        queue.offer(frame(0)); //in flight
+        queue.offer(frame(1));
+        queue.offer(frame(2));
+
+        final RecordingListener listener = new RecordingListener();
+        assertFalse(queue.offerAll(new byte[][] {frame(10), frame(11), frame(12)}, listener));
+        assertEquals(2, queue.getPendingCount());
+        assertTrue(queue.offerAll(new byte[][] {frame(10), frame(11)}, listener));
+        assertEquals(4, queue.getPendingCount());
+        assertNull(listener.mWritten);
+    }
+
+    @Test
+    public void dropOldestNeverDropsPartOfTheNewMessage() {
+        final ManualTransport transport = new ManualTransport();
+        final GattWriteQueue queue = new GattWriteQueue(transport, 4, 1, GattWriteQueue.OVERFLOW_DROP_OLDEST);
+        queue.offer(frame(0)); //in flight
+        queue.offer(frame(1));
+        queue.offer(frame(2));
+        queue.offer(frame(3));
+
+        final RecordingListener listener = new RecordingListener();
+        assertTrue(queue.offerAll(new byte[][] {frame(10), frame(11), frame(12), frame(13)}, listener));
+        assertEquals(3, queue.getDroppedCount());
+        assertEquals(4, queue.getPendingCount());
+
+        for(int i = 0; i < 5; i++) {
+            queue.onWriteComplete(transport.mTokens.get(i), true);
+        }
+        assertEquals(5, transport.mFrames.size());
+        for(int i = 1; i < 5; i++) {
+            assertEquals(9 + i, transport.mFrames.get(i)[0]);
+        }
+        assertEquals(Boolean.TRUE, listener.mWritten);
+        assertEquals(1, listener.mCalls);
+    }
+
+    @Test
+    public void dropOldestDropsAWholeOlderMessage() {
+        final ManualTransport transport = new ManualTransport();
+        final GattWriteQueue queue = new GattWriteQueue(transport, 4, 1, GattWriteQueue.OVERFLOW_DROP_OLDEST);
+        final RecordingListener older = new RecordingListener();
+        queue.offer(frame(0)); //in flight
+        queue.offerAll(new byte[][] {frame(1), frame(2), frame(3)}, older);
+        queue.offer(frame(4));
+
+        assertTrue(queue.offer(frame(5)));
+        assertEquals(3, queue.getDroppedCount());
+        assertEquals(2, queue.getPendingCount());
+        assertEquals(Boolean.FALSE, older.mWritten);
+        assertEquals(1, older.mCalls);
+
+        for(int i = 0; i < 3; i++) {
+            queue.onWriteComplete(transport.mTokens.get(i), true);
+        }
+        assertEquals(3, transport.mFrames.size());
+        assertEquals(4, transport.mFrames.get(1)[0]);
+        assertEquals(5, transport.mFrames.get(2)[0]);
+    }
+
+    @Test
+    public void dropOldestFinishesAMessageAlreadyStarted() {
+        final ManualTransport transport = new ManualTransport();
+        final GattWriteQueue queue = new GattWriteQueue(transport, 4, 1, GattWriteQueue.OVERFLOW_DROP_OLDEST);
+        final RecordingListener started = new RecordingListener();
+        queue.offerAll(new byte[][] {frame(1), frame(2), frame(3)}, started); //first chunk in flight
+        queue.offer(frame(4));
+        queue.offer(frame(5));
+
+        assertTrue(queue.offer(frame(6)));
+        assertEquals(1, queue.getDroppedCount());
+        assertEquals(4, queue.getPendingCount());
+
+        for(int i = 0; i < 5; i++) {
+            queue.onWriteComplete(transport.mTokens.get(i), true);
+        }
+        final int[] expected = {1, 2, 3, 5, 6};
+        assertEquals(expected.length, transport.mFrames.size());
+        for(int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], transport.mFrames.get(i)[0]);
+        }
+        assertEquals(Boolean.TRUE, started.mWritten);
+    }
+
+    @Test
+    public void blockWaitsForRoom() throws InterruptedException {
+        final ManualTransport transport = new ManualTransport();
+        final GattWriteQueue queue = new GattWriteQueue(transport, 1, 1, GattWriteQueue.OVERFLOW_BLOCK);
+        queue.offer(frame(0));
+        queue.offer(frame(1));
+
+        final boolean[] queued = new boolean[1];
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queued[0] = queue.offer(frame(2));
+            }
+        });
+        producer.start();
+        producer.join(100);
+        assertTrue(producer.isAlive());
+
+        queue.onWriteComplete(transport.mTokens.get(0), true);
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertTrue(queued[0]);
+    }
+
+    @Test
+    public void closeReleasesBlockedProducer() throws InterruptedException {
+        final GattWriteQueue queue = new GattWriteQueue(new ManualTransport(), 1, 1, GattWriteQueue.OVERFLOW_BLOCK);
+        queue.offer(frame(0));
+        queue.offer(frame(1));
+
+        final boolean[] queued = {true};
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queued[0] = queue.offer(frame(2));
+            }
+        });
+        producer.start();
+        producer.join(100);
+        queue.close();
+        producer.join(5000);
+        assertFalse(producer.isAlive());
+        assertFalse(queued[0]);
+    }
+}
@@ -0,0 +1,160 @@
+package zac.org.disruptivelights;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationRingTest {
+
+    //Keeps a copy of every packet drained
+    private static class Collector implements NotificationRing.PacketHandler {
+        final List<byte[]> mPackets = new ArrayList<byte[]>();
+
+        @Override
+        public void onPacket(byte[] buffer, int offset, int length) {
+            final byte[] packet = new byte[length];
+            System.arraycopy(buffer, offset, packet, 0, length);
+            mPackets.add(packet);
+        }
+    }
+
+    private static byte[] packet(int value, int length) {
+        final byte[] packet = new byte[length];
+        for(int i = 0; i < length; i++) {
+            packet[i] = (byte)(value + i);
+        }
+        return packet;
+    }
+
+    @Test
+    public void wrapsAroundInOrder() {
+        final NotificationRing ring = new NotificationRing(4, 8);
+        final byte[] dst = new byte[8];
+        int next = 0;
+        for(int round = 0; round < 1000; round++) {
+            final int count = 1 + round % 4;
+            for(int i = 0; i < count; i++) {
+                assertTrue(ring.offer(packet(next + i, 1 + (next + i) % 8)));
+            }
+            for(int i = 0; i < count; i++) {
+                final int length = ring.poll(dst, 0);
+                assertEquals(1 + next % 8, length);
+                assertEquals((byte)next, dst[0]);
+                assertEquals((byte)(next + length - 1), dst[length - 1]);
+                next++;
+            }
+            assertEquals(-1, ring.poll(dst, 0));
+        }
+        assertEquals(next, ring.getDeliveredCount());
+        assertEquals(0, ring.getDroppedCount());
+    }
+
+    @Test
+    public void fullRingDropsTheNewPacket() {
+        final NotificationRing ring = new NotificationRing(3, 4); //rounded up to 4
+        assertEquals(4, ring.capacity());
+        for(int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(packet(i, 4)));
+        }
+        assertFalse(ring.offer(packet(4, 4)));
+        assertEquals(1, ring.getDroppedCount());
+
+        final Collector collector = new Collector();
+        assertEquals(4, ring.drain(collector));
+        for(int i = 0; i < 4; i++) {
+            assertEquals((byte)i, collector.mPackets.get(i)[0]);
+        }
+        assertTrue(ring.offer(packet(5, 4)));
+    }
+
+    @Test
+    public void drainStopsAtMax() {
+        final NotificationRing ring = new NotificationRing(8, 4);
+        for(int i = 0; i < 6; i++) {
+            ring.offer(packet(i, 2));
+        }
+        final Collector collector = new Collector();
+        assertEquals(4, ring.drain(collector, 4));
+        assertEquals(2, ring.size());
+        assertEquals(2, ring.drain(collector));
+        assertEquals((byte)5, collector.mPackets.get(5)[0]);
+    }
+
+    @Test
+    public void longPacketIsCutToTheSlot() {
+        final NotificationRing ring = new NotificationRing(2, 4);
+        ring.offer(packet(0, 10));
+        final Collector collector = new Collector();
+        ring.drain(collector);
+        assertEquals(4, collector.mPackets.get(0).length);
+        assertEquals(1, ring.getTruncatedCount());
+    }
+
+    @Test
+    public void wakeupOnlyWhenTheRingWasEmpty() {
+        final NotificationRing ring = new NotificationRing(8, 4);
+        final int[] wakeups = new int[1];
+        ring.setWakeup(new Runnable() {
+            @Override
+            public void run() {
+                wakeups[0]++;
+            }
+        });
+
+        ring.offer(packet(0, 1));
+        ring.offer(packet(1, 1));
+        assertEquals(1, wakeups[0]);
+        ring.drain(new Collector());
+        ring.offer(packet(2, 1));
+        assertEquals(2, wakeups[0]);
+    }
+
+    @Test
+    public void producerAndConsumerThreads() throws InterruptedException {
+        final NotificationRing ring = new NotificationRing(16, 4);
+        final int packets = 200000;
+        final Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final byte[] packet = new byte[4];
+                for(int i = 0; i < packets; i++) {
+                    packet[0] = (byte)(i >>> 24);
+                    packet[1] = (byte)(i >>> 16);
+                    packet[2] = (byte)(i >>> 8);
+                    packet[3] = (byte)i;
+                    ring.offer(packet);
+                }
+            }
+        });
+
+        final int[] last = {-1};
+        final boolean[] ordered = {true};
+        final NotificationRing.PacketHandler checker = new NotificationRing.PacketHandler() {
+            @Override
+            public void onPacket(byte[] buffer, int offset, int length) {
+                final int value = (buffer[offset] & 0xFF) << 24 | (buffer[offset + 1] & 0xFF) << 16
+                        | (buffer[offset + 2] & 0xFF) << 8 | buffer[offset + 3] & 0xFF;
+                if(value <= last[0]) {
+                    ordered[0] = false;
+                }
+                last[0] = value;
+            }
+        };
+
+        producer.start();
+        while(producer.isAlive()) {
+            ring.drain(checker);
+        }
+        producer.join();
+        ring.drain(checker);
+
+        assertTrue(ordered[0]);
+        assertEquals(packets, ring.getOfferedCount());
+        assertEquals(packets, ring.getDeliveredCount() + ring.getDroppedCount());
+    }
+}
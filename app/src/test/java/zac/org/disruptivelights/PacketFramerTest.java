@@ -0,0 +1,165 @@
+package zac.org.disruptivelights;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PacketFramerTest {
+
+    //Takes every write and completes it straight away
+    private static class CollectingTransport implements GattWriteTransport {
+        final List<byte[]> mFrames = new ArrayList<byte[]>();
+        GattWriteQueue mQueue;
+
+        @Override
+        public boolean write(byte[] frame, long token) {
+            mFrames.add(frame);
+            mQueue.onWriteComplete(token, true);
+            return true;
+        }
+    }
+
+    private static byte[] message(int length, long seed) {
+        final byte[] message = new byte[length];
+        new Random(seed).nextBytes(message);
+        return message;
+    }
+
+    @Test
+    public void chunksFitTheMtu() {
+        final int[] mtus = {PacketFramer.DEFAULT_MTU, 185, PacketFramer.MAX_MTU};
+        for(int mtu : mtus) {
+            final byte[][] chunks = PacketFramer.fragment(message(1000, mtu), mtu);
+            assertEquals(PacketFramer.chunkCount(1000, mtu), chunks.length);
+            for(byte[] chunk : chunks) {
+                assertTrue(chunk.length <= mtu - PacketFramer.ATT_OVERHEAD);
+            }
+        }
+    }
+
+    @Test
+    public void headersMarkFirstLastAndSequence() {
+        final byte[][] chunks = PacketFramer.fragment(message(100, 1), PacketFramer.DEFAULT_MTU);
+        assertEquals(6, chunks.length);
+        for(int i = 0; i < chunks.length; i++) {
+            final int header = chunks[i][0] & 0xFF;
+            assertEquals(i == 0, (header & PacketFramer.FLAG_FIRST) != 0);
+            assertEquals(i == chunks.length - 1, (header & PacketFramer.FLAG_LAST) != 0);
+            assertEquals(i, header & PacketFramer.SEQUENCE_MASK);
+        }
+    }
+
+    @Test
+    public void roundTripsAtEverySize() {
+        final PacketReassembler reassembler = new PacketReassembler();
+        final int[] mtus = {PacketFramer.DEFAULT_MTU, 185};
+        for(int mtu : mtus) {
+            for(int length = 0; length <= 600; length += 7) {
+                final byte[] message = message(length, length);
+                final byte[][] chunks = PacketFramer.fragment(message, mtu);
+                byte[] received = null;
+                for(int i = 0; i < chunks.length; i++) {
+                    received = reassembler.onPacket(chunks[i]);
+                    if(i < chunks.length - 1) {
+                        assertNull(received);
+                    }
+                }
+                assertArrayEquals(message, received);
+            }
+        }
+        assertEquals(0, reassembler.getDiscardedCount());
+    }
+
+    @Test
+    public void sequenceWrapsPastSixtyFourChunks() {
+        final PacketReassembler reassembler = new PacketReassembler();
+        final byte[] message = message(19 * 100, 3);
+        final byte[][] chunks = PacketFramer.fragment(message, PacketFramer.DEFAULT_MTU);
+        assertEquals(100, chunks.length);
+
+        byte[] received = null;
+        for(byte[] chunk : chunks) {
+            received = reassembler.onPacket(chunk);
+        }
+        assertArrayEquals(message, received);
+    }
+
+    @Test
+    public void lostChunkCostsOneMessage() {
+        final PacketReassembler reassembler = new PacketReassembler();
+        final byte[] first = message(60, 1);
+        final byte[] second = message(60, 2);
+        final byte[][] firstChunks = PacketFramer.fragment(first, PacketFramer.DEFAULT_MTU);
+        final byte[][] secondChunks = PacketFramer.fragment(second, PacketFramer.DEFAULT_MTU);
+
+        reassembler.onPacket(firstChunks[0]);
+        assertNull(reassembler.onPacket(firstChunks[2])); //chunk 1 lost
+        assertNull(reassembler.onPacket(firstChunks[3]));
+        assertEquals(1, reassembler.getDiscardedCount());
+
+        byte[] received = null;
+        for(byte[] chunk : secondChunks) {
+            received = reassembler.onPacket(chunk);
+        }
+        assertArrayEquals(second, received);
+    }
+
+    @Test
+    public void tooLongMessageIsDiscarded() {
+        final PacketReassembler reassembler = new PacketReassembler(50);
+        byte[] received = null;
+        for(byte[] chunk : PacketFramer.fragment(message(80, 1), PacketFramer.DEFAULT_MTU)) {
+            received = reassembler.onPacket(chunk);
+        }
+        assertNull(received);
+        assertEquals(1, reassembler.getDiscardedCount());
+    }
+
+    @Test
+    public void offerQueuesEveryChunkInOrder() {
+        final CollectingTransport transport = new CollectingTransport();
+        final GattWriteQueue queue = new GattWriteQueue(transport);
+        transport.mQueue = queue;
+        final byte[] message = message(300, 1);
+
+        assertTrue(PacketFramer.offer(queue, message, PacketFramer.DEFAULT_MTU, GattWriteQueue.NO_COALESCE));
+        final PacketReassembler reassembler = new PacketReassembler();
+        byte[] received = null;
+        for(byte[] frame : transport.mFrames) {
+            received = reassembler.onPacket(frame);
+        }
+        assertArrayEquals(message, received);
+    }
+
+    @Test
+    public void offerRefusesMessageBiggerThanTheQueue() {
+        final CollectingTransport transport = new CollectingTransport();
+        final GattWriteQueue queue = new GattWriteQueue(transport, 4, 1, GattWriteQueue.OVERFLOW_DROP_OLDEST);
+        transport.mQueue = queue;
+
+        assertFalse(PacketFramer.offer(queue, message(19 * 5, 1), PacketFramer.DEFAULT_MTU, GattWriteQueue.NO_COALESCE));
+        assertEquals(0, transport.mFrames.size());
+    }
+
+    @Test
+    public void unframedMessageGoesOutAsItIs() {
+        final CollectingTransport transport = new CollectingTransport();
+        final GattWriteQueue queue = new GattWriteQueue(transport);
+        transport.mQueue = queue;
+        final byte[] hello = {'H', 'I'};
+
+        assertTrue(PacketFramer.offerUnframed(queue, hello, PacketFramer.DEFAULT_MTU, GattWriteQueue.NO_COALESCE, null));
+        assertFalse(PacketFramer.offerUnframed(queue, message(21, 1), PacketFramer.DEFAULT_MTU, GattWriteQueue.NO_COALESCE, null));
+        assertTrue(PacketFramer.offerUnframed(queue, message(182, 1), 185, GattWriteQueue.NO_COALESCE, null));
+        assertEquals(2, transport.mFrames.size());
+        assertArrayEquals(hello, transport.mFrames.get(0));
+    }
+}
@@ -0,0 +1,43 @@
+package zac.org.disruptivelights;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ScanSchedulerTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void dutyCycleFasterThanTheStartLimitIsRefused() {
+        new ScanScheduler(new VirtualClock()).setDutyCycled(1000, 3000);
+    }
+
+    @Test
+    public void adaptiveWindowsNeverStartTooOften() {
+        final VirtualClock clock = new VirtualClock();
+        final ScanScheduler scheduler = new ScanScheduler(clock);
+        scheduler.setAdaptive(ScanScheduler.ADAPTIVE_MIN_WINDOW_MS, ScanScheduler.ADAPTIVE_MAX_WINDOW_MS,
+                ScanScheduler.ADAPTIVE_MIN_IDLE_MS, ScanScheduler.ADAPTIVE_MAX_IDLE_MS);
+
+        final long[] starts = new long[200];
+        for(int i = 0; i < starts.length; i++) {
+            starts[i] = clock.now();
+            scheduler.onWindowStart();
+            clock.advance(scheduler.getWindowMs());
+            clock.advance(scheduler.onWindowEnd(i % 3 == 0 ? 1 : 0));
+        }
+        for(int i = 5; i < starts.length; i++) {
+            assertTrue(starts[i] - starts[i - 5] >= 30000);
+        }
+    }
+
+    @Test
+    public void continuousWindowsAreNotHeldBack() {
+        final VirtualClock clock = new VirtualClock();
+        final ScanScheduler scheduler = new ScanScheduler(clock);
+        scheduler.setContinuous();
+        scheduler.onWindowStart();
+        clock.advance(scheduler.getWindowMs());
+        assertEquals(0, scheduler.onWindowEnd(0));
+    }
+}
@@ -0,0 +1,83 @@
+package zac.org.disruptivelights;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TraceRecorderTest {
+
+    private static File traceFile() throws IOException {
+        final File file = File.createTempFile("trace", ".bin");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static byte[] payload(int length, int seed) {
+        final byte[] payload = new byte[length];
+        for(int i = 0; i < length; i++) {
+            payload[i] = (byte)(seed + i);
+        }
+        return payload;
+    }
+
+    @Test
+    public void lessThanAHeaderLeftAtTheEndIsSkipped() throws IOException {
+        for(int left = TraceRecorder.RECORD_ALIGN; left < TraceRecorder.RECORD_HEADER_SIZE; left += TraceRecorder.RECORD_ALIGN) {
+            final File file = traceFile();
+            final TraceRecorder recorder = new TraceRecorder(file, 1024, new VirtualClock());
+            final int[] lengths = {232, 232, 232, 232, 1024 - 4 * 232 - left};
+            for(int i = 0; i < lengths.length; i++) {
+                recorder.write(i, payload(lengths[i] - TraceRecorder.RECORD_HEADER_SIZE, i));
+            }
+            recorder.connected(lengths.length, 0);
+            recorder.close();
+
+            final TraceReader reader = new TraceReader(file);
+            for(int i = 1; i < lengths.length; i++) {
+                assertTrue(reader.next());
+                assertEquals(TraceRecorder.TYPE_WRITE, reader.getType());
+                assertEquals(i, reader.getAddressKey());
+            }
+            assertTrue(reader.next());
+            assertEquals(TraceRecorder.TYPE_CONNECTED, reader.getType());
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void newestRecordsSurviveManyWraps() throws IOException {
+        final Random random = new Random(1);
+        final File file = traceFile();
+        final TraceRecorder recorder = new TraceRecorder(file, 1024, new VirtualClock());
+        final int records = 5000;
+        for(int i = 0; i < records; i++) {
+            if(random.nextInt(4) == 0) {
+                recorder.connected(i, 0);
+            } else {
+                recorder.write(i, payload(random.nextInt(120), i));
+            }
+        }
+        recorder.close();
+
+        final TraceReader reader = new TraceReader(file);
+        assertEquals(records, reader.getRecordCount());
+        assertTrue(reader.next());
+        long expected = reader.getAddressKey();
+        assertTrue(expected > 0);
+        do {
+            assertEquals(expected, reader.getAddressKey());
+            if(reader.getType() == TraceRecorder.TYPE_WRITE) {
+                assertArrayEquals(payload(reader.getPayloadLength(), (int)expected), reader.getPayload());
+            }
+            expected++;
+        } while(reader.next());
+        assertEquals(records, expected);
+    }
+}
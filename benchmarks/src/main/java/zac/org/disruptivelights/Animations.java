@@ -0,0 +1,72 @@
+package zac.org.disruptivelights;
+
+import java.util.Random;
+
+/**
+ * Representative light animations for the benchmarks, as sequences of raw RGB frames.
+ */
+public class Animations {
+    public static final String STATIC = "static";
+    public static final String CHASE = "chase";
+    public static final String TWINKLE = "twinkle";
+    public static final String FADE = "fade";
+    public static final String RAINBOW = "rainbow";
+
+    public static final String[] ALL = {STATIC, CHASE, TWINKLE, FADE, RAINBOW};
+
+    /**
+     * frames frames of leds RGB pixels each. Same name, size and seed give the same frames.
+     */
+    public static byte[][] generate(String name, int leds, int frames, long seed) {
+        final byte[][] out = new byte[frames][];
+        final Random random = new Random(seed);
+        byte[] previous = new byte[leds * 3];
+        for(int f = 0; f < frames; f++) {
+            final byte[] frame = new byte[leds * 3];
+            if(STATIC.equals(name)) {
+                //Solid warm white, never changes
+                for(int i = 0; i < leds; i++) {
+                    set(frame, i, 255, 180, 120);
+                }
+            } else if(CHASE.equals(name)) {
+                //A 5 pixel red segment running along a dim blue strip
+                for(int i = 0; i < leds; i++) {
+                    set(frame, i, 0, 0, 20);
+                }
+                for(int k = 0; k < 5; k++) {
+                    set(frame, (f + k) % leds, 255, 0, 0);
+                }
+            } else if(TWINKLE.equals(name)) {
+                //About 5% of the pixels change each frame
+                System.arraycopy(previous, 0, frame, 0, frame.length);
+                for(int k = 0; k < Math.max(1, leds / 20); k++) {
+                    final int level = random.nextInt(256);
+                    set(frame, random.nextInt(leds), level, level, level);
+                }
+            } else if(FADE.equals(name)) {
+                //The whole strip breathes one color
+                final int level = (int)(127.5 + 127.5 * Math.sin(f * 2 * Math.PI / 120));
+                for(int i = 0; i < leds; i++) {
+                    set(frame, i, level, level / 2, 0);
+                }
+            } else if(RAINBOW.equals(name)) {
+                //Every pixel changes every frame, the worst case
+                for(int i = 0; i < leds; i++) {
+                    final int hue = (i * 256 / leds + f * 4) & 0xFF;
+                    set(frame, i, hue, 255 - hue, (hue * 3) & 0xFF);
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown animation " + name);
+            }
+            out[f] = frame;
+            previous = frame;
+        }
+        return out;
+    }
+
+    private static void set(byte[] frame, int led, int r, int g, int b) {
+        frame[led * 3] = (byte)r;
+        frame[led * 3 + 1] = (byte)g;
+        frame[led * 3 + 2] = (byte)b;
+    }
+}
@@ -0,0 +1,150 @@
+package zac.org.disruptivelights;
+
+import java.util.Arrays;
+
+/**
+ * How long AutoConnectBLEService waits for its target, on BleSimulator.
+ *
+ *   AutoConnectMatchRun [advertisers] [runs] [seed]
+ *
+ * Each run puts one target among the other advertisers and starts a filtered scan for it.
+ * Alongside, a bus listener does what AutoConnectBLEService did before: compare the address
+ * of every new device against the target. Reports the virtual time from starting the scan to
+ * each of them seeing the target, and how many other new devices the old path had to look at
+ * first. Then the scan is stopped for a few seconds and started again, the way the service
+ * does after a dropped connection, and the same is measured with the target already known.
+ */
+public class AutoConnectMatchRun {
+    private static final String TARGET = "D2:86:6A:06:04:83";
+    private static final long RESCAN_AFTER_MS = 5000;
+    private static final long GIVE_UP_MS = 120000;
+    private static final long NOT_MATCHED = -1;
+
+    //Filled in on the simulator's thread while a run is going
+    private static class Match {
+        final BleSimulator mSimulator;
+        long mStartedUs;
+        long mFilterMs = NOT_MATCHED;
+        long mNewDeviceMs = NOT_MATCHED;
+        int mNewDevicesBefore;
+
+        Match(BleSimulator simulator) {
+            mSimulator = simulator;
+        }
+
+        void start() {
+            mStartedUs = mSimulator.getTimeUs();
+            mFilterMs = NOT_MATCHED;
+            mNewDeviceMs = NOT_MATCHED;
+            mNewDevicesBefore = 0;
+        }
+
+        long elapsedMs() {
+            return (mSimulator.getTimeUs() - mStartedUs) / 1000;
+        }
+
+        boolean done() {
+            return mFilterMs != NOT_MATCHED && mNewDeviceMs != NOT_MATCHED;
+        }
+    }
+
+    public static void main(String[] args) {
+        final int advertisers = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        final int runs = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        final long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+
+        final long[][] cold = new long[2][runs];
+        final long[][] rescan = new long[2][runs];
+        final long[] newDevicesBefore = new long[runs];
+        final long startNs = System.nanoTime();
+        for(int r = 0; r < runs; r++) {
+            run(advertisers, seed + r, r, cold, rescan, newDevicesBefore);
+        }
+        final long wallMs = (System.nanoTime() - startNs) / 1000000;
+
+        System.out.println("Target among " + advertisers + " advertisers, " + runs + " runs in " + wallMs + " ms");
+        System.out.println("Scan start to first match, virtual ms:");
+        report("  filtered scan", cold[0]);
+        report("  new device", cold[1]);
+        report("  other new devices compared first", newDevicesBefore);
+        System.out.println("Scan stopped " + RESCAN_AFTER_MS + " ms and started again:");
+        report("  filtered scan", rescan[0]);
+        report("  new device", rescan[1]);
+    }
+
+    private static void run(int advertisers, long seed, int r, long[][] cold, long[][] rescan, long[] newDevicesBefore) {
+        final BleSimulator simulator = new BleSimulator(seed);
+        simulator.addAdvertisers(advertisers, -95, -40, 100, 1000);
+        simulator.addAdvertiser(TARGET, "Light target", -70, 100 + (int)(seed * 7919 % 901));
+
+        final BleEventBus bus = new BleEventBus();
+        final ScanEngine engine = new ScanEngine(simulator.getScanner(), simulator, simulator.getClock(), bus);
+        engine.getScanScheduler().setContinuous();
+
+        final String[] targets = {TARGET};
+        final Match match = new Match(simulator);
+        bus.register(new BleEventBus.SimpleScanListener() {
+            @Override
+            public void onDeviceNew(String address, String name, int rssi) {
+                if(match.mNewDeviceMs != NOT_MATCHED) {
+                    return;
+                }
+                for(String target : targets) {
+                    if(target.equals(address)) {
+                        match.mNewDeviceMs = match.elapsedMs();
+                        return;
+                    }
+                }
+                match.mNewDevicesBefore++;
+            }
+        });
+        final ScanEngine.FilterMatchListener filterListener = new ScanEngine.FilterMatchListener() {
+            @Override
+            public void onFilterMatch(String address, int rssi, byte[] scanRecord) {
+                match.mFilterMs = match.elapsedMs();
+            }
+        };
+        final AdvertisementFilter filter = new AdvertisementFilter().addAddress(TARGET);
+
+        match.start();
+        engine.startFilteredScan(filter, filterListener);
+        waitForMatch(simulator, match);
+        cold[0][r] = match.mFilterMs;
+        cold[1][r] = match.mNewDeviceMs;
+        newDevicesBefore[r] = match.mNewDevicesBefore;
+
+        engine.stopScanning();
+        simulator.runFor(RESCAN_AFTER_MS);
+
+        match.start();
+        engine.startFilteredScan(filter, filterListener);
+        waitForMatch(simulator, match);
+        rescan[0][r] = match.mFilterMs;
+        rescan[1][r] = match.mNewDeviceMs;
+        engine.stopScanning();
+    }
+
+    private static void waitForMatch(BleSimulator simulator, Match match) {
+        while(!match.done() && match.elapsedMs() < GIVE_UP_MS) {
+            simulator.runFor(100);
+        }
+    }
+
+    private static void report(String label, long[] values) {
+        final long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int missed = 0;
+        while(missed < sorted.length && sorted[missed] == NOT_MATCHED) {
+            missed++;
+        }
+        if(missed == sorted.length) {
+            System.out.println(label + ": none within " + GIVE_UP_MS + " ms");
+            return;
+        }
+        final int found = sorted.length - missed;
+        System.out.println(label + ": p50 " + sorted[missed + found / 2]
+                + ", p99 " + sorted[missed + Math.min(found - 1, found * 99 / 100)]
+                + ", max " + sorted[sorted.length - 1]
+                + (missed == 0 ? "" : ", none within " + GIVE_UP_MS + " ms for " + missed));
+    }
+}
@@ -0,0 +1,121 @@
+package zac.org.disruptivelights;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Puts a JMH run next to the checked in baseline, both as written by -rf csv.
+ *
+ *   BenchmarkCompare baseline.csv result.csv [tolerance]
+ *
+ * A result counts as a regression when it is more than tolerance (default 0.10) worse than
+ * the baseline and the two error bars do not overlap. Exits with 1 if there is one, so a
+ * script can stop on it. Baselines only mean something on the machine they were taken on.
+ */
+public class BenchmarkCompare {
+    private static class Result {
+        String mode;
+        double score;
+        double error;
+        String unit;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.err.println("Usage: BenchmarkCompare baseline.csv result.csv [tolerance]");
+            System.exit(2);
+        }
+        final Map<String, Result> baseline = read(args[0]);
+        final Map<String, Result> current = read(args[1]);
+        final double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 0.10;
+
+        int regressions = 0;
+        for(Map.Entry<String, Result> entry : current.entrySet()) {
+            final Result now = entry.getValue();
+            final Result then = baseline.get(entry.getKey());
+            if(then == null || !then.unit.equals(now.unit)) {
+                System.out.println(String.format("  new      %-70s %12.3f %s", entry.getKey(), now.score, now.unit));
+                continue;
+            }
+            //Throughput modes are better higher, time modes better lower
+            final boolean higherIsBetter = "thrpt".equals(now.mode);
+            final double change = (now.score - then.score) / then.score;
+            final double worse = higherIsBetter ? -change : change;
+            final boolean overlap = Math.abs(now.score - then.score) <= now.error + then.error;
+            final String verdict;
+            if(worse > tolerance && !overlap) {
+                verdict = "! slower ";
+                regressions++;
+            } else if(-worse > tolerance && !overlap) {
+                verdict = "  faster ";
+            } else {
+                verdict = "         ";
+            }
+            System.out.println(String.format("%s%-70s %12.3f -> %12.3f %s %+6.1f%%",
+                    verdict, entry.getKey(), then.score, now.score, now.unit, change * 100));
+        }
+        for(String key : baseline.keySet()) {
+            if(!current.containsKey(key)) {
+                System.out.println(String.format("  missing  %s", key));
+            }
+        }
+        System.out.println(regressions + " regression(s) beyond " + Math.round(tolerance * 100) + "%");
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    //Benchmark name plus its params, e.g. "ScanBenchmark.knownDevice devices=2000"
+    private static Map<String, Result> read(String path) throws IOException {
+        final Map<String, Result> results = new LinkedHashMap<String, Result>();
+        final BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            final List<String> header = split(reader.readLine());
+            String line;
+            while((line = reader.readLine()) != null) {
+                final List<String> fields = split(line);
+                if(fields.size() < 7) {
+                    continue;
+                }
+                final StringBuilder key = new StringBuilder(fields.get(0).replace("zac.org.disruptivelights.", ""));
+                for(int i = 7; i < fields.size() && i < header.size(); i++) {
+                    if(fields.get(i).length() == 0) {
+                        continue; //param of another suite
+                    }
+                    key.append(' ').append(header.get(i).replace("Param: ", "")).append('=').append(fields.get(i));
+                }
+                final Result result = new Result();
+                result.mode = fields.get(1);
+                result.score = Double.parseDouble(fields.get(4));
+                result.error = fields.get(5).length() == 0 || "NaN".equals(fields.get(5)) ? 0 : Double.parseDouble(fields.get(5));
+                result.unit = fields.get(6);
+                results.put(key.toString(), result);
+            }
+        } finally {
+            reader.close();
+        }
+        return results;
+    }
+
+    private static List<String> split(String line) {
+        final List<String> fields = new ArrayList<String>();
+        final StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for(int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if(c == '"') {
+                quoted = !quoted;
+            } else if(c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
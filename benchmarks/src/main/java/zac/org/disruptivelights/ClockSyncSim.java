@@ -0,0 +1,221 @@
+package zac.org.disruptivelights;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Simulates the time sync protocol against nodes with their own offset and drifting clock
+ * over links with latency and jitter, in virtual time, and reports how far apart the nodes
+ * fire scheduled frames compared to firing each frame on arrival.
+ *
+ *   ClockSyncSim [nodes] [latencyUs] [jitterUs] [seconds] [driftPpm] [seed]
+ *
+ * One way delay is latencyUs plus uniform 0..jitterUs, and one packet in twenty waits an
+ * extra jitterUs as if it had to be retransmitted in the next connection event.
+ */
+public class ClockSyncSim {
+    private static final long START_US = 1000000000L;
+    private static final long WARMUP_US = 3000000;
+    private static final long FRAME_INTERVAL_US = 50000;
+    private static final long LEAD_US = 150000;
+    private static final double RETRANSMIT_CHANCE = 0.05;
+
+    private final Random mRandom;
+    private final long mLatencyUs;
+    private final long mJitterUs;
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<Event>();
+    private long mNowUs = START_US;
+    private long mEventSeq;
+
+    private abstract class Event implements Comparable<Event> {
+        final long mAtUs;
+        final long mSeq = mEventSeq++;
+
+        Event(long atUs) {
+            mAtUs = atUs;
+        }
+
+        abstract void run();
+
+        @Override
+        public int compareTo(Event other) {
+            if(mAtUs != other.mAtUs) {
+                return mAtUs < other.mAtUs ? -1 : 1;
+            }
+            return mSeq < other.mSeq ? -1 : mSeq == other.mSeq ? 0 : 1;
+        }
+    }
+
+    private class Node {
+        final int mOffsetUs;
+        final double mDrift;
+        final ClockEstimator mEstimator = new ClockEstimator();
+        int mProbesSent;
+
+        Node(int offsetUs, double drift) {
+            mOffsetUs = offsetUs;
+            mDrift = drift;
+        }
+
+        int clock(long trueUs) {
+            return (int)(mOffsetUs + trueUs + Math.round((trueUs - START_US) * mDrift));
+        }
+
+        //True time at which the node's clock reaches nodeUs, seen from trueUs
+        long trueTimeOf(int nodeUs, long trueUs) {
+            return trueUs + Math.round((nodeUs - clock(trueUs)) / (1 + mDrift));
+        }
+    }
+
+    public ClockSyncSim(long latencyUs, long jitterUs, long seed) {
+        mLatencyUs = latencyUs;
+        mJitterUs = jitterUs;
+        mRandom = new Random(seed);
+    }
+
+    public static void main(String[] args) {
+        final int nodes = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        final long latencyUs = args.length > 1 ? Long.parseLong(args[1]) : 7500;
+        final long jitterUs = args.length > 2 ? Long.parseLong(args[2]) : 15000;
+        final int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 60;
+        final double driftPpm = args.length > 4 ? Double.parseDouble(args[4]) : 40;
+        final long seed = args.length > 5 ? Long.parseLong(args[5]) : 1;
+
+        new ClockSyncSim(latencyUs, jitterUs, seed).run(nodes, seconds, driftPpm);
+    }
+
+    public void run(int nodeCount, int seconds, double driftPpm) {
+        final List<Node> nodes = new ArrayList<Node>();
+        for(int i = 0; i < nodeCount; i++) {
+            final Node node = new Node(mRandom.nextInt(), (mRandom.nextDouble() * 2 - 1) * driftPpm / 1e6);
+            nodes.add(node);
+            scheduleProbe(node, START_US + i * 3000);
+        }
+
+        final long endUs = START_US + seconds * 1000000L;
+        final int frames = (int)((endUs - START_US - WARMUP_US) / FRAME_INTERVAL_US);
+        final long[][] synced = new long[frames][nodeCount];
+        final long[][] onArrival = new long[frames][nodeCount];
+        final int[] late = new int[1];
+        for(int f = 0; f < frames; f++) {
+            final int frame = f;
+            schedule(new Event(START_US + WARMUP_US + f * FRAME_INTERVAL_US) {
+                @Override
+                void run() {
+                    sendFrame(nodes, frame, mNowUs + LEAD_US, synced[frame], onArrival[frame], late);
+                }
+            });
+        }
+
+        while(!mEvents.isEmpty()) {
+            final Event event = mEvents.poll();
+            mNowUs = event.mAtUs;
+            if(mNowUs > endUs + LEAD_US + 10 * (mLatencyUs + mJitterUs)) {
+                break;
+            }
+            event.run();
+        }
+
+        System.out.println(nodeCount + " nodes, latency " + mLatencyUs + " us + jitter 0.." + mJitterUs + " us, drift +-"
+                + driftPpm + " ppm, " + seconds + " s, " + frames + " frames, lead " + LEAD_US / 1000 + " ms");
+        for(Node node : nodes) {
+            System.out.println("  drift " + String.format("%6.1f", node.mDrift * 1e6) + " ppm  " + node.mEstimator);
+        }
+        report("fired on arrival", onArrival, START_US + WARMUP_US, false);
+        report("scheduled", synced, START_US + WARMUP_US, true);
+        System.out.println("  late scheduled frames (arrived after their time): " + late[0]);
+    }
+
+    private void scheduleProbe(final Node node, long atUs) {
+        schedule(new Event(atUs) {
+            @Override
+            void run() {
+                final long sentUs = mNowUs;
+                final byte[] probe = node.mEstimator.probe(sentUs);
+                final long arrivalUs = sentUs + delayUs();
+                final long replyUs = arrivalUs + 100 + mRandom.nextInt(200);
+                final byte[] reply = ClockSync.reply(ClockSync.getSeq(probe), node.clock(arrivalUs), node.clock(replyUs));
+                schedule(new Event(replyUs + delayUs()) {
+                    @Override
+                    void run() {
+                        node.mEstimator.onReply(reply, mNowUs);
+                    }
+                });
+
+                node.mProbesSent++;
+                scheduleProbe(node, mNowUs + 1000 * (node.mProbesSent < TimeSync.BURST_PROBES
+                        ? TimeSync.BURST_INTERVAL_MS : TimeSync.PROBE_INTERVAL_MS));
+            }
+        });
+    }
+
+    private void sendFrame(List<Node> nodes, int frame, final long presentAtUs, final long[] synced, final long[] onArrival, final int[] late) {
+        final byte[] payload = new byte[] {'K', (byte)frame};
+        for(int i = 0; i < nodes.size(); i++) {
+            final Node node = nodes.get(i);
+            final int n = i;
+
+            //Today: each node shows the frame when it gets it
+            onArrival[n] = mNowUs + delayUs();
+
+            final byte[] packet = ClockSync.scheduled(node.mEstimator.toNodeTime(presentAtUs), payload);
+            schedule(new Event(mNowUs + delayUs()) {
+                @Override
+                void run() {
+                    final int atUs = ClockSync.getScheduledAt(packet);
+                    if(atUs - node.clock(mNowUs) < 0) {
+                        late[0]++;
+                        synced[n] = mNowUs;
+                    } else {
+                        synced[n] = node.trueTimeOf(atUs, mNowUs);
+                    }
+                }
+            });
+        }
+    }
+
+    private void report(String name, long[][] fired, long firstFrameUs, boolean againstTarget) {
+        final long[] spreads = new long[fired.length];
+        long errorSum = 0;
+        long errorMax = 0;
+        long errors = 0;
+        for(int f = 0; f < fired.length; f++) {
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for(long t : fired[f]) {
+                min = Math.min(min, t);
+                max = Math.max(max, t);
+                if(againstTarget) {
+                    final long error = Math.abs(t - (firstFrameUs + f * FRAME_INTERVAL_US + LEAD_US));
+                    errorSum += error;
+                    errorMax = Math.max(errorMax, error);
+                    errors++;
+                }
+            }
+            spreads[f] = max - min;
+        }
+        Arrays.sort(spreads);
+        long sum = 0;
+        for(long spread : spreads) {
+            sum += spread;
+        }
+        System.out.println(String.format("  %-17s spread between nodes us: mean %6d  p50 %6d  p99 %6d  max %6d", name + ":",
+                sum / spreads.length, spreads[spreads.length / 2], spreads[spreads.length * 99 / 100], spreads[spreads.length - 1])
+                + (againstTarget ? String.format("   error vs target us: mean %d  max %d", errorSum / errors, errorMax) : ""));
+    }
+
+    private long delayUs() {
+        long delay = mLatencyUs + (long)(mRandom.nextDouble() * mJitterUs);
+        if(mRandom.nextDouble() < RETRANSMIT_CHANCE) {
+            delay += mJitterUs;
+        }
+        return delay;
+    }
+
+    private void schedule(Event event) {
+        mEvents.add(event);
+    }
+}
@@ -0,0 +1,70 @@
+package zac.org.disruptivelights;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * What the device cache costs: bytes written while scanning and sending frames, and how
+ * long a cold load takes, which is all that stands between startup and a direct connect.
+ *
+ *   DeviceCacheRun [devices] [seconds] [leds]
+ *
+ * Simulates every device advertising ten times a second and getting a frame 30 times a
+ * second, with a flush every FLUSH_DELAY_MS like its I/O worker would do, in virtual time.
+ */
+public class DeviceCacheRun {
+    public static void main(String[] args) throws Exception {
+        final int devices = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 600;
+        final int leds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+
+        final File file = File.createTempFile("devices", ".cache");
+        file.deleteOnExit();
+        final BleWorker worker = new BleWorker("DeviceCacheRun");
+        final VirtualClock clock = new VirtualClock();
+        final DeviceCache cache = new DeviceCache(file, worker, clock);
+
+        final String[] addresses = new String[devices];
+        for(int i = 0; i < devices; i++) {
+            addresses[i] = DeviceRegistry.formatAddress(0xD2866A000000L + i);
+        }
+
+        final byte[] frame = new byte[leds * 3];
+        final long startMs = System.currentTimeMillis();
+        long putNs = 0;
+        long puts = 0;
+        for(long ms = 0; ms < seconds * 1000L; ms += 100) {
+            final long putStart = System.nanoTime();
+            for(int i = 0; i < devices; i++) {
+                cache.putSeen(addresses[i], "Light " + i, -50 - (int)(ms / 100 + i) % 40, startMs + ms);
+                for(int f = 0; f < 3; f++) {
+                    frame[(int)((ms / 33 + f + i) % frame.length)]++;
+                    cache.putLightState(addresses[i], frame);
+                }
+            }
+            putNs += System.nanoTime() - putStart;
+            puts += devices * 4;
+            clock.advanceTo(ms);
+            if(ms % DeviceCache.FLUSH_DELAY_MS == 0) {
+                cache.flush(false);
+            }
+        }
+        cache.flush();
+        worker.shutdown();
+
+        final long[] loadUs = new long[21];
+        for(int i = 0; i < loadUs.length; i++) {
+            final DeviceCache cold = new DeviceCache(file, worker, clock);
+            cold.preload();
+            loadUs[i] = cold.getLoadMicros();
+        }
+        Arrays.sort(loadUs);
+
+        System.out.println(devices + " devices, " + seconds + " s, " + leds + " LEDs");
+        System.out.println("  " + cache);
+        System.out.println("  put: " + putNs / puts + " ns mean");
+        System.out.println("  written: " + cache.getRecordsWritten() + " records, " + (cache.getRecordsWritten() * 60 / seconds)
+                + " per minute, file now " + file.length() + " bytes");
+        System.out.println("  cold load: median " + loadUs[loadUs.length / 2] + " us, max " + loadUs[loadUs.length - 1] + " us");
+    }
+}
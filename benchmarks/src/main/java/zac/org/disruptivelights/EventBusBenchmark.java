@@ -0,0 +1,114 @@
+package zac.org.disruptivelights;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fanning one new device event out to listeners. bus is BleEventBus.postDeviceNew(),
+ * broadcast is what the Intent broadcasts it replaced did in process: an Intent with its
+ * extras in a map, the receivers looked up by action, and each receiver reading the extras
+ * back out, the way LocalBroadcastManager dispatches. Intents are Android classes and not
+ * part of this module, so broadcast uses stand-ins of the same shape. sendBroadcast() also
+ * went through the system server and back to the main thread, none of which is counted, so
+ * broadcast is the least the old path cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventBusBenchmark {
+    private static final String ACTION_DEVICE_NEW = "zac.org.disruptivelights.ACTION_DEVICE_NEW";
+    private static final String EXTRA_ADDRESS = "zac.org.disruptivelights.EXTRA_ADDRESS";
+    private static final String EXTRA_NAME = "zac.org.disruptivelights.EXTRA_NAME";
+    private static final String EXTRA_RSSI = "zac.org.disruptivelights.EXTRA_RSSI";
+
+    @Param({"1", "4"})
+    public int listeners;
+
+    //An Intent: an action and a map of extras
+    private static class Intent {
+        final String mAction;
+        final HashMap<String, Object> mExtras = new HashMap<String, Object>();
+
+        Intent(String action) {
+            mAction = action;
+        }
+    }
+
+    private interface Receiver {
+        void onReceive(Intent intent);
+    }
+
+    private final BleEventBus mBus = new BleEventBus();
+    private final HashMap<String, ArrayList<Receiver>> mReceivers = new HashMap<String, ArrayList<Receiver>>();
+    private final String mAddress = "D2:86:6A:06:04:83";
+    private int mRssi;
+    private long mSeen;
+
+    @Setup
+    public void setup() {
+        final ArrayList<Receiver> receivers = new ArrayList<Receiver>();
+        for(int i = 0; i < listeners; i++) {
+            mBus.register(new BleEventBus.SimpleScanListener() {
+                @Override
+                public void onDeviceNew(String address, String name, int rssi) {
+                    mSeen += address.length() + rssi;
+                }
+            });
+            receivers.add(new Receiver() {
+                @Override
+                public void onReceive(Intent intent) {
+                    if(ACTION_DEVICE_NEW.equals(intent.mAction)) {
+                        final String address = (String)intent.mExtras.get(EXTRA_ADDRESS);
+                        intent.mExtras.get(EXTRA_NAME);
+                        final Integer rssi = (Integer)intent.mExtras.get(EXTRA_RSSI);
+                        mSeen += address.length() + (rssi == null ? 0 : rssi);
+                    }
+                }
+            });
+        }
+        mReceivers.put(ACTION_DEVICE_NEW, receivers);
+    }
+
+    @Benchmark
+    public long bus() {
+        mBus.postDeviceNew(mAddress, null, -40 - (mRssi++ & 31));
+        return mSeen;
+    }
+
+    @Benchmark
+    public long broadcast() {
+        final Intent intent = new Intent(ACTION_DEVICE_NEW);
+        intent.mExtras.put(EXTRA_ADDRESS, mAddress);
+        intent.mExtras.put(EXTRA_NAME, null);
+        intent.mExtras.put(EXTRA_RSSI, -40 - (mRssi++ & 31));
+
+        //LocalBroadcastManager collects the matching receivers first, then calls them
+        final ArrayList<Receiver> registered = mReceivers.get(intent.mAction);
+        if(registered != null) {
+            final ArrayList<Receiver> matching = new ArrayList<Receiver>(registered.size());
+            for(int i = 0; i < registered.size(); i++) {
+                matching.add(registered.get(i));
+            }
+            for(int i = 0; i < matching.size(); i++) {
+                matching.get(i).onReceive(intent);
+            }
+        }
+        return mSeen;
+    }
+}
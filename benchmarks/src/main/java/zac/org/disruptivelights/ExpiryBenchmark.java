@@ -0,0 +1,76 @@
+package zac.org.disruptivelights;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One once-a-second out of range check with every device still around, the steady state
+ * of a long scan. wheel is what ScanEngine does: only devices whose deadline came up are
+ * looked at and pushed back. fullScan is the old way of checking every device every time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpiryBenchmark {
+    @Param({"2000", "20000"})
+    public int devices;
+
+    private DeviceRegistry mRegistry;
+    private ExpiryWheel mWheel;
+    private long mNow;
+
+    //Every device is heard all the time, so a deadline that comes up is pushed a minute out
+    private final ExpiryWheel.Owner mOwner = new ExpiryWheel.Owner() {
+        @Override
+        public long onDeadline(long key, long now) {
+            final int slot = mRegistry.find(key);
+            return slot == DeviceRegistry.NOT_FOUND ? ExpiryWheel.EXPIRED : now + ScanEngine.OUT_OF_RANGE_AFTER_MS;
+        }
+    };
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(1);
+        mRegistry = new DeviceRegistry();
+        mWheel = new ExpiryWheel(ScanEngine.OUT_OF_RANGE_AFTER_MS, ScanEngine.OUT_OF_RANGE_CHECK_MS, 0);
+        for(int i = 0; i < devices; i++) {
+            final long key = random.nextLong() & 0xFFFFFFFFFFFFL;
+            mRegistry.put(key, DeviceRegistry.formatAddress(key), null, -60, 0);
+            mWheel.schedule(key, 1 + random.nextInt((int)ScanEngine.OUT_OF_RANGE_AFTER_MS));
+        }
+    }
+
+    @Benchmark
+    public int wheel() {
+        mNow += ScanEngine.OUT_OF_RANGE_CHECK_MS;
+        return mWheel.advance(mNow, mOwner);
+    }
+
+    @Benchmark
+    public int fullScan() {
+        mNow += ScanEngine.OUT_OF_RANGE_CHECK_MS;
+        final long cutoff = mNow - ScanEngine.OUT_OF_RANGE_AFTER_MS;
+        int gone = 0;
+        for(int slot = 0; slot < mRegistry.capacity(); slot++) {
+            if(mRegistry.keyAt(slot) != DeviceRegistry.NO_ADDRESS && mRegistry.lastSeenAt(slot) < cutoff) {
+                gone++;
+            }
+        }
+        return gone;
+    }
+}
@@ -0,0 +1,62 @@
+package zac.org.disruptivelights;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode time per frame of FrameDeltaEncoder on the Animations, next to a plain copy of
+ * the frame as the cost of always sending it whole.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDeltaBenchmark {
+    private static final int FRAMES = 240;
+
+    @Param({"static", "chase", "twinkle", "fade", "rainbow"})
+    public String animation;
+
+    @Param({"60", "300"})
+    public int leds;
+
+    private byte[][] mFrames;
+    private byte[] mCopy;
+    private FrameDeltaEncoder mEncoder;
+    private int mNext;
+
+    @Setup
+    public void setup() {
+        mFrames = Animations.generate(animation, leds, FRAMES, 1);
+        mCopy = new byte[leds * 3 + FrameDeltaEncoder.HEADER_SIZE];
+        mEncoder = new FrameDeltaEncoder();
+    }
+
+    @Benchmark
+    public int encode() {
+        final byte[] frame = mFrames[mNext];
+        mNext = (mNext + 1) % FRAMES;
+        return mEncoder.encode(frame, 0, frame.length);
+    }
+
+    @Benchmark
+    public int fullFrame() {
+        final byte[] frame = mFrames[mNext];
+        mNext = (mNext + 1) % FRAMES;
+        System.arraycopy(frame, 0, mCopy, FrameDeltaEncoder.HEADER_SIZE, frame.length);
+        return frame.length + FrameDeltaEncoder.HEADER_SIZE;
+    }
+}
@@ -0,0 +1,47 @@
+package zac.org.disruptivelights;
+
+/**
+ * Prints how many bytes the delta encoding sends compared to whole frames for each of the
+ * Animations, and checks that a decoder ends up with the same frames.
+ */
+public class FrameDeltaReport {
+    public static void main(String[] args) {
+        final int frames = 600;
+        System.out.println("animation  leds  frames  raw_bytes  sent_bytes    ratio  keyframes  deltas  unchanged");
+        for(int leds : new int[] {60, 300}) {
+            for(String animation : Animations.ALL) {
+                final byte[][] sequence = Animations.generate(animation, leds, frames, 1);
+                final FrameDeltaEncoder encoder = new FrameDeltaEncoder();
+                final FrameDeltaDecoder decoder = new FrameDeltaDecoder();
+                for(byte[] frame : sequence) {
+                    final byte[] packet = encoder.encode(frame);
+                    if(packet != null && decoder.apply(packet) != FrameDeltaDecoder.RESULT_APPLIED) {
+                        throw new IllegalStateException(animation + ": decoder refused a packet");
+                    }
+                    if(!equal(frame, decoder.getFrame(), decoder.getFrameLength())) {
+                        throw new IllegalStateException(animation + ": decoded frame differs");
+                    }
+                }
+
+                //Whole frames would be sent with the same two byte header
+                final long raw = encoder.getRawBytes() + frames * FrameDeltaEncoder.HEADER_SIZE;
+                System.out.println(String.format("%-9s  %4d  %6d  %9d  %10d  %7.1f  %9d  %6d  %9d",
+                        animation, leds, frames, raw, encoder.getEncodedBytes(),
+                        (double)raw / encoder.getEncodedBytes(), encoder.getKeyframeCount(),
+                        encoder.getDeltaCount(), encoder.getUnchangedCount()));
+            }
+        }
+    }
+
+    private static boolean equal(byte[] a, byte[] b, int length) {
+        if(a.length != length) {
+            return false;
+        }
+        for(int i = 0; i < length; i++) {
+            if(a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,62 @@
+package zac.org.disruptivelights;
+
+/**
+ * What adding a log line costs once the app has been running a long time.
+ *
+ *   LogBufferRun [lines] [lines per refresh]
+ *
+ * Adds lines of all three types to one LogBuffer, with a wakeup set the way MainActivity
+ * sets it. Every lines per refresh lines it does what a screen refresh does: take the
+ * wakeup and read the 20 newest lines of everything. Reports the cost per line for every
+ * million, which should stay flat, and how many lines are kept.
+ */
+public class LogBufferRun {
+    private static final int BLOCK = 1000000;
+    private static final int VISIBLE_ROWS = 20;
+
+    public static void main(String[] args) {
+        final long lines = args.length > 0 ? Long.parseLong(args[0]) : 6000000;
+        final int perRefresh = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        final VirtualClock clock = new VirtualClock();
+        final LogBuffer buffer = new LogBuffer(clock);
+        final long[] wakeups = new long[1];
+        buffer.setWakeup(new Runnable() {
+            @Override
+            public void run() {
+                wakeups[0]++;
+            }
+        });
+
+        final String[] messages = new String[64];
+        for(int i = 0; i < messages.length; i++) {
+            messages[i] = "Device " + DeviceRegistry.formatAddress(0xD2866A060400L + i) + " RSSI: " + (-40 - i);
+        }
+
+        System.out.println("LogBuffer of " + buffer.capacity() + " lines per filter, refresh every " + perRefresh + " lines");
+        long read = 0;
+        long added = 0;
+        while(added < lines) {
+            final long block = Math.min(BLOCK, lines - added);
+            final long startNs = System.nanoTime();
+            for(long i = 0; i < block; i++) {
+                final int n = (int)(added + i);
+                buffer.add(n % LogBuffer.TYPE_COUNT, messages[n & 63]);
+                if(n % perRefresh == perRefresh - 1) {
+                    clock.advance(33);
+                    buffer.takeWakeup();
+                    final long end = buffer.getEnd(LogBuffer.FILTER_ALL);
+                    final int size = Math.min(VISIBLE_ROWS, buffer.size(LogBuffer.FILTER_ALL));
+                    for(long seq = end - size; seq < end; seq++) {
+                        read += buffer.messageAt(LogBuffer.FILTER_ALL, seq).length();
+                    }
+                }
+            }
+            final long ns = System.nanoTime() - startNs;
+            added += block;
+            System.out.println("  " + added + " lines: " + (ns / block) + " ns per line, "
+                    + buffer.size(LogBuffer.FILTER_ALL) + " kept");
+        }
+        System.out.println("Wakeups " + wakeups[0] + ", chars read " + read);
+    }
+}
@@ -0,0 +1,98 @@
+package zac.org.disruptivelights;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * How many proximity changes ScanEngine hands out for the advertisements it takes in, and
+ * how close its top stays to the real one, on BleSimulator.
+ *
+ *   ProximityEventRun [seconds] [seed] [devices...]
+ *
+ * Every device advertises 10 times a second at a fixed mean RSSI with 6 dB of noise. Once
+ * a second the devices reported as the top are compared with the ones really nearest:
+ * the gap is how many dB the weakest reported device's mean is below the real 8th
+ * nearest, 0 when the top is exactly right.
+ */
+public class ProximityEventRun {
+    private static final int INTERVAL_MS = 95; //plus the simulator's 0..10 ms jitter
+    private static final double NOISE_DB = 6;
+    private static final long WARMUP_MS = 5000;
+
+    public static void main(String[] args) {
+        final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 600;
+        final long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        int[] counts = {20, 200, 2000};
+        if(args.length > 2) {
+            counts = new int[args.length - 2];
+            for(int i = 2; i < args.length; i++) {
+                counts[i - 2] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println(seconds + " s simulated, " + (1000 / (INTERVAL_MS + 5)) + " advertisements/s per device, "
+                + (int)NOISE_DB + " dB noise");
+        for(int devices : counts) {
+            run(devices, seconds, seed);
+        }
+    }
+
+    private static void run(int devices, int seconds, long seed) {
+        final BleSimulator simulator = new BleSimulator(seed);
+        simulator.setRssiNoiseDb(NOISE_DB);
+        final Random random = new Random(seed);
+        final HashMap<String, Integer> meanRssi = new HashMap<String, Integer>();
+        final int[] sortedMeans = new int[devices];
+        for(int i = 0; i < devices; i++) {
+            String address;
+            do {
+                address = DeviceRegistry.formatAddress(random.nextLong() & 0xFFFFFFFFFFFFL);
+            } while(meanRssi.containsKey(address));
+            final int rssi = -95 + random.nextInt(56);
+            meanRssi.put(address, rssi);
+            sortedMeans[i] = rssi;
+            simulator.addAdvertiser(address, "Light " + i, rssi, INTERVAL_MS);
+        }
+        Arrays.sort(sortedMeans);
+
+        final BleEventBus bus = new BleEventBus();
+        final ScanEngine engine = new ScanEngine(simulator.getScanner(), simulator, simulator.getClock(), bus);
+        engine.getScanScheduler().setContinuous();
+        final long[] changes = new long[1];
+        bus.register(new BleEventBus.ProximityListener() {
+            @Override
+            public void onProximityChanged(String address, int rank, int rssi) {
+                changes[0]++;
+            }
+        });
+
+        final int top = ProximityIndex.DEFAULT_TOP;
+        final int trueLast = sortedMeans[Math.max(0, devices - top)];
+        final String[] nearest = new String[top];
+        final int[] nearestRssi = new int[top];
+        final int[] gaps = new int[seconds];
+        int samples = 0;
+
+        final long startNs = System.nanoTime();
+        engine.startScan();
+        simulator.runFor(WARMUP_MS);
+        for(int s = 0; s < seconds; s++) {
+            simulator.runFor(1000);
+            final int count = engine.getNearest(top, nearest, nearestRssi);
+            int weakest = 0;
+            for(int i = 0; i < count; i++) {
+                weakest = Math.min(weakest, meanRssi.get(nearest[i]));
+            }
+            gaps[samples++] = count == 0 ? 0 : Math.max(0, trueLast - weakest);
+        }
+        final long wallMs = (System.nanoTime() - startNs) / 1000000;
+
+        final long received = engine.getAdvertisementCount();
+        Arrays.sort(gaps, 0, samples);
+        System.out.println(devices + " devices: " + received + " advertisements -> " + changes[0] + " proximity changes ("
+                + (changes[0] == 0 ? "-" : String.valueOf(received / changes[0])) + "x fewer), " + wallMs + " ms");
+        System.out.println("  weakest of the reported top " + top + " below the real " + top + "th nearest: p50 "
+                + gaps[samples / 2] + " dB, p99 " + gaps[samples * 99 / 100] + " dB, max " + gaps[samples - 1] + " dB");
+    }
+}
@@ -0,0 +1,95 @@
+package zac.org.disruptivelights;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The pieces of per-advertisement handling on their own: parsing the address, recording
+ * the advertisement in DeviceRegistry and moving the device in the ProximityIndex.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegistryBenchmark {
+    @Param({"100", "2000"})
+    public int devices;
+
+    private DeviceRegistry mRegistry;
+    private ProximityIndex mProximity;
+    private final ProximityIndex.Changes mChanges = new ProximityIndex.Changes();
+    private String[] mAddresses;
+    private long[] mKeys;
+    private int[] mRssi;
+    private long mNow;
+    private int mNext;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(1);
+        mRegistry = new DeviceRegistry();
+        mProximity = new ProximityIndex();
+        mRegistry.setProximityIndex(mProximity);
+        mAddresses = new String[devices];
+        mKeys = new long[devices];
+        mRssi = new int[devices];
+        for(int i = 0; i < devices; i++) {
+            mKeys[i] = random.nextLong() & 0xFFFFFFFFFFFFL;
+            mAddresses[i] = DeviceRegistry.formatAddress(mKeys[i]);
+            mRssi[i] = -90 + random.nextInt(50);
+            final int slot = DeviceRegistry.slotOf(mRegistry.put(mKeys[i], mAddresses[i], null, mRssi[i], 0));
+            mProximity.update(mRegistry, slot, mChanges);
+        }
+        mChanges.clear();
+    }
+
+    @Benchmark
+    public long parseAddress() {
+        return DeviceRegistry.parseAddress(mAddresses[mNext++ % devices]);
+    }
+
+    @Benchmark
+    public int putKnown() {
+        final int i = mNext++ % devices;
+        return mRegistry.put(mKeys[i], mAddresses[i], null, mRssi[i] + (mNext & 7), mNow += 10);
+    }
+
+    @Benchmark
+    public int putAndRank() {
+        final int i = mNext++ % devices;
+        final int slot = DeviceRegistry.slotOf(mRegistry.put(mKeys[i], mAddresses[i], null, mRssi[i] + (mNext & 7), mNow += 10));
+        mProximity.update(mRegistry, slot, mChanges);
+        final int changes = mChanges.size();
+        mChanges.clear();
+        return changes;
+    }
+
+    /**
+     * A device going out of range and coming straight back, what expiry costs the index.
+     */
+    @Benchmark
+    public int removeAndRank() {
+        final int i = mNext++ % devices;
+        mProximity.remove(mRegistry, mRegistry.find(mKeys[i]), mChanges);
+        mRegistry.remove(mKeys[i]);
+        final int slot = DeviceRegistry.slotOf(mRegistry.put(mKeys[i], mAddresses[i], null, mRssi[i], mNow += 10));
+        mProximity.update(mRegistry, slot, mChanges);
+        final int changes = mChanges.size();
+        mChanges.clear();
+        return changes;
+    }
+}
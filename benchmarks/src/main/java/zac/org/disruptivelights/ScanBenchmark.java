@@ -0,0 +1,102 @@
+package zac.org.disruptivelights;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What one advertisement from an already known device costs ScanEngine, i.e. everything
+ * the scan callback does per packet: registry, filter, proximity index, coalescer and
+ * event bus. Timers land on a BleSimulator that never runs, so only the callback is timed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanBenchmark {
+    private static final int RSSI_SAMPLES = 1024;
+
+    @Param({"100", "2000"})
+    public int devices;
+
+    /**
+     * Hands the callback to the benchmark instead of a radio.
+     */
+    private static class CapturingScanner implements BleScanner {
+        Callback mCallback;
+
+        @Override
+        public boolean isAvailable() {
+            return true;
+        }
+
+        @Override
+        public boolean startScan(Callback callback) {
+            mCallback = callback;
+            return true;
+        }
+
+        @Override
+        public void stopScan(Callback callback) {
+            mCallback = null;
+        }
+
+        @Override
+        public String getName(String address) {
+            return null;
+        }
+    }
+
+    private BleScanner.Callback mCallback;
+    private String[] mAddresses;
+    private int[] mRssi;
+    private byte[] mRecord;
+    private int mNext;
+
+    @Setup
+    public void setup() {
+        final BleSimulator simulator = new BleSimulator(1);
+        final CapturingScanner scanner = new CapturingScanner();
+        final BleEventBus bus = new BleEventBus();
+        bus.register(new BleEventBus.SimpleScanListener());
+        final ScanEngine engine = new ScanEngine(scanner, simulator, simulator.getClock(), bus);
+        engine.startScan();
+        simulator.runFor(1);
+        mCallback = scanner.mCallback;
+
+        final Random random = new Random(1);
+        mAddresses = new String[devices];
+        for(int i = 0; i < devices; i++) {
+            mAddresses[i] = DeviceRegistry.formatAddress(random.nextLong() & 0xFFFFFFFFFFFFL);
+        }
+        mRssi = new int[RSSI_SAMPLES];
+        for(int i = 0; i < RSSI_SAMPLES; i++) {
+            mRssi[i] = -90 + random.nextInt(50);
+        }
+        mRecord = new byte[] {2, 0x01, 0x06, 6, 0x09, 'L', 'i', 'g', 'h', 't', 5, (byte)0xFF, (byte)0xFF, (byte)0xFF, 1, 0};
+
+        //Every device known before measuring starts
+        for(int i = 0; i < devices; i++) {
+            mCallback.onAdvertisement(mAddresses[i], mRssi[i % RSSI_SAMPLES], mRecord);
+        }
+    }
+
+    @Benchmark
+    public void knownDevice() {
+        final int i = mNext++;
+        mCallback.onAdvertisement(mAddresses[i % devices], mRssi[i & (RSSI_SAMPLES - 1)], mRecord);
+    }
+}
@@ -0,0 +1,79 @@
+package zac.org.disruptivelights;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * send() from the top down to the node: framing for the MTU, the write queue, the write
+ * and reassembly on a LoopbackGattLink that completes every write on the spot. fragment
+ * is the framing alone and reassemble the receiving side alone, fed the chunks of one
+ * message. 600 bytes at MTU 23 is 32 chunks, as many as the default write queue holds
+ * for one message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SendBenchmark {
+    @Param({"20", "180", "600"})
+    public int size;
+
+    @Param({"23", "185"})
+    public int mtu;
+
+    private LoopbackGattLink mLink;
+    private byte[] mPayload;
+    private byte[][] mChunks;
+    private final PacketReassembler mReassembler = new PacketReassembler();
+
+    @Setup
+    public void setup() {
+        mLink = new LoopbackGattLink("D2:86:6A:06:04:83", new GattLink.Callback() {
+            @Override public void onLinkConnected(GattLink link) {}
+            @Override public void onLinkReady(GattLink link) {}
+            @Override public void onLinkDisconnected(GattLink link) {}
+            @Override public void onLinkData(GattLink link, byte[] data) {}
+        }, null, 0, 0, mtu);
+        mLink.connect();
+        mPayload = new byte[size];
+        for(int i = 0; i < size; i++) {
+            mPayload[i] = (byte)i;
+        }
+        mChunks = PacketFramer.fragment(mPayload, mtu);
+        if(!mLink.send(mPayload, GattWriteQueue.NO_COALESCE)) {
+            throw new IllegalStateException("The link refused a " + size + " byte message");
+        }
+    }
+
+    @Benchmark
+    public boolean send() {
+        return mLink.send(mPayload, GattWriteQueue.NO_COALESCE);
+    }
+
+    @Benchmark
+    public byte[][] fragment() {
+        return PacketFramer.fragment(mPayload, mtu);
+    }
+
+    @Benchmark
+    public byte[] reassemble() {
+        byte[] message = null;
+        for(byte[] chunk : mChunks) {
+            message = mReassembler.onPacket(chunk);
+        }
+        return message;
+    }
+}
@@ -0,0 +1,151 @@
+package zac.org.disruptivelights;
+
+import java.util.Arrays;
+
+/**
+ * The scan and send paths under load, on BleSimulator instead of a phone and a room full
+ * of lights.
+ *
+ *   SimulatedLoadRun [advertisers] [seconds] [seed] [nodes]
+ *
+ * Scan: ScanEngine scans continuously while the advertisers come and go; a tenth of them
+ * switches off halfway. Reports what came in, what the listeners got and how fast the
+ * simulation ran, then runs the same seed again to check it comes out the same.
+ *
+ * Send: a GattConnectionPool keeps nodes connected (more than the simulated phone allows)
+ * and a 60 LED frame goes to the group 30 times a second. Reports group latency in
+ * virtual time.
+ */
+public class SimulatedLoadRun {
+    public static void main(String[] args) {
+        final int advertisers = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+        final long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        final int nodes = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        final long first = scan(advertisers, seconds, seed, true);
+        final long second = scan(advertisers, seconds, seed, false);
+        System.out.println("Same seed, same run: " + (first == second));
+        System.out.println();
+
+        send(nodes, seconds, seed);
+    }
+
+    //Returns a digest of everything the listeners heard
+    private static long scan(int advertisers, int seconds, long seed, boolean report) {
+        final BleSimulator simulator = new BleSimulator(seed);
+        simulator.addAdvertisers(advertisers, -95, -40, 100, 1000);
+
+        final BleEventBus bus = new BleEventBus();
+        final ScanEngine engine = new ScanEngine(simulator.getScanner(), simulator, simulator.getClock(), bus);
+        engine.getScanScheduler().setContinuous();
+
+        final long[] counts = new long[6]; //new, batches, updates, gone, proximity, digest
+        bus.register(new BleEventBus.SimpleScanListener() {
+            @Override
+            public void onDeviceNew(String address, String name, int rssi) {
+                counts[0]++;
+                counts[5] = counts[5] * 31 + address.hashCode() + rssi;
+            }
+
+            @Override
+            public void onDeviceUpdates(UpdateCoalescer.Batch updates) {
+                counts[1]++;
+                counts[2] += updates.size();
+                for(int i = 0; i < updates.size(); i++) {
+                    counts[5] = counts[5] * 31 + updates.addressAt(i).hashCode() + updates.smoothedRssiAt(i);
+                }
+            }
+
+            @Override
+            public void onDeviceGone(String address) {
+                counts[3]++;
+                counts[5] = counts[5] * 31 + address.hashCode();
+            }
+        });
+        bus.register(new BleEventBus.ProximityListener() {
+            @Override
+            public void onProximityChanged(String address, int rank, int rssi) {
+                counts[4]++;
+                counts[5] = counts[5] * 31 + address.hashCode() + rank;
+            }
+        });
+
+        final long startNs = System.nanoTime();
+        engine.startScan();
+        simulator.runFor(seconds * 500L);
+        for(int i = 0; i < advertisers / 10; i++) {
+            simulator.setAdvertiserActive(i, false);
+        }
+        simulator.runFor(seconds * 500L);
+        final long wallMs = (System.nanoTime() - startNs) / 1000000;
+
+        if(report) {
+            System.out.println("Scan: " + advertisers + " advertisers, " + seconds + " s simulated in " + wallMs + " ms"
+                    + " (" + (wallMs == 0 ? "-" : String.valueOf(seconds * 1000L / wallMs)) + "x real time)");
+            System.out.println("  advertisements " + simulator.getAdvertisementsSent() + " sent, "
+                    + simulator.getAdvertisementsLost() + " lost, " + engine.getAdvertisementCount() + " received");
+            System.out.println("  devices in range " + engine.getDeviceCount() + ", new " + counts[0] + ", gone " + counts[3]);
+            System.out.println("  updates " + counts[2] + " in " + counts[1] + " batches, proximity changes " + counts[4]);
+            System.out.println("  " + engine.getUpdateCoalescer());
+            System.out.println("  " + simulator);
+        }
+        return counts[5];
+    }
+
+    private static void send(int nodes, int seconds, long seed) {
+        final BleSimulator simulator = new BleSimulator(seed);
+        simulator.setMtu(185);
+        simulator.setWriteTiming(BleSimulator.DEFAULT_CONNECTION_INTERVAL_US, 0.05);
+        final int firstNode = simulator.addAdvertisers(nodes, -80, -50, 100, 100);
+
+        final GattConnectionPool pool = new GattConnectionPool(simulator.getLinkFactory(), nodes);
+        final DeviceGroup group = new DeviceGroup("all");
+        for(int i = 0; i < nodes; i++) {
+            final String address = simulator.getAdvertiserAddress(firstNode + i);
+            group.add(address);
+            pool.open(address);
+        }
+        simulator.runFor(2000);
+
+        final byte[] frame = new byte[60 * 3];
+        final long[] latencyUs = new long[seconds * 30];
+        final int[] written = new int[1];
+        final int[] done = new int[1];
+        final long startNs = System.nanoTime();
+        for(int f = 0; f < latencyUs.length; f++) {
+            frame[f % frame.length]++;
+            final int index = f;
+            final long sentUs = simulator.getTimeUs();
+            pool.sendToGroup(group, frame, false, new GroupSend.Listener() {
+                @Override
+                public void onGroupSendDone(GroupSend send) {
+                    latencyUs[index] = simulator.getTimeUs() - sentUs;
+                    done[0]++;
+                    for(int i = 0; i < send.size(); i++) {
+                        if(send.statusAt(i) == GroupSend.STATUS_WRITTEN) {
+                            written[0]++;
+                        }
+                    }
+                }
+            });
+            simulator.runUntilUs(sentUs + 33333);
+        }
+        simulator.runFor(1000);
+        final long wallMs = (System.nanoTime() - startNs) / 1000000;
+
+        final long[] sorted = Arrays.copyOf(latencyUs, done[0]);
+        Arrays.sort(sorted);
+        System.out.println("Send: " + nodes + " nodes, phone allows " + BleSimulator.DEFAULT_MAX_CONNECTIONS
+                + ", MTU 185, 5% write loss, " + latencyUs.length + " group frames in " + wallMs + " ms");
+        System.out.println("  connected " + simulator.getConnectionsInUse() + ", connect attempts "
+                + simulator.getConnectAttempts() + ", failed " + simulator.getConnectFailures());
+        System.out.println("  group frames done " + done[0] + ", node frames written " + written[0]
+                + " of " + (long)latencyUs.length * nodes);
+        if(sorted.length > 0) {
+            System.out.println("  group latency ms p50 " + sorted[sorted.length / 2] / 1000.0
+                    + ", p99 " + sorted[sorted.length * 99 / 100] / 1000.0 + ", max " + sorted[sorted.length - 1] / 1000.0);
+        }
+        System.out.println("  " + simulator);
+    }
+}
@@ -0,0 +1,58 @@
+package zac.org.disruptivelights;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Plays a show headless against a LoopbackGattLink and prints what the pacer achieved.
+ *
+ *   TimelineRun [leds] [fps] [seconds] [writeDelayUs]
+ *
+ * writeDelayUs is how long the simulated node takes per written chunk, 7500 is one
+ * write per 7.5 ms connection interval.
+ */
+public class TimelineRun {
+    public static void main(String[] args) throws Exception {
+        final int leds = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+        final int fps = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        final long writeDelayUs = args.length > 3 ? Long.parseLong(args[3]) : 7500;
+
+        final ScheduledExecutorService node = Executors.newSingleThreadScheduledExecutor();
+        final LoopbackGattLink link = new LoopbackGattLink("AA:BB:CC:00:00:01", new SimpleCallback(), node, 0, writeDelayUs, 185);
+        link.connect();
+        while(!link.isReady()) {
+            Thread.sleep(1);
+        }
+
+        //A third each of fade, chase and palette
+        final long third = seconds * 1000L / 3;
+        final Timeline timeline = new Timeline()
+                .add(0, third, Effects.fade(0x000000, 0xFF8000, third))
+                .add(third, third, Effects.chase(0xFF0000, 0x000010, 5, leds))
+                .add(2 * third, third, Effects.palette(new int[] {0xFF0000, 0x00FF00, 0x0000FF}, 2000));
+
+        final LightStateModel model = new LightStateModel();
+        final TimelinePlayer player = new TimelinePlayer(timeline, leds, fps, TimelinePlayer.DEFAULT_BUFFER_FRAMES,
+                model.sinkFor(link, 2));
+        player.start();
+        player.await(seconds * 1000L + 5000);
+        player.stop();
+        Thread.sleep(100);
+
+        final FrameDeltaEncoder encoder = model.getEncoder(link.getAddress());
+        System.out.println(leds + " LEDs at " + fps + " fps for " + seconds + " s, " + writeDelayUs + " us per write");
+        System.out.println(player);
+        System.out.println(encoder + " ratio " + String.format("%.1f", (double)encoder.getRawBytes() / Math.max(1, encoder.getEncodedBytes())));
+        System.out.println("node got " + link.getReceivedMessages() + " messages, " + link.getReceivedBytes() + " bytes in "
+                + link.getReceivedChunks() + " chunks");
+        node.shutdown();
+    }
+
+    private static class SimpleCallback implements GattLink.Callback {
+        @Override public void onLinkConnected(GattLink link) {}
+        @Override public void onLinkReady(GattLink link) {}
+        @Override public void onLinkDisconnected(GattLink link) {}
+        @Override public void onLinkData(GattLink link, byte[] data) {}
+    }
+}
@@ -0,0 +1,161 @@
+package zac.org.disruptivelights;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+
+/**
+ * Records a simulated session with TraceRecorder and plays it back with TraceReplayer.
+ *
+ *   TraceReplayRun [advertisers] [seconds] [seed]
+ *
+ * A ScanEngine scans BleSimulator advertisers while the trace records, then one GATT node
+ * connects and sends a stream of framed notifications. The trace is played back into a
+ * fresh ScanEngine at recorded speed, ten times as fast and unlimited, each should arrive
+ * at what the trace kept. Replay keeps time from the first event, not from when the
+ * original started scanning, so a few advertisements may land in a gap where the new
+ * engine restarts its scan window; those are counted as missed. Also reports what
+ * recording costs per event, ring wrapping included.
+ */
+public class TraceReplayRun {
+    private static final long NODE = 0xD2866A060483L;
+
+    public static void main(String[] args) throws IOException {
+        final int advertisers = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 120;
+        final long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+
+        final File file = File.createTempFile("ble", ".trace");
+        file.deleteOnExit();
+        final long[] original = record(file, advertisers, seconds, seed);
+
+        //Once the ring is full only the newest events are kept, replay can only bring those back
+        final TraceReader reader = new TraceReader(file);
+        final HashSet<Long> addresses = new HashSet<Long>();
+        final long[] kept = new long[3];
+        int inFile = 0;
+        while(reader.next()) {
+            inFile++;
+            if(reader.getType() == TraceRecorder.TYPE_ADVERTISEMENT) {
+                kept[0]++;
+                addresses.add(reader.getAddressKey());
+            }
+        }
+        kept[1] = addresses.size();
+        kept[2] = original[2];
+        System.out.println("Trace: " + reader.getRecordCount() + " events recorded, " + inFile + " kept in "
+                + file.length() / 1024 + " KB");
+        System.out.println("Original:  " + describe(original));
+        System.out.println("Kept:      " + describe(kept));
+
+        replay(reader, 1, kept);
+        replay(reader, 10, kept);
+        replay(reader, TraceReplayer.SPEED_UNLIMITED, kept);
+        System.out.println();
+
+        recordingCost();
+    }
+
+    //Returns advertisements, new devices, messages as the listeners saw them
+    private static long[] record(File file, int advertisers, int seconds, long seed) throws IOException {
+        final BleSimulator simulator = new BleSimulator(seed);
+        simulator.addAdvertisers(advertisers, -95, -40, 100, 1000);
+        final TraceRecorder trace = new TraceRecorder(file, TraceRecorder.DEFAULT_SIZE * 8, simulator.getClock());
+        TraceRecorder.setActive(trace);
+
+        final BleEventBus bus = new BleEventBus();
+        final long[] seen = new long[3];
+        final ScanEngine engine = listen(simulator.getScanner(), simulator, simulator.getClock(), bus, seen);
+        engine.getScanScheduler().setContinuous();
+        engine.startScan();
+        simulator.runFor(seconds * 1000L);
+        engine.stopScanning();
+        simulator.runFor(1);
+        seen[0] = engine.getAdvertisementCount();
+
+        //A node sends back 1000 messages of three chunks each; AndroidGattLink records
+        //these on a phone, here they are recorded by hand
+        trace.connected(NODE, 0);
+        simulator.runFor(300);
+        trace.ready(NODE, PacketFramer.DEFAULT_MTU, true);
+        for(int i = 0; i < 1000; i++) {
+            final byte[] message = new byte[50];
+            message[0] = (byte)i;
+            for(byte[] chunk : PacketFramer.fragment(message, PacketFramer.DEFAULT_MTU)) {
+                trace.notification(NODE, chunk);
+                simulator.runFor(7);
+            }
+            seen[2]++;
+        }
+        trace.disconnected(NODE, 0);
+
+        TraceRecorder.setActive(null);
+        trace.close();
+        return seen;
+    }
+
+    private static void replay(TraceReader reader, double speed, long[] kept) {
+        final BleSimulator simulator = new BleSimulator(1);
+        final BleEventBus bus = new BleEventBus();
+        final TraceReplayer replayer = new TraceReplayer(reader, simulator, simulator.getClock(), bus);
+        replayer.setSpeed(speed);
+        final long[] seen = new long[3];
+        final ScanEngine engine = listen(replayer, simulator, simulator.getClock(), bus, seen);
+        engine.getScanScheduler().setContinuous();
+        engine.startScan();
+        simulator.runFor(1);
+
+        final long startNs = System.nanoTime();
+        replayer.start();
+        while(replayer.isRunning()) {
+            simulator.runFor(1000);
+        }
+        final long wallMs = Math.max(1, (System.nanoTime() - startNs) / 1000000);
+        seen[0] = engine.getAdvertisementCount();
+
+        System.out.println((speed == TraceReplayer.SPEED_UNLIMITED ? "Unlimited" : speed + "x") + ": "
+                + describe(seen) + ", " + simulator.getClock().now() / 1000 + " s virtual, "
+                + replayer.getReplayedCount() * 1000 / wallMs + " events/s wall, missed " + replayer.getMissedCount()
+                + (seen[0] + replayer.getMissedCount() == kept[0] && seen[1] == kept[1] && seen[2] == kept[2]
+                        ? ", nothing lost" : ", DIFFERENT"));
+    }
+
+    private static ScanEngine listen(BleScanner scanner, BleSimulator simulator, MonotonicClock clock,
+                                     BleEventBus bus, final long[] seen) {
+        bus.register(new BleEventBus.SimpleScanListener() {
+            @Override
+            public void onDeviceNew(String address, String name, int rssi) {
+                seen[1]++;
+            }
+        });
+        bus.register(new BleEventBus.SimpleGattListener() {
+            @Override
+            public void onDataAvailable(byte[] data) {
+                seen[2]++;
+            }
+        });
+        return new ScanEngine(scanner, simulator, clock, bus);
+    }
+
+    private static String describe(long[] seen) {
+        return "advertisements " + seen[0] + ", new devices " + seen[1] + ", messages " + seen[2];
+    }
+
+    private static void recordingCost() throws IOException {
+        final File file = File.createTempFile("cost", ".trace");
+        file.deleteOnExit();
+        final TraceRecorder trace = new TraceRecorder(file, 1024 * 1024);
+        final byte[] scanRecord = new byte[31];
+        final int events = 5000000;
+        for(int round = 0; round < 3; round++) {
+            final long startNs = System.nanoTime();
+            for(int i = 0; i < events; i++) {
+                trace.advertisement(NODE + (i & 255), -60, scanRecord);
+            }
+            final long ns = System.nanoTime() - startNs;
+            System.out.println("Recording: " + (double)ns / events + " ns per advertisement, "
+                    + trace.getRingSize() / 1024 + " KB ring wrapped " + trace.getRecordCount() * 56 / trace.getRingSize() + " times");
+        }
+        trace.close();
+    }
+}
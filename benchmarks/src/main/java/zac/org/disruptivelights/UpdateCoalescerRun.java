@@ -0,0 +1,77 @@
+package zac.org.disruptivelights;
+
+import java.util.Random;
+
+/**
+ * How many device updates ScanEngine delivers for the advertisements it takes in, on
+ * BleSimulator.
+ *
+ *   UpdateCoalescerRun [seconds] [seed] [devices...]
+ *
+ * Every device advertises 10 times a second with 6 dB of noise, and halfway through a
+ * tenth of them walks away, dropping 20 dB. Each device count runs with the default
+ * coalescer, and 200 devices once more with the RSSI threshold at 0 so only the minimum
+ * interval applies.
+ */
+public class UpdateCoalescerRun {
+    private static final int INTERVAL_MS = 95; //plus the simulator's 0..10 ms jitter
+    private static final double NOISE_DB = 6;
+    private static final int WALK_AWAY_DB = 20;
+
+    public static void main(String[] args) {
+        final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 600;
+        final long seed = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        int[] counts = {20, 200, 2000};
+        if(args.length > 2) {
+            counts = new int[args.length - 2];
+            for(int i = 2; i < args.length; i++) {
+                counts[i - 2] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.println(seconds + " s simulated, " + (1000 / (INTERVAL_MS + 5)) + " advertisements/s per device, "
+                + (int)NOISE_DB + " dB noise");
+        for(int devices : counts) {
+            run(devices, seconds, seed, UpdateCoalescer.DEFAULT_RSSI_THRESHOLD);
+        }
+        run(200, seconds, seed, 0);
+    }
+
+    private static void run(int devices, int seconds, long seed, int rssiThreshold) {
+        final BleSimulator simulator = new BleSimulator(seed);
+        simulator.setRssiNoiseDb(NOISE_DB);
+        final Random random = new Random(seed);
+        final int[] meanRssi = new int[devices];
+        for(int i = 0; i < devices; i++) {
+            meanRssi[i] = -95 + random.nextInt(56);
+            simulator.addAdvertiser(DeviceRegistry.formatAddress(0xC00000000000L + i), "Light " + i, meanRssi[i], INTERVAL_MS);
+        }
+
+        final BleEventBus bus = new BleEventBus();
+        final ScanEngine engine = new ScanEngine(simulator.getScanner(), simulator, simulator.getClock(), bus);
+        engine.getScanScheduler().setContinuous();
+        engine.getUpdateCoalescer().setRssiThreshold(rssiThreshold);
+        final long[] delivered = new long[2]; //updates, batches
+        bus.register(new BleEventBus.SimpleScanListener() {
+            @Override
+            public void onDeviceUpdates(UpdateCoalescer.Batch updates) {
+                delivered[0] += updates.size();
+                delivered[1]++;
+            }
+        });
+
+        final long startNs = System.nanoTime();
+        engine.startScan();
+        simulator.runFor(seconds * 500L);
+        for(int i = 0; i < devices / 10; i++) {
+            simulator.setAdvertiserRssi(i, meanRssi[i] - WALK_AWAY_DB);
+        }
+        simulator.runFor(seconds * 500L);
+        final long wallMs = (System.nanoTime() - startNs) / 1000000;
+
+        final long received = engine.getAdvertisementCount();
+        System.out.println(devices + " devices, RSSI threshold " + rssiThreshold + " dB: " + received + " advertisements -> "
+                + delivered[0] + " updates (" + (delivered[0] == 0 ? "-" : String.valueOf(received / delivered[0]))
+                + "x fewer) in " + delivered[1] + " batches, " + wallMs + " ms");
+    }
+}
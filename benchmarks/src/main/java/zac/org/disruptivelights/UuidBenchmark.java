@@ -0,0 +1,199 @@
+package zac.org.disruptivelights;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UUID handling in the GATT and scan code. sixteenBitUuid() is how BtLeGattService used
+ * to build UUIDs, formatting and parsing a string, kept here to compare BleUuids with.
+ * Service UUIDs in a scan record are matched the way Android's ScanRecord does it, a UUID
+ * per advertised entry, and straight against the bytes with ScanRecordParser.
+ *
+ * parseAllocating and parseFlyweight read the fields the scan path wants (the 0x2220
+ * service, TX power, manufacturer id and name prefix) out of a mix of advertisements: the
+ * first copies every field out into objects as ScanRecord.parseFromBytes() does, the
+ * second reads them in place.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UuidBenchmark {
+    private static final UUID CUSTOM_SERVICE = UUID.fromString("6E400001-B5A3-F393-E0A9-E50E24DCCA9E");
+
+    private final UUID mSend = sixteenBitUuid(0x2222);
+    private final UUID[] mCharacteristics = {sixteenBitUuid(0x2221), sixteenBitUuid(0x2222), sixteenBitUuid(0x2223)};
+    private final int mSendIndex = 1; //as resolved once per connection
+    private final ScanRecordParser mParser = new ScanRecordParser();
+    private static final byte[] NAME_PREFIX = {'L', 'i', 'g', 'h', 't'};
+
+    private final UUID mLightService = BleUuids.fromShort(0x2220);
+    private byte[] mScanRecord;
+    private byte[][] mCorpus;
+    private int mNext;
+
+    //As BtLeGattService had it
+    static UUID sixteenBitUuid(long shortUuid) {
+        final String shortUuidFormat = "0000%04X-0000-1000-8000-00805F9B34FB";
+        assert shortUuid >= 0 && shortUuid <= 0xFFFF;
+        return UUID.fromString(String.format(shortUuidFormat, shortUuid & 0xFFFF));
+    }
+
+    @Setup
+    public void setUp() {
+        //Flags, two 16 bit services, then the 128 bit one looked for, as a node advertises it
+        final ByteBuffer record = ByteBuffer.allocate(31).order(ByteOrder.LITTLE_ENDIAN);
+        record.put((byte)2).put((byte)ScanRecordParser.AD_FLAGS).put((byte)0x06);
+        record.put((byte)5).put((byte)ScanRecordParser.AD_UUID16_COMPLETE).putShort((short)0x180F).putShort((short)0x2220);
+        record.put((byte)17).put((byte)ScanRecordParser.AD_UUID128_COMPLETE)
+                .putLong(CUSTOM_SERVICE.getLeastSignificantBits()).putLong(CUSTOM_SERVICE.getMostSignificantBits());
+        mScanRecord = record.array();
+
+        //A light node, a beacon, a phone and the record above, each padded to 31 bytes as
+        //Android hands them over
+        mCorpus = new byte[][] {
+                padded(2, 0x01, 0x06, 3, 0x03, 0x20, 0x22, 8, 0x09, 'L', 'i', 'g', 'h', 't', ' ', '7',
+                        5, 0xFF, 0x59, 0x00, 0x01, 0x02),
+                padded(2, 0x01, 0x06, 26, 0xFF, 0x4C, 0x00, 0x02, 0x15, 0xE2, 0xC5, 0x6D, 0xB5, 0xDF, 0xFB,
+                        0x48, 0xD2, 0xB0, 0x60, 0xD0, 0xF5, 0xA7, 0x10, 0x96, 0xE0, 0x00, 0x01, 0x00, 0x02, 0xC5),
+                padded(2, 0x01, 0x1A, 2, 0x0A, 0xF4, 5, 0x03, 0x0F, 0x18, 0x0A, 0x18, 6, 0x08, 'P', 'i', 'x', 'e', 'l'),
+                mScanRecord
+        };
+    }
+
+    private static byte[] padded(int... bytes) {
+        final byte[] record = new byte[31];
+        for(int i = 0; i < bytes.length; i++) {
+            record[i] = (byte)bytes[i];
+        }
+        return record;
+    }
+
+    @Benchmark
+    public UUID sixteenBitUuid() {
+        return sixteenBitUuid(0x2220 + (mNext++ & 3));
+    }
+
+    @Benchmark
+    public UUID fromShort() {
+        return BleUuids.fromShort(0x2220 + (mNext++ & 3));
+    }
+
+    /**
+     * Finding UUID_SEND among a service's characteristics by UUID, what every write used to do.
+     */
+    @Benchmark
+    public int findCharacteristic() {
+        final UUID[] characteristics = mCharacteristics;
+        for(int i = 0; i < characteristics.length; i++) {
+            if(characteristics[i].equals(mSend)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Benchmark
+    public UUID cachedCharacteristic() {
+        return mCharacteristics[mSendIndex];
+    }
+
+    @Benchmark
+    public boolean scanRecordAsUuids() {
+        mParser.reset(mScanRecord);
+        while(mParser.next()) {
+            final int type = mParser.type();
+            final int size = type == ScanRecordParser.AD_UUID16_COMPLETE ? 2
+                    : type == ScanRecordParser.AD_UUID128_COMPLETE ? 16 : 0;
+            for(int i = 0; size > 0 && i + size <= mParser.dataLength(); i += size) {
+                if(toUuid(mParser.buffer(), mParser.dataOffset() + i, size).equals(CUSTOM_SERVICE)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Benchmark
+    public boolean scanRecordRaw() {
+        return mParser.reset(mScanRecord).hasServiceUuid(CUSTOM_SERVICE);
+    }
+
+    @Benchmark
+    public int parseAllocating() {
+        final byte[] record = mCorpus[mNext++ & 3];
+        final ArrayList<UUID> services = new ArrayList<UUID>();
+        final HashMap<Integer, byte[]> manufacturerData = new HashMap<Integer, byte[]>();
+        String name = null;
+        int txPower = ScanRecordParser.NO_TX_POWER;
+
+        int i = 0;
+        while(i < record.length) {
+            final int length = record[i] & 0xFF;
+            if(length == 0 || i + 1 + length > record.length) {
+                break;
+            }
+            final int type = record[i + 1] & 0xFF;
+            final byte[] data = new byte[length - 1];
+            System.arraycopy(record, i + 2, data, 0, data.length);
+            if(type == ScanRecordParser.AD_UUID16_COMPLETE || type == ScanRecordParser.AD_UUID16_INCOMPLETE) {
+                for(int j = 0; j + 2 <= data.length; j += 2) {
+                    services.add(toUuid(data, j, 2));
+                }
+            } else if(type == ScanRecordParser.AD_UUID128_COMPLETE || type == ScanRecordParser.AD_UUID128_INCOMPLETE) {
+                for(int j = 0; j + 16 <= data.length; j += 16) {
+                    services.add(toUuid(data, j, 16));
+                }
+            } else if(type == ScanRecordParser.AD_NAME_COMPLETE || type == ScanRecordParser.AD_NAME_SHORT) {
+                name = new String(data);
+            } else if(type == ScanRecordParser.AD_TX_POWER && data.length >= 1) {
+                txPower = data[0];
+            } else if(type == ScanRecordParser.AD_MANUFACTURER_DATA && data.length >= 2) {
+                final byte[] specific = new byte[data.length - 2];
+                System.arraycopy(data, 2, specific, 0, specific.length);
+                manufacturerData.put((data[0] & 0xFF) | (data[1] & 0xFF) << 8, specific);
+            }
+            i += 1 + length;
+        }
+
+        int manufacturer = ScanRecordParser.NO_MANUFACTURER;
+        for(Integer id : manufacturerData.keySet()) {
+            manufacturer = id;
+        }
+        return (services.contains(mLightService) ? 1 : 0) + txPower + manufacturer
+                + (name != null && name.startsWith("Light") ? 2 : 0);
+    }
+
+    @Benchmark
+    public int parseFlyweight() {
+        final ScanRecordParser parser = mParser.reset(mCorpus[mNext++ & 3]);
+        return (parser.hasServiceUuid16(0x2220) ? 1 : 0) + parser.txPower() + parser.manufacturerId()
+                + (parser.localNameStartsWith(NAME_PREFIX) ? 2 : 0);
+    }
+
+    private static UUID toUuid(byte[] buffer, int offset, int size) {
+        final ByteBuffer bytes = ByteBuffer.wrap(buffer, offset, size).order(ByteOrder.LITTLE_ENDIAN);
+        if(size == 2) {
+            return BleUuids.fromShort(bytes.getShort() & 0xFFFF);
+        }
+        final long least = bytes.getLong();
+        return new UUID(bytes.getLong(), least);
+    }
+}